@@ -140,7 +140,15 @@ public class ArduinoBindingsGenerator {
 		exclude.add("onDisconnect");	
 		exclude.add("setBoard");	
 		exclude.add("setBoard");	
-		exclude.add("setSketch");	
+		exclude.add("setSketch");
+
+		// stepper slice queue - fixed codes in ArduinoMsgCodec
+		exclude.add("getStepperQueueFree");
+		exclude.add("getStepperQueueSize");
+		exclude.add("getStepperSliceMaxSteps");
+		exclude.add("getStepperSlicePeriod");
+		exclude.add("stepperQueue");
+		exclude.add("stepperQueueClear");
 
 		
 		int index = 0;
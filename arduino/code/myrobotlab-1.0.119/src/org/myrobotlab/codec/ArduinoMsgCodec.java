@@ -50,7 +50,7 @@ public class ArduinoMsgCodec extends Codec implements Serializable {
 
 	public static final int MAX_MSG_SIZE = 64;
 	
-	public static final int MRLCOMM_VERSION = 21;
+	public static final int MRLCOMM_VERSION = 22;
 
 	public static final int MAGIC_NUMBER = 170; // 10101010
 	
@@ -58,6 +58,11 @@ public class ArduinoMsgCodec extends Codec implements Serializable {
 	public static final int STEPPER_EVENT_STOP = 1;
 	public static final int STEPPER_EVENT_STEP = 2;
 
+	// ----------- stepper slice queue -------------------
+	// fixed codes past the generated ones and the vendor shields' 50 - 60
+	public static final int STEPPER_QUEUE = 61;
+	public static final int STEPPER_QUEUE_CLEAR = 62;
+
 	/////// JAVA GENERATED DEFINITION BEGIN - DO NOT MODIFY //////
 	
 	///// java ByteToMethod generated definition - DO NOT MODIFY - Begin //////
@@ -366,6 +371,14 @@ public class ArduinoMsgCodec extends Codec implements Serializable {
 
 	}
 	///// JAVA GENERATED DEFINITION END - DO NOT MODIFY //////
+
+	static {
+		byteToMethod.put(STEPPER_QUEUE, "stepperQueue");
+		methodToByte.put("stepperQueue", STEPPER_QUEUE);
+
+		byteToMethod.put(STEPPER_QUEUE_CLEAR, "stepperQueueClear");
+		methodToByte.put("stepperQueueClear", STEPPER_QUEUE_CLEAR);
+	}
 	
 	static public String byteToMethod(int m) {
 		if (byteToMethod.containsKey(m)) {
@@ -59,6 +59,7 @@ public class InMoovGestureCreatorGUI extends ServiceGUI implements ActionListene
 	JButton control_updategest;
 	JButton control_removegest;
 	JButton control_testgest;
+	JButton control_compilegest;
 
 	JList control_list;
 
@@ -107,6 +108,8 @@ public class InMoovGestureCreatorGUI extends ServiceGUI implements ActionListene
 			myService.send(boundServiceName, "control_removegest", control_list);
 		} else if (o == control_testgest) {
 			myService.send(boundServiceName, "control_testgest");
+		} else if (o == control_compilegest) {
+			myService.send(boundServiceName, "control_compilegest", control_funcname);
 		} else if (o == frame_add) {
 			myService.send(boundServiceName, "frame_add", framelist, frame_add_textfield);
 		} else if (o == frame_addspeed) {
@@ -471,6 +474,10 @@ public class InMoovGestureCreatorGUI extends ServiceGUI implements ActionListene
 		bottom1right.add(control_testgest);
 		control_testgest.addActionListener(this);
 
+		control_compilegest = new JButton("Compile Gest");
+		bottom1right.add(control_compilegest);
+		control_compilegest.addActionListener(this);
+
 		bottom1.add(BorderLayout.EAST, bottom1right);
 
 		String[] te1 = { "                                                  ", "T1", "T2", "T3", "T4", "T5", "T6", "T7", "T8", "T9", "T10" };
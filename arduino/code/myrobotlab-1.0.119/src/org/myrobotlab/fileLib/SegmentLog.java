@@ -0,0 +1,243 @@
+package org.myrobotlab.fileLib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.slf4j.Logger;
+
+/**
+ * append only log of single line records (e.g. json) split into segment files
+ * {dir}/{prefix}.{first sequence}.log
+ *
+ * append only queues the record - a background thread writes and flushes
+ * queued records every flushInterval ms, so the caller never waits on the
+ * disk. Records are numbered from 0 and can be read back by sequence from the
+ * segments.
+ */
+public class SegmentLog extends Thread {
+
+	public final static Logger log = LoggerFactory.getLogger(SegmentLog.class);
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	public int maxSegmentRecords = 1000;
+	public int flushInterval = 1000;
+
+	final File dir;
+	final String prefix;
+
+	// first sequence -> segment file
+	final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+	ArrayList<String> pending = new ArrayList<String>();
+	long nextSeq = 0;
+	// sequence of the next record written to disk
+	long writtenSeq = 0;
+
+	BufferedWriter current;
+	int currentCount = 0;
+
+	volatile boolean isRunning = false;
+
+	public SegmentLog(File dir, String prefix) throws IOException {
+		super(String.format("%s.log", prefix));
+		this.dir = dir;
+		this.prefix = prefix;
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException(String.format("could not create %s", dir));
+		}
+
+		File[] files = dir.listFiles();
+		String start = prefix + ".";
+		for (int i = 0; files != null && i < files.length; ++i) {
+			String name = files[i].getName();
+			if (name.startsWith(start) && name.endsWith(".log")) {
+				try {
+					long first = Long.parseLong(name.substring(start.length(), name.length() - 4));
+					segments.put(first, files[i]);
+				} catch (NumberFormatException e) {
+					log.warn("skipping {}", name);
+				}
+			}
+		}
+
+		if (segments.size() > 0) {
+			Map.Entry<Long, File> last = segments.lastEntry();
+			currentCount = countLines(last.getValue());
+			nextSeq = last.getKey() + currentCount;
+			writtenSeq = nextSeq;
+		}
+	}
+
+	/**
+	 * queues a record - it must not contain a line break
+	 *
+	 * @return its sequence number
+	 * @throws IllegalArgumentException
+	 *             if record has a line break - it would read back as more than
+	 *             one record and shift every sequence after it
+	 */
+	public synchronized long append(String record) {
+		if (record.indexOf('\n') >= 0 || record.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("a record must be a single line");
+		}
+		pending.add(record);
+		if (pending.size() == 1) {
+			notifyAll();
+		}
+		return nextSeq++;
+	}
+
+	public synchronized long getNextSeq() {
+		return nextSeq;
+	}
+
+	/**
+	 * records fromSeq .. fromSeq + count - 1 which are on disk, fewer if the
+	 * log does not reach that far
+	 */
+	public List<String> read(long fromSeq, int count) throws IOException {
+		ArrayList<String> ret = new ArrayList<String>();
+		ArrayList<Map.Entry<Long, File>> files = new ArrayList<Map.Entry<Long, File>>();
+		long end;
+		synchronized (segments) {
+			// everything before writtenSeq has been flushed
+			end = writtenSeq;
+			Long first = segments.floorKey(fromSeq);
+			if (first == null) {
+				first = (segments.size() > 0) ? segments.firstKey() : null;
+			}
+			if (first == null) {
+				return ret;
+			}
+			files.addAll(segments.tailMap(first, true).entrySet());
+		}
+
+		for (int i = 0; i < files.size() && ret.size() < count; ++i) {
+			long seq = files.get(i).getKey();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(files.get(i).getValue()), UTF8));
+			try {
+				String line;
+				while (seq < end && ret.size() < count && (line = reader.readLine()) != null) {
+					if (seq >= fromSeq) {
+						ret.add(line);
+					}
+					++seq;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void run() {
+		isRunning = true;
+		while (isRunning) {
+			try {
+				synchronized (this) {
+					if (pending.size() == 0) {
+						wait(flushInterval);
+					}
+				}
+				// let a burst of records collect into one write
+				Thread.sleep(flushInterval);
+				flush();
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				Logging.logError(e);
+			}
+		}
+	}
+
+	/**
+	 * writes the queued records and flushes the current segment
+	 */
+	public void flush() throws IOException {
+		ArrayList<String> batch;
+		synchronized (this) {
+			if (pending.size() == 0) {
+				return;
+			}
+			batch = pending;
+			pending = new ArrayList<String>();
+		}
+
+		// only this method writes - it may be called by close() as well
+		synchronized (segments) {
+			for (int i = 0; i < batch.size(); ++i) {
+				if (current == null || currentCount >= maxSegmentRecords) {
+					roll();
+				}
+				current.write(batch.get(i));
+				current.write('\n');
+				++currentCount;
+				++writtenSeq;
+			}
+			current.flush();
+		}
+	}
+
+	void roll() throws IOException {
+		if (current == null && segments.size() > 0 && currentCount < maxSegmentRecords) {
+			// reopen the last segment after a restart
+			File last = segments.lastEntry().getValue();
+			current = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(last, true), UTF8));
+			return;
+		}
+
+		if (current != null) {
+			current.close();
+		}
+
+		File f = new File(dir, String.format("%s.%012d.log", prefix, writtenSeq));
+		current = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), UTF8));
+		currentCount = 0;
+		segments.put(writtenSeq, f);
+	}
+
+	public void close() {
+		isRunning = false;
+		interrupt();
+		try {
+			join(flushInterval * 2);
+			flush();
+			synchronized (segments) {
+				if (current != null) {
+					current.close();
+					current = null;
+				}
+			}
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	static int countLines(File f) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+		try {
+			int count = 0;
+			while (reader.readLine() != null) {
+				++count;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.myrobotlab.fileLib;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * a file which is replaced by writing a new version next to it -
+ * {name}.{version} - instead of over it
+ *
+ * a memory mapped file can be neither renamed over nor deleted on Windows
+ * while it is mapped, so readers open the current (highest) version and keep
+ * their mapping, writers add the next version and older versions are removed
+ * once nothing maps them. A plain {name} from before versioning is version 0.
+ */
+public class VersionedFile {
+
+	public final static Logger log = LoggerFactory.getLogger(VersionedFile.class);
+
+	/**
+	 * @return the highest version of file - file itself if there is none
+	 */
+	public static File current(File file) {
+		File current = file;
+		long highest = -1;
+		File[] files = getDir(file).listFiles();
+		String start = file.getName() + ".";
+		for (int i = 0; files != null && i < files.length; ++i) {
+			long version = getVersion(files[i], start);
+			if (version > highest) {
+				highest = version;
+				current = files[i];
+			}
+		}
+		return current;
+	}
+
+	public static boolean exists(File file) {
+		return current(file).exists();
+	}
+
+	/**
+	 * makes a completely written tmp the next version of file and removes the
+	 * older versions which are not mapped anymore
+	 *
+	 * @return the new version
+	 */
+	public static File commit(File file, File tmp) throws IOException {
+		File current = current(file);
+		long version = (current == file) ? 1 : getVersion(current, file.getName() + ".") + 1;
+		File next = new File(getDir(file), String.format("%s.%d", file.getName(), version));
+		if (!tmp.renameTo(next)) {
+			throw new IOException(String.format("could not rename %s to %s", tmp, next));
+		}
+
+		// fails while another reader still maps it - removed on a later commit
+		File[] files = getDir(file).listFiles();
+		String start = file.getName() + ".";
+		for (int i = 0; files != null && i < files.length; ++i) {
+			long v = getVersion(files[i], start);
+			if (v >= 0 && v < version && !files[i].delete()) {
+				log.info("{} is in use - not removed", files[i]);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			log.info("{} is in use - not removed", file);
+		}
+		return next;
+	}
+
+	static File getDir(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		return (dir == null) ? new File(".") : dir;
+	}
+
+	static long getVersion(File f, String start) {
+		String name = f.getName();
+		if (!name.startsWith(start) || name.length() == start.length()) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(start.length()));
+		} catch (NumberFormatException e) {
+			// {name}.tmp
+			return -1;
+		}
+	}
+}
@@ -9,11 +9,21 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -27,6 +37,7 @@ import org.slf4j.Logger;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * handles all encoding and decoding of MRL messages or api(s) assumed context -
@@ -57,8 +68,125 @@ public class Encoder {
 	// disableHtmlEscaping to prevent encoding or "=" -
 	// private transient static Gson gson = new
 	// GsonBuilder().setDateFormat("yyyy-MM-dd HH:mm:ss.SSS").setPrettyPrinting().disableHtmlEscaping().create();
-	private transient static Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd HH:mm:ss.SSS").disableHtmlEscaping().create();
+	private transient static Gson gson = createGson(false);
+	private static boolean prettyPrinting = false;
+	// never pretty printed - one line per object for line based logs
+	private transient static Gson compactGson = createGson(false);
 	// FIXME - switch to Jackson
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * a reusable writer per thread - json goes through its char and byte
+	 * buffers straight to the OutputStream without building a String
+	 */
+	final static ThreadLocal<StreamWriter> streamWriters = new ThreadLocal<StreamWriter>() {
+		@Override
+		protected StreamWriter initialValue() {
+			return new StreamWriter();
+		}
+	};
+
+	/**
+	 * utf-8 Writer onto an OutputStream with fixed buffers - unlike
+	 * OutputStreamWriter it is reset and reused for every response
+	 */
+	static class StreamWriter extends Writer {
+		final char[] chars = new char[8192];
+		final ByteBuffer bytes = ByteBuffer.allocate(16384);
+		final CharsetEncoder encoder = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		OutputStream out;
+		int count = 0;
+		boolean inUse = false;
+
+		void open(OutputStream out) {
+			this.out = out;
+			count = 0;
+			encoder.reset();
+			inUse = true;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			if (count == chars.length) {
+				drain(false);
+			}
+			chars[count++] = (char) c;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == chars.length) {
+					drain(false);
+				}
+				int n = Math.min(len, chars.length - count);
+				System.arraycopy(cbuf, off, chars, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == chars.length) {
+					drain(false);
+				}
+				int n = Math.min(len, chars.length - count);
+				str.getChars(off, off + n, chars, count);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		void drain(boolean endOfInput) throws IOException {
+			CharBuffer cb = CharBuffer.wrap(chars, 0, count);
+			CoderResult result;
+			do {
+				result = encoder.encode(cb, bytes, endOfInput);
+				out.write(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			} while (result.isOverflow());
+			// a high surrogate at the end waits for its pair
+			int remaining = cb.remaining();
+			System.arraycopy(chars, cb.position(), chars, 0, remaining);
+			count = remaining;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain(true);
+			CoderResult result;
+			do {
+				result = encoder.flush(bytes);
+				out.write(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			} while (result.isOverflow());
+			out = null;
+			inUse = false;
+		}
+	}
+
+	static Gson createGson(boolean pretty) {
+		GsonBuilder builder = new GsonBuilder().setDateFormat("yyyy-MM-dd HH:mm:ss.SSS").disableHtmlEscaping().registerTypeAdapterFactory(new JsonAdapters());
+		if (pretty) {
+			builder.setPrettyPrinting();
+		}
+		Gson g = builder.create();
+		// build the adapters of the hot types up front
+		g.getAdapter(Message.class);
+		g.getAdapter(Status.class);
+		g.getAdapter(org.myrobotlab.service.data.Pin.class);
+		return g;
+	}
 	
 	public final static String PREFIX_API = "api";
 
@@ -407,11 +535,8 @@ public class Encoder {
 	}
 
 	public static boolean setJSONPrettyPrinting(boolean b) {
-		if (b) {
-			gson = new GsonBuilder().setDateFormat("yyyy-MM-dd HH:mm:ss.SSS").setPrettyPrinting().disableHtmlEscaping().create();
-		} else {
-			gson = new GsonBuilder().setDateFormat("yyyy-MM-dd HH:mm:ss.SSS").disableHtmlEscaping().create();
-		}
+		gson = createGson(b);
+		prettyPrinting = b;
 		return b;
 	}
 
@@ -441,10 +566,21 @@ public class Encoder {
 		return gson.toJson(o, clazz);
 	}
 
+	/**
+	 * json on a single line whatever setJSONPrettyPrinting says - line breaks
+	 * inside strings are escaped
+	 */
+	public final static String toCompactJson(Object o) {
+		return compactGson.toJson(o);
+	}
+
 	public static void toJsonFile(Object o, String filename) throws IOException {
 		FileOutputStream fos = new FileOutputStream(new File(filename));
-		fos.write(gson.toJson(o).getBytes());
-		fos.close();
+		try {
+			write(fos, o);
+		} finally {
+			fos.close();
+		}
 	}
 
 	// === method signatures begin ===
@@ -508,12 +644,108 @@ public class Encoder {
 	
 	static public void write(String mimeType, OutputStream out, Object toEncode) throws IOException{
 		if (JSON.equals(mimeType)){
-			out.write(gson.toJson(toEncode).getBytes());
+			write(out, toEncode, null);
 			//out.flush();
 		} else {
 			log.error(String.format("write mimeType %s not supported", mimeType));
 		}
 	}
+
+	/**
+	 * streams json to out - the object's fields are limited to the names in
+	 * fields if it is not null, for a collection or array each element's are
+	 *
+	 * e.g. fields {"name", "serviceClass"} for /api/services
+	 */
+	static public void write(OutputStream out, Object toEncode, String[] fields) throws IOException {
+		StreamWriter sw = streamWriters.get();
+		if (sw.inUse) {
+			// nested write on the same thread
+			sw = new StreamWriter();
+		}
+		sw.open(out);
+		try {
+			JsonWriter writer = new JsonWriter(sw);
+			if (prettyPrinting) {
+				writer.setIndent("  ");
+			}
+			if (fields == null || toEncode == null) {
+				gson.toJson(toEncode, (toEncode == null) ? Object.class : toEncode.getClass(), writer);
+			} else if (toEncode instanceof Collection) {
+				writer.beginArray();
+				for (Object o : (Collection<?>) toEncode) {
+					writeFields(writer, o, fields);
+				}
+				writer.endArray();
+			} else if (toEncode instanceof Object[]) {
+				Object[] array = (Object[]) toEncode;
+				writer.beginArray();
+				for (int i = 0; i < array.length; ++i) {
+					writeFields(writer, array[i], fields);
+				}
+				writer.endArray();
+			} else {
+				writeFields(writer, toEncode, fields);
+			}
+		} finally {
+			sw.close();
+		}
+	}
+
+	static void writeFields(JsonWriter writer, Object o, String[] fields) throws IOException {
+		if (o == null) {
+			writer.nullValue();
+			return;
+		}
+		writer.beginObject();
+		for (int i = 0; i < fields.length; ++i) {
+			Field f = getJsonField(o.getClass(), fields[i]);
+			if (f == null) {
+				continue;
+			}
+			try {
+				Object value = f.get(o);
+				if (value != null) {
+					writer.name(fields[i]);
+					gson.toJson(value, f.getGenericType(), writer);
+				}
+			} catch (IllegalAccessException e) {
+				Logging.logError(e);
+			}
+		}
+		writer.endObject();
+	}
+
+	final static HashMap<String, Field> jsonFields = new HashMap<String, Field>();
+
+	/**
+	 * a field gson would serialize - or null
+	 */
+	static Field getJsonField(Class<?> c, String name) {
+		String key = String.format("%s.%s", c.getName(), name);
+		synchronized (jsonFields) {
+			if (jsonFields.containsKey(key)) {
+				return jsonFields.get(key);
+			}
+		}
+		Field found = null;
+		for (Class<?> s = c; s != null && found == null; s = s.getSuperclass()) {
+			try {
+				Field f = s.getDeclaredField(name);
+				int m = f.getModifiers();
+				if (!Modifier.isStatic(m) && !Modifier.isTransient(m)) {
+					f.setAccessible(true);
+					found = f;
+				}
+			} catch (NoSuchFieldException e) {
+				// try the super class
+			}
+		}
+		synchronized (jsonFields) {
+			jsonFields.put(key, found);
+		}
+		return found;
+	}
 	
 
 	// === method signatures end ===
@@ -0,0 +1,154 @@
+package org.myrobotlab.framework;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.math.Histogram;
+
+/**
+ * a thread calling tick at a fixed rate - the control clock of
+ * MotionScheduler and PIDBank.
+ *
+ * It parks until spinMicros before a tick and spins the rest, so ticks start
+ * within a few us on an idle host. A tick which starts too late for the next
+ * one is counted as an overrun and the schedule restarts from then instead of
+ * bursting to catch up. Tick jitter and work time go in histograms and
+ * publishStats is called on the tick thread every statsInterval ms.
+ *
+ * The counters and histograms are guarded by the ticker - read them
+ * synchronized on it.
+ */
+public abstract class FixedRateTicker extends Thread {
+
+	volatile boolean isRunning = false;
+
+	/**
+	 * ticks per second - read at every tick
+	 */
+	public volatile int rate;
+	public volatile int spinMicros;
+	public volatile int statsInterval;
+
+	// ns from the scheduled start
+	final Histogram jitter = new Histogram();
+	// ns from start to end of tick
+	final Histogram work = new Histogram();
+	long ticks = 0;
+	long overruns = 0;
+
+	public FixedRateTicker(String name, int rate, int spinMicros, int statsInterval) {
+		super(name);
+		if (rate <= 0) {
+			throw new IllegalArgumentException(String.format("rate %d must be > 0", rate));
+		}
+		this.rate = rate;
+		this.spinMicros = spinMicros;
+		this.statsInterval = statsInterval;
+		setPriority(MAX_PRIORITY);
+		setDaemon(true);
+	}
+
+	/**
+	 * @param dt
+	 *            - seconds since the last tick
+	 */
+	public abstract void tick(double dt);
+
+	public abstract void publishStats();
+
+	/**
+	 * running from here on - a shutdown before the thread gets going is not
+	 * lost
+	 */
+	@Override
+	public void start() {
+		isRunning = true;
+		super.start();
+	}
+
+	@Override
+	public void run() {
+		long period = 1000000000L / rate;
+		long next = System.nanoTime() + period;
+		long lastStart = next - period;
+		long lastStats = System.nanoTime();
+		while (isRunning) {
+			long wait = next - System.nanoTime();
+			long spin = spinMicros * 1000L;
+			if (wait > spin) {
+				LockSupport.parkNanos(wait - spin);
+				continue;
+			}
+			while (System.nanoTime() < next) {
+				// spin
+			}
+
+			long start = System.nanoTime();
+			try {
+				tick((start - lastStart) / 1000000000.0);
+			} catch (Exception e) {
+				Logging.logError(e);
+			}
+			long end = System.nanoTime();
+			lastStart = start;
+
+			period = 1000000000L / rate;
+			synchronized (this) {
+				jitter.record(start - next);
+				work.record(end - start);
+				++ticks;
+				next += period;
+				if (end > next) {
+					++overruns;
+					next = end + period;
+				}
+			}
+
+			if (end - lastStats >= statsInterval * 1000000L) {
+				lastStats = end;
+				publishStats();
+			}
+		}
+	}
+
+	/**
+	 * stops ticking and waits for the tick in progress - unless called from a
+	 * tick - so a new ticker never runs alongside this one
+	 */
+	public void shutdown() {
+		isRunning = false;
+		LockSupport.unpark(this);
+		if (currentThread() == this) {
+			return;
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public Histogram getJitter() {
+		return jitter;
+	}
+
+	public Histogram getWork() {
+		return work;
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * starts a new window for the jitter and work figures
+	 */
+	public synchronized void resetStats() {
+		jitter.reset();
+		work.reset();
+	}
+}
@@ -0,0 +1,144 @@
+package org.myrobotlab.framework;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.myrobotlab.service.data.Pin;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * hand written gson writers for the types sent most often - Message and Pin.
+ * Output is the same as the reflective adapters (same field order, nulls
+ * skipped) so clients see no difference. Reading is left to the reflective
+ * adapter.
+ */
+public class JsonAdapters implements TypeAdapterFactory {
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<?> c = type.getRawType();
+		if (c == Message.class) {
+			return (TypeAdapter<T>) new MessageAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(Message.class)));
+		}
+		if (c == Pin.class) {
+			return (TypeAdapter<T>) new PinAdapter(gson.getDelegateAdapter(this, TypeToken.get(Pin.class)));
+		}
+		return null;
+	}
+
+	static class MessageAdapter extends TypeAdapter<Message> {
+		final Gson gson;
+		final TypeAdapter<Message> delegate;
+
+		MessageAdapter(Gson gson, TypeAdapter<Message> delegate) {
+			this.gson = gson;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(JsonWriter out, Message msg) throws IOException {
+			if (msg == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("msgID").value(msg.msgID);
+			out.name("timeStamp").value(msg.timeStamp);
+			name(out, "name", msg.name);
+			name(out, "sender", msg.sender);
+			name(out, "sendingMethod", msg.sendingMethod);
+			if (msg.historyList != null) {
+				out.name("historyList").beginArray();
+				Iterator<String> it = msg.historyList.iterator();
+				while (it.hasNext()) {
+					out.value(it.next());
+				}
+				out.endArray();
+			}
+			if (msg.security != null) {
+				out.name("security").beginObject();
+				for (Map.Entry<String, String> e : msg.security.entrySet()) {
+					out.name(e.getKey()).value(e.getValue());
+				}
+				out.endObject();
+			}
+			name(out, "status", msg.status);
+			name(out, "msgType", msg.msgType);
+			name(out, "method", msg.method);
+			if (msg.data != null) {
+				out.name("data").beginArray();
+				for (int i = 0; i < msg.data.length; ++i) {
+					writeValue(out, msg.data[i]);
+				}
+				out.endArray();
+			}
+			out.endObject();
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void writeValue(JsonWriter out, Object o) throws IOException {
+			if (o == null) {
+				out.nullValue();
+			} else if (o instanceof String) {
+				out.value((String) o);
+			} else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+				out.value(((Number) o).longValue());
+			} else if (o instanceof Boolean) {
+				out.value((Boolean) o);
+			} else {
+				// same runtime type lookup gson does for Object[]
+				TypeAdapter adapter = gson.getAdapter(o.getClass());
+				adapter.write(out, o);
+			}
+		}
+
+		void name(JsonWriter out, String name, String value) throws IOException {
+			if (value != null) {
+				out.name(name).value(value);
+			}
+		}
+
+		@Override
+		public Message read(JsonReader in) throws IOException {
+			return delegate.read(in);
+		}
+	}
+
+	static class PinAdapter extends TypeAdapter<Pin> {
+		final TypeAdapter<Pin> delegate;
+
+		PinAdapter(TypeAdapter<Pin> delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(JsonWriter out, Pin pin) throws IOException {
+			if (pin == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("pin").value(pin.pin);
+			out.name("type").value(pin.type);
+			out.name("value").value(pin.value);
+			out.name("pinType").value(pin.pinType);
+			if (pin.source != null) {
+				out.name("source").value(pin.source);
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Pin read(JsonReader in) throws IOException {
+			return delegate.read(in);
+		}
+	}
+}
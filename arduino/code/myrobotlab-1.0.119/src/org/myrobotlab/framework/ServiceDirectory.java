@@ -0,0 +1,70 @@
+package org.myrobotlab.framework;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * compact list of the services an instance exports - name, type and a hash of
+ * their public state. Exchanged when peers register instead of every service,
+ * a peer then asks for the state of only the services it needs.
+ */
+public class ServiceDirectory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public String name;
+		public String type;
+		/**
+		 * StateTracker.hash of the service - changes when its state does
+		 */
+		public long version;
+
+		@Override
+		public String toString() {
+			return String.format("%s %s %x", name, type, version);
+		}
+	}
+
+	public ArrayList<Entry> entries;
+
+	/**
+	 * the receiver should answer with its own directory
+	 */
+	public boolean request = false;
+
+	public ServiceDirectory() {
+		entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * shares the entries of another directory
+	 */
+	public ServiceDirectory(ServiceDirectory dir, boolean request) {
+		entries = dir.entries;
+		this.request = request;
+	}
+
+	public void add(String name, String type, long version) {
+		Entry e = new Entry();
+		e.name = name;
+		e.type = type;
+		e.version = version;
+		entries.add(e);
+	}
+
+	public Entry get(String name) {
+		for (int i = 0; i < entries.size(); ++i) {
+			if (entries.get(i).name.equals(name)) {
+				return entries.get(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d services %s", entries.size(), entries);
+	}
+}
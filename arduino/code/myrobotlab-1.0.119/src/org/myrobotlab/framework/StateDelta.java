@@ -0,0 +1,39 @@
+package org.myrobotlab.framework;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * versioned state of a service sent in place of the whole service - either a
+ * full snapshot or the public fields which changed since baseVersion
+ */
+public class StateDelta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public String name;
+	public long version;
+	public long baseVersion;
+
+	/**
+	 * the whole service - only set on a full snapshot
+	 */
+	public Object state;
+
+	/**
+	 * changed fields - only set on a delta
+	 */
+	public HashMap<String, Object> fields;
+
+	public boolean isFull() {
+		return state != null;
+	}
+
+	@Override
+	public String toString() {
+		if (isFull()) {
+			return String.format("%s full snapshot version %d", name, version);
+		}
+		return String.format("%s delta %d -> %d %s", name, baseVersion, version, (fields == null) ? "[]" : fields.keySet().toString());
+	}
+}
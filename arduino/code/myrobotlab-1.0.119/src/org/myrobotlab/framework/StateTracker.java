@@ -0,0 +1,228 @@
+package org.myrobotlab.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.slf4j.Logger;
+
+/**
+ * Keeps the last published public state of one service and numbers every
+ * change, so a gateway can send a peer only the fields which changed since the
+ * version it already has.
+ *
+ * Like copyShallowFrom only public, non transient, non static fields are
+ * tracked. Strings, boxed primitives and enums are compared by value, any
+ * other field by its serialized bytes - a HashMap changed in place is still a
+ * change.
+ */
+public class StateTracker {
+
+	public final static Logger log = LoggerFactory.getLogger(StateTracker.class);
+
+	public final String name;
+
+	/**
+	 * versions of changes kept - a peer further behind gets a full snapshot
+	 */
+	public int historySize = 16;
+
+	long version = 0;
+	Field[] fields;
+	// field -> immutable value or serialized bytes
+	final HashMap<String, Object> snapshot = new HashMap<String, Object>();
+	// history.get(i) holds the changes to version - history.size() + 1 + i
+	final ArrayList<HashMap<String, Object>> history = new ArrayList<HashMap<String, Object>>();
+
+	// the last publication update was called for - see update(state, publication)
+	Object lastPublication = null;
+
+	public StateTracker(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * compares the service against the last snapshot
+	 *
+	 * @return the current version - unchanged if no field changed
+	 */
+	public synchronized long update(Object state) {
+		if (fields == null) {
+			fields = getStateFields(state.getClass());
+		}
+
+		HashMap<String, Object> changes = new HashMap<String, Object>();
+		for (int i = 0; i < fields.length; ++i) {
+			Field f = fields[i];
+			try {
+				Object value = f.get(state);
+				Object compare = toComparable(value);
+				String key = f.getName();
+				if (!snapshot.containsKey(key) || !equals(snapshot.get(key), compare)) {
+					snapshot.put(key, compare);
+					changes.put(key, value);
+				}
+			} catch (Exception e) {
+				// not serializable - can not be sent as a delta either
+				log.debug("skipping {}.{} {}", name, f.getName(), e.getMessage());
+			}
+		}
+
+		if (changes.size() > 0 || version == 0) {
+			++version;
+			history.add(changes);
+			if (history.size() > historySize) {
+				history.remove(0);
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * compares the service once per publication - a message fanned out to
+	 * several peers shares one data array, so the fields are only compared for
+	 * the first peer
+	 *
+	 * @param publication
+	 *            - identifies one publish, e.g. the message's data array
+	 */
+	public synchronized long update(Object state, Object publication) {
+		if (publication != null && publication == lastPublication) {
+			return version;
+		}
+		lastPublication = publication;
+		return update(state);
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * the state a peer needs to get from knownVersion to the current version
+	 *
+	 * @param knownVersion
+	 *            - last version sent to the peer, 0 if none
+	 * @param state
+	 *            - the service itself, sent whole when a delta is not possible
+	 */
+	public synchronized StateDelta getDelta(long knownVersion, Object state) {
+		StateDelta delta = new StateDelta();
+		delta.name = name;
+		delta.version = version;
+		if (knownVersion == version) {
+			delta.baseVersion = version;
+			delta.fields = new HashMap<String, Object>();
+		} else if (knownVersion > 0 && knownVersion < version && version - knownVersion <= history.size()) {
+			delta.baseVersion = knownVersion;
+			int behind = (int) (version - knownVersion);
+			if (behind == 1) {
+				delta.fields = history.get(history.size() - 1);
+			} else {
+				// merge oldest first so later values win
+				delta.fields = new HashMap<String, Object>();
+				for (int i = history.size() - behind; i < history.size(); ++i) {
+					delta.fields.putAll(history.get(i));
+				}
+			}
+		} else {
+			delta.baseVersion = 0;
+			delta.state = state;
+		}
+		return delta;
+	}
+
+	/**
+	 * hash of the public state fields - the same state gives the same hash,
+	 * also after a restart
+	 */
+	public static long hash(Object state) {
+		Field[] fields = getStateFields(state.getClass());
+		// getFields order is not specified
+		Arrays.sort(fields, new Comparator<Field>() {
+			@Override
+			public int compare(Field a, Field b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		long h = 17;
+		for (int i = 0; i < fields.length; ++i) {
+			try {
+				Object value = toComparable(fields[i].get(state));
+				int vh;
+				if (value == null) {
+					vh = 0;
+				} else if (value instanceof byte[]) {
+					vh = Arrays.hashCode((byte[]) value);
+				} else if (value instanceof Enum) {
+					// Enum.hashCode is an identity hash
+					vh = ((Enum<?>) value).name().hashCode();
+				} else {
+					vh = value.hashCode();
+				}
+				h = 31 * h + fields[i].getName().hashCode();
+				h = 31 * h + vh;
+			} catch (Exception e) {
+				log.debug("skipping {}.{} {}", state.getClass().getSimpleName(), fields[i].getName(), e.getMessage());
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * sets the changed fields on a local copy of the service
+	 */
+	public static void apply(Object target, HashMap<String, Object> fields) {
+		Class<?> c = target.getClass();
+		for (Map.Entry<String, Object> e : fields.entrySet()) {
+			try {
+				Field f = c.getField(e.getKey());
+				if (!Modifier.isFinal(f.getModifiers())) {
+					f.set(target, e.getValue());
+				}
+			} catch (Exception ex) {
+				Logging.logError(ex);
+			}
+		}
+	}
+
+	static Field[] getStateFields(Class<?> c) {
+		ArrayList<Field> ret = new ArrayList<Field>();
+		Field[] all = c.getFields();
+		for (int i = 0; i < all.length; ++i) {
+			int m = all[i].getModifiers();
+			if (!Modifier.isStatic(m) && !Modifier.isTransient(m) && !Modifier.isFinal(m)) {
+				ret.add(all[i]);
+			}
+		}
+		return ret.toArray(new Field[ret.size()]);
+	}
+
+	static Object toComparable(Object value) throws IOException {
+		if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+			return value;
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(value);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	static boolean equals(Object a, Object b) {
+		if (a instanceof byte[] && b instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		}
+		return (a == null) ? b == null : a.equals(b);
+	}
+}
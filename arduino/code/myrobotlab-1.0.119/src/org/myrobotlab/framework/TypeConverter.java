@@ -12,6 +12,9 @@ import org.myrobotlab.service.interfaces.ServiceInterface;
 import org.slf4j.Logger;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 
 /**
  * JSON TypeConverter - used in general REST api to convert url JSON parameters
@@ -36,6 +39,24 @@ public class TypeConverter {
 	// static public HashMap<String, Method> conversions = new HashMap<String,
 	// Method>();
 
+	/**
+	 * a json array of parameters e.g. [13, "servo", {"x":1}] as the strings
+	 * getTypedParamsFromJson expects - strings unquoted, anything else as json
+	 */
+	static public String[] getStringParams(JsonArray data) {
+		String[] params = new String[data.size()];
+		for (int i = 0; i < params.length; ++i) {
+			JsonElement e = data.get(i);
+			// getTypedParamsFromJson quotes strings itself
+			params[i] = (e.isJsonPrimitive() && e.getAsJsonPrimitive().isString()) ? e.getAsString() : e.toString();
+		}
+		return params;
+	}
+
+	static public String[] getStringParams(String jsonArray) {
+		return getStringParams(new JsonParser().parse(jsonArray).getAsJsonArray());
+	}
+
 	/**
 	 * this method tries to get the appropriate 'Typed parameter array for a
 	 * specific method It "converts" parameters of strings into typed parameters
@@ -22,6 +22,9 @@ public class DHLink {
 	// -180 / +180 as min/max i guess?
 	private double min = -Math.PI;
 	private double max = Math.PI;
+	// alpha is fixed for a link - its trig is kept for resolve
+	private double cosAlpha;
+	private double sinAlpha;
 	
 	// private Matrix m;
 	// TODO: add max/min angle
@@ -31,6 +34,8 @@ public class DHLink {
 		this.r = r;
 		this.theta = theta;
 		this.alpha = alpha;		
+		this.cosAlpha = Math.cos(alpha);
+		this.sinAlpha = Math.sin(alpha);
 		//
 		this.type = DHLinkType.REVOLUTE; 
 		//m = resolveMatrix();
@@ -113,6 +118,13 @@ public class DHLink {
 		
 	}
 
+	/**
+	 * writes the link's transform into out without allocating
+	 */
+	public Matrix4 resolve(Matrix4 out) {
+		return out.setDH(d, r, Math.cos(theta), Math.sin(theta), cosAlpha, sinAlpha);
+	}
+
 	private double zeroQuantize(double value) {
 		double resolution = 0.000001;
 		if (value < resolution && value > -resolution) {
@@ -170,6 +182,12 @@ public class DHLink {
 	}
 	public void setAlpha(double alpha) {
 		this.alpha = alpha;
+		this.cosAlpha = Math.cos(alpha);
+		this.sinAlpha = Math.sin(alpha);
+	}
+
+	public DHLinkType getType() {
+		return type;
 	}
 
 	@Override
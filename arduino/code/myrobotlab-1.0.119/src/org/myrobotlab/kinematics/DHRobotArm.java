@@ -3,16 +3,30 @@ package org.myrobotlab.kinematics;
 import java.util.ArrayList;
 
 import org.myrobotlab.logging.LoggerFactory;
-import org.myrobotlab.service.GUIService;
 import org.slf4j.Logger;
 
 public class DHRobotArm {
-	
-	transient public final static Logger log = LoggerFactory.getLogger(DHRobotArm.class);
 
+	transient public final static Logger log = LoggerFactory.getLogger(DHRobotArm.class);
 
 	private ArrayList<DHLink> links;
 
+	// moveToGoal's solver - created on first use
+	private DLSSolver solver;
+
+	// workspace - reused by every solve, sized on the first use after the
+	// links change
+	private int size = -1;
+	private Matrix4 frame = new Matrix4();
+	private Matrix4 linkFrame = new Matrix4();
+	// origin and z axis of the base and every link frame - 3 per frame
+	private double[] origins;
+	private double[] axes;
+	// 3 x n and n x 3 row major
+	private double[] jacobian;
+	private double[] jInverse;
+	private Matrix3 jjt = new Matrix3();
+
 	public DHRobotArm() {
 		super();
 		links = new ArrayList<DHLink>();
@@ -23,51 +37,118 @@ public class DHRobotArm {
 		return links;
 	}
 
-	public Matrix getJInverse() {
-		// TODO Auto-generated method stub
-		// something small.
-		double delta = 0.000001;
-
-		int numLinks = this.getNumLinks();
-
-		// we need a jacobian matrix that is 6 x numLinks
-		// for now we'll only deal with x,y,z we can add rotation later.
-		// so only 3
-		Matrix jacobian = new Matrix(3, numLinks);
-
-		// this will be used to compute the gradient of x,y,z based on the joint
-		// movement.
-		Point basePosition = this.getPalmPosition();
-		// log.debug("Base Position : " + basePosition);
-		// for each servo, we'll rotate it forward by delta (and back), and get
-		// the new positions
-		for (int j = 0; j < numLinks; j++) {
-			this.getLink(j).incrRotate(delta);
-			Point palmPoint = this.getPalmPosition();
-			Point deltaPoint = palmPoint.subtract(basePosition);
-			this.getLink(j).incrRotate(-delta);
-			// delta position / base position gives us the slope / rate of
-			// change
-			// this is an approx of the gradient of P
-			// UHoh,, what about divide by zero?!
-			// log.debug("Delta Point" + deltaPoint);
-			double dXdj = deltaPoint.getX() / delta;
-			double dYdj = deltaPoint.getY() / delta;
-			double dZdj = deltaPoint.getZ() / delta;
-			jacobian.elements[0][j] = dXdj;
-			jacobian.elements[1][j] = dYdj;
-			jacobian.elements[2][j] = dZdj;
-			// TODO: get orientation roll/pitch/yaw
+	/**
+	 * resolves every link frame into the workspace - frame 0 is the base,
+	 * frame n the palm
+	 */
+	void forward() {
+		int n = links.size();
+		if (size != n) {
+			size = n;
+			origins = new double[3 * (n + 1)];
+			axes = new double[3 * (n + 1)];
+			jacobian = new double[3 * n];
+			jInverse = new double[3 * n];
+		}
+		frame.identity();
+		store(0);
+		for (int i = 0; i < n; ++i) {
+			frame.multiply(links.get(i).resolve(linkFrame));
+			store(i + 1);
 		}
+	}
 
-		// log.debug("Jacobian(p)approx");
-		// log.debug(jacobian);
+	private void store(int i) {
+		double[] m = frame.m;
+		origins[3 * i] = m[3];
+		origins[3 * i + 1] = m[7];
+		origins[3 * i + 2] = m[11];
+		axes[3 * i] = m[2];
+		axes[3 * i + 1] = m[6];
+		axes[3 * i + 2] = m[10];
+	}
 
-		// This is the MAGIC! the pseudo inverse should map
-		// deltaTheta[i] to delta[x,y,z]
-		Matrix jInverse = jacobian.pseudoInverse();
-		// log.debug("Pseudo inverse Jacobian(p)approx\n" + jInverse);
-		return jInverse;
+	/**
+	 * jacobian of the palm position from the last forward() - a revolute
+	 * joint moves the palm by z x (palm - joint) per radian, a prismatic one
+	 * along z
+	 */
+	void computeJacobian() {
+		int n = size;
+		double px = origins[3 * n];
+		double py = origins[3 * n + 1];
+		double pz = origins[3 * n + 2];
+		for (int j = 0; j < n; ++j) {
+			double zx = axes[3 * j];
+			double zy = axes[3 * j + 1];
+			double zz = axes[3 * j + 2];
+			if (links.get(j).getType() == DHLinkType.PRISMATIC) {
+				jacobian[j] = zx;
+				jacobian[n + j] = zy;
+				jacobian[2 * n + j] = zz;
+			} else {
+				double dx = px - origins[3 * j];
+				double dy = py - origins[3 * j + 1];
+				double dz = pz - origins[3 * j + 2];
+				jacobian[j] = zy * dz - zz * dy;
+				jacobian[n + j] = zz * dx - zx * dz;
+				jacobian[2 * n + j] = zx * dy - zy * dx;
+			}
+		}
+	}
+
+	/**
+	 * jInverse = J^T (J J^T)^-1 - damped a little when the arm is at a
+	 * singularity or has less than 3 joints
+	 */
+	void computeJInverse() {
+		int n = size;
+		double[] a = jjt.m;
+		for (int r = 0; r < 3; ++r) {
+			for (int c = r; c < 3; ++c) {
+				double sum = 0;
+				for (int k = 0; k < n; ++k) {
+					sum += jacobian[r * n + k] * jacobian[c * n + k];
+				}
+				a[r * 3 + c] = sum;
+				a[c * 3 + r] = sum;
+			}
+		}
+		if (!jjt.invert(jjt)) {
+			double damping = 1e-6 * Math.max(a[0] + a[4] + a[8], 1);
+			a[0] += damping;
+			a[4] += damping;
+			a[8] += damping;
+			jjt.invert(jjt);
+		}
+		for (int j = 0; j < n; ++j) {
+			double j0 = jacobian[j];
+			double j1 = jacobian[n + j];
+			double j2 = jacobian[2 * n + j];
+			for (int c = 0; c < 3; ++c) {
+				jInverse[j * 3 + c] = j0 * a[c] + j1 * a[3 + c] + j2 * a[6 + c];
+			}
+		}
+	}
+
+	/**
+	 * 3 x n row major from the last computeJacobian()
+	 */
+	double[] getJacobian() {
+		return jacobian;
+	}
+
+	public Matrix getJInverse() {
+		forward();
+		computeJacobian();
+		computeJInverse();
+		Matrix ret = new Matrix(size, 3);
+		for (int j = 0; j < size; ++j) {
+			for (int c = 0; c < 3; ++c) {
+				ret.elements[j][c] = jInverse[j * 3 + c];
+			}
+		}
+		return ret;
 	}
 
 	public DHLink getLink(int i) {
@@ -88,88 +169,60 @@ public class DHRobotArm {
 	}
 
 	public Point getPalmPosition() {
-		// TODO Auto-generated method stub
-		// return the position of the end effector wrt the base frame
-		Matrix m = new Matrix(4, 4);
-		// TODO: init to the ident?
-
-		// initial frame orientated around x
-		m.elements[0][0] = 1;
-		m.elements[1][1] = 1;
-		m.elements[2][2] = 1;
-		m.elements[3][3] = 1;
-
-		// initial frame orientated around z
-		// m.elements[0][2] = 1;
-		// m.elements[1][1] = 1;
-		// m.elements[2][0] = 1;
-		// m.elements[3][3] = 1;
-
-		// log.debug("-------------------------");
-		// log.debug(m);
-		// TODO: validate this approach..
-		for (DHLink link : links) {
-			Matrix s = link.resolveMatrix();
-			// log.debug(s);
-			m = m.multiply(s);
-			// log.debug("-------------------------");
-			// log.debug(m);
+		forward();
+		int n = size;
+		return new Point(origins[3 * n], origins[3 * n + 1], origins[3 * n + 2]);
+	}
+
+	/**
+	 * the position of the end effector wrt the base frame
+	 */
+	public Vector3 getPalmPosition(Vector3 out) {
+		forward();
+		int n = size;
+		return out.set(origins[3 * n], origins[3 * n + 1], origins[3 * n + 2]);
+	}
+
+	boolean moveToGoal(Point goal) {
+		return moveToGoal(goal.getX(), goal.getY(), goal.getZ());
+	}
+
+	/**
+	 * solves for the goal from the current joints and moves the links to the
+	 * solution - or as close as the solver got
+	 *
+	 * @return false if the goal was not reached
+	 */
+	public boolean moveToGoal(double x, double y, double z) {
+		DLSSolver solver = getSolver();
+		solver.load();
+		DLSSolver.Status status = solver.solve(x, y, z);
+		solver.apply();
+		if (status != DLSSolver.Status.CONVERGED) {
+			log.warn("goal ({}, {}, {}) not reached - {} {} away after {} iterations", x, y, z, status, solver.getError(), solver.getIterations());
+			return false;
 		}
-		// now m should be the total translation for the arm
-		// given the arms current position
-		double x = m.elements[0][3];
-		double y = m.elements[1][3];
-		double z = m.elements[2][3];
-		// double ws = m.elements[3][3];
-		// log.debug("World Scale : " + ws);
-		Point palm = new Point(x, y, z);
-		return palm;
-	}
-
-	void moveToGoal(Point goal) {
-		// we know where we are.. we know where we want to go.
-		int numSteps = 0;
-		double iterStep = 0.01;
-		double errorThreshold = 0.01;
-		// what's the current point
-		while (true) {
-			numSteps++;
-			// TODO: what if its unreachable!
-			Point currentPos = this.getPalmPosition();
-			log.info("Current Position " + currentPos);
-
-			System.out.println("Current Position " + currentPos);
-			// vector to destination
-			Point deltaPoint = goal.subtract(currentPos);
-			Matrix dP = new Matrix(3, 1);
-			dP.elements[0][0] = deltaPoint.getX();
-			dP.elements[1][0] = deltaPoint.getY();
-			dP.elements[2][0] = deltaPoint.getZ();
-			// scale a vector towards the goal by the increment step.
-			dP = dP.multiply(iterStep);
-
-			Matrix jInverse = this.getJInverse();
-			// why is this zero?
-			Matrix dTheta = jInverse.multiply(dP);
-			System.out.println("delta Theta + " + dTheta);
-			for (int i = 0; i < dTheta.getNumRows(); i++) {
-				// update joint positions! move towards the goal!
-				double d = dTheta.elements[i][0];
-				this.getLink(i).incrRotate(d);
-			}
-			// delta point represents the direction we need to move in order to
-			// get there.
-			// we should figure out how to scale the steps.
-			if (deltaPoint.magnitude() < errorThreshold) {
-				log.debug("We made it!  It took " + numSteps + " iterations to get there.");
-				break;
-			}
+		if (log.isDebugEnabled()) {
+			log.debug("We made it!  It took {} iterations to get there.", solver.getIterations());
 		}
+		return true;
+	}
 
+	/**
+	 * the solver moveToGoal uses - its tolerance, budgets and joint limits
+	 * can be set here
+	 */
+	public DLSSolver getSolver() {
+		if (solver == null) {
+			solver = new DLSSolver(this);
+		}
+		return solver;
 	}
 
 	public void setLinks(ArrayList<DHLink> links) {
 		this.links = links;
+		size = -1;
+		solver = null;
 	}
 
 }
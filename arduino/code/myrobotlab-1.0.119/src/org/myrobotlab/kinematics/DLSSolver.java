@@ -0,0 +1,504 @@
+package org.myrobotlab.kinematics;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.service.Servo;
+import org.slf4j.Logger;
+
+/**
+ * Damped least squares position ik over the links of a DHRobotArm.
+ *
+ * Each iteration steps the joints by J^T (J J^T + lambda^2 I)^-1 e where e is
+ * the palm's distance to the goal. A step that gets closer is kept and lambda
+ * shrinks, one that does not is undone and lambda grows - so the solver takes
+ * big steps where the arm is well conditioned and small ones near
+ * singularities, and gives up (STALLED) when the goal is out of reach instead
+ * of looping. Joints are held within the link min / max, which setLimits can
+ * take from a Servo's mapping.
+ *
+ * The solver keeps its own copy of the link parameters - load() reads them
+ * from the arm, apply() writes the solution back - and solves start from the
+ * last solution, so in a tracking loop a solve is a few iterations. Nothing
+ * is allocated once loaded. solveAll splits many goals over threads, each with
+ * a copy of the solver.
+ */
+public class DLSSolver {
+
+	public final static Logger log = LoggerFactory.getLogger(DLSSolver.class);
+
+	public enum Status {
+		CONVERGED, ITERATIONS, TIME, STALLED
+	}
+
+	// distance to the goal which counts as there - in arm units
+	public double tolerance = 0.5;
+	public int maxIterations = 200;
+	// time budget of a solve - 0 is none
+	public long maxNanos = 0;
+
+	// lambda of the first iteration and its bounds - past maxDamping the
+	// solver is stuck
+	public double damping = 1;
+	public double minDamping = 0.01;
+	public double maxDamping = 1e6;
+
+	// largest change of a joint per iteration - radians or arm units
+	public double maxStep = 0.2;
+
+	// start from the last solution - otherwise from what load() read
+	public boolean warmStart = true;
+
+	private final DHRobotArm arm;
+
+	private int n = -1;
+	// the parameter which does not move - d, or theta of a prismatic link
+	private double[] fixed;
+	private double[] r;
+	private double[] cosAlpha;
+	private double[] sinAlpha;
+	private boolean[] prismatic;
+	private double[] min;
+	private double[] max;
+	// servo input = toDegrees(theta - offset)
+	private double[] offset;
+
+	// joint variables - theta or d for a prismatic link
+	private double[] q;
+	private double[] seed;
+	private double[] last;
+	private double[] dq;
+	private boolean[] held;
+
+	// origin and z axis of the base and every link frame - 3 per frame
+	private double[] origins;
+	private double[] axes;
+	// 3 x n row major
+	private double[] jacobian;
+	private final Matrix4 frame = new Matrix4();
+	private final Matrix4 linkFrame = new Matrix4();
+	private final Matrix3 a = new Matrix3();
+
+	private Status status;
+	private int iterations;
+	private double error;
+	private long nanos;
+
+	public DLSSolver(DHRobotArm arm) {
+		this.arm = arm;
+		load();
+	}
+
+	/**
+	 * a solver with the configuration, links and current solution of this one
+	 * - for another thread
+	 */
+	public DLSSolver copy() {
+		DLSSolver ret = new DLSSolver(arm);
+		ret.tolerance = tolerance;
+		ret.maxIterations = maxIterations;
+		ret.maxNanos = maxNanos;
+		ret.damping = damping;
+		ret.minDamping = minDamping;
+		ret.maxDamping = maxDamping;
+		ret.maxStep = maxStep;
+		ret.warmStart = warmStart;
+		ret.resize(n);
+		System.arraycopy(fixed, 0, ret.fixed, 0, n);
+		System.arraycopy(r, 0, ret.r, 0, n);
+		System.arraycopy(cosAlpha, 0, ret.cosAlpha, 0, n);
+		System.arraycopy(sinAlpha, 0, ret.sinAlpha, 0, n);
+		System.arraycopy(prismatic, 0, ret.prismatic, 0, n);
+		System.arraycopy(min, 0, ret.min, 0, n);
+		System.arraycopy(max, 0, ret.max, 0, n);
+		System.arraycopy(offset, 0, ret.offset, 0, n);
+		System.arraycopy(q, 0, ret.q, 0, n);
+		System.arraycopy(seed, 0, ret.seed, 0, n);
+		return ret;
+	}
+
+	/**
+	 * writes the solution into the arm's links
+	 */
+	public void apply() {
+		for (int j = 0; j < n; ++j) {
+			DHLink link = arm.getLink(j);
+			if (prismatic[j]) {
+				link.setD(q[j]);
+			} else {
+				link.setTheta(q[j]);
+			}
+		}
+	}
+
+	public double getError() {
+		return error;
+	}
+
+	/**
+	 * the servo input of a joint - toDegrees(theta - offset) of the solution
+	 */
+	public float getInput(int joint) {
+		return (float) Math.toDegrees(q[joint] - offset[joint]);
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	public int getNumJoints() {
+		return n;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public double getJoint(int joint) {
+		return q[joint];
+	}
+
+	public double[] getJoints(double[] out) {
+		System.arraycopy(q, 0, out, 0, n);
+		return out;
+	}
+
+	/**
+	 * the palm of the solution
+	 */
+	public Vector3 getPalmPosition(Vector3 out) {
+		forward();
+		return out.set(origins[3 * n], origins[3 * n + 1], origins[3 * n + 2]);
+	}
+
+	/**
+	 * reads the link parameters, limits and joints from the arm - the next
+	 * solve starts from these joints
+	 */
+	public void load() {
+		resize(arm.getNumLinks());
+		for (int j = 0; j < n; ++j) {
+			DHLink link = arm.getLink(j);
+			r[j] = link.getA();
+			cosAlpha[j] = Math.cos(link.getAlpha());
+			sinAlpha[j] = Math.sin(link.getAlpha());
+			prismatic[j] = link.getType() == DHLinkType.PRISMATIC;
+			if (prismatic[j]) {
+				q[j] = link.getD();
+				fixed[j] = link.getTheta();
+				min[j] = Double.NEGATIVE_INFINITY;
+				max[j] = Double.POSITIVE_INFINITY;
+			} else {
+				q[j] = link.getTheta();
+				fixed[j] = link.getD();
+				min[j] = link.getMin();
+				max[j] = link.getMax();
+			}
+		}
+		System.arraycopy(q, 0, seed, 0, n);
+	}
+
+	private void resize(int size) {
+		if (size == n) {
+			return;
+		}
+		n = size;
+		fixed = new double[n];
+		r = new double[n];
+		cosAlpha = new double[n];
+		sinAlpha = new double[n];
+		prismatic = new boolean[n];
+		min = new double[n];
+		max = new double[n];
+		offset = new double[n];
+		q = new double[n];
+		seed = new double[n];
+		last = new double[n];
+		dq = new double[n];
+		held = new boolean[n];
+		origins = new double[3 * (n + 1)];
+		axes = new double[3 * (n + 1)];
+		jacobian = new double[3 * n];
+	}
+
+	/**
+	 * where the next solve starts a joint - with or without warmStart
+	 */
+	public void setJoint(int joint, double value) {
+		q[joint] = value;
+		seed[joint] = value;
+	}
+
+	/**
+	 * limits of a joint in radians - also set on the link
+	 */
+	public void setLimits(int joint, double min, double max) {
+		DHLink link = arm.getLink(joint);
+		link.setMin(min);
+		link.setMax(max);
+		if (!prismatic[joint]) {
+			this.min[joint] = min;
+			this.max[joint] = max;
+		}
+	}
+
+	/**
+	 * limits of a joint from the input range the servo accepts, where theta =
+	 * toRadians(input) + offset
+	 */
+	public void setLimits(int joint, Servo servo, double offset) {
+		double lo = Math.toRadians(servo.getMinInputLimit()) + offset;
+		double hi = Math.toRadians(servo.getMaxInputLimit()) + offset;
+		this.offset[joint] = offset;
+		setLimits(joint, Math.min(lo, hi), Math.max(lo, hi));
+	}
+
+	/**
+	 * moves the solution toward x, y, z until it is within tolerance or a
+	 * budget runs out - the solution is left at the closest point found
+	 */
+	public Status solve(double x, double y, double z) {
+		long start = System.nanoTime();
+		if (!warmStart) {
+			System.arraycopy(seed, 0, q, 0, n);
+		}
+		for (int j = 0; j < n; ++j) {
+			q[j] = clamp(j, q[j]);
+		}
+		double lambda = damping;
+		iterations = 0;
+		forward();
+		error = distance(x, y, z);
+
+		while (true) {
+			if (error < tolerance) {
+				status = Status.CONVERGED;
+				break;
+			}
+			if (iterations >= maxIterations) {
+				status = Status.ITERATIONS;
+				break;
+			}
+			if (maxNanos > 0 && System.nanoTime() - start > maxNanos) {
+				status = Status.TIME;
+				break;
+			}
+			++iterations;
+
+			computeJacobian();
+			boolean stepped = step(x - origins[3 * n], y - origins[3 * n + 1], z - origins[3 * n + 2], lambda);
+			if (stepped) {
+				System.arraycopy(q, 0, last, 0, n);
+				for (int j = 0; j < n; ++j) {
+					q[j] = clamp(j, q[j] + dq[j]);
+				}
+				forward();
+				double e = distance(x, y, z);
+				if (e < error) {
+					error = e;
+					lambda = Math.max(lambda * 0.5, minDamping);
+					continue;
+				}
+				System.arraycopy(last, 0, q, 0, n);
+				forward();
+			}
+			lambda *= 4;
+			if (lambda > maxDamping) {
+				status = Status.STALLED;
+				break;
+			}
+		}
+		nanos = System.nanoTime() - start;
+		return status;
+	}
+
+	/**
+	 * solves count goals - x, y, z each in goals - on threads, each with a
+	 * copy of this solver warm starting from the goal before it, so nearby
+	 * goals should be next to each other. This solver is not changed.
+	 *
+	 * @param joints
+	 *            the solutions - getNumJoints() per goal
+	 * @param status
+	 *            the status per goal - may be null
+	 * @return the number which converged
+	 */
+	public int solveAll(final double[] goals, final int count, final double[] joints, final Status[] status, int threads) {
+		threads = Math.max(1, Math.min(threads, count));
+		final int[] converged = new int[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int index = t;
+			final int from = (int) ((long) count * t / threads);
+			final int to = (int) ((long) count * (t + 1) / threads);
+			final DLSSolver solver = copy();
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = from; i < to; ++i) {
+						Status s = solver.solve(goals[3 * i], goals[3 * i + 1], goals[3 * i + 2]);
+						System.arraycopy(solver.q, 0, joints, i * solver.n, solver.n);
+						if (status != null) {
+							status[i] = s;
+						}
+						if (s == Status.CONVERGED) {
+							++converged[index];
+						}
+					}
+				}
+			}, String.format("ik.%d", t));
+		}
+		if (threads == 1) {
+			workers[0].run();
+			return converged[0];
+		}
+		for (int t = 0; t < threads; ++t) {
+			workers[t].start();
+		}
+		int ret = 0;
+		try {
+			for (int t = 0; t < threads; ++t) {
+				workers[t].join();
+				ret += converged[t];
+			}
+		} catch (InterruptedException e) {
+			log.warn("solveAll interrupted");
+			Thread.currentThread().interrupt();
+		}
+		return ret;
+	}
+
+	private double clamp(int j, double value) {
+		if (value < min[j]) {
+			return min[j];
+		}
+		if (value > max[j]) {
+			return max[j];
+		}
+		return value;
+	}
+
+	private double distance(double x, double y, double z) {
+		double dx = x - origins[3 * n];
+		double dy = y - origins[3 * n + 1];
+		double dz = z - origins[3 * n + 2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	private void forward() {
+		frame.identity();
+		store(0);
+		for (int j = 0; j < n; ++j) {
+			double theta = prismatic[j] ? fixed[j] : q[j];
+			double depth = prismatic[j] ? q[j] : fixed[j];
+			linkFrame.setDH(depth, r[j], Math.cos(theta), Math.sin(theta), cosAlpha[j], sinAlpha[j]);
+			frame.multiply(linkFrame);
+			store(j + 1);
+		}
+	}
+
+	private void store(int i) {
+		double[] m = frame.m;
+		origins[3 * i] = m[3];
+		origins[3 * i + 1] = m[7];
+		origins[3 * i + 2] = m[11];
+		axes[3 * i] = m[2];
+		axes[3 * i + 1] = m[6];
+		axes[3 * i + 2] = m[10];
+	}
+
+	/**
+	 * the same analytic jacobian as DHRobotArm's
+	 */
+	private void computeJacobian() {
+		double px = origins[3 * n];
+		double py = origins[3 * n + 1];
+		double pz = origins[3 * n + 2];
+		for (int j = 0; j < n; ++j) {
+			double zx = axes[3 * j];
+			double zy = axes[3 * j + 1];
+			double zz = axes[3 * j + 2];
+			if (prismatic[j]) {
+				jacobian[j] = zx;
+				jacobian[n + j] = zy;
+				jacobian[2 * n + j] = zz;
+			} else {
+				double dx = px - origins[3 * j];
+				double dy = py - origins[3 * j + 1];
+				double dz = pz - origins[3 * j + 2];
+				jacobian[j] = zy * dz - zz * dy;
+				jacobian[n + j] = zz * dx - zx * dz;
+				jacobian[2 * n + j] = zx * dy - zy * dx;
+			}
+		}
+	}
+
+	/**
+	 * dq = J^T (J J^T + lambda^2 I)^-1 e - joints at a limit which the step
+	 * would push further out are left out, and the step is scaled down to
+	 * maxStep
+	 *
+	 * @return false if the system could not be inverted
+	 */
+	private boolean step(double ex, double ey, double ez, double lambda) {
+		for (int j = 0; j < n; ++j) {
+			held[j] = false;
+		}
+		double[] m = a.m;
+		for (int pass = 0; pass < 2; ++pass) {
+			double l2 = lambda * lambda;
+			for (int row = 0; row < 3; ++row) {
+				for (int col = row; col < 3; ++col) {
+					double sum = 0;
+					for (int k = 0; k < n; ++k) {
+						if (!held[k]) {
+							sum += jacobian[row * n + k] * jacobian[col * n + k];
+						}
+					}
+					m[row * 3 + col] = sum;
+					m[col * 3 + row] = sum;
+				}
+				m[row * 4] += l2;
+			}
+			if (!a.invert(a)) {
+				return false;
+			}
+			double wx = m[0] * ex + m[1] * ey + m[2] * ez;
+			double wy = m[3] * ex + m[4] * ey + m[5] * ez;
+			double wz = m[6] * ex + m[7] * ey + m[8] * ez;
+
+			boolean again = false;
+			for (int j = 0; j < n; ++j) {
+				if (held[j]) {
+					dq[j] = 0;
+					continue;
+				}
+				dq[j] = jacobian[j] * wx + jacobian[n + j] * wy + jacobian[2 * n + j] * wz;
+				if ((q[j] <= min[j] && dq[j] < 0) || (q[j] >= max[j] && dq[j] > 0)) {
+					held[j] = true;
+					again = true;
+				}
+			}
+			if (!again) {
+				break;
+			}
+		}
+
+		double largest = 0;
+		for (int j = 0; j < n; ++j) {
+			if (held[j]) {
+				dq[j] = 0;
+			}
+			largest = Math.max(largest, Math.abs(dq[j]));
+		}
+		if (largest > maxStep) {
+			double scale = maxStep / largest;
+			for (int j = 0; j < n; ++j) {
+				dq[j] *= scale;
+			}
+		}
+		return true;
+	}
+}
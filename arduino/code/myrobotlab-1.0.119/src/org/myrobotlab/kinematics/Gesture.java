@@ -0,0 +1,300 @@
+package org.myrobotlab.kinematics;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * A timeline of keyframes for a set of servos, sampled by time on the motion
+ * clock instead of run as a script of moves and sleeps.
+ *
+ * Each servo is a channel with its keyframes sorted by time. A keyframe's
+ * mode says how the channel gets there from the previous one - held then
+ * jumped (STEP), at constant speed (LINEAR) or eased in and out (SMOOTH).
+ * A NaN position is wherever the servo was when the gesture began - a servo
+ * which only starts moving later holds there until then.
+ * Events are strings published at their time - the gesture creator uses them
+ * for speech.
+ *
+ * All keyframes live in flat arrays so sampling is a binary search and never
+ * allocates.
+ */
+public class Gesture implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final static byte STEP = 0;
+	public final static byte LINEAR = 1;
+	public final static byte SMOOTH = 2;
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * collects keyframes in any order per channel
+	 */
+	public static class Builder {
+		String name;
+		ArrayList<String> servos = new ArrayList<String>();
+		ArrayList<ArrayList<float[]>> keyframes = new ArrayList<ArrayList<float[]>>();
+		ArrayList<Integer> eventTimes = new ArrayList<Integer>();
+		ArrayList<String> events = new ArrayList<String>();
+
+		public Builder(String name) {
+			this.name = name;
+		}
+
+		public int channel(String servo) {
+			int channel = servos.indexOf(servo);
+			if (channel == -1) {
+				channel = servos.size();
+				servos.add(servo);
+				keyframes.add(new ArrayList<float[]>());
+			}
+			return channel;
+		}
+
+		/**
+		 * a later keyframe at the same time replaces the earlier one
+		 */
+		public Builder keyframe(String servo, int time, float position, byte mode) {
+			ArrayList<float[]> list = keyframes.get(channel(servo));
+			int i = list.size();
+			while (i > 0 && list.get(i - 1)[0] > time) {
+				--i;
+			}
+			float[] keyframe = new float[] { time, position, mode };
+			if (i > 0 && list.get(i - 1)[0] == time) {
+				list.set(i - 1, keyframe);
+			} else {
+				list.add(i, keyframe);
+			}
+			return this;
+		}
+
+		public Builder event(int time, String event) {
+			int i = eventTimes.size();
+			while (i > 0 && eventTimes.get(i - 1) > time) {
+				--i;
+			}
+			eventTimes.add(i, time);
+			events.add(i, event);
+			return this;
+		}
+
+		/**
+		 * position of a channel at a time from what has been added so far
+		 */
+		public float sample(String servo, int time) {
+			return build().sample(channel(servo), time);
+		}
+
+		public Gesture build() {
+			int channels = servos.size();
+			int count = 0;
+			for (int i = 0; i < channels; ++i) {
+				count += keyframes.get(i).size();
+			}
+			Gesture g = new Gesture(name, servos.toArray(new String[channels]), count, events.size());
+			int k = 0;
+			for (int i = 0; i < channels; ++i) {
+				g.offsets[i] = k;
+				ArrayList<float[]> list = keyframes.get(i);
+				for (int j = 0; j < list.size(); ++j) {
+					float[] keyframe = list.get(j);
+					g.times[k] = (int) keyframe[0];
+					g.positions[k] = keyframe[1];
+					g.modes[k] = (byte) keyframe[2];
+					g.duration = Math.max(g.duration, g.times[k]);
+					++k;
+				}
+			}
+			g.offsets[channels] = k;
+			for (int i = 0; i < events.size(); ++i) {
+				g.eventTimes[i] = eventTimes.get(i);
+				g.events[i] = events.get(i);
+				g.duration = Math.max(g.duration, g.eventTimes[i]);
+			}
+			return g;
+		}
+	}
+
+	final String name;
+	final String[] servos;
+	// keyframes of channel i are [offsets[i], offsets[i + 1])
+	final int[] offsets;
+	// ms from the start
+	final int[] times;
+	final float[] positions;
+	final byte[] modes;
+	final int[] eventTimes;
+	final String[] events;
+	int duration;
+
+	Gesture(String name, String[] servos, int keyframes, int events) {
+		this.name = name;
+		this.servos = servos;
+		this.offsets = new int[servos.length + 1];
+		this.times = new int[keyframes];
+		this.positions = new float[keyframes];
+		this.modes = new byte[keyframes];
+		this.eventTimes = new int[events];
+		this.events = new String[events];
+	}
+
+	public static Gesture read(ByteBuffer in) {
+		String name = readString(in);
+		int duration = in.getInt();
+		int channels = in.getShort() & 0xffff;
+		int keyframes = in.getInt();
+		int events = in.getShort() & 0xffff;
+		String[] servos = new String[channels];
+		for (int i = 0; i < channels; ++i) {
+			servos[i] = readString(in);
+		}
+		Gesture g = new Gesture(name, servos, keyframes, events);
+		g.duration = duration;
+		for (int i = 0; i <= channels; ++i) {
+			g.offsets[i] = in.getInt();
+		}
+		for (int k = 0; k < keyframes; ++k) {
+			g.times[k] = in.getInt();
+			g.positions[k] = in.getFloat();
+			g.modes[k] = in.get();
+		}
+		for (int i = 0; i < events; ++i) {
+			g.eventTimes[i] = in.getInt();
+			g.events[i] = readString(in);
+		}
+		return g;
+	}
+
+	static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xffff];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	public int getChannel(String servo) {
+		for (int i = 0; i < servos.length; ++i) {
+			if (servos[i].equals(servo)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getChannels() {
+		return servos.length;
+	}
+
+	public int getDuration() {
+		return duration;
+	}
+
+	public String getEvent(int i) {
+		return events[i];
+	}
+
+	public int getEvents() {
+		return events.length;
+	}
+
+	public int getEventTime(int i) {
+		return eventTimes[i];
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getServo(int channel) {
+		return servos[channel];
+	}
+
+	/**
+	 * position of a channel at time ms - NaN if it has no keyframes
+	 */
+	public float sample(int channel, float time) {
+		return sample(channel, time, Float.NaN);
+	}
+
+	/**
+	 * position of a channel at time ms when it was at start when the gesture
+	 * began - the first keyframe is reached from there with its own mode
+	 */
+	public float sample(int channel, float time, float start) {
+		int lo = offsets[channel];
+		int hi = offsets[channel + 1] - 1;
+		if (hi < lo) {
+			return Float.NaN;
+		}
+		if (time <= times[lo]) {
+			float first = position(lo, start);
+			if (Float.isNaN(start) || times[lo] <= 0) {
+				return first;
+			}
+			return interpolate(start, first, modes[lo], time / times[lo]);
+		}
+		if (time >= times[hi]) {
+			return position(hi, start);
+		}
+		// last keyframe at or before time
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (times[mid] <= time) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		int next = lo + 1;
+		return interpolate(position(lo, start), position(next, start), modes[next], (time - times[lo]) / (times[next] - times[lo]));
+	}
+
+	float position(int k, float start) {
+		return (Float.isNaN(positions[k])) ? start : positions[k];
+	}
+
+	static float interpolate(float from, float to, byte mode, float u) {
+		switch (mode) {
+			case STEP:
+				return from;
+			case SMOOTH:
+				return (float) (from + (to - from) * Trajectory.sCurve(u));
+			default:
+				return from + (to - from) * u;
+		}
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		writeString(out, name);
+		out.writeInt(duration);
+		out.writeShort(servos.length);
+		out.writeInt(times.length);
+		out.writeShort(events.length);
+		for (int i = 0; i < servos.length; ++i) {
+			writeString(out, servos[i]);
+		}
+		for (int i = 0; i < offsets.length; ++i) {
+			out.writeInt(offsets[i]);
+		}
+		for (int k = 0; k < times.length; ++k) {
+			out.writeInt(times[k]);
+			out.writeFloat(positions[k]);
+			out.writeByte(modes[k]);
+		}
+		for (int i = 0; i < events.length; ++i) {
+			out.writeInt(eventTimes[i]);
+			writeString(out, events[i]);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.myrobotlab.kinematics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.myrobotlab.fileLib.VersionedFile;
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * A file of compiled gestures.
+ *
+ * The file is memory mapped and only its index is read on open - a gesture is
+ * decoded the first time it is asked for - so a library of hundreds loads at
+ * once.
+ *
+ * The file is versioned (see VersionedFile) - a library being played stays
+ * mapped while a new version is written next to it.
+ *
+ * layout (big endian) - int magic "MRLG", short version, int count, count x
+ * (name, int offset, int length), then the gestures written by
+ * Gesture.write. Strings are a short length and UTF-8 bytes.
+ */
+public class GestureLibrary {
+
+	public final static Logger log = LoggerFactory.getLogger(GestureLibrary.class);
+
+	public final static int MAGIC = 0x4d524c47;
+	public final static int VERSION = 1;
+
+	final File file;
+	final MappedByteBuffer buffer;
+	// name to offset and length in the file
+	final LinkedHashMap<String, int[]> index = new LinkedHashMap<String, int[]>();
+	final HashMap<String, Gesture> cache = new HashMap<String, Gesture>();
+
+	public static GestureLibrary open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(VersionedFile.current(file), "r");
+		try {
+			// the mapping outlives the file handle
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new GestureLibrary(file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * writes gestures to the next version of file - an open mapping keeps the
+	 * version it has and never sees a half written file
+	 */
+	public static void write(File file, Collection<Gesture> gestures) throws IOException {
+		ArrayList<byte[]> names = new ArrayList<byte[]>();
+		ArrayList<byte[]> blobs = new ArrayList<byte[]>();
+		int header = 4 + 2 + 4;
+		for (Gesture g : gestures) {
+			byte[] name = g.getName().getBytes(Gesture.UTF8);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream blob = new DataOutputStream(bos);
+			g.write(blob);
+			blob.flush();
+			names.add(name);
+			blobs.add(bos.toByteArray());
+			header += 2 + name.length + 4 + 4;
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(blobs.size());
+			int offset = header;
+			for (int i = 0; i < blobs.size(); ++i) {
+				out.writeShort(names.get(i).length);
+				out.write(names.get(i));
+				out.writeInt(offset);
+				out.writeInt(blobs.get(i).length);
+				offset += blobs.get(i).length;
+			}
+			for (int i = 0; i < blobs.size(); ++i) {
+				out.write(blobs.get(i));
+			}
+		} finally {
+			out.close();
+		}
+
+		VersionedFile.commit(file, tmp);
+	}
+
+	/**
+	 * adds or replaces one gesture in a library file
+	 */
+	public static void save(File file, Gesture gesture) throws IOException {
+		LinkedHashMap<String, Gesture> gestures = new LinkedHashMap<String, Gesture>();
+		if (VersionedFile.exists(file)) {
+			GestureLibrary library = open(file);
+			for (String name : library.getNames()) {
+				gestures.put(name, library.get(name));
+			}
+		}
+		gestures.put(gesture.getName(), gesture);
+		write(file, gestures.values());
+	}
+
+	GestureLibrary(File file, MappedByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		ByteBuffer in = buffer.duplicate();
+		if (in.remaining() < 10 || in.getInt() != MAGIC) {
+			throw new IOException(String.format("%s is not a gesture library", file));
+		}
+		int version = in.getShort();
+		if (version != VERSION) {
+			throw new IOException(String.format("%s is version %d - expected %d", file, version, VERSION));
+		}
+		int count = in.getInt();
+		for (int i = 0; i < count; ++i) {
+			String name = Gesture.readString(in);
+			index.put(name, new int[] { in.getInt(), in.getInt() });
+		}
+		log.info("{} has {} gestures", file, count);
+	}
+
+	public boolean contains(String name) {
+		return index.containsKey(name);
+	}
+
+	/**
+	 * @return the gesture or null if it is not in the library
+	 */
+	public synchronized Gesture get(String name) {
+		Gesture g = cache.get(name);
+		if (g != null) {
+			return g;
+		}
+		int[] entry = index.get(name);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer in = buffer.duplicate();
+		in.position(entry[0]);
+		in.limit(entry[0] + entry[1]);
+		g = Gesture.read(in);
+		cache.put(name, g);
+		return g;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Set<String> getNames() {
+		return index.keySet();
+	}
+}
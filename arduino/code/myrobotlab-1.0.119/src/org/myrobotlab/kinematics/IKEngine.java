@@ -1,13 +1,20 @@
 package org.myrobotlab.kinematics;
 
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
 /**
  * class IKEngine
  *
- *
+ * planar n link arm - all state is kept in flat arrays sized by setMode so
+ * iterations do not allocate
  */
 public class IKEngine {
 
 	private static final long serialVersionUID = 1L;
+
+	public final static Logger log = LoggerFactory.getLogger(IKEngine.class);
+
 	/**
 	 * Used to synchronize the methods w/ the animating thread
 	 */
@@ -24,28 +31,33 @@ public class IKEngine {
 	int numLinks;
 
 	/**
-	 * Column vectors indicating the end affector and the goal point
+	 * x, z of the end affector and the goal point
 	 */
-	Matrix endPoint;
-	Matrix goal;
+	double[] endPoint = new double[2];
+	double[] goal = new double[2];
 
 	/**
-	 * array of column vectors indicating positions of each joint
+	 * x, z of each joint - 2 per joint
 	 */
-	Matrix[] jointLocations;
+	double[] jointLocations;
 
 	/**
 	 * Used in ik iteration: jInverse= jacobian.pseudoinverse dTheta=jInverse*dX
+	 * - jacobian is 2 x numLinks, jInverse numLinks x 2, both row major
 	 */
-	Matrix jacobian, jInverse;
-	Matrix dX;
-	Matrix dTheta;
+	double[] jacobian, jInverse;
+	double[] dX = new double[2];
+	double[] dTheta;
+	// cos and sin of the summed thetas
+	double[] ct, st;
 
 	/**
 	 * Indicates how small dX is (smaller means more iterations)
 	 */
 	double stepScaleFactor;
 
+	public int maxIterations = 10000;
+
 	/**
 	 * init variables
 	 */
@@ -53,11 +65,6 @@ public class IKEngine {
 		stopped = true;
 		safeToChangeInternalState = true;
 
-		goal = new Matrix(2, 1);
-		endPoint = new Matrix(2, 1);
-
-		dX = new Matrix(2, 1);
-
 		stepScaleFactor = 0.1;
 
 		setMode(nLinks);
@@ -65,26 +72,25 @@ public class IKEngine {
 	}
 
 	public void calculate() {
-		boolean done = false;
-		while (done == false) {
-
-			if (Math.abs(endPoint.subtractFrom(goal).elements[0][0]) <= .01 && Math.abs(endPoint.subtractFrom(goal).elements[1][0]) <= .01) {
-				done = true;
+		for (int i = 0; i < maxIterations; ++i) {
+			if (Math.abs(endPoint[0] - goal[0]) <= .01 && Math.abs(endPoint[1] - goal[1]) <= .01) {
+				return;
 			}
-			moveToGoal(goal);
+			moveToGoal(goal[0], goal[1]);
 		}
+		log.warn("goal ({}, {}) not reached in {} iterations", goal[0], goal[1], maxIterations);
 	}
 
 	public double[] getArmAngles() {
 		double x1, z1, x2, z2;
 		x1 = z1 = 0;
 		for (int i = 0; i < numLinks; i++) {
-			x2 = jointLocations[i].elements[0][0];
-			z2 = jointLocations[i].elements[1][0];
-			// System.out.println("x" + i + " " + x2);
-			// System.out.println("y" + i + " " + z2);
+			x2 = jointLocations[2 * i];
+			z2 = jointLocations[2 * i + 1];
 			angles[i] = Math.toDegrees(Math.atan((z2 - z1) / (x2 - x1)));
-			System.out.println("angle" + i + " " + angles[i]);
+			if (log.isDebugEnabled()) {
+				log.debug("angle{} {}", i, angles[i]);
+			}
 			x1 = x2;
 			z1 = z2;
 
@@ -95,14 +101,20 @@ public class IKEngine {
 	public double getBaseAngle() {
 		double bas;
 		bas = Math.toDegrees(Math.atan2(myy, myx));
-		System.out.println("base angle is: " + bas);
+		if (log.isDebugEnabled()) {
+			log.debug("base angle is: {}", bas);
+		}
 		return bas;
 
 	}
 
 	public void moveToGoal(Matrix goal) {
+		moveToGoal(goal.elements[0][0], goal.elements[1][0]);
+	}
+
+	public void moveToGoal(double gx, double gz) {
 		safeToChangeInternalState = false;
-		moveToGoal_NLink(goal);
+		moveToGoal_NLink(gx, gz);
 		safeToChangeInternalState = true;
 	}
 
@@ -110,55 +122,77 @@ public class IKEngine {
 	 * calculates jointLocations[] and jacobian, then updates thetas[] Makes one
 	 * ik iteration.
 	 *
-	 * @param gl
-	 *            the goal point
+	 * @param gx
+	 *            ,gz the goal point
 	 */
-	void moveToGoal_NLink(Matrix gl) {
+	void moveToGoal_NLink(double gx, double gz) {
 		int i;
-
-		double[] ct = new double[numLinks];
-		double[] st = new double[numLinks];
+		int n = numLinks;
 
 		// Pre-calculate sines and cosines so:
 		// ct[i]== cos(theta[0]+...+theta[i])
 		// st[i]== sin(theta[0]+...+theta[i])
 		double sum = 0.0;
-		for (i = 0; i < numLinks; i++) {
+		for (i = 0; i < n; i++) {
 			sum += thetas[i];
 
 			ct[i] = Math.cos(sum);
 			st[i] = Math.sin(sum);
 		}
 
-		jointLocations[0].elements[0][0] = lengths[0] * ct[0];
-		jointLocations[0].elements[1][0] = lengths[0] * st[0];
+		jointLocations[0] = lengths[0] * ct[0];
+		jointLocations[1] = lengths[0] * st[0];
 
-		for (i = 1; i < numLinks; i++) {
-			jointLocations[i].elements[0][0] = jointLocations[i - 1].elements[0][0] + lengths[i] * ct[i];
-			jointLocations[i].elements[1][0] = jointLocations[i - 1].elements[1][0] + lengths[i] * st[i];
+		for (i = 1; i < n; i++) {
+			jointLocations[2 * i] = jointLocations[2 * i - 2] + lengths[i] * ct[i];
+			jointLocations[2 * i + 1] = jointLocations[2 * i - 1] + lengths[i] * st[i];
 		}
 
-		endPoint = jointLocations[numLinks - 1];
+		endPoint[0] = jointLocations[2 * n - 2];
+		endPoint[1] = jointLocations[2 * n - 1];
 
 		// dX is a vector in the direction of the end-affector to the goal point
-		dX = gl.subtractFrom(jointLocations[numLinks - 1]).multiply(stepScaleFactor);
-
-		// set up the jacobian
-		for (i = 0; i < numLinks; i++) {
-			jacobian.elements[0][i] = jacobian.elements[1][i] = 0.0;
-			for (int j = i; j < numLinks; j++) {
-				jacobian.elements[0][i] += -lengths[j] * st[j];
-				jacobian.elements[1][i] += lengths[j] * ct[j];
-			}
+		dX[0] = (gx - endPoint[0]) * stepScaleFactor;
+		dX[1] = (gz - endPoint[1]) * stepScaleFactor;
+
+		// set up the jacobian - suffix sums from the last link back
+		double jx = 0.0;
+		double jz = 0.0;
+		for (i = n - 1; i >= 0; i--) {
+			jx += -lengths[i] * st[i];
+			jz += lengths[i] * ct[i];
+			jacobian[i] = jx;
+			jacobian[n + i] = jz;
 		}
 
-		// dTheta= J^-1 * dX
-		jInverse = jacobian.pseudoInverse();
-		dTheta = jInverse.multiply(dX);
+		// jInverse = J^T (J J^T)^-1 - J J^T is 2x2
+		double a = 0, b = 0, c = 0;
+		for (i = 0; i < n; i++) {
+			a += jacobian[i] * jacobian[i];
+			b += jacobian[i] * jacobian[n + i];
+			c += jacobian[n + i] * jacobian[n + i];
+		}
+		double det = a * c - b * b;
+		if (Math.abs(det) < 1e-12) {
+			// singular - damp it
+			double damping = 1e-6 * Math.max(a + c, 1);
+			a += damping;
+			c += damping;
+			det = a * c - b * b;
+		}
+		double i00 = c / det;
+		double i01 = -b / det;
+		double i11 = a / det;
+		for (i = 0; i < n; i++) {
+			jInverse[2 * i] = jacobian[i] * i00 + jacobian[n + i] * i01;
+			jInverse[2 * i + 1] = jacobian[i] * i01 + jacobian[n + i] * i11;
+		}
 
+		// dTheta= J^-1 * dX
 		// increase theta by dTheta
-		for (i = 0; i < numLinks; i++) {
-			thetas[i] += dTheta.elements[i][0];
+		for (i = 0; i < n; i++) {
+			dTheta[i] = jInverse[2 * i] * dX[0] + jInverse[2 * i + 1] * dX[1];
+			thetas[i] += dTheta[i];
 		}
 	}
 
@@ -167,8 +201,8 @@ public class IKEngine {
 	 *            ,gy,gz the x,y,z components of the goal point
 	 */
 	public void setGoal(double gx, double gy, double gz) {
-		goal.elements[0][0] = gx;
-		goal.elements[1][0] = gz;
+		goal[0] = gx;
+		goal[1] = gz;
 		myx = gx;
 		myy = gy;
 
@@ -176,7 +210,7 @@ public class IKEngine {
 
 	/**
 	 * Changes the length of a link
-	 * 
+	 *
 	 * @param link
 	 *            the link to change
 	 * @param length
@@ -201,7 +235,7 @@ public class IKEngine {
 	/**
 	 * Changes the number of links and sets up data structrues. Waits until all
 	 * ik computation is done and it is safe to change variables.
-	 * 
+	 *
 	 * @param nLinks
 	 *            the number of links
 	 */
@@ -215,24 +249,25 @@ public class IKEngine {
 		// **
 		numLinks = nLinks;
 
-		jointLocations = new Matrix[numLinks];
+		jointLocations = new double[2 * numLinks];
 
 		angles = new double[numLinks];
 		thetas = new double[numLinks];
 		lengths = new double[numLinks];
 
 		for (int i = 0; i < numLinks; i++) {
-			jointLocations[i] = new Matrix(2, 1);
-			jointLocations[i].elements[0][0] = 2.0;
-			jointLocations[i].elements[1][0] = 0.0;
+			jointLocations[2 * i] = 2.0;
+			jointLocations[2 * i + 1] = 0.0;
 			thetas[i] = Math.PI / 50.0;
 			lengths[i] = 2.0 / numLinks;
 		}
 
-		jacobian = new Matrix(2, numLinks);
-		jInverse = new Matrix(numLinks, 2);
+		jacobian = new double[2 * numLinks];
+		jInverse = new double[2 * numLinks];
 
-		dTheta = new Matrix(numLinks, 1);
+		dTheta = new double[numLinks];
+		ct = new double[numLinks];
+		st = new double[numLinks];
 	}
 
 }
@@ -0,0 +1,435 @@
+package org.myrobotlab.kinematics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.myrobotlab.fileLib.VersionedFile;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.slf4j.Logger;
+
+/**
+ * A table of palm positions and the joints which reach them, sampled from the
+ * workspace of a DHRobotArm and binned in a uniform grid, for ik seeds and
+ * reachability.
+ *
+ * nearest() looks through the cells around a point ring by ring, so a query
+ * is a few microseconds. A point with no entry within maxRings cell edges is
+ * taken as out of reach. solve() seeds a DLSSolver with the nearest entry.
+ *
+ * The table is one buffer - on the heap when built, memory mapped when opened
+ * - and keeps a signature of the link parameters it was sampled from. Queries
+ * on an arm whose links have changed since return nothing, and load()
+ * rebuilds a file whose signature does not match. Files are versioned (see
+ * VersionedFile) so a rebuild never has to replace a mapped file.
+ *
+ * layout (big endian) - int magic "MRLK", short version, short joints, long
+ * signature, int count, float cell, float x, y, z of the grid's first corner,
+ * int nx, ny, nz, padding to 64 bytes, nx * ny * nz + 1 ints start of each
+ * cell, then count x 3 floats position and count x joints floats joints,
+ * sorted by cell.
+ */
+public class IKTable {
+
+	public final static Logger log = LoggerFactory.getLogger(IKTable.class);
+
+	public final static int MAGIC = 0x4d524c4b;
+	public final static int VERSION = 1;
+	final static int HEADER = 64;
+	// a larger grid gets bigger cells
+	final static int MAX_CELLS = 1 << 22;
+
+	// rings of cells searched around a point before it is out of reach
+	public int maxRings = 3;
+
+	final DHRobotArm arm;
+	final ByteBuffer buffer;
+	final int joints;
+	final long signature;
+	final int count;
+	final float cell;
+	final float x0, y0, z0;
+	final int nx, ny, nz;
+	final IntBuffer starts;
+	final FloatBuffer positions;
+	final FloatBuffer values;
+
+	// logged once when the links change under the table
+	private boolean stale = false;
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.INFO);
+
+		try {
+			String file = "inmoov.left.mrlk";
+			int samples = 200000;
+			float cell = 10;
+			for (int i = 0; i < args.length; ++i) {
+				if ("-file".equals(args[i])) {
+					file = args[++i];
+				} else if ("-samples".equals(args[i])) {
+					samples = Integer.parseInt(args[++i]);
+				} else if ("-cell".equals(args[i])) {
+					cell = Float.parseFloat(args[++i]);
+				}
+			}
+			IKTable table = load(new File(file), KinematicsBenchmark.createInMoovLeftArm(), samples, cell);
+			log.info("{} entries in {} x {} x {} cells of {}", table.count, table.nx, table.ny, table.nz, table.cell);
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	/**
+	 * samples the arm's joints uniformly within the link min / max - the links
+	 * are left as they were
+	 *
+	 * @param cell
+	 *            edge of a grid cell in arm units
+	 */
+	public static IKTable build(DHRobotArm arm, int samples, float cell, long seed) {
+		ArrayList<DHLink> links = arm.getLinks();
+		int n = links.size();
+		double[] saved = new double[n];
+		for (int j = 0; j < n; ++j) {
+			saved[j] = variable(links.get(j));
+		}
+
+		float[] position = new float[3 * samples];
+		float[] value = new float[n * samples];
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		Random random = new Random(seed);
+		Vector3 palm = new Vector3();
+		try {
+			for (int i = 0; i < samples; ++i) {
+				for (int j = 0; j < n; ++j) {
+					DHLink link = links.get(j);
+					double v = link.getMin() + random.nextDouble() * (link.getMax() - link.getMin());
+					setVariable(link, v);
+					value[i * n + j] = (float) v;
+				}
+				arm.getPalmPosition(palm);
+				float x = (float) palm.x, y = (float) palm.y, z = (float) palm.z;
+				position[3 * i] = x;
+				position[3 * i + 1] = y;
+				position[3 * i + 2] = z;
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				minZ = Math.min(minZ, z);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+				maxZ = Math.max(maxZ, z);
+			}
+		} finally {
+			for (int j = 0; j < n; ++j) {
+				setVariable(links.get(j), saved[j]);
+			}
+		}
+
+		int nx, ny, nz;
+		while (true) {
+			nx = (int) ((maxX - minX) / cell) + 1;
+			ny = (int) ((maxY - minY) / cell) + 1;
+			nz = (int) ((maxZ - minZ) / cell) + 1;
+			if ((long) nx * ny * nz <= MAX_CELLS) {
+				break;
+			}
+			cell *= 1.25f;
+		}
+		int cells = nx * ny * nz;
+
+		// counting sort by cell
+		int[] index = new int[samples];
+		int[] start = new int[cells + 1];
+		for (int i = 0; i < samples; ++i) {
+			int cx = (int) ((position[3 * i] - minX) / cell);
+			int cy = (int) ((position[3 * i + 1] - minY) / cell);
+			int cz = (int) ((position[3 * i + 2] - minZ) / cell);
+			index[i] = (cz * ny + cy) * nx + cx;
+			++start[index[i] + 1];
+		}
+		for (int c = 0; c < cells; ++c) {
+			start[c + 1] += start[c];
+		}
+		int[] next = new int[cells];
+		System.arraycopy(start, 0, next, 0, cells);
+		int[] order = new int[samples];
+		for (int i = 0; i < samples; ++i) {
+			order[next[index[i]]++] = i;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER + 4 * (cells + 1) + 4 * (3 + n) * samples);
+		buffer.putInt(MAGIC);
+		buffer.putShort((short) VERSION);
+		buffer.putShort((short) n);
+		buffer.putLong(signature(arm));
+		buffer.putInt(samples);
+		buffer.putFloat(cell);
+		buffer.putFloat(minX);
+		buffer.putFloat(minY);
+		buffer.putFloat(minZ);
+		buffer.putInt(nx);
+		buffer.putInt(ny);
+		buffer.putInt(nz);
+		buffer.position(HEADER);
+		for (int c = 0; c <= cells; ++c) {
+			buffer.putInt(start[c]);
+		}
+		for (int k = 0; k < samples; ++k) {
+			int i = order[k];
+			buffer.putFloat(position[3 * i]);
+			buffer.putFloat(position[3 * i + 1]);
+			buffer.putFloat(position[3 * i + 2]);
+		}
+		for (int k = 0; k < samples; ++k) {
+			int i = order[k];
+			for (int j = 0; j < n; ++j) {
+				buffer.putFloat(value[i * n + j]);
+			}
+		}
+		buffer.flip();
+		try {
+			return new IKTable(arm, buffer, "built");
+		} catch (IOException e) {
+			// not from a buffer laid out above
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * the table in file for arm - built and saved if the file is missing, not
+	 * a table, or sampled from other link parameters
+	 */
+	public static IKTable load(File file, DHRobotArm arm, int samples, float cell) throws IOException {
+		if (VersionedFile.exists(file)) {
+			try {
+				IKTable table = open(file, arm);
+				if (table.isValid()) {
+					return table;
+				}
+				log.info("{} is for other links - rebuilding", file);
+			} catch (IOException e) {
+				log.warn("{} - rebuilding", e.getMessage());
+			}
+		}
+		long start = System.currentTimeMillis();
+		IKTable table = build(arm, samples, cell, 1);
+		table.save(file);
+		log.info("built {} with {} samples in {} ms", file, samples, System.currentTimeMillis() - start);
+		return table;
+	}
+
+	public static IKTable open(File file, DHRobotArm arm) throws IOException {
+		File current = VersionedFile.current(file);
+		RandomAccessFile raf = new RandomAccessFile(current, "r");
+		try {
+			// the mapping outlives the file handle
+			FileChannel channel = raf.getChannel();
+			return new IKTable(arm, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), current.getPath());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * a hash of what moves the palm - the dh parameters which are not joint
+	 * variables, link types and limits
+	 */
+	public static long signature(DHRobotArm arm) {
+		long h = 1125899906842597L;
+		ArrayList<DHLink> links = arm.getLinks();
+		for (int j = 0; j < links.size(); ++j) {
+			DHLink link = links.get(j);
+			boolean prismatic = link.getType() == DHLinkType.PRISMATIC;
+			h = 31 * h + (prismatic ? 1 : 0);
+			h = 31 * h + Double.doubleToLongBits(prismatic ? link.getTheta() : link.getD());
+			h = 31 * h + Double.doubleToLongBits(link.getA());
+			h = 31 * h + Double.doubleToLongBits(link.getAlpha());
+			h = 31 * h + Double.doubleToLongBits(link.getMin());
+			h = 31 * h + Double.doubleToLongBits(link.getMax());
+		}
+		return h;
+	}
+
+	static double variable(DHLink link) {
+		return link.getType() == DHLinkType.PRISMATIC ? link.getD() : link.getTheta();
+	}
+
+	static void setVariable(DHLink link, double value) {
+		if (link.getType() == DHLinkType.PRISMATIC) {
+			link.setD(value);
+		} else {
+			link.setTheta(value);
+		}
+	}
+
+	IKTable(DHRobotArm arm, ByteBuffer buffer, String name) throws IOException {
+		this.arm = arm;
+		this.buffer = buffer;
+		ByteBuffer in = buffer.duplicate();
+		if (in.remaining() < HEADER || in.getInt() != MAGIC) {
+			throw new IOException(String.format("%s is not an ik table", name));
+		}
+		int version = in.getShort();
+		if (version != VERSION) {
+			throw new IOException(String.format("%s is version %d - expected %d", name, version, VERSION));
+		}
+		joints = in.getShort();
+		signature = in.getLong();
+		count = in.getInt();
+		cell = in.getFloat();
+		x0 = in.getFloat();
+		y0 = in.getFloat();
+		z0 = in.getFloat();
+		nx = in.getInt();
+		ny = in.getInt();
+		nz = in.getInt();
+		int cells = nx * ny * nz;
+		if (buffer.limit() != HEADER + 4 * (cells + 1) + 4 * (3 + joints) * count) {
+			throw new IOException(String.format("%s is truncated", name));
+		}
+		in.position(HEADER);
+		starts = in.slice().asIntBuffer();
+		in.position(HEADER + 4 * (cells + 1));
+		positions = in.slice().asFloatBuffer();
+		in.position(HEADER + 4 * (cells + 1) + 12 * count);
+		values = in.slice().asFloatBuffer();
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getDistance(int entry, double x, double y, double z) {
+		double dx = x - positions.get(3 * entry);
+		double dy = y - positions.get(3 * entry + 1);
+		double dz = z - positions.get(3 * entry + 2);
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	public double getJoint(int entry, int joint) {
+		return values.get(entry * joints + joint);
+	}
+
+	public int getNumJoints() {
+		return joints;
+	}
+
+	public Vector3 getPosition(int entry, Vector3 out) {
+		return out.set(positions.get(3 * entry), positions.get(3 * entry + 1), positions.get(3 * entry + 2));
+	}
+
+	/**
+	 * false once the arm's links differ from the ones the table was sampled
+	 * from
+	 */
+	public boolean isValid() {
+		return signature == signature(arm) && joints == arm.getNumLinks();
+	}
+
+	/**
+	 * the entry closest to x, y, z
+	 *
+	 * @return -1 if nothing is within maxRings cells or the table is stale
+	 */
+	public int nearest(double x, double y, double z) {
+		if (!isValid()) {
+			if (!stale) {
+				stale = true;
+				log.warn("the links changed since the ik table was built - rebuild it");
+			}
+			return -1;
+		}
+		int cx = clamp((int) Math.floor((x - x0) / cell), nx);
+		int cy = clamp((int) Math.floor((y - y0) / cell), ny);
+		int cz = clamp((int) Math.floor((z - z0) / cell), nz);
+
+		int best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		for (int ring = 0; ring <= maxRings; ++ring) {
+			for (int k = Math.max(cz - ring, 0); k <= Math.min(cz + ring, nz - 1); ++k) {
+				for (int j = Math.max(cy - ring, 0); j <= Math.min(cy + ring, ny - 1); ++j) {
+					for (int i = Math.max(cx - ring, 0); i <= Math.min(cx + ring, nx - 1); ++i) {
+						// only the shell - the inside was searched
+						if (Math.abs(i - cx) != ring && Math.abs(j - cy) != ring && Math.abs(k - cz) != ring) {
+							continue;
+						}
+						int c = (k * ny + j) * nx + i;
+						for (int e = starts.get(c); e < starts.get(c + 1); ++e) {
+							double d = getDistance(e, x, y, z);
+							if (d < bestDistance) {
+								bestDistance = d;
+								best = e;
+							}
+						}
+					}
+				}
+			}
+			// nothing outside the searched cube is closer than its faces
+			double inside = Math.min(Math.min(x - (x0 + (cx - ring) * cell), (x0 + (cx + ring + 1) * cell) - x),
+					Math.min(Math.min(y - (y0 + (cy - ring) * cell), (y0 + (cy + ring + 1) * cell) - y),
+							Math.min(z - (z0 + (cz - ring) * cell), (z0 + (cz + ring + 1) * cell) - z)));
+			if (best >= 0 && bestDistance <= inside) {
+				break;
+			}
+		}
+		if (bestDistance > maxRings * cell) {
+			return -1;
+		}
+		return best;
+	}
+
+	/**
+	 * writes the table as the next version of file - tables opened from
+	 * earlier versions keep their mapping
+	 */
+	public void save(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ByteBuffer data = buffer.duplicate();
+			data.rewind();
+			FileChannel channel = out.getChannel();
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		} finally {
+			out.close();
+		}
+		VersionedFile.commit(file, tmp);
+	}
+
+	/**
+	 * starts the solver from the nearest entry and solves - from wherever the
+	 * solver was if there is none
+	 */
+	public DLSSolver.Status solve(DLSSolver solver, double x, double y, double z) {
+		int entry = nearest(x, y, z);
+		if (entry >= 0) {
+			for (int j = 0; j < joints; ++j) {
+				solver.setJoint(j, values.get(entry * joints + j));
+			}
+		}
+		return solver.solve(x, y, z);
+	}
+
+	private static int clamp(int c, int n) {
+		return (c < 0) ? 0 : (c >= n) ? n - 1 : c;
+	}
+}
@@ -0,0 +1,236 @@
+package org.myrobotlab.kinematics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.slf4j.Logger;
+
+/**
+ * Time and java heap allocation per call of the kinematics - forward
+ * kinematics of the InMoov left arm through the old Matrix path and through
+ * Matrix4, DHRobotArm.moveToGoal, DLSSolver following a moving goal, IKTable
+ * lookups and seeded solves and IKEngine.calculate - over goals made by
+ * forward kinematics of random joint angles so every one is reachable.
+ *
+ * <pre>
+ * java org.myrobotlab.kinematics.KinematicsBenchmark [-iterations 2000] [-warmup 2000] [-seed 1] [-check]
+ * </pre>
+ *
+ * -check exits with 1 if a solve allocates - less than a byte a call is the
+ * jvm's own noise (a recompile now and then), not the solver. Like
+ * FilterBenchmark this is a plain harness rather than JMH to keep the build
+ * free of another dependency.
+ */
+public class KinematicsBenchmark {
+
+	public final static Logger log = LoggerFactory.getLogger(KinematicsBenchmark.class);
+
+	public static class Result {
+		public String name;
+		public long calls;
+		public double nsPerCall;
+		public double bytesPerCall;
+
+		@Override
+		public String toString() {
+			return String.format("%-30s %10d calls %12.0f ns/call %10.2f B/call", name, calls, nsPerCall, bytesPerCall);
+		}
+	}
+
+	static abstract class Task {
+		final String name;
+
+		Task(String name) {
+			this.name = name;
+		}
+
+		abstract void run(int i);
+	}
+
+	int iterations = 2000;
+	int warmup = 2000;
+	long seed = 1;
+	boolean check = false;
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.WARN);
+
+		try {
+			KinematicsBenchmark benchmark = new KinematicsBenchmark();
+			for (int i = 0; i < args.length; ++i) {
+				if ("-iterations".equals(args[i])) {
+					benchmark.iterations = Integer.parseInt(args[++i]);
+				} else if ("-warmup".equals(args[i])) {
+					benchmark.warmup = Integer.parseInt(args[++i]);
+				} else if ("-seed".equals(args[i])) {
+					benchmark.seed = Long.parseLong(args[++i]);
+				} else if ("-check".equals(args[i])) {
+					benchmark.check = true;
+				}
+			}
+			Result[] results = benchmark.run();
+			boolean allocates = false;
+			for (int i = 0; i < results.length; ++i) {
+				System.out.println(results[i]);
+				if (results[i].name.startsWith("solve") && results[i].bytesPerCall >= 1) {
+					allocates = true;
+				}
+			}
+			if (benchmark.check && allocates) {
+				System.out.println("a solve allocates");
+				System.exit(1);
+			}
+		} catch (Exception e) {
+			Logging.logError(e);
+			System.exit(1);
+		}
+	}
+
+	public static DHRobotArm createInMoovLeftArm() {
+		DHRobotArm arm = new DHRobotArm();
+		// d , r, theta , alpha
+		arm.addLink(new DHLink(200, 100, Math.toRadians(0), Math.toRadians(90)));
+		arm.addLink(new DHLink(0, 100, Math.toRadians(-66), Math.toRadians(-90)));
+		arm.addLink(new DHLink(50, 1, Math.toRadians(47), Math.toRadians(90)));
+		arm.addLink(new DHLink(100, 0, Math.toRadians(-148), Math.toRadians(90)));
+		arm.addLink(new DHLink(0, 100, Math.toRadians(22), Math.toRadians(180)));
+		return arm;
+	}
+
+	static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		} catch (Throwable t) {
+		}
+		return -1;
+	}
+
+	Result measure(Task task, int calls) {
+		for (int i = 0; i < warmup; ++i) {
+			task.run(i);
+		}
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; ++i) {
+			task.run(i);
+		}
+		long ns = System.nanoTime() - start;
+		long allocated = allocatedBytes() - bytes;
+
+		// what reading the counter costs by itself
+		long empty = allocatedBytes();
+		allocated -= allocatedBytes() - empty;
+
+		Result result = new Result();
+		result.name = task.name;
+		result.calls = calls;
+		result.nsPerCall = ns / (double) calls;
+		result.bytesPerCall = (bytes < 0) ? Double.NaN : Math.max(allocated, 0) / (double) calls;
+		return result;
+	}
+
+	public Result[] run() {
+		final DHRobotArm arm = createInMoovLeftArm();
+		final int links = arm.getNumLinks();
+		final double[] start = new double[links];
+		for (int j = 0; j < links; ++j) {
+			start[j] = arm.getLink(j).getTheta();
+		}
+
+		// reachable goals - small random moves from the start pose
+		Random random = new Random(seed);
+		final int goals = 256;
+		final double[] goal = new double[3 * goals];
+		Vector3 palm = new Vector3();
+		for (int g = 0; g < goals; ++g) {
+			for (int j = 0; j < links; ++j) {
+				arm.getLink(j).setTheta(start[j] + (random.nextDouble() - 0.5) * 0.5);
+			}
+			arm.getPalmPosition(palm);
+			goal[3 * g] = palm.x;
+			goal[3 * g + 1] = palm.y;
+			goal[3 * g + 2] = palm.z;
+		}
+
+		final Vector3 out = new Vector3();
+		final IKEngine engine = new IKEngine(3);
+		for (int j = 0; j < 3; ++j) {
+			engine.setLinkLength(j, 100);
+		}
+		final double[] engineStart = engine.thetas.clone();
+
+		Task legacy = new Task("forward (Matrix)") {
+			@Override
+			void run(int i) {
+				Matrix m = new Matrix(4, 4);
+				m.elements[0][0] = m.elements[1][1] = m.elements[2][2] = m.elements[3][3] = 1;
+				for (int j = 0; j < links; ++j) {
+					m = m.multiply(arm.getLink(j).resolveMatrix());
+				}
+			}
+		};
+		Task forward = new Task("forward (Matrix4)") {
+			@Override
+			void run(int i) {
+				arm.getPalmPosition(out);
+			}
+		};
+		Task solve = new Task("solve DHRobotArm.moveToGoal") {
+			@Override
+			void run(int i) {
+				for (int j = 0; j < links; ++j) {
+					arm.getLink(j).setTheta(start[j]);
+				}
+				int g = 3 * (i % goals);
+				arm.moveToGoal(goal[g], goal[g + 1], goal[g + 2]);
+			}
+		};
+		final DLSSolver tracker = arm.getSolver().copy();
+		Task track = new Task("solve DLSSolver tracking") {
+			@Override
+			void run(int i) {
+				// a goal circling slowly - a camera frame's worth of motion
+				double angle = i * 0.05;
+				tracker.solve(goal[0] + 20 * Math.cos(angle), goal[1] + 20 * Math.sin(angle), goal[2]);
+			}
+		};
+		final IKTable table = IKTable.build(arm, 100000, 10, seed);
+		final DLSSolver seeded = arm.getSolver().copy();
+		seeded.warmStart = false;
+		Task lookup = new Task("lookup IKTable.nearest") {
+			@Override
+			void run(int i) {
+				int g = 3 * (i % goals);
+				table.nearest(goal[g], goal[g + 1], goal[g + 2]);
+			}
+		};
+		Task solveSeeded = new Task("solve IKTable seeded") {
+			@Override
+			void run(int i) {
+				int g = 3 * (i % goals);
+				table.solve(seeded, goal[g], goal[g + 1], goal[g + 2]);
+			}
+		};
+		Task solve2d = new Task("solve IKEngine.calculate") {
+			@Override
+			void run(int i) {
+				System.arraycopy(engineStart, 0, engine.thetas, 0, engineStart.length);
+				engine.endPoint[0] = engine.endPoint[1] = 0;
+				engine.setGoal(100 + i % 100, 0, 100);
+				engine.calculate();
+			}
+		};
+
+		return new Result[] { measure(legacy, iterations * 10), measure(forward, iterations * 10), measure(solve, iterations), measure(track, iterations * 10),
+				measure(lookup, iterations * 10), measure(solveSeeded, iterations),
+				measure(solve2d, Math.max(iterations / 20, 10)) };
+	}
+}
@@ -0,0 +1,129 @@
+package org.myrobotlab.kinematics;
+
+/**
+ * A 3x3 matrix in one row major double[9] - operations write into this and
+ * never allocate.
+ */
+public class Matrix3 {
+
+	public final double[] m = new double[9];
+
+	public Matrix3() {
+		identity();
+	}
+
+	public double determinant() {
+		return m[0] * (m[4] * m[8] - m[5] * m[7]) - m[1] * (m[3] * m[8] - m[5] * m[6]) + m[2] * (m[3] * m[7] - m[4] * m[6]);
+	}
+
+	public double get(int row, int col) {
+		return m[row * 3 + col];
+	}
+
+	public Matrix3 identity() {
+		for (int i = 0; i < 9; ++i) {
+			m[i] = 0;
+		}
+		m[0] = m[4] = m[8] = 1;
+		return this;
+	}
+
+	/**
+	 * this = a^-1 - a may be this
+	 *
+	 * @return false and this unchanged if a is singular
+	 */
+	public boolean invert(Matrix3 a) {
+		double[] s = a.m;
+		double c0 = s[4] * s[8] - s[5] * s[7];
+		double c1 = s[5] * s[6] - s[3] * s[8];
+		double c2 = s[3] * s[7] - s[4] * s[6];
+		double det = s[0] * c0 + s[1] * c1 + s[2] * c2;
+		if (Math.abs(det) < 1e-12) {
+			return false;
+		}
+		double inv = 1 / det;
+		double i0 = c0 * inv;
+		double i1 = (s[2] * s[7] - s[1] * s[8]) * inv;
+		double i2 = (s[1] * s[5] - s[2] * s[4]) * inv;
+		double i3 = c1 * inv;
+		double i4 = (s[0] * s[8] - s[2] * s[6]) * inv;
+		double i5 = (s[2] * s[3] - s[0] * s[5]) * inv;
+		double i6 = c2 * inv;
+		double i7 = (s[1] * s[6] - s[0] * s[7]) * inv;
+		double i8 = (s[0] * s[4] - s[1] * s[3]) * inv;
+		m[0] = i0;
+		m[1] = i1;
+		m[2] = i2;
+		m[3] = i3;
+		m[4] = i4;
+		m[5] = i5;
+		m[6] = i6;
+		m[7] = i7;
+		m[8] = i8;
+		return true;
+	}
+
+	/**
+	 * this = a * b - a or b may be this
+	 */
+	public Matrix3 multiply(Matrix3 a, Matrix3 b) {
+		double[] x = a.m;
+		double[] y = b.m;
+		double r0 = x[0] * y[0] + x[1] * y[3] + x[2] * y[6];
+		double r1 = x[0] * y[1] + x[1] * y[4] + x[2] * y[7];
+		double r2 = x[0] * y[2] + x[1] * y[5] + x[2] * y[8];
+		double r3 = x[3] * y[0] + x[4] * y[3] + x[5] * y[6];
+		double r4 = x[3] * y[1] + x[4] * y[4] + x[5] * y[7];
+		double r5 = x[3] * y[2] + x[4] * y[5] + x[5] * y[8];
+		double r6 = x[6] * y[0] + x[7] * y[3] + x[8] * y[6];
+		double r7 = x[6] * y[1] + x[7] * y[4] + x[8] * y[7];
+		double r8 = x[6] * y[2] + x[7] * y[5] + x[8] * y[8];
+		m[0] = r0;
+		m[1] = r1;
+		m[2] = r2;
+		m[3] = r3;
+		m[4] = r4;
+		m[5] = r5;
+		m[6] = r6;
+		m[7] = r7;
+		m[8] = r8;
+		return this;
+	}
+
+	public Matrix3 set(int row, int col, double value) {
+		m[row * 3 + col] = value;
+		return this;
+	}
+
+	public Matrix3 set(Matrix3 a) {
+		System.arraycopy(a.m, 0, m, 0, 9);
+		return this;
+	}
+
+	/**
+	 * out = this * v - out may be v
+	 */
+	public Vector3 transform(Vector3 v, Vector3 out) {
+		return out.set(m[0] * v.x + m[1] * v.y + m[2] * v.z, m[3] * v.x + m[4] * v.y + m[5] * v.z, m[6] * v.x + m[7] * v.y + m[8] * v.z);
+	}
+
+	public Matrix3 transpose() {
+		double t;
+		t = m[1];
+		m[1] = m[3];
+		m[3] = t;
+		t = m[2];
+		m[2] = m[6];
+		m[6] = t;
+		t = m[5];
+		m[5] = m[7];
+		m[7] = t;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[\n [ %.5f %.5f %.5f ]\n [ %.5f %.5f %.5f ]\n [ %.5f %.5f %.5f ]\n]", m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7], m[8]);
+	}
+}
@@ -0,0 +1,187 @@
+package org.myrobotlab.kinematics;
+
+/**
+ * A 4x4 homogeneous transform in one row major double[16] - operations write
+ * into this and never allocate, so a chain of links can be resolved into one
+ * reused instance.
+ */
+public class Matrix4 {
+
+	public final double[] m = new double[16];
+
+	// copy of b when a product is written over its right hand side
+	private final double[] scratch = new double[16];
+
+	public Matrix4() {
+		identity();
+	}
+
+	public double get(int row, int col) {
+		return m[row * 4 + col];
+	}
+
+	/**
+	 * column c of the rotation - 2 is the z axis of the frame
+	 */
+	public Vector3 getAxis(int c, Vector3 out) {
+		return out.set(m[c], m[4 + c], m[8 + c]);
+	}
+
+	public Vector3 getTranslation(Vector3 out) {
+		return out.set(m[3], m[7], m[11]);
+	}
+
+	public double getX() {
+		return m[3];
+	}
+
+	public double getY() {
+		return m[7];
+	}
+
+	public double getZ() {
+		return m[11];
+	}
+
+	public Matrix4 identity() {
+		for (int i = 0; i < 16; ++i) {
+			m[i] = 0;
+		}
+		m[0] = m[5] = m[10] = m[15] = 1;
+		return this;
+	}
+
+	/**
+	 * this = a * b - a or b may be this
+	 */
+	public Matrix4 multiply(Matrix4 a, Matrix4 b) {
+		double[] x = a.m;
+		double[] y = b.m;
+		if (b == this) {
+			System.arraycopy(y, 0, scratch, 0, 16);
+			y = scratch;
+		}
+		// row r of the product only needs row r of a, so a == this is safe
+		for (int r = 0; r < 16; r += 4) {
+			double a0 = x[r];
+			double a1 = x[r + 1];
+			double a2 = x[r + 2];
+			double a3 = x[r + 3];
+			m[r] = a0 * y[0] + a1 * y[4] + a2 * y[8] + a3 * y[12];
+			m[r + 1] = a0 * y[1] + a1 * y[5] + a2 * y[9] + a3 * y[13];
+			m[r + 2] = a0 * y[2] + a1 * y[6] + a2 * y[10] + a3 * y[14];
+			m[r + 3] = a0 * y[3] + a1 * y[7] + a2 * y[11] + a3 * y[15];
+		}
+		return this;
+	}
+
+	/**
+	 * this = this * b
+	 */
+	public Matrix4 multiply(Matrix4 b) {
+		return multiply(this, b);
+	}
+
+	public Matrix4 set(int row, int col, double value) {
+		m[row * 4 + col] = value;
+		return this;
+	}
+
+	public Matrix4 set(Matrix4 a) {
+		System.arraycopy(a.m, 0, m, 0, 16);
+		return this;
+	}
+
+	/**
+	 * the Denavit-Hartenberg transform of a link - rotate theta about z,
+	 * translate d along z, r along the new x and rotate alpha about it
+	 */
+	public Matrix4 setDH(double d, double r, double cosTheta, double sinTheta, double cosAlpha, double sinAlpha) {
+		m[0] = cosTheta;
+		m[1] = -cosAlpha * sinTheta;
+		m[2] = sinAlpha * sinTheta;
+		m[3] = r * cosTheta;
+
+		m[4] = sinTheta;
+		m[5] = cosAlpha * cosTheta;
+		m[6] = -sinAlpha * cosTheta;
+		m[7] = r * sinTheta;
+
+		m[8] = 0;
+		m[9] = sinAlpha;
+		m[10] = cosAlpha;
+		m[11] = d;
+
+		m[12] = 0;
+		m[13] = 0;
+		m[14] = 0;
+		m[15] = 1;
+		return this;
+	}
+
+	public Matrix4 setRotationX(double theta) {
+		identity();
+		double c = Math.cos(theta);
+		double s = Math.sin(theta);
+		m[5] = c;
+		m[6] = -s;
+		m[9] = s;
+		m[10] = c;
+		return this;
+	}
+
+	public Matrix4 setRotationY(double theta) {
+		identity();
+		double c = Math.cos(theta);
+		double s = Math.sin(theta);
+		m[0] = c;
+		m[2] = s;
+		m[8] = -s;
+		m[10] = c;
+		return this;
+	}
+
+	public Matrix4 setRotationZ(double theta) {
+		identity();
+		double c = Math.cos(theta);
+		double s = Math.sin(theta);
+		m[0] = c;
+		m[1] = -s;
+		m[4] = s;
+		m[5] = c;
+		return this;
+	}
+
+	public Matrix4 setTranslation(double x, double y, double z) {
+		identity();
+		m[3] = x;
+		m[7] = y;
+		m[11] = z;
+		return this;
+	}
+
+	/**
+	 * out = this * p as a point - out may be p
+	 */
+	public Vector3 transform(Vector3 p, Vector3 out) {
+		return out.set(m[0] * p.x + m[1] * p.y + m[2] * p.z + m[3], m[4] * p.x + m[5] * p.y + m[6] * p.z + m[7], m[8] * p.x + m[9] * p.y + m[10] * p.z + m[11]);
+	}
+
+	/**
+	 * copies into the general matrix
+	 */
+	public Matrix toMatrix() {
+		Matrix ret = new Matrix(4, 4);
+		for (int r = 0; r < 4; ++r) {
+			for (int c = 0; c < 4; ++c) {
+				ret.elements[r][c] = m[r * 4 + c];
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return toMatrix().toString();
+	}
+}
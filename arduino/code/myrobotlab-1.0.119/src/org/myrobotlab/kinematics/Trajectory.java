@@ -0,0 +1,213 @@
+package org.myrobotlab.kinematics;
+
+import java.io.Serializable;
+
+/**
+ * A time synchronized multi-axis move - every axis starts and arrives
+ * together.
+ *
+ * One normalized profile is planned for the slowest axis and scaled by
+ * distance for the others, then sampled up front at a fixed period into a
+ * single float array (samples x axes) so playback only indexes.
+ *
+ * TRAPEZOID ramps at constant acceleration, cruises, and ramps down. S_CURVE
+ * is the minimum jerk quintic 10u^3 - 15u^4 + 6u^5 which has no acceleration
+ * steps at all.
+ */
+public class Trajectory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Profile {
+		TRAPEZOID, S_CURVE
+	}
+
+	// peak velocity and acceleration of the quintic for unit distance and time
+	final static double S_CURVE_VELOCITY = 1.875;
+	final static double S_CURVE_ACCELERATION = 5.773503;
+
+	// share of the move spent accelerating when no axis limits acceleration
+	final static double DEFAULT_RAMP = 0.25;
+
+	final int axes;
+	final int samples;
+	final float period;
+	final float duration;
+	// row major - sample k of axis i is at k * axes + i
+	final float[] positions;
+
+	/**
+	 * @param start
+	 *            - start position of each axis
+	 * @param end
+	 *            - end position of each axis
+	 * @param duration
+	 *            - seconds - the move is stretched if a limit needs longer
+	 * @param maxVelocity
+	 *            - per axis units per second - null or <= 0 is unlimited
+	 * @param maxAcceleration
+	 *            - per axis units per second^2 - null or <= 0 is unlimited
+	 * @param period
+	 *            - seconds between samples
+	 */
+	public static Trajectory plan(float[] start, float[] end, float duration, float[] maxVelocity, float[] maxAcceleration, Profile profile, float period) {
+		int axes = start.length;
+		if (end.length != axes) {
+			throw new IllegalArgumentException(String.format("%d start positions but %d end positions", axes, end.length));
+		}
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be > 0");
+		}
+
+		double time = Math.max(duration, 0);
+		double ramp = DEFAULT_RAMP;
+
+		if (profile == Profile.TRAPEZOID) {
+			// the slowest axis alone decides the ramp share
+			double slowest = 0;
+			for (int i = 0; i < axes; ++i) {
+				double d = Math.abs(end[i] - start[i]);
+				double v = limit(maxVelocity, i);
+				double a = limit(maxAcceleration, i);
+				if (d == 0 || a == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				double t, ta;
+				if (v != Double.POSITIVE_INFINITY && d >= v * v / a) {
+					ta = v / a;
+					t = d / v + ta;
+				} else {
+					ta = Math.sqrt(d / a);
+					t = 2 * ta;
+				}
+				if (t > slowest) {
+					slowest = t;
+					ramp = ta / t;
+				}
+			}
+		}
+
+		for (int i = 0; i < axes; ++i) {
+			double d = Math.abs(end[i] - start[i]);
+			double v = limit(maxVelocity, i);
+			double a = limit(maxAcceleration, i);
+			if (profile == Profile.TRAPEZOID) {
+				time = Math.max(time, d / (v * (1 - ramp)));
+				time = Math.max(time, Math.sqrt(d / (a * ramp * (1 - ramp))));
+			} else {
+				time = Math.max(time, S_CURVE_VELOCITY * d / v);
+				time = Math.max(time, Math.sqrt(S_CURVE_ACCELERATION * d / a));
+			}
+		}
+
+		// a float period such as 0.01f is a hair short - a whole number of
+		// periods must not come out one sample long
+		int samples = (int) Math.ceil(time / period - 1e-3) + 1;
+		Trajectory t = new Trajectory(axes, samples, period, (float) time);
+		for (int k = 0; k < samples; ++k) {
+			double u = (time == 0) ? 1 : Math.min(k * period / time, 1);
+			double s = (profile == Profile.TRAPEZOID) ? trapezoid(u, ramp) : sCurve(u);
+			int row = k * axes;
+			for (int i = 0; i < axes; ++i) {
+				t.positions[row + i] = (float) (start[i] + (end[i] - start[i]) * s);
+			}
+		}
+		return t;
+	}
+
+	static double limit(float[] limits, int axis) {
+		if (limits == null || limits[axis] <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return limits[axis];
+	}
+
+	/**
+	 * normalized trapezoid - ramp is the share of the time spent on each ramp
+	 */
+	static double trapezoid(double u, double ramp) {
+		double v = 1 / (1 - ramp);
+		if (u < ramp) {
+			return v * u * u / (2 * ramp);
+		}
+		if (u <= 1 - ramp) {
+			return v * (ramp / 2 + u - ramp);
+		}
+		double r = 1 - u;
+		return 1 - v * r * r / (2 * ramp);
+	}
+
+	static double sCurve(double u) {
+		return u * u * u * (10 + u * (-15 + 6 * u));
+	}
+
+	Trajectory(int axes, int samples, float period, float duration) {
+		this.axes = axes;
+		this.samples = samples;
+		this.period = period;
+		this.duration = duration;
+		this.positions = new float[axes * samples];
+	}
+
+	public Trajectory copy() {
+		Trajectory t = new Trajectory(axes, samples, period, duration);
+		System.arraycopy(positions, 0, t.positions, 0, positions.length);
+		return t;
+	}
+
+	/**
+	 * fades one axis in from another trajectory - over the first
+	 * blendSamples this axis moves from where the old one would have been to
+	 * its own path, so an interrupted move bends into the new one instead of
+	 * jerking
+	 */
+	public void blend(int axis, Trajectory from, int fromAxis, int fromSample, int blendSamples) {
+		float[] old = new float[Math.min(blendSamples, samples)];
+		for (int k = 0; k < old.length; ++k) {
+			old[k] = from.get(fromSample + k, fromAxis);
+		}
+		blend(axis, old);
+	}
+
+	/**
+	 * fades one axis in from the path in from - one position per sample
+	 */
+	public void blend(int axis, float[] from) {
+		int n = Math.min(from.length, samples);
+		for (int k = 0; k < n; ++k) {
+			double w = sCurve((k + 1) / (double) (n + 1));
+			int index = k * axes + axis;
+			positions[index] = (float) (from[k] + (positions[index] - from[k]) * w);
+		}
+	}
+
+	/**
+	 * position of an axis at a sample - past the end it holds the last
+	 */
+	public float get(int sample, int axis) {
+		if (sample >= samples) {
+			sample = samples - 1;
+		}
+		return positions[sample * axes + axis];
+	}
+
+	public int getAxes() {
+		return axes;
+	}
+
+	public float getDuration() {
+		return duration;
+	}
+
+	public float getEnd(int axis) {
+		return positions[(samples - 1) * axes + axis];
+	}
+
+	public float getPeriod() {
+		return period;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+}
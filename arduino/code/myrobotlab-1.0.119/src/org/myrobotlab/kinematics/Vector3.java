@@ -0,0 +1,109 @@
+package org.myrobotlab.kinematics;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+/**
+ * A mutable 3d vector - every operation works in place and returns this, so a
+ * solver can keep a few as workspace instead of allocating a Point per step.
+ */
+public class Vector3 {
+	public double x;
+	public double y;
+	public double z;
+
+	public Vector3() {
+	}
+
+	public Vector3(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	public Vector3 add(Vector3 v) {
+		x += v.x;
+		y += v.y;
+		z += v.z;
+		return this;
+	}
+
+	/**
+	 * this = a x b - a or b may be this
+	 */
+	public Vector3 cross(Vector3 a, Vector3 b) {
+		double cx = a.y * b.z - a.z * b.y;
+		double cy = a.z * b.x - a.x * b.z;
+		double cz = a.x * b.y - a.y * b.x;
+		x = cx;
+		y = cy;
+		z = cz;
+		return this;
+	}
+
+	public double distance(Vector3 v) {
+		double dx = x - v.x;
+		double dy = y - v.y;
+		double dz = z - v.z;
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	public double dot(Vector3 v) {
+		return x * v.x + y * v.y + z * v.z;
+	}
+
+	public double length() {
+		return Math.sqrt(x * x + y * y + z * z);
+	}
+
+	public Vector3 normalize() {
+		double l = length();
+		if (l > 0) {
+			scale(1 / l);
+		}
+		return this;
+	}
+
+	public Vector3 scale(double s) {
+		x *= s;
+		y *= s;
+		z *= s;
+		return this;
+	}
+
+	public Vector3 set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public Vector3 set(Point p) {
+		return set(p.getX(), p.getY(), p.getZ());
+	}
+
+	public Vector3 set(Vector3 v) {
+		return set(v.x, v.y, v.z);
+	}
+
+	/**
+	 * this = a - b
+	 */
+	public Vector3 sub(Vector3 a, Vector3 b) {
+		return set(a.x - b.x, a.y - b.y, a.z - b.z);
+	}
+
+	public Vector3 sub(Vector3 v) {
+		return sub(this, v);
+	}
+
+	public Point toPoint() {
+		return new Point(x, y, z);
+	}
+
+	@Override
+	public String toString() {
+		NumberFormat formatter = new DecimalFormat("#0.000000");
+		return "(x=" + formatter.format(x) + ", y=" + formatter.format(y) + ", z=" + formatter.format(z) + ")";
+	}
+}
@@ -0,0 +1,103 @@
+package org.myrobotlab.math;
+
+/**
+ * A kalman filter of one coordinate moving at a roughly constant velocity -
+ * state position and velocity, measurements of position taken at given
+ * times, so frames which arrive late or irregularly still count for the time
+ * they were captured.
+ *
+ * processNoise is how much the velocity may wander - the variance of a white
+ * acceleration in units^2 / s^3 - and measurementNoise the variance of a
+ * measurement in units^2. A higher processNoise follows turns sooner and
+ * smooths less.
+ */
+public class ConstantVelocityFilter {
+
+	public double processNoise;
+	public double measurementNoise;
+
+	private boolean initialized = false;
+	// seconds of the last measurement
+	private double time;
+	private double position;
+	private double velocity;
+	// covariance
+	private double p00, p01, p11;
+
+	public ConstantVelocityFilter(double processNoise, double measurementNoise) {
+		this.processNoise = processNoise;
+		this.measurementNoise = measurementNoise;
+	}
+
+	public double getPosition() {
+		return position;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public double getVelocity() {
+		return velocity;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * where the coordinate will be at time t - the state is not changed
+	 */
+	public double predict(double t) {
+		return position + velocity * (t - time);
+	}
+
+	public void reset() {
+		initialized = false;
+	}
+
+	/**
+	 * folds in a measurement z taken at time t (seconds) - one older than the
+	 * last is folded in at the last time
+	 */
+	public void update(double t, double z) {
+		if (!initialized) {
+			initialized = true;
+			time = t;
+			position = z;
+			velocity = 0;
+			p00 = measurementNoise;
+			p01 = 0;
+			// no idea of the velocity yet
+			p11 = 1e6 * Math.max(measurementNoise, 1e-9);
+			return;
+		}
+
+		double dt = Math.max(t - time, 0);
+		if (dt > 0) {
+			position += velocity * dt;
+			double dt2 = dt * dt;
+			double q = processNoise;
+			double n00 = p00 + 2 * dt * p01 + dt2 * p11 + q * dt2 * dt / 3;
+			double n01 = p01 + dt * p11 + q * dt2 / 2;
+			double n11 = p11 + q * dt;
+			p00 = n00;
+			p01 = n01;
+			p11 = n11;
+			time = t;
+		}
+
+		double s = p00 + measurementNoise;
+		double k0 = p00 / s;
+		double k1 = p01 / s;
+		double y = z - position;
+		position += k0 * y;
+		velocity += k1 * y;
+		double n00 = (1 - k0) * p00;
+		double n01 = (1 - k0) * p01;
+		double n11 = p11 - k1 * p01;
+		p00 = n00;
+		p01 = n01;
+		p11 = n11;
+	}
+}
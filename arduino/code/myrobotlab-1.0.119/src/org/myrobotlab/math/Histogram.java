@@ -0,0 +1,127 @@
+package org.myrobotlab.math;
+
+import java.io.Serializable;
+
+/**
+ * log linear histogram of positive long values (e.g. latency in ns) in the
+ * style of HdrHistogram - values below 128 are counted exactly, above that
+ * every power of 2 is split into 64 buckets so any value is known to better
+ * than 1.6%. Fixed size, recording never allocates.
+ *
+ * Not thread safe - give each recording thread its own and merge them.
+ */
+public class Histogram implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final static int SUB_BUCKETS = 64;
+	final static int LINEAR = 2 * SUB_BUCKETS;
+	// shifts 1 .. 56 cover every positive long
+	final static int SIZE = LINEAR + 56 * SUB_BUCKETS;
+
+	final long[] counts = new long[SIZE];
+	long count = 0;
+	long min = Long.MAX_VALUE;
+	long max = 0;
+	double sum = 0;
+
+	static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		// keep the top 7 bits
+		int shift = 64 - Long.numberOfLeadingZeros(value) - 7;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * largest value which falls in the bucket
+	 */
+	static long highestEquivalent(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return (sub << shift) + (1L << shift) - 1;
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		++counts[index(value)];
+		++count;
+		sum += value;
+		if (value < min) {
+			min = value;
+		}
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public void add(Histogram other) {
+		for (int i = 0; i < SIZE; ++i) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		if (other.min < min) {
+			min = other.min;
+		}
+		if (other.max > max) {
+			max = other.max;
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < SIZE; ++i) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return (count == 0) ? 0 : sum / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 - 100
+	 * @return the value which percentile of the recorded values are less than
+	 *         or equal to - never more than max
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(percentile / 100.0 * count);
+		if (target < 1) {
+			target = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < SIZE; ++i) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestEquivalent(i), max);
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,262 @@
+package org.myrobotlab.math;
+
+import java.util.HashMap;
+
+/**
+ * A bank of pid loops kept in parallel arrays and computed together with one
+ * dt - the arithmetic behind the PIDBank service, without the threading.
+ *
+ * Each loop computes output = kp e + I + kd D + kf setpoint + feedForward,
+ * clipped to its output range, where e = setpoint - input.
+ * <ul>
+ * <li>D is the derivative of the input rather than the error, so a setpoint
+ * change does not kick, low pass filtered with a time constant of
+ * derivativeFilter seconds</li>
+ * <li>I only integrates while the output is not saturated in the direction
+ * of the error (conditional integration) and stays within the output range,
+ * so it does not wind up</li>
+ * <li>a reverse loop has its error and derivative negated</li>
+ * </ul>
+ * Loops are addressed by index - add returns it, indexOf finds it. remove
+ * moves the last loop into the hole.
+ */
+public class PIDLoops {
+
+	int size = 0;
+	int capacity = 0;
+	final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+	public String[] names;
+	public double[] kp, ki, kd, kf;
+	// seconds - 0 is no filtering
+	public double[] derivativeFilter;
+	public double[] outMin, outMax;
+	public double[] setpoint, input, feedForward;
+	public boolean[] enabled, reverse;
+
+	public double[] output;
+	public double[] integral;
+	public double[] derivative;
+	double[] lastInput;
+	boolean[] primed;
+
+	// since resetStats
+	public long[] samples, saturated;
+	public double[] errorSum, errorMax;
+
+	public PIDLoops() {
+		grow(8);
+	}
+
+	/**
+	 * adds a disabled loop with no gains and an output range of +/- 1
+	 *
+	 * @return its index - or the index of the loop of that name
+	 */
+	public int add(String name) {
+		Integer i = index.get(name);
+		if (i != null) {
+			return i;
+		}
+		if (size == capacity) {
+			grow(capacity * 2);
+		}
+		int n = size++;
+		index.put(name, n);
+		names[n] = name;
+		kp[n] = ki[n] = kd[n] = kf[n] = 0;
+		derivativeFilter[n] = 0;
+		outMin[n] = -1;
+		outMax[n] = 1;
+		setpoint[n] = input[n] = feedForward[n] = 0;
+		enabled[n] = false;
+		reverse[n] = false;
+		output[n] = integral[n] = derivative[n] = lastInput[n] = 0;
+		primed[n] = false;
+		samples[n] = saturated[n] = 0;
+		errorSum[n] = errorMax[n] = 0;
+		return n;
+	}
+
+	/**
+	 * one step of every enabled loop
+	 *
+	 * @param dt
+	 *            seconds since the last step
+	 */
+	public void compute(double dt) {
+		if (dt <= 0) {
+			return;
+		}
+		for (int i = 0; i < size; ++i) {
+			if (!enabled[i]) {
+				continue;
+			}
+			double sign = reverse[i] ? -1 : 1;
+			double error = setpoint[i] - input[i];
+			double e = sign * error;
+
+			double raw = primed[i] ? -sign * (input[i] - lastInput[i]) / dt : 0;
+			double tf = derivativeFilter[i];
+			if (tf > 0) {
+				derivative[i] += (dt / (tf + dt)) * (raw - derivative[i]);
+			} else {
+				derivative[i] = raw;
+			}
+			lastInput[i] = input[i];
+			primed[i] = true;
+
+			double rest = kp[i] * e + kd[i] * derivative[i] + kf[i] * setpoint[i] + feedForward[i];
+			double step = ki[i] * e * dt;
+			double unclipped = rest + integral[i] + step;
+			if (!((unclipped > outMax[i] && step > 0) || (unclipped < outMin[i] && step < 0))) {
+				integral[i] = clip(integral[i] + step, outMin[i], outMax[i]);
+			}
+
+			double u = rest + integral[i];
+			double out = clip(u, outMin[i], outMax[i]);
+			output[i] = out;
+
+			++samples[i];
+			if (out != u) {
+				++saturated[i];
+			}
+			double abs = Math.abs(error);
+			errorSum[i] += abs;
+			if (abs > errorMax[i]) {
+				errorMax[i] = abs;
+			}
+		}
+	}
+
+	public int indexOf(String name) {
+		Integer i = index.get(name);
+		return (i == null) ? -1 : i;
+	}
+
+	/**
+	 * removes a loop
+	 *
+	 * @return the old index of the loop moved into its place, or -1
+	 */
+	public int remove(String name) {
+		Integer i = index.remove(name);
+		if (i == null) {
+			return -1;
+		}
+		int last = --size;
+		if (i == last) {
+			names[last] = null;
+			return -1;
+		}
+		copy(last, i);
+		names[last] = null;
+		index.put(names[i], i);
+		return last;
+	}
+
+	public void resetStats() {
+		for (int i = 0; i < size; ++i) {
+			samples[i] = saturated[i] = 0;
+			errorSum[i] = errorMax[i] = 0;
+		}
+	}
+
+	/**
+	 * enables or disables a loop - enabling picks up from the current output
+	 * without a bump
+	 */
+	public void setEnabled(int i, boolean enable) {
+		if (enable && !enabled[i]) {
+			double sign = reverse[i] ? -1 : 1;
+			integral[i] = clip(output[i] - kf[i] * setpoint[i] - feedForward[i] - kp[i] * sign * (setpoint[i] - input[i]), outMin[i], outMax[i]);
+			derivative[i] = 0;
+			primed[i] = false;
+		}
+		enabled[i] = enable;
+	}
+
+	public void setOutputRange(int i, double min, double max) {
+		if (min >= max) {
+			return;
+		}
+		outMin[i] = min;
+		outMax[i] = max;
+		output[i] = clip(output[i], min, max);
+		integral[i] = clip(integral[i], min, max);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static double clip(double v, double min, double max) {
+		return (v > max) ? max : (v < min) ? min : v;
+	}
+
+	private void copy(int from, int to) {
+		names[to] = names[from];
+		kp[to] = kp[from];
+		ki[to] = ki[from];
+		kd[to] = kd[from];
+		kf[to] = kf[from];
+		derivativeFilter[to] = derivativeFilter[from];
+		outMin[to] = outMin[from];
+		outMax[to] = outMax[from];
+		setpoint[to] = setpoint[from];
+		input[to] = input[from];
+		feedForward[to] = feedForward[from];
+		enabled[to] = enabled[from];
+		reverse[to] = reverse[from];
+		output[to] = output[from];
+		integral[to] = integral[from];
+		derivative[to] = derivative[from];
+		lastInput[to] = lastInput[from];
+		primed[to] = primed[from];
+		samples[to] = samples[from];
+		saturated[to] = saturated[from];
+		errorSum[to] = errorSum[from];
+		errorMax[to] = errorMax[from];
+	}
+
+	private void grow(int c) {
+		names = grow(names, new String[c]);
+		kp = grow(kp, c);
+		ki = grow(ki, c);
+		kd = grow(kd, c);
+		kf = grow(kf, c);
+		derivativeFilter = grow(derivativeFilter, c);
+		outMin = grow(outMin, c);
+		outMax = grow(outMax, c);
+		setpoint = grow(setpoint, c);
+		input = grow(input, c);
+		feedForward = grow(feedForward, c);
+		enabled = grow(enabled, new boolean[c]);
+		reverse = grow(reverse, new boolean[c]);
+		output = grow(output, c);
+		integral = grow(integral, c);
+		derivative = grow(derivative, c);
+		lastInput = grow(lastInput, c);
+		primed = grow(primed, new boolean[c]);
+		samples = grow(samples, new long[c]);
+		saturated = grow(saturated, new long[c]);
+		errorSum = grow(errorSum, c);
+		errorMax = grow(errorMax, c);
+		capacity = c;
+	}
+
+	private double[] grow(double[] a, int c) {
+		double[] ret = new double[c];
+		if (a != null) {
+			System.arraycopy(a, 0, ret, 0, size);
+		}
+		return ret;
+	}
+
+	private <T> T grow(T a, T to) {
+		if (a != null) {
+			System.arraycopy(a, 0, to, 0, size);
+		}
+		return to;
+	}
+}
@@ -0,0 +1,110 @@
+package org.myrobotlab.math;
+
+/**
+ * where a servo is while it moves. A hobby servo reports nothing back, so its
+ * position is estimated from the commands sent - it heads for the last one at
+ * slewRate from where it was estimated to be when that command went out, and
+ * holds still settleTime ms after getting there. A position reported by the
+ * controller replaces the estimate.
+ *
+ * Positions are in the servo's output units (usually degrees), times in
+ * System ms.
+ */
+public class ServoModel {
+
+	/**
+	 * output units per second - about 300 for a hobby servo without load
+	 * (60 degrees in 0.2 s)
+	 */
+	public float slewRate;
+
+	/**
+	 * ms from reaching the target to holding still
+	 */
+	public long settleTime;
+
+	/**
+	 * travel assumed for the first command, when nothing is known of where the
+	 * servo is
+	 */
+	public float range = 180;
+
+	private boolean known = false;
+	// start is only the worst case - nothing was seen of the servo yet
+	private boolean guessed = false;
+	private float start;
+	private float target;
+	private long startTime;
+
+	public ServoModel(float slewRate, long settleTime) {
+		this.slewRate = slewRate;
+		this.settleTime = settleTime;
+	}
+
+	/**
+	 * a new target sent to the servo at now
+	 */
+	public void command(float target, long now) {
+		if (!known || (guessed && isMoving(now))) {
+			// the worst case travel from an unknown position
+			known = true;
+			guessed = true;
+			start = target - range;
+		} else {
+			start = estimate(now);
+			guessed = false;
+		}
+		startTime = now;
+		this.target = target;
+	}
+
+	/**
+	 * the servo was reported at pos at now
+	 */
+	public void observe(float pos, long now) {
+		if (!known) {
+			known = true;
+			target = pos;
+		}
+		guessed = false;
+		start = pos;
+		startTime = now;
+	}
+
+	/**
+	 * estimated position at now
+	 */
+	public float estimate(long now) {
+		if (!known || guessed) {
+			return target;
+		}
+		float distance = target - start;
+		float travel = slewRate * Math.max(now - startTime, 0) / 1000;
+		if (travel >= Math.abs(distance)) {
+			return target;
+		}
+		return start + Math.signum(distance) * travel;
+	}
+
+	/**
+	 * System ms at which the servo holds still at its target
+	 */
+	public long getArrival() {
+		if (!known) {
+			return 0;
+		}
+		return startTime + (long) Math.ceil(Math.abs(target - start) * 1000 / slewRate) + settleTime;
+	}
+
+	public float getTarget() {
+		return target;
+	}
+
+	public boolean isKnown() {
+		return known;
+	}
+
+	public boolean isMoving(long now) {
+		return now < getArrival();
+	}
+}
@@ -0,0 +1,157 @@
+package org.myrobotlab.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import org.myrobotlab.framework.Encoder;
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.image.SerializableImage;
+
+/**
+ * binary websocket frame for browsers - the message as json followed by the
+ * raw bytes of any byte[], image or primitive array in its data, so a page can
+ * wrap them in a Blob or typed array instead of parsing base64 or long json
+ * number lists
+ *
+ * <pre>
+ * int32 json length (big endian) | json | padding to 8 | attachments (each padded to 8)
+ * </pre>
+ *
+ * a binary data element is replaced in the json by a Ref - offset is counted
+ * from the start of the attachments. Typed arrays are little endian which is
+ * what Float32Array etc. use on every browser platform.
+ */
+public class BinaryFrame {
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	public final static String UINT8 = "uint8";
+	public final static String INT16 = "int16";
+	public final static String INT32 = "int32";
+	public final static String FLOAT32 = "float32";
+	public final static String FLOAT64 = "float64";
+
+	/**
+	 * json stand in for a binary data element
+	 */
+	public static class Ref {
+		public int binary;
+		public String type;
+		public int offset;
+		public int length;
+		public String mime;
+	}
+
+	/**
+	 * @return true if msg has data which would go out as an attachment
+	 */
+	public static boolean hasBinary(Message msg) {
+		if (msg.data == null) {
+			return false;
+		}
+		for (int i = 0; i < msg.data.length; ++i) {
+			if (isBinary(msg.data[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean isBinary(Object o) {
+		return o instanceof byte[] || o instanceof SerializableImage || o instanceof short[] || o instanceof int[] || o instanceof float[] || o instanceof double[];
+	}
+
+	public static byte[] encode(Message msg) {
+		ArrayList<ByteBuffer> attachments = new ArrayList<ByteBuffer>();
+		Message envelope = msg;
+		int attachmentSize = 0;
+
+		if (hasBinary(msg)) {
+			// the data array is shared with other listeners - never replace
+			// elements in place
+			envelope = new Message(msg);
+			envelope.data = new Object[msg.data.length];
+			for (int i = 0; i < msg.data.length; ++i) {
+				Object o = msg.data[i];
+				if (!isBinary(o)) {
+					envelope.data[i] = o;
+					continue;
+				}
+				Ref ref = new Ref();
+				ByteBuffer b = toBuffer(o, ref);
+				ref.binary = attachments.size();
+				ref.offset = attachmentSize;
+				envelope.data[i] = ref;
+				attachments.add(b);
+				attachmentSize += pad(b.remaining());
+			}
+		}
+
+		byte[] json = Encoder.toJson(envelope, Message.class).getBytes(UTF8);
+		int header = pad(4 + json.length);
+		ByteBuffer frame = ByteBuffer.allocate(header + attachmentSize);
+		frame.putInt(json.length);
+		frame.put(json);
+		for (int i = 0; i < attachments.size(); ++i) {
+			frame.position(header);
+			ByteBuffer b = attachments.get(i);
+			header += pad(b.remaining());
+			frame.put(b);
+		}
+		return frame.array();
+	}
+
+	static ByteBuffer toBuffer(Object o, Ref ref) {
+		if (o instanceof byte[]) {
+			byte[] a = (byte[]) o;
+			ref.type = UINT8;
+			ref.length = a.length;
+			return ByteBuffer.wrap(a);
+		}
+		if (o instanceof SerializableImage) {
+			byte[] a = ((SerializableImage) o).getBytes();
+			if (a == null) {
+				a = new byte[0];
+			}
+			ref.type = UINT8;
+			ref.mime = "image/jpeg";
+			ref.length = a.length;
+			return ByteBuffer.wrap(a);
+		}
+
+		ByteBuffer b;
+		if (o instanceof short[]) {
+			short[] a = (short[]) o;
+			ref.type = INT16;
+			ref.length = a.length;
+			b = ByteBuffer.allocate(a.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+			b.asShortBuffer().put(a);
+		} else if (o instanceof int[]) {
+			int[] a = (int[]) o;
+			ref.type = INT32;
+			ref.length = a.length;
+			b = ByteBuffer.allocate(a.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			b.asIntBuffer().put(a);
+		} else if (o instanceof float[]) {
+			float[] a = (float[]) o;
+			ref.type = FLOAT32;
+			ref.length = a.length;
+			b = ByteBuffer.allocate(a.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			b.asFloatBuffer().put(a);
+		} else {
+			double[] a = (double[]) o;
+			ref.type = FLOAT64;
+			ref.length = a.length;
+			b = ByteBuffer.allocate(a.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+			b.asDoubleBuffer().put(a);
+		}
+		return b;
+	}
+
+	static int pad(int size) {
+		return (size + 7) & ~7;
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.myrobotlab.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 7049) writer for telemetry payloads - a fraction of the size of
+ * json for numbers and arrays, and every MQTT / web client has a decoder.
+ *
+ * Numbers, strings, booleans, byte[], arrays, collections and maps are written
+ * as their CBOR types. Any other object is written as a map of its public
+ * fields, the same fields a json encoder would show.
+ */
+public class Cbor {
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	public final static int MAX_DEPTH = 32;
+
+	final static int UNSIGNED = 0;
+	final static int NEGATIVE = 1;
+	final static int BYTES = 2;
+	final static int TEXT = 3;
+	final static int ARRAY = 4;
+	final static int MAP = 5;
+
+	final static HashMap<Class<?>, Field[]> fieldCache = new HashMap<Class<?>, Field[]>();
+
+	public static byte[] encode(Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		write(out, o);
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	public static void write(DataOutputStream out, Object o) throws IOException {
+		write(out, o, 0);
+	}
+
+	static void write(DataOutputStream out, Object o, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException(String.format("cbor nesting deeper than %d - cyclic reference ?", MAX_DEPTH));
+		}
+
+		if (o == null) {
+			out.writeByte(0xf6);
+		} else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			writeInteger(out, ((Number) o).longValue());
+		} else if (o instanceof Float) {
+			out.writeByte(0xfa);
+			out.writeFloat((Float) o);
+		} else if (o instanceof Double) {
+			writeDouble(out, (Double) o);
+		} else if (o instanceof Boolean) {
+			out.writeByte(((Boolean) o) ? 0xf5 : 0xf4);
+		} else if (o instanceof String || o instanceof Character || o instanceof Enum) {
+			byte[] b = o.toString().getBytes(UTF8);
+			writeHead(out, TEXT, b.length);
+			out.write(b);
+		} else if (o instanceof byte[]) {
+			byte[] b = (byte[]) o;
+			writeHead(out, BYTES, b.length);
+			out.write(b);
+		} else if (o instanceof Collection) {
+			Collection<?> c = (Collection<?>) o;
+			writeHead(out, ARRAY, c.size());
+			for (Object e : c) {
+				write(out, e, depth + 1);
+			}
+		} else if (o instanceof Map) {
+			Map<?, ?> m = (Map<?, ?>) o;
+			writeHead(out, MAP, m.size());
+			for (Map.Entry<?, ?> e : m.entrySet()) {
+				write(out, e.getKey(), depth + 1);
+				write(out, e.getValue(), depth + 1);
+			}
+		} else if (o.getClass().isArray()) {
+			int length = Array.getLength(o);
+			writeHead(out, ARRAY, length);
+			for (int i = 0; i < length; ++i) {
+				write(out, Array.get(o, i), depth + 1);
+			}
+		} else {
+			Field[] fields = getFields(o.getClass());
+			int count = 0;
+			Object[] values = new Object[fields.length];
+			for (int i = 0; i < fields.length; ++i) {
+				try {
+					values[i] = fields[i].get(o);
+				} catch (IllegalAccessException e) {
+					values[i] = null;
+				}
+				if (values[i] != null) {
+					++count;
+				}
+			}
+			writeHead(out, MAP, count);
+			for (int i = 0; i < fields.length; ++i) {
+				if (values[i] != null) {
+					write(out, fields[i].getName(), depth + 1);
+					write(out, values[i], depth + 1);
+				}
+			}
+		}
+	}
+
+	static void writeInteger(DataOutputStream out, long v) throws IOException {
+		if (v >= 0) {
+			writeHead(out, UNSIGNED, v);
+		} else {
+			writeHead(out, NEGATIVE, -1 - v);
+		}
+	}
+
+	/**
+	 * a double which is exactly a float goes out in 5 bytes instead of 9
+	 */
+	static void writeDouble(DataOutputStream out, double d) throws IOException {
+		if ((double) (float) d == d || Double.isNaN(d)) {
+			out.writeByte(0xfa);
+			out.writeFloat((float) d);
+		} else {
+			out.writeByte(0xfb);
+			out.writeDouble(d);
+		}
+	}
+
+	static void writeHead(DataOutputStream out, int major, long value) throws IOException {
+		int type = major << 5;
+		if (value < 24) {
+			out.writeByte(type | (int) value);
+		} else if (value <= 0xff) {
+			out.writeByte(type | 24);
+			out.writeByte((int) value);
+		} else if (value <= 0xffff) {
+			out.writeByte(type | 25);
+			out.writeShort((int) value);
+		} else if (value <= 0xffffffffL) {
+			out.writeByte(type | 26);
+			out.writeInt((int) value);
+		} else {
+			out.writeByte(type | 27);
+			out.writeLong(value);
+		}
+	}
+
+	static Field[] getFields(Class<?> c) {
+		synchronized (fieldCache) {
+			Field[] fields = fieldCache.get(c);
+			if (fields == null) {
+				ArrayList<Field> list = new ArrayList<Field>();
+				Field[] all = c.getFields();
+				for (int i = 0; i < all.length; ++i) {
+					int m = all[i].getModifiers();
+					if (!Modifier.isStatic(m) && !Modifier.isTransient(m)) {
+						list.add(all[i]);
+					}
+				}
+				fields = list.toArray(new Field[list.size()]);
+				fieldCache.put(c, fields);
+			}
+			return fields;
+		}
+	}
+}
@@ -63,6 +63,54 @@ public class Connection implements Serializable {
 	public String txName;
 	public String txMethod;
 
+	// wire statistics of the binary codec
+	public long rxBytes = 0;
+	public long txBytes = 0;
+	/**
+	 * average encode / decode time per message in us
+	 */
+	public float txEncodeTime = 0;
+	public float rxDecodeTime = 0;
+	/**
+	 * parameters which had to be sent with java serialization
+	 */
+	public long fallbacks = 0;
+
+	// transport statistics - updated about once a second
+	/**
+	 * round trip time of the last transport ping in ms
+	 */
+	public float rtt = 0;
+	/**
+	 * bytes per second
+	 */
+	public float rxRate = 0;
+	public float txRate = 0;
+	/**
+	 * messages and bytes waiting to be written to the peer
+	 */
+	public int txQueued = 0;
+	public int txQueuedBytes = 0;
+	/**
+	 * messages dropped because the outbound queue was over its high water mark
+	 */
+	public long txDropped = 0;
+
+	/**
+	 * publishState sent as full snapshots and as deltas, and resyncs the peer
+	 * asked for after missing a version
+	 */
+	public long stateSnapshots = 0;
+	public long stateDeltas = 0;
+	public long stateResyncs = 0;
+
+	/**
+	 * udp - reliable messages sent again and latest wins messages dropped
+	 * because a newer one had already been delivered
+	 */
+	public long retransmits = 0;
+	public long rxStale = 0;
+
 	public boolean authenticated = false;
 
 	public HashMap<String, String> addInfo = new HashMap<String, String>();
@@ -82,8 +130,8 @@ public class Connection implements Serializable {
 
 	@Override
 	public String toString() {
-		return String.format("%s %s rx %d %s.%s --> %s.%s tx %d %s.%s --> %s.%s", protocolKey, state, rx, rxSender, rxSendingMethod, rxName, rxMethod, tx, txSender,
-				txSendingMethod, txName, txMethod);
+		return String.format("%s %s rx %d (%d bytes) %s.%s --> %s.%s tx %d (%d bytes) %s.%s --> %s.%s", protocolKey, state, rx, rxBytes, rxSender, rxSendingMethod, rxName,
+				rxMethod, tx, txBytes, txSender, txSendingMethod, txName, txMethod);
 	}
 
 }
@@ -0,0 +1,531 @@
+package org.myrobotlab.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.service.data.Pin;
+import org.myrobotlab.service.data.Point2Df;
+
+/**
+ * Compact binary encoding of Messages for the Gateway transports.
+ *
+ * A tcp stream starts with MAGIC and VERSION, after that every message is a
+ * frame of a 4 byte length followed by the encoded message. Service names,
+ * methods and other short strings are interned - the first time a string is
+ * sent it goes out with the next table index, after that only the index is
+ * sent. The tables belong to one direction of one connection, so a codec
+ * instance must only be used for one ordered stream. Datagrams can be lost or
+ * reordered and use a codec without interning.
+ *
+ * Integer, Float, Double, Long, Boolean, String, byte[], Pin and Point2Df
+ * payloads are written directly - anything else falls back to java
+ * serialization of that single parameter.
+ */
+public class MessageCodec {
+
+	public final static int MAGIC = 0x4d524c42; // "MRLB"
+	public final static int VERSION = 1;
+
+	/**
+	 * frames larger than this are treated as a corrupt stream
+	 */
+	public static int maxFrameSize = 64 * 1024 * 1024;
+
+	/**
+	 * strings are sent as literals once a table is full
+	 */
+	public static int maxStrings = 4096;
+
+	// value tags
+	final static byte NULL = 0;
+	final static byte INTEGER = 1;
+	final static byte FLOAT = 2;
+	final static byte DOUBLE = 3;
+	final static byte LONG = 4;
+	final static byte BOOLEAN = 5;
+	final static byte STRING = 6;
+	final static byte BYTES = 7;
+	final static byte PIN = 8;
+	final static byte POINT2DF = 9;
+	final static byte SERIALIZED = 10;
+
+	// string references - values >= 0 are table indexes
+	final static short REF_NULL = -1;
+	final static short REF_NEW = -2;
+	final static short REF_LITERAL = -3;
+
+	/**
+	 * ByteArrayOutputStream which lets the frame be written without copying
+	 */
+	static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	final boolean intern;
+
+	// encoder state
+	private final HashMap<String, Integer> outStrings = new HashMap<String, Integer>();
+	private final ArrayList<String> outOrder = new ArrayList<String>();
+	private final FrameBuffer frame = new FrameBuffer(1024);
+	private final DataOutputStream out = new DataOutputStream(frame);
+
+	// decoder state
+	private final ArrayList<String> inStrings = new ArrayList<String>();
+	private byte[] inBuffer = new byte[1024];
+
+	// statistics - totals since the codec was created
+	public long encoded = 0;
+	public long decoded = 0;
+	public long bytesOut = 0;
+	public long bytesIn = 0;
+	public long encodeTime = 0; // ns
+	public long decodeTime = 0; // ns
+	public long fallbacks = 0;
+
+	public MessageCodec() {
+		this(true);
+	}
+
+	/**
+	 * @param intern
+	 *            - false for transports which can lose or reorder messages
+	 */
+	public MessageCodec(boolean intern) {
+		this.intern = intern;
+	}
+
+	public static void writeHeader(DataOutputStream os) throws IOException {
+		os.writeInt(MAGIC);
+		os.writeInt(VERSION);
+	}
+
+	public static void readHeader(DataInputStream is) throws IOException {
+		int magic = is.readInt();
+		if (magic != MAGIC) {
+			throw new StreamCorruptedException(String.format("not a mrl binary stream - header %08x", magic));
+		}
+		int version = is.readInt();
+		if (version != VERSION) {
+			throw new StreamCorruptedException(String.format("unsupported codec version %d - expected %d", version, VERSION));
+		}
+	}
+
+	/**
+	 * encodes msg and writes it as a length prefixed frame - the caller
+	 * flushes
+	 */
+	public void write(Message msg, OutputStream os) throws IOException {
+		int length = encode(msg);
+		os.write(length >>> 24);
+		os.write(length >>> 16);
+		os.write(length >>> 8);
+		os.write(length);
+		os.write(frame.array(), 0, length);
+		bytesOut += 4;
+	}
+
+	/**
+	 * encodes msg as a length prefixed frame ready for a channel write
+	 */
+	public ByteBuffer toFrame(Message msg) throws IOException {
+		int length = encode(msg);
+		ByteBuffer b = ByteBuffer.allocate(length + 4);
+		b.putInt(length);
+		b.put(frame.array(), 0, length);
+		b.flip();
+		bytesOut += 4;
+		return b;
+	}
+
+	/**
+	 * decodes a frame whose length prefix has already been consumed
+	 */
+	public Message fromFrame(byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		bytesIn += 4;
+		return decode(b, offset, length);
+	}
+
+	/**
+	 * blocks until a whole frame is read
+	 */
+	public Message read(DataInputStream is) throws IOException, ClassNotFoundException {
+		int length = is.readInt();
+		if (length < 0 || length > maxFrameSize) {
+			throw new StreamCorruptedException(String.format("invalid frame length %d", length));
+		}
+		if (inBuffer.length < length) {
+			inBuffer = new byte[Math.max(length, inBuffer.length * 2)];
+		}
+		is.readFully(inBuffer, 0, length);
+		bytesIn += 4;
+		return decode(inBuffer, 0, length);
+	}
+
+	/**
+	 * the encoded message without any framing
+	 */
+	public byte[] toBytes(Message msg) throws IOException {
+		int length = encode(msg);
+		byte[] b = new byte[length];
+		System.arraycopy(frame.array(), 0, b, 0, length);
+		return b;
+	}
+
+	public Message fromBytes(byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		return decode(b, offset, length);
+	}
+
+	/**
+	 * a single self contained datagram - MAGIC followed by the message
+	 */
+	public byte[] toDatagram(Message msg) throws IOException {
+		int length = encode(msg);
+		byte[] b = new byte[length + 4];
+		b[0] = (byte) (MAGIC >>> 24);
+		b[1] = (byte) (MAGIC >>> 16);
+		b[2] = (byte) (MAGIC >>> 8);
+		b[3] = (byte) MAGIC;
+		System.arraycopy(frame.array(), 0, b, 4, length);
+		bytesOut += 4;
+		return b;
+	}
+
+	public Message fromDatagram(byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		if (length < 4 || ((b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff)) != MAGIC) {
+			throw new StreamCorruptedException("not a mrl binary datagram");
+		}
+		bytesIn += 4;
+		return decode(b, offset + 4, length - 4);
+	}
+
+	/**
+	 * encodes msg into the frame buffer
+	 *
+	 * @return the encoded length
+	 */
+	int encode(Message msg) throws IOException {
+		long start = System.nanoTime();
+		int mark = outOrder.size();
+		frame.reset();
+		boolean done = false;
+		try {
+			out.writeLong(msg.msgID);
+			out.writeLong(msg.timeStamp);
+			writeString(msg.name);
+			writeString(msg.sender);
+			writeString(msg.sendingMethod);
+			writeString(msg.method);
+			writeString(msg.status);
+			writeString(msg.msgType);
+
+			if (msg.historyList == null) {
+				out.writeShort(-1);
+			} else {
+				out.writeShort(msg.historyList.size());
+				for (String s : msg.historyList) {
+					writeString(s);
+				}
+			}
+
+			if (msg.security == null) {
+				out.writeShort(-1);
+			} else {
+				out.writeShort(msg.security.size());
+				for (Map.Entry<String, String> e : msg.security.entrySet()) {
+					writeString(e.getKey());
+					writeString(e.getValue());
+				}
+			}
+
+			if (msg.data == null) {
+				out.writeShort(-1);
+			} else {
+				out.writeShort(msg.data.length);
+				for (int i = 0; i < msg.data.length; ++i) {
+					writeValue(msg.data[i]);
+				}
+			}
+			out.flush();
+			done = true;
+		} finally {
+			if (!done) {
+				// the frame is never sent - forget the strings it would have
+				// added or the peer's table would be out of step
+				while (outOrder.size() > mark) {
+					outStrings.remove(outOrder.remove(outOrder.size() - 1));
+				}
+			}
+		}
+
+		int length = frame.size();
+		++encoded;
+		bytesOut += length;
+		encodeTime += System.nanoTime() - start;
+		return length;
+	}
+
+	Message decode(byte[] b, int offset, int length) throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, offset, length));
+
+		Message msg = new Message();
+		msg.msgID = in.readLong();
+		msg.timeStamp = in.readLong();
+		msg.name = readString(in);
+		msg.sender = readString(in);
+		msg.sendingMethod = readString(in);
+		msg.method = readString(in);
+		msg.status = readString(in);
+		msg.msgType = readString(in);
+
+		int size = in.readShort();
+		if (size < 0) {
+			msg.historyList = null;
+		} else {
+			msg.historyList = new HashSet<String>();
+			for (int i = 0; i < size; ++i) {
+				msg.historyList.add(readString(in));
+			}
+		}
+
+		size = in.readShort();
+		if (size >= 0) {
+			msg.security = new HashMap<String, String>();
+			for (int i = 0; i < size; ++i) {
+				msg.security.put(readString(in), readString(in));
+			}
+		}
+
+		size = in.readShort();
+		if (size >= 0) {
+			msg.data = new Object[size];
+			for (int i = 0; i < size; ++i) {
+				msg.data[i] = readValue(in);
+			}
+		}
+
+		++decoded;
+		bytesIn += length;
+		decodeTime += System.nanoTime() - start;
+		return msg;
+	}
+
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			out.writeShort(REF_NULL);
+			return;
+		}
+		if (intern) {
+			Integer index = outStrings.get(s);
+			if (index != null) {
+				out.writeShort(index);
+				return;
+			}
+			if (outOrder.size() < maxStrings && s.length() < 256) {
+				outStrings.put(s, outOrder.size());
+				outOrder.add(s);
+				out.writeShort(REF_NEW);
+				out.writeUTF(s);
+				return;
+			}
+		}
+		out.writeShort(REF_LITERAL);
+		writeText(s);
+	}
+
+	private String readString(DataInputStream in) throws IOException {
+		short ref = in.readShort();
+		if (ref >= 0) {
+			if (ref >= inStrings.size()) {
+				throw new StreamCorruptedException(String.format("unknown string reference %d", ref));
+			}
+			return inStrings.get(ref);
+		}
+		switch (ref) {
+			case REF_NULL:
+				return null;
+			case REF_NEW:
+				String s = in.readUTF();
+				inStrings.add(s);
+				return s;
+			case REF_LITERAL:
+				return readText(in);
+			default:
+				throw new StreamCorruptedException(String.format("invalid string reference %d", ref));
+		}
+	}
+
+	// writeUTF is limited to 64k
+	private void writeText(String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private String readText(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxFrameSize) {
+			throw new StreamCorruptedException(String.format("invalid string length %d", length));
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private void writeValue(Object o) throws IOException {
+		if (o == null) {
+			out.writeByte(NULL);
+		} else if (o instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) o);
+		} else if (o instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) o);
+		} else if (o instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) o);
+		} else if (o instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) o);
+		} else if (o instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) o);
+		} else if (o instanceof String) {
+			out.writeByte(STRING);
+			writeText((String) o);
+		} else if (o instanceof byte[]) {
+			byte[] b = (byte[]) o;
+			out.writeByte(BYTES);
+			out.writeInt(b.length);
+			out.write(b);
+		} else if (o.getClass() == Pin.class) {
+			Pin pin = (Pin) o;
+			out.writeByte(PIN);
+			out.writeInt(pin.pin);
+			out.writeInt(pin.type);
+			out.writeInt(pin.value);
+			out.writeInt(pin.pinType);
+			writeString(pin.source);
+		} else if (o.getClass() == Point2Df.class) {
+			Point2Df p = (Point2Df) o;
+			out.writeByte(POINT2DF);
+			out.writeLong(p.timestamp);
+			out.writeFloat(p.x);
+			out.writeFloat(p.y);
+			out.writeFloat(p.value);
+		} else if (o instanceof Serializable) {
+			// a new ObjectOutputStream per parameter - the peer needs the
+			// class descriptors with every message anyway
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(o);
+			oos.close();
+			out.writeByte(SERIALIZED);
+			out.writeInt(bos.size());
+			bos.writeTo(out);
+			++fallbacks;
+		} else {
+			throw new NotSerializableException(o.getClass().getName());
+		}
+	}
+
+	private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+		byte tag = in.readByte();
+		switch (tag) {
+			case NULL:
+				return null;
+			case INTEGER:
+				return in.readInt();
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case LONG:
+				return in.readLong();
+			case BOOLEAN:
+				return in.readBoolean();
+			case STRING:
+				return readText(in);
+			case BYTES: {
+				int length = in.readInt();
+				if (length < 0 || length > maxFrameSize) {
+					throw new StreamCorruptedException(String.format("invalid byte[] length %d", length));
+				}
+				byte[] b = new byte[length];
+				in.readFully(b);
+				return b;
+			}
+			case PIN: {
+				Pin pin = new Pin();
+				pin.pin = in.readInt();
+				pin.type = in.readInt();
+				pin.value = in.readInt();
+				pin.pinType = in.readInt();
+				pin.source = readString(in);
+				return pin;
+			}
+			case POINT2DF: {
+				Point2Df p = new Point2Df();
+				p.timestamp = in.readLong();
+				p.x = in.readFloat();
+				p.y = in.readFloat();
+				p.value = in.readFloat();
+				return p;
+			}
+			case SERIALIZED: {
+				int length = in.readInt();
+				if (length < 0 || length > maxFrameSize) {
+					throw new StreamCorruptedException(String.format("invalid object length %d", length));
+				}
+				byte[] b = new byte[length];
+				in.readFully(b);
+				ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b));
+				try {
+					return ois.readObject();
+				} finally {
+					ois.close();
+				}
+			}
+			default:
+				throw new StreamCorruptedException(String.format("unknown value tag %d", tag));
+		}
+	}
+
+	/**
+	 * copies the encoder totals into the connection's statistics
+	 */
+	public void reportTx(Connection data) {
+		data.txBytes = bytesOut;
+		data.txEncodeTime = (encoded == 0) ? 0 : (encodeTime / encoded) / 1000.0f;
+		data.fallbacks = fallbacks;
+	}
+
+	/**
+	 * copies the decoder totals into the connection's statistics
+	 */
+	public void reportRx(Connection data) {
+		data.rxBytes = bytesIn;
+		data.rxDecodeTime = (decoded == 0) ? 0 : (decodeTime / decoded) / 1000.0f;
+	}
+}
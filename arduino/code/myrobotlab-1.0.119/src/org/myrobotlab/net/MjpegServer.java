@@ -1,16 +1,17 @@
 package org.myrobotlab.net;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Properties;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.myrobotlab.image.SerializableImage;
 import org.myrobotlab.logging.Level;
@@ -21,105 +22,126 @@ import org.slf4j.Logger;
 
 /**
  * @author GroG
- * 
+ *
  *         mjpeg server - allows multiple jpeg streams to be sent to multiple
- *         clients extends the most excellent NanoHTTPD server - multi-part mime
- *         was done with little parts borg'd in from -
+ *         clients - multi-part mime was done with little parts borg'd in from -
  *         http://www.servlets.com/cos/
  *         http://www.damonkohler.com/2010/10/mjpeg-streaming-protocol.html
- * 
+ *
+ *         All connections are served by a single thread with non-blocking nio
+ *         sockets. Each frame is jpeg encoded once when it is published and the
+ *         same bytes are shared by every client of the feed. A client only ever
+ *         gets the latest frame of its feed - if it is slow it skips frames and
+ *         never holds up other viewers.
+ *
+ *         http://host:9090/ - index of feeds
+ *         http://host:9090/{feed} - mjpeg stream
+ *         http://host:9090/{feed}?fps=5&amp;kbps=500 - capped stream
+ *
  */
-public class MjpegServer extends NanoHTTPD {
+public class MjpegServer implements Runnable {
 
-	public class Connection {
-		boolean initialized = false;
-		Socket socket;
-		OutputStream os;
+	public final static Logger log = LoggerFactory.getLogger(MjpegServer.class.getCanonicalName());
 
-		public Connection(Socket socket) throws IOException {
-			this.socket = socket;
-			os = socket.getOutputStream();
-		}
+	final static Charset ASCII = Charset.forName("US-ASCII");
 
-		public void close() {
-			try {
-				socket.close();
-				socket = null;
-			} catch (IOException e) {
-			}
+	final static byte[] STREAM_HEADER = ("HTTP/1.0 200 OK\r\n" + "Server: MyRobotLab\r\n" + "Connection: close\r\n" + "Max-Age: 0\r\n" + "Expires: 0\r\n"
+			+ "Cache-Control: no-cache, private\r\n" + "Pragma: no-cache\r\n" + "Content-Type: multipart/x-mixed-replace; " + "boundary=--BoundaryString\r\n\r\n").getBytes(ASCII);
+
+	/**
+	 * an encoded frame - multipart header, jpg and trailer in one buffer which
+	 * is shared (duplicated) by all clients
+	 */
+	static class Frame {
+		final long seq;
+		final ByteBuffer part;
+
+		Frame(long seq, byte[] jpg) {
+			this.seq = seq;
+			byte[] header = ("--BoundaryString\r\n" + "Content-type: image/jpg\r\n" + "Content-Length: " + jpg.length + "\r\n\r\n").getBytes(ASCII);
+			ByteBuffer b = ByteBuffer.allocate(header.length + jpg.length + 4);
+			b.put(header);
+			b.put(jpg);
+			b.put((byte) '\r').put((byte) '\n').put((byte) '\r').put((byte) '\n');
+			b.flip();
+			part = b.asReadOnlyBuffer();
 		}
 	}
 
-	public class VideoWebClient extends Thread {
-		String feed;
-		ArrayList<Connection> connections = new ArrayList<Connection>();
-		BlockingQueue<SerializableImage> videoFeed;
+	static class Feed {
+		final String name;
+		volatile Frame latest;
+		volatile int clients = 0;
+		long seq = 0;
 
-		VideoWebClient(BlockingQueue<SerializableImage> videoFeed, String feed, Socket socket) throws IOException {
-			// super(String.format("stream_%s:%s",
-			// socket.getInetAddress().getHostAddress(), socket.getPort()));
-			super(String.format("stream_%s", feed));
-			this.videoFeed = videoFeed;
-			this.feed = feed;
-			connections.add(new Connection(socket));
+		Feed(String name) {
+			this.name = name;
 		}
+	}
 
-		// TODO - look into buffered output stream
-		@Override
-		public void run() {
-			try {
-				while (true) {
-					SerializableImage frame = videoFeed.take();
-					// ++frameIndex;
-					// log.info("frame {}", frameIndex);
-					Logging.logTime(String.format("Mjpeg frameIndex %d %d", frame.frameIndex, System.currentTimeMillis()));
-					for (Iterator<Connection> iterator = connections.iterator(); iterator.hasNext();) {
-						Connection c = iterator.next();
-
-						try {
-
-							if (!c.initialized) {
-								c.os.write(("HTTP/1.0 200 OK\r\n" + "Server: YourServerName\r\n" + "Connection: close\r\n" + "Max-Age: 0\r\n" + "Expires: 0\r\n"
-										+ "Cache-Control: no-cache, private\r\n" + "Pragma: no-cache\r\n" + "Content-Type: multipart/x-mixed-replace; "
-										+ "boundary=--BoundaryString\r\n\r\n").getBytes());
-								c.initialized = true;
-							}
+	class Client {
+		final SocketChannel channel;
+		final ByteBuffer request = ByteBuffer.allocate(2048);
+		Feed feed;
+		ByteBuffer out;
+		boolean closeWhenWritten = false;
 
-							byte[] bytes = frame.getBytes();
+		// latest frame slot - only the newest frame is ever sent
+		long lastSeq = -1;
 
-							// begin jpg
-							c.os.write(("--BoundaryString\r\n" + "Content-type: image/jpg\r\n" + "Content-Length: " + bytes.length + "\r\n\r\n").getBytes());
-							// write the jpg
-							c.os.write(bytes);
+		// caps - 0 is no limit
+		int maxFps;
+		int maxKbps;
+		long lastFrameTs = 0;
+		long windowStart = 0;
+		long windowBytes = 0;
 
-							// end
-							c.os.write("\r\n\r\n".getBytes());
+		// stats
+		long sent = 0;
+		long skipped = 0;
 
-							// flush or not to flush that is the question
-							c.os.flush();
-							Logging.logTime(String.format("Mjpeg frameIndex %d %d SENT", frame.frameIndex, System.currentTimeMillis()));
-						} catch (Exception e) {
-							Logging.logError(e);
-							log.info("removing socket");
-							iterator.remove();
-							c.close();
-						}
+		Client(SocketChannel channel) {
+			this.channel = channel;
+			this.maxFps = defaultMaxFps;
+			this.maxKbps = defaultMaxKbps;
+		}
 
-					} // for each socket
+		/**
+		 * @return ms until this client may get another frame - 0 if it can be
+		 *         sent now
+		 */
+		long throttle(long now, int size) {
+			long wait = 0;
+			if (maxFps > 0) {
+				wait = Math.max(wait, lastFrameTs + 1000 / maxFps - now);
+			}
+			if (maxKbps > 0) {
+				if (now - windowStart >= 1000) {
+					windowStart = now;
+					windowBytes = 0;
+				} else if ((windowBytes + size) * 8 / 1000 > maxKbps) {
+					wait = Math.max(wait, windowStart + 1000 - now);
 				}
-			} catch (Exception e) {
-				// FIXME remove socket from list - continue to run
-				Logging.logError(e);
 			}
-
+			return wait;
 		}
 	}
 
-	public final static Logger log = LoggerFactory.getLogger(MjpegServer.class.getCanonicalName());
+	transient public ConcurrentHashMap<String, Feed> videoFeeds = new ConcurrentHashMap<String, Feed>();
+
+	private final ArrayList<Client> clients = new ArrayList<Client>();
 
-	transient public HashMap<String, BlockingQueue<SerializableImage>> videoFeeds = new HashMap<String, BlockingQueue<SerializableImage>>();
+	private int port;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean running = false;
 
-	transient public HashMap<String, VideoWebClient> clients = new HashMap<String, VideoWebClient>();
+	/**
+	 * default caps for clients which do not ask for any - 0 is no limit
+	 */
+	public int defaultMaxFps = 0;
+	public int defaultMaxKbps = 0;
 
 	/**
 	 * @param args
@@ -139,63 +161,332 @@ public class MjpegServer extends NanoHTTPD {
 	}
 
 	public MjpegServer(int port) {
-		super(port);
+		this.port = port;
 	}
 
-	@Override
-	public Response serve(String uri, String method, Properties header, Properties parms, Socket socket) {
-		log.info(method + " '" + uri + "' ");
+	public void start() throws IOException {
+		if (thread != null) {
+			log.warn("server already started");
+			return;
+		}
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		// before bind - a restart may find the old port in TIME_WAIT
+		server.socket().setReuseAddress(true);
+		try {
+			server.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this, String.format("mjpeg_%d", port));
+		thread.start();
+	}
 
-		Enumeration e = header.propertyNames();
-		while (e.hasMoreElements()) {
-			String value = (String) e.nextElement();
-			log.info("  HDR: '" + value + "' = '" + header.getProperty(value) + "'");
+	/**
+	 * stops the server and returns once the port is released - a channel
+	 * registered with a selector is only really closed when the selector
+	 * deregisters it, so the selector thread is joined too
+	 */
+	public void stop() {
+		Thread t = thread;
+		if (t == null) {
+			return;
 		}
-		e = parms.propertyNames();
-		while (e.hasMoreElements()) {
-			String value = (String) e.nextElement();
-			log.info("  PRM: '" + value + "' = '" + parms.getProperty(value) + "'");
+		running = false;
+		thread = null;
+		try {
+			server.close();
+		} catch (IOException e) {
+			Logging.logError(e);
 		}
+		selector.wakeup();
+		if (t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-		String feed = null;
+	/**
+	 * new frame for a feed - it is only encoded if someone is watching
+	 *
+	 * @param feedName
+	 * @param frame
+	 */
+	public void publish(String feedName, SerializableImage frame) {
+		Feed feed = videoFeeds.get(feedName);
+		if (feed == null) {
+			feed = new Feed(feedName);
+			Feed existing = videoFeeds.putIfAbsent(feedName, feed);
+			if (existing != null) {
+				feed = existing;
+			}
+		}
 
-		// look for "file" requests
-		if (uri.contains(".")) {
-			return serveFile(uri, header, new File("."), true);
+		if (feed.clients == 0) {
+			return;
 		}
 
-		int pos0 = uri.lastIndexOf("/");
-		if (pos0 != -1) {
-			feed = uri.substring(pos0 + 1);
+		byte[] jpg = frame.getBytes();
+		if (jpg == null) {
+			return;
 		}
 
-		if (!videoFeeds.containsKey(feed)) {
-			StringBuffer response = new StringBuffer(String.format("<html><body align=center>video feeds<br/>", feed));
-			for (Map.Entry<String, BlockingQueue<SerializableImage>> o : videoFeeds.entrySet()) {
-				// Map.Entry<String,SerializableImage> pairs = o;
-				// response.append(String.format("<a href=\"http://%\" >%s</a><br/>",
-				// o.getKey()));
-				response.append(String.format("<img src=\"%s\" /><br/>%s<br/>", o.getKey(), o.getKey()));
-				log.info(o.getKey());
+		synchronized (feed) {
+			feed.latest = new Frame(++feed.seq, jpg);
+		}
+
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	public int getClientCount() {
+		synchronized (clients) {
+			return clients.size();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				long wait = schedule();
+				if (wait > 0) {
+					selector.select(wait);
+				} else {
+					selector.select();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							if (key.isReadable()) {
+								read(key);
+							}
+							if (key.isValid() && key.isWritable()) {
+								write(key);
+							}
+						}
+					} catch (IOException e) {
+						close((Client) key.attachment());
+					}
+				}
 			}
-			if (videoFeeds.size() == 0) {
-				response.append("no video feed exist - try attaching a VideoSource to the VideoStreamer");
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+
+		synchronized (clients) {
+			for (Client c : new ArrayList<Client>(clients)) {
+				close(c);
 			}
-			response.append("</body></html>");
-			return new Response(HTTP_OK, MIME_HTML, response.toString());
-		} else {
-			try {
-				VideoWebClient client = new VideoWebClient(videoFeeds.get(feed), feed, socket);
-				client.start();
-				clients.put(feed, client);
-			} catch (IOException e1) {
-				Logging.logError(e1);
+		}
+		try {
+			server.close();
+			selector.close();
+		} catch (IOException e) {
+		}
+		log.info("mjpeg server on {} stopped", port);
+	}
+
+	/**
+	 * hands the latest frame to every idle client which is allowed another one
+	 *
+	 * @return ms until a throttled client can be served - 0 if none are
+	 *         waiting
+	 */
+	private long schedule() {
+		long now = System.currentTimeMillis();
+		long nextWait = 0;
+		synchronized (clients) {
+			for (Client c : clients) {
+				if (c.feed == null || c.out != null) {
+					continue;
+				}
+				Frame frame = c.feed.latest;
+				if (frame == null || frame.seq == c.lastSeq) {
+					continue;
+				}
+				long wait = c.throttle(now, frame.part.remaining());
+				if (wait > 0) {
+					nextWait = (nextWait == 0) ? wait : Math.min(nextWait, wait);
+					continue;
+				}
+				if (c.lastSeq >= 0 && frame.seq > c.lastSeq + 1) {
+					c.skipped += frame.seq - c.lastSeq - 1;
+				}
+				c.lastSeq = frame.seq;
+				c.lastFrameTs = now;
+				c.windowBytes += frame.part.remaining();
+				c.out = frame.part.duplicate();
+				SelectionKey key = c.channel.keyFor(selector);
+				if (key != null && key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+		return nextWait;
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Client client = new Client(channel);
+		channel.register(selector, SelectionKey.OP_READ, client);
+		synchronized (clients) {
+			clients.add(client);
+		}
+		log.info("new client - {}", channel.socket().getRemoteSocketAddress());
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		Client c = (Client) key.attachment();
+		if (c.feed != null || c.closeWhenWritten) {
+			// streaming - anything more from the browser is ignored
+			ByteBuffer discard = ByteBuffer.allocate(512);
+			if (c.channel.read(discard) < 0) {
+				close(c);
+			}
+			return;
+		}
+
+		if (c.channel.read(c.request) < 0) {
+			close(c);
+			return;
+		}
+
+		String req = new String(c.request.array(), 0, c.request.position(), ASCII);
+		if (!req.contains("\r\n\r\n") && c.request.hasRemaining()) {
+			// wait for the rest of the request
+			return;
+		}
+
+		serve(c, req);
+	}
+
+	private void serve(Client c, String req) {
+		// GET /feed?fps=5 HTTP/1.1
+		String uri = "/";
+		String[] parts = req.split(" ");
+		if (parts.length > 1) {
+			uri = parts[1];
+		}
+		log.info("GET '{}'", uri);
+
+		String query = null;
+		int q = uri.indexOf('?');
+		if (q != -1) {
+			query = uri.substring(q + 1);
+			uri = uri.substring(0, q);
+		}
+
+		String feedName = uri.substring(uri.lastIndexOf('/') + 1);
+		Feed feed = videoFeeds.get(feedName);
+
+		if (feed == null) {
+			c.out = ByteBuffer.wrap(index().getBytes(ASCII));
+			c.closeWhenWritten = true;
+			c.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+
+		if (query != null) {
+			for (String param : query.split("&")) {
+				String[] nv = param.split("=");
+				try {
+					if (nv.length == 2 && "fps".equals(nv[0])) {
+						c.maxFps = Integer.parseInt(nv[1]);
+					} else if (nv.length == 2 && "kbps".equals(nv[0])) {
+						c.maxKbps = Integer.parseInt(nv[1]);
+					}
+				} catch (NumberFormatException e) {
+					log.warn("bad parameter {}", param);
+				}
 			}
 		}
-		// new Response(HTTP_OK, MIME_HTML, "<html><body>Redirected: <a href=\""
-		// + uri + "\">" + uri + "</a></body></html>");
 
-		return null; // serveFile(uri, header, new File("."), true);
+		synchronized (feed) {
+			++feed.clients;
+		}
+		c.feed = feed;
+		c.out = ByteBuffer.wrap(STREAM_HEADER);
+		c.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private String index() {
+		StringBuffer response = new StringBuffer("<html><body align=center>video feeds<br/>");
+		for (Map.Entry<String, Feed> o : videoFeeds.entrySet()) {
+			response.append(String.format("<img src=\"%s\" /><br/>%s<br/>", o.getKey(), o.getKey()));
+		}
+		if (videoFeeds.size() == 0) {
+			response.append("no video feed exist - try attaching a VideoSource to the VideoStreamer");
+		}
+		response.append("</body></html>");
+		byte[] body = response.toString().getBytes(ASCII);
+		return "HTTP/1.0 200 OK\r\nContent-Type: text/html\r\nConnection: close\r\nContent-Length: " + body.length + "\r\n\r\n" + response;
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Client c = (Client) key.attachment();
+		if (c.out == null) {
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+
+		c.channel.write(c.out);
+		if (c.out.hasRemaining()) {
+			// socket buffer is full - the selector tells us when to continue
+			return;
+		}
+
+		c.out = null;
+		++c.sent;
+		if (c.closeWhenWritten) {
+			close(c);
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(Client c) {
+		if (c == null) {
+			return;
+		}
+		synchronized (clients) {
+			if (!clients.remove(c)) {
+				return;
+			}
+		}
+		if (c.feed != null) {
+			synchronized (c.feed) {
+				--c.feed.clients;
+			}
+			log.info("removing client of {} - sent {} skipped {}", c.feed.name, c.sent, c.skipped);
+		}
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+		}
 	}
 
 }
@@ -0,0 +1,609 @@
+package org.myrobotlab.net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.myrobotlab.framework.MRLListener;
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.framework.StateDelta;
+import org.myrobotlab.framework.StateTracker;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.service.RemoteAdapter;
+import org.myrobotlab.service.Runtime;
+import org.myrobotlab.service.interfaces.ServiceInterface;
+import org.slf4j.Logger;
+
+/**
+ * Tcp transport of a RemoteAdapter - one selector thread accepts, reads and
+ * writes for every peer instead of a blocking thread per connection.
+ *
+ * Senders encode on their own thread and queue the frame on the peer - there
+ * is no lock shared between peers, so a slow peer only fills its own queue.
+ * When the queue is empty the frame is written straight away, otherwise the
+ * selector thread drains the queue with gathering writes of up to maxGather
+ * frames. A peer with more than highWaterMark bytes queued drops new messages
+ * and counts them in Connection.txDropped.
+ *
+ * Every heartbeatInterval each peer is pinged and its rtt, rates and queue
+ * depth are written to its Connection.
+ */
+public class NioTransport extends Thread {
+
+	public final static Logger log = LoggerFactory.getLogger(NioTransport.class);
+
+	// transport control messages - never delivered to services
+	public final static String PING = "transportPing";
+	public final static String PONG = "transportPong";
+	public final static String RESYNC = "transportResync";
+
+	public int highWaterMark = 4 * 1024 * 1024;
+	public int maxGather = 64;
+	public int heartbeatInterval = 1000;
+
+	/**
+	 * send publishState as versioned deltas of the changed public fields
+	 * instead of the whole service
+	 */
+	public boolean deltaState = true;
+
+	/**
+	 * a connected peer
+	 */
+	public class Peer {
+		final SocketChannel channel;
+		public final URI protocolKey;
+		URI uri; // mrl uri
+		public final Connection data;
+
+		// one codec per direction - each keeps its own string table
+		final MessageCodec encoder = new MessageCodec();
+		final MessageCodec decoder = new MessageCodec();
+
+		// guarded by this
+		final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+		int queuedBytes = 0;
+		boolean closed = false;
+
+		// selector thread only
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+		boolean headerRead = false;
+		long lastRxBytes = 0;
+		long lastTxBytes = 0;
+
+		// service name -> state version the peer has - guarded by this
+		final HashMap<String, Long> sentVersions = new HashMap<String, Long>();
+		// the peer's services as rebuilt from its deltas - selector thread
+		final HashMap<String, Object> replicas = new HashMap<String, Object>();
+		final HashMap<String, Long> replicaVersions = new HashMap<String, Long>();
+		final HashSet<String> resyncRequested = new HashSet<String>();
+
+		Peer(SocketChannel channel, URI protocolKey) throws IOException {
+			this.channel = channel;
+			this.protocolKey = protocolKey;
+			this.uri = URI.create(String.format("mrl://%s/%s", myService.getName(), protocolKey));
+			this.data = new Connection(myService.getName(), protocolKey);
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(MessageCodec.MAGIC);
+			header.putInt(MessageCodec.VERSION);
+			header.flip();
+			outbound.add(header);
+			queuedBytes = 8;
+		}
+	}
+
+	final RemoteAdapter myService;
+	final Selector selector;
+	final ConcurrentHashMap<URI, Peer> peers = new ConcurrentHashMap<URI, Peer>();
+	// peers which need registering or write interest - set by other threads
+	final ConcurrentLinkedQueue<Peer> pending = new ConcurrentLinkedQueue<Peer>();
+	final Object connectLock = new Object();
+	final ConcurrentHashMap<String, StateTracker> trackers = new ConcurrentHashMap<String, StateTracker>();
+	volatile ServerSocketChannel server = null;
+	volatile ServerSocketChannel pendingServer = null;
+	volatile boolean isRunning = false;
+	long lastHeartbeat = System.currentTimeMillis();
+
+	public NioTransport(RemoteAdapter service) throws IOException {
+		super(String.format("%s.nio", service.getName()));
+		this.myService = service;
+		selector = Selector.open();
+	}
+
+	public void listen(int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setReuseAddress(true);
+		channel.socket().bind(new InetSocketAddress(port), 10);
+		log.info("{} listening on {}", getName(), channel.socket().getLocalSocketAddress());
+		myService.info(String.format("listening on %s tcp", channel.socket().getLocalSocketAddress()));
+		pendingServer = channel;
+		selector.wakeup();
+	}
+
+	public void stopListening() {
+		ServerSocketChannel channel = server;
+		server = null;
+		pendingServer = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Logging.logError(e);
+			}
+		}
+	}
+
+	public boolean isListening() {
+		return (server != null && server.isOpen()) || pendingServer != null;
+	}
+
+	public Peer getPeer(URI protocolKey) {
+		return peers.get(protocolKey);
+	}
+
+	/**
+	 * queues msg for the peer - connecting first if needed
+	 *
+	 * @return false if the message was dropped
+	 */
+	public boolean send(URI protocolKey, Message msg) throws IOException {
+		Peer peer = peers.get(protocolKey);
+		if (peer == null) {
+			peer = connect(protocolKey);
+		}
+
+		// router x-forwarded outbound proxy begin
+		if (!"".equals(msg.name)) // FIXME - broadcast "should" be null -
+		{
+			msg.name = msg.name.substring(myService.getPrefix(protocolKey).length());
+		}
+		// router x-forwarded outbound proxy end
+
+		if (deltaState && "publishState".equals(msg.sendingMethod) && msg.data != null && msg.data.length == 1 && msg.data[0] instanceof Service) {
+			return sendState(peer, msg);
+		}
+
+		return send(peer, msg);
+	}
+
+	/**
+	 * replaces the published service with what this peer is missing - a delta
+	 * from the version it has or a full snapshot
+	 */
+	boolean sendState(Peer peer, Message msg) throws IOException {
+		Service service = (Service) msg.data[0];
+		String name = service.getName();
+		StateTracker tracker = trackers.get(name);
+		if (tracker == null) {
+			trackers.putIfAbsent(name, new StateTracker(name));
+			tracker = trackers.get(name);
+		}
+		// the data array is shared by every peer's copy of this publish
+		tracker.update(service, msg.data);
+
+		synchronized (peer) {
+			Long known = peer.sentVersions.get(name);
+			StateDelta delta = tracker.getDelta((known == null) ? 0 : known, service);
+			// the data array is shared with the other listeners' messages
+			Message stateMsg = new Message(msg);
+			stateMsg.data = new Object[] { delta };
+			if (!send(peer, stateMsg)) {
+				return false;
+			}
+			peer.sentVersions.put(name, delta.version);
+			if (delta.isFull()) {
+				++peer.data.stateSnapshots;
+			} else {
+				++peer.data.stateDeltas;
+			}
+		}
+		return true;
+	}
+
+	boolean send(Peer peer, Message msg) throws IOException {
+		boolean needsWrite = false;
+		synchronized (peer) {
+			if (peer.closed) {
+				return false;
+			}
+			// checked before encoding - a dropped frame must not add to the
+			// string table
+			if (peer.queuedBytes >= highWaterMark) {
+				++peer.data.txDropped;
+				return false;
+			}
+
+			ByteBuffer frame = peer.encoder.toFrame(msg);
+
+			if (peer.outbound.isEmpty() && peer.key != null) {
+				// nothing queued - try to write on the caller's thread
+				try {
+					peer.channel.write(frame);
+				} catch (IOException e) {
+					peer.closed = true;
+					needsWrite = true;
+				}
+			}
+
+			if (frame.hasRemaining() && !peer.closed) {
+				needsWrite = peer.outbound.isEmpty();
+				peer.outbound.add(frame);
+				peer.queuedBytes += frame.remaining();
+			}
+
+			peer.encoder.reportTx(peer.data);
+			if (!PING.equals(msg.method) && !PONG.equals(msg.method) && !RESYNC.equals(msg.method)) {
+				peer.data.txSender = msg.sender;
+				peer.data.txSendingMethod = msg.sendingMethod;
+				peer.data.txName = msg.name;
+				peer.data.txMethod = msg.method;
+				++peer.data.tx;
+			}
+		}
+
+		if (needsWrite) {
+			// selector thread sets write interest or closes the peer
+			pending.add(peer);
+			selector.wakeup();
+		}
+		return true;
+	}
+
+	Peer connect(URI protocolKey) throws IOException {
+		synchronized (connectLock) {
+			Peer peer = peers.get(protocolKey);
+			if (peer != null) {
+				return peer;
+			}
+			// blocking connect, then the channel goes to the selector
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(protocolKey.getHost(), protocolKey.getPort()));
+			peer = add(channel, protocolKey);
+			myService.broadcastState();
+			return peer;
+		}
+	}
+
+	private Peer add(SocketChannel channel, URI protocolKey) throws IOException {
+		channel.configureBlocking(false);
+		// messages are small and latency matters more than packet count
+		channel.socket().setTcpNoDelay(true);
+		Peer peer = new Peer(channel, protocolKey);
+		peers.put(protocolKey, peer);
+		myService.getClients().put(protocolKey, peer.data);
+		pending.add(peer);
+		selector.wakeup();
+		return peer;
+	}
+
+	@Override
+	public void run() {
+		isRunning = true;
+		while (isRunning) {
+			try {
+				processPending();
+				selector.select(250);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Peer peer = (Peer) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(peer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(peer);
+						}
+					} catch (Exception e) {
+						log.warn("{} {}", peer.protocolKey, e.getMessage());
+						close(peer);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastHeartbeat >= heartbeatInterval) {
+					heartbeat(now);
+				}
+			} catch (Exception e) {
+				Logging.logError(e);
+			}
+		}
+
+		stopListening();
+		for (Peer peer : peers.values()) {
+			close(peer);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logging.logError(e);
+		}
+	}
+
+	public void shutdown() {
+		isRunning = false;
+		selector.wakeup();
+	}
+
+	private void processPending() throws IOException {
+		if (pendingServer != null) {
+			server = pendingServer;
+			pendingServer = null;
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		Peer peer;
+		while ((peer = pending.poll()) != null) {
+			synchronized (peer) {
+				if (peer.closed) {
+					close(peer);
+					continue;
+				}
+				int ops = SelectionKey.OP_READ | ((peer.outbound.isEmpty()) ? 0 : SelectionKey.OP_WRITE);
+				if (peer.key == null) {
+					peer.key = peer.channel.register(selector, ops, peer);
+					peer.data.state = Connection.CONNECTED;
+				} else if (peer.key.isValid()) {
+					peer.key.interestOps(ops);
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		try {
+			URI protocolKey = new URI(String.format("tcp://%s:%d", channel.socket().getInetAddress().getHostAddress(), channel.socket().getPort()));
+			add(channel, protocolKey);
+			myService.broadcastState();
+		} catch (Exception e) {
+			Logging.logError(e);
+			channel.close();
+		}
+	}
+
+	private void write(Peer peer) throws IOException {
+		synchronized (peer) {
+			while (!peer.outbound.isEmpty()) {
+				int n = Math.min(maxGather, peer.outbound.size());
+				ByteBuffer[] gather = new ByteBuffer[n];
+				Iterator<ByteBuffer> it = peer.outbound.iterator();
+				for (int i = 0; i < n; ++i) {
+					gather[i] = it.next();
+				}
+				long written = peer.channel.write(gather);
+				peer.queuedBytes -= written;
+				while (!peer.outbound.isEmpty() && !peer.outbound.peek().hasRemaining()) {
+					peer.outbound.poll();
+				}
+				if (written == 0 || !peer.outbound.isEmpty() && peer.outbound.peek().position() > 0) {
+					// socket buffer is full - wait for the next OP_WRITE
+					break;
+				}
+			}
+			if (peer.outbound.isEmpty()) {
+				peer.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	private void read(Peer peer) throws IOException, ClassNotFoundException {
+		int n = peer.channel.read(peer.in);
+		if (n < 0) {
+			throw new IOException("connection closed by peer");
+		}
+
+		ByteBuffer in = peer.in;
+		in.flip();
+		int needed = 0;
+		while (true) {
+			if (!peer.headerRead) {
+				if (in.remaining() < 8) {
+					break;
+				}
+				if (in.getInt() != MessageCodec.MAGIC || in.getInt() != MessageCodec.VERSION) {
+					throw new StreamCorruptedException("not a mrl binary stream or unsupported version");
+				}
+				peer.headerRead = true;
+			}
+			if (in.remaining() < 4) {
+				break;
+			}
+			int length = in.getInt(in.position());
+			if (length < 0 || length > MessageCodec.maxFrameSize) {
+				throw new StreamCorruptedException(String.format("invalid frame length %d", length));
+			}
+			if (in.remaining() < length + 4) {
+				needed = length + 4;
+				break;
+			}
+			in.position(in.position() + 4);
+			Message msg = peer.decoder.fromFrame(in.array(), in.arrayOffset() + in.position(), length);
+			in.position(in.position() + length);
+			peer.decoder.reportRx(peer.data);
+			process(peer, msg);
+		}
+		in.compact();
+
+		if (needed > in.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(needed);
+			in.flip();
+			bigger.put(in);
+			peer.in = bigger;
+		}
+	}
+
+	private void heartbeat(long now) {
+		float seconds = (now - lastHeartbeat) / 1000.0f;
+		lastHeartbeat = now;
+		for (Peer peer : peers.values()) {
+			Connection data = peer.data;
+			data.rxRate = (data.rxBytes - peer.lastRxBytes) / seconds;
+			data.txRate = (data.txBytes - peer.lastTxBytes) / seconds;
+			peer.lastRxBytes = data.rxBytes;
+			peer.lastTxBytes = data.txBytes;
+			synchronized (peer) {
+				data.txQueued = peer.outbound.size();
+				data.txQueuedBytes = peer.queuedBytes;
+			}
+			if (peer.key != null) {
+				Message ping = myService.createMessage("", PING, new Object[] { System.nanoTime() });
+				try {
+					send(peer, ping);
+				} catch (IOException e) {
+					Logging.logError(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * inbound message - runs on the selector thread so it must never block
+	 */
+	private void process(Peer peer, Message msg) throws IOException {
+		Connection data = peer.data;
+
+		if (PING.equals(msg.method)) {
+			send(peer, myService.createMessage("", PONG, msg.data));
+			return;
+		}
+		if (PONG.equals(msg.method)) {
+			data.rtt = (System.nanoTime() - (Long) msg.data[0]) / 1000000.0f;
+			return;
+		}
+		if (RESYNC.equals(msg.method)) {
+			String name = (String) msg.data[0];
+			++data.stateResyncs;
+			synchronized (peer) {
+				peer.sentVersions.remove(name);
+			}
+			// next publish goes out as a full snapshot
+			myService.send(name, "broadcastState");
+			return;
+		}
+
+		if (msg.data != null && msg.data.length == 1 && msg.data[0] instanceof StateDelta) {
+			Object state = applyState(peer, (StateDelta) msg.data[0]);
+			if (state == null) {
+				return;
+			}
+			msg.data = new Object[] { state };
+		}
+
+		++data.rx;
+		data.rxSender = msg.sender;
+		data.rxSendingMethod = msg.sendingMethod;
+		data.rxName = msg.name;
+		data.rxMethod = msg.method;
+
+		URI protocolKey = peer.protocolKey;
+		URI uri = peer.uri;
+
+		// router x-forwarded inbound proxy begin
+		msg.sender = String.format("%s%s", myService.getPrefix(protocolKey), msg.sender);
+		// router x-forwarded inbound proxy end
+
+		if ("publishState".equals(msg.method) && msg.data != null) {
+			ServiceInterface si = (ServiceInterface) msg.data[0];
+			si.setInstanceId(uri);
+			si.setPrefix(myService.getPrefix(protocolKey));
+		}
+
+		if ("addListener".equals(msg.method)) {
+			MRLListener listener = (MRLListener) msg.data[0];
+			listener.name = String.format("%s%s", myService.getPrefix(protocolKey), listener.name);
+		}
+
+		if (!myService.onRegistration(protocolKey, uri, myService.getPrefix(protocolKey), msg)) {
+			myService.getOutbox().add(msg);
+		}
+	}
+
+	/**
+	 * @return the peer's service with the delta applied or null if a version
+	 *         is missing - a resync is requested and deltas are dropped until
+	 *         the full snapshot arrives
+	 */
+	private Object applyState(Peer peer, StateDelta delta) throws IOException {
+		String name = delta.name;
+		if (delta.isFull()) {
+			peer.replicas.put(name, delta.state);
+			peer.replicaVersions.put(name, delta.version);
+			peer.resyncRequested.remove(name);
+			return delta.state;
+		}
+
+		Object replica = peer.replicas.get(name);
+		Long version = peer.replicaVersions.get(name);
+		if (replica != null && version == delta.version) {
+			return replica;
+		}
+		if (replica != null && version == delta.baseVersion) {
+			StateTracker.apply(replica, delta.fields);
+			peer.replicaVersions.put(name, delta.version);
+			return replica;
+		}
+
+		log.info("{} state gap have {} got {}", peer.protocolKey, version, delta);
+		if (peer.resyncRequested.add(name)) {
+			send(peer, myService.createMessage("", RESYNC, new Object[] { name }));
+		}
+		return null;
+	}
+
+	private void close(Peer peer) {
+		synchronized (peer) {
+			peer.closed = true;
+			peer.outbound.clear();
+			peer.queuedBytes = 0;
+		}
+		peers.remove(peer.protocolKey, peer);
+		if (peer.key != null) {
+			peer.key.cancel();
+		}
+		try {
+			peer.channel.close();
+		} catch (IOException e) {
+		}
+		if (Connection.DISCONNECTED.equals(peer.data.state)) {
+			return;
+		}
+		peer.data.state = Connection.DISCONNECTED;
+		try {
+			log.info("removing {} from registry", peer.uri);
+			// FIXME - not working - are you sure you want to do this?
+			// just because the connection is broken
+			Runtime.release(peer.uri);
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+		myService.broadcastState();
+	}
+}
@@ -0,0 +1,647 @@
+package org.myrobotlab.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.slf4j.Logger;
+
+/**
+ * Sequenced udp transport for teleoperation.
+ *
+ * Every message belongs to a stream of its peer. Setpoints - messages whose
+ * method or sending method is in latestWins - are "latest wins" streams, one
+ * per destination and method: each has its own sequence, a message older
+ * than the last one delivered is dropped and a queued message which has not
+ * gone out yet is replaced by a newer one. Everything else goes on the
+ * peer's reliable stream which is delivered in order - the receiver
+ * acknowledges the highest in order sequence plus a 32 bit selective ack of
+ * what it holds beyond that, and the sender retransmits what is not acked
+ * within the retransmit timeout (2 x smoothed rtt). Every datagram carries
+ * the sender's lowest unacked sequence - everything before it was acked and
+ * is never sent again, so a restarted receiver (or one which missed acks of
+ * its own previous instance) skips ahead to it instead of waiting forever.
+ *
+ * Small messages queued within batchDelay ms of each other share datagrams up
+ * to maxDatagram bytes. Plain MessageCodec datagrams (discovery) are still
+ * accepted and passed through unsequenced.
+ *
+ * lossRate drops outgoing datagrams at random so the reliable path can be
+ * tested over loopback.
+ */
+public class UdpTransport extends Thread {
+
+	public final static Logger log = LoggerFactory.getLogger(UdpTransport.class);
+
+	public final static int MAGIC = 0x4d524c55; // "MRLU"
+
+	public final static String[] DEFAULT_LATEST_WINS = { "moveTo", "setSpeed", "publishServoEvent", "publishX", "publishY", "publishZ", "publishRX", "publishRY", "publishRZ",
+			"publishPOV" };
+
+	// datagram types
+	final static byte DATA = 1;
+	final static byte ACK = 2;
+
+	// stream modes
+	final static byte LATEST = 1;
+	final static byte RELIABLE = 2;
+
+	// magic + type + session + base + count
+	final static int DATAGRAM_HEADER_SIZE = 15;
+	// mode + seq + length
+	final static int ENTRY_HEADER_SIZE = 9;
+	// max udp size 65507 + 8 byte header
+	final static int MAX_UDP_SIZE = 65507;
+	/**
+	 * largest encoded message - it has to fit a datagram on its own
+	 */
+	public final static int MAX_PAYLOAD = MAX_UDP_SIZE - DATAGRAM_HEADER_SIZE - ENTRY_HEADER_SIZE;
+
+	public interface Receiver {
+		public void onUdpMessage(Message msg, URI protocolKey);
+
+		public void onUdpConnection(Connection data);
+	}
+
+	public int maxDatagram = 1400;
+	public int batchDelay = 2;
+	/**
+	 * reliable messages in flight per peer
+	 */
+	public int window = 128;
+	/**
+	 * reliable messages queued per peer before new ones are dropped
+	 */
+	public int maxQueued = 1024;
+	public int minRto = 20;
+	public int maxRto = 1000;
+	public float lossRate = 0;
+
+	// replaced - never modified - so senders can read it without a lock
+	volatile HashSet<String> latestWins = new HashSet<String>(Arrays.asList(DEFAULT_LATEST_WINS));
+
+	static class Entry {
+		byte mode;
+		int seq;
+		String key;
+		byte[] payload;
+		long sentTs;
+		int retries;
+	}
+
+	/**
+	 * sender and receiver state of one remote address - guarded by itself
+	 */
+	class Peer {
+		final InetSocketAddress address;
+		final URI protocolKey;
+		final Connection data;
+
+		// sending
+		int nextSeq = 1;
+		final HashMap<String, Integer> latestSeq = new HashMap<String, Integer>();
+		final ArrayDeque<Entry> outbound = new ArrayDeque<Entry>();
+		final HashMap<String, Entry> queuedLatest = new HashMap<String, Entry>();
+		final TreeMap<Integer, Entry> unacked = new TreeMap<Integer, Entry>();
+		float srtt = 0;
+		int rto = 100;
+
+		/**
+		 * lowest reliable sequence which may still be sent - the ones before
+		 * it are acked
+		 */
+		int getBase() {
+			if (!unacked.isEmpty()) {
+				return unacked.firstKey();
+			}
+			for (Entry e : outbound) {
+				if (e.mode == RELIABLE) {
+					return e.seq;
+				}
+			}
+			return nextSeq;
+		}
+
+		// receiving
+		boolean hasSession = false;
+		int remoteSession;
+		int expected = 1;
+		final TreeMap<Integer, Message> outOfOrder = new TreeMap<Integer, Message>();
+		final HashMap<String, Integer> latestDelivered = new HashMap<String, Integer>();
+		boolean ackPending = false;
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+			this.protocolKey = URI.create(String.format("udp://%s:%d", address.getAddress().getHostAddress(), address.getPort()));
+			this.data = new Connection(serviceName, protocolKey);
+			data.state = Connection.CONNECTED;
+		}
+	}
+
+	final String serviceName;
+	final DatagramSocket socket;
+	final Receiver receiver;
+	// encoding may happen on any sending thread
+	final MessageCodec encoder = new MessageCodec(false);
+	// receive thread only
+	final MessageCodec decoder = new MessageCodec(false);
+	final ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<InetSocketAddress, Peer>();
+	final Thread receiveThread;
+	final Random random = new Random();
+	// a restarted sender starts its sequences again - the receiver resets on
+	// a new session
+	final int session = random.nextInt();
+	final Object lock = new Object();
+	boolean wake = false;
+	volatile boolean isRunning = false;
+
+	/**
+	 * @param port
+	 *            - 0 for any free port
+	 */
+	public UdpTransport(String name, int port, Receiver receiver) throws SocketException {
+		super(String.format("%s.udp.send", name));
+		this.serviceName = name;
+		this.receiver = receiver;
+		socket = (port > 0) ? new DatagramSocket(port) : new DatagramSocket();
+		receiveThread = new Thread(String.format("%s.udp.receive", name)) {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+	}
+
+	@Override
+	public synchronized void start() {
+		isRunning = true;
+		super.start();
+		receiveThread.start();
+	}
+
+	/**
+	 * returns once the port is released - a socket closed while a thread is
+	 * blocked in receive is only released when that thread leaves it
+	 */
+	public void shutdown() {
+		isRunning = false;
+		socket.close();
+		wake();
+		waitFor(receiveThread);
+		waitFor(this);
+	}
+
+	static void waitFor(Thread t) {
+		if (t == Thread.currentThread()) {
+			return;
+		}
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	public void setLatestWins(String method, boolean b) {
+		HashSet<String> methods = new HashSet<String>(latestWins);
+		if (b) {
+			methods.add(method);
+		} else {
+			methods.remove(method);
+		}
+		latestWins = methods;
+	}
+
+	public Connection getConnection(URI protocolKey) {
+		Peer peer = peers.get(new InetSocketAddress(protocolKey.getHost(), protocolKey.getPort()));
+		return (peer == null) ? null : peer.data;
+	}
+
+	/**
+	 * queues msg on its stream - the send thread batches and sends it
+	 *
+	 * @return false if the reliable queue is full and msg was dropped
+	 * @throws IOException
+	 *             if msg encodes to more than MAX_PAYLOAD bytes - it could
+	 *             never be sent and would stall the reliable stream
+	 */
+	public boolean send(URI protocolKey, Message msg) throws IOException {
+		byte[] payload;
+		synchronized (encoder) {
+			payload = encoder.toBytes(msg);
+		}
+		if (payload.length > MAX_PAYLOAD) {
+			throw new IOException(String.format("%s.%s is %d bytes - udp messages are limited to %d", msg.name, msg.method, payload.length, MAX_PAYLOAD));
+		}
+		Peer peer = getPeer(new InetSocketAddress(protocolKey.getHost(), protocolKey.getPort()));
+
+		HashSet<String> latest = latestWins;
+		synchronized (peer) {
+			if (latest.contains(msg.method) || latest.contains(msg.sendingMethod)) {
+				String key = getKey(msg);
+				Entry e = peer.queuedLatest.get(key);
+				if (e == null) {
+					e = new Entry();
+					e.mode = LATEST;
+					e.key = key;
+					peer.queuedLatest.put(key, e);
+					peer.outbound.add(e);
+				}
+				// a setpoint not sent yet is simply replaced
+				Integer seq = peer.latestSeq.get(key);
+				e.seq = (seq == null) ? 1 : seq + 1;
+				e.payload = payload;
+				peer.latestSeq.put(key, e.seq);
+			} else {
+				if (peer.outbound.size() + peer.unacked.size() >= maxQueued) {
+					++peer.data.txDropped;
+					return false;
+				}
+				Entry e = new Entry();
+				e.mode = RELIABLE;
+				e.seq = peer.nextSeq++;
+				e.payload = payload;
+				peer.outbound.add(e);
+			}
+			++peer.data.tx;
+			peer.data.txSender = msg.sender;
+			peer.data.txSendingMethod = msg.sendingMethod;
+			peer.data.txName = msg.name;
+			peer.data.txMethod = msg.method;
+		}
+		wake();
+		return true;
+	}
+
+	/**
+	 * a single unsequenced MessageCodec datagram - for discovery
+	 */
+	public void sendPlain(InetSocketAddress address, Message msg) throws IOException {
+		byte[] b;
+		synchronized (encoder) {
+			b = encoder.toDatagram(msg);
+		}
+		socket.send(new DatagramPacket(b, b.length, address));
+	}
+
+	static String getKey(Message msg) {
+		return String.format("%s.%s.%s", msg.name, msg.method, msg.sendingMethod);
+	}
+
+	Peer getPeer(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			Peer newPeer = new Peer(address);
+			peer = peers.putIfAbsent(address, newPeer);
+			if (peer == null) {
+				peer = newPeer;
+				receiver.onUdpConnection(peer.data);
+			}
+		}
+		return peer;
+	}
+
+	void wake() {
+		synchronized (lock) {
+			wake = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * send thread - batches queued messages, retransmits and acks
+	 */
+	@Override
+	public void run() {
+		while (isRunning) {
+			try {
+				boolean woken;
+				synchronized (lock) {
+					if (!wake) {
+						lock.wait(minRto / 2);
+					}
+					woken = wake;
+					wake = false;
+				}
+				if (woken && batchDelay > 0) {
+					// give other small messages the chance to share the datagram
+					Thread.sleep(batchDelay);
+				}
+
+				long now = System.currentTimeMillis();
+				for (Peer peer : peers.values()) {
+					ArrayList<byte[]> datagrams = flush(peer, now);
+					for (int i = 0; i < datagrams.size(); ++i) {
+						sendDatagram(peer, datagrams.get(i));
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				if (isRunning) {
+					Logging.logError(e);
+				}
+			}
+		}
+	}
+
+	ArrayList<byte[]> flush(Peer peer, long now) throws IOException {
+		ArrayList<byte[]> datagrams = new ArrayList<byte[]>();
+		Batch batch = new Batch();
+		synchronized (peer) {
+			batch.base = peer.getBase();
+			if (peer.ackPending) {
+				datagrams.add(createAck(peer));
+				peer.ackPending = false;
+			}
+
+			for (Entry e : peer.unacked.values()) {
+				long timeout = Math.min(maxRto, (long) peer.rto << Math.min(e.retries, 6));
+				if (now - e.sentTs >= timeout) {
+					++e.retries;
+					++peer.data.retransmits;
+					e.sentTs = now;
+					batch.add(e, datagrams);
+				}
+			}
+
+			Iterator<Entry> it = peer.outbound.iterator();
+			while (it.hasNext()) {
+				Entry e = it.next();
+				if (e.mode == RELIABLE) {
+					if (peer.unacked.size() >= window) {
+						// stays queued in order until acks open the window
+						continue;
+					}
+					e.sentTs = now;
+					peer.unacked.put(e.seq, e);
+				} else {
+					peer.queuedLatest.remove(e.key);
+				}
+				batch.add(e, datagrams);
+				it.remove();
+			}
+			batch.finish(datagrams);
+
+			peer.data.txQueued = peer.outbound.size() + peer.unacked.size();
+		}
+		return datagrams;
+	}
+
+	/**
+	 * packs entries into datagrams of up to maxDatagram bytes
+	 */
+	class Batch {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(maxDatagram);
+		DataOutputStream out = new DataOutputStream(bos);
+		int count = 0;
+		int base = 1;
+
+		void add(Entry e, ArrayList<byte[]> datagrams) throws IOException {
+			if (count > 0 && bos.size() + ENTRY_HEADER_SIZE + e.payload.length > maxDatagram) {
+				finish(datagrams);
+			}
+			if (count == 0) {
+				out.writeInt(MAGIC);
+				out.writeByte(DATA);
+				out.writeInt(session);
+				out.writeInt(base);
+				out.writeShort(0); // count - set in finish
+			}
+			out.writeByte(e.mode);
+			out.writeInt(e.seq);
+			out.writeInt(e.payload.length);
+			out.write(e.payload);
+			++count;
+		}
+
+		void finish(ArrayList<byte[]> datagrams) {
+			if (count == 0) {
+				return;
+			}
+			byte[] b = bos.toByteArray();
+			b[13] = (byte) (count >>> 8);
+			b[14] = (byte) count;
+			datagrams.add(b);
+			bos.reset();
+			count = 0;
+		}
+	}
+
+	byte[] createAck(Peer peer) {
+		int bits = 0;
+		for (int i = 0; i < 32; ++i) {
+			if (peer.outOfOrder.containsKey(peer.expected + 1 + i)) {
+				bits |= 1 << i;
+			}
+		}
+		ByteBuffer b = ByteBuffer.allocate(13);
+		b.putInt(MAGIC);
+		b.put(ACK);
+		b.putInt(peer.expected - 1);
+		b.putInt(bits);
+		return b.array();
+	}
+
+	void sendDatagram(Peer peer, byte[] b) throws IOException {
+		peer.data.txBytes += b.length;
+		if (lossRate > 0 && random.nextFloat() < lossRate) {
+			return;
+		}
+		socket.send(new DatagramPacket(b, b.length, peer.address));
+	}
+
+	void receive() {
+		byte[] b = new byte[MAX_UDP_SIZE];
+		DatagramPacket dgram = new DatagramPacket(b, b.length);
+		while (isRunning) {
+			try {
+				socket.receive(dgram);
+				process(b, dgram.getLength(), (InetSocketAddress) dgram.getSocketAddress());
+			} catch (SocketException e) {
+				if (isRunning) {
+					Logging.logError(e);
+				}
+				break;
+			} catch (Exception e) {
+				log.warn("bad datagram from {} {}", dgram.getSocketAddress(), e.getMessage());
+			}
+			dgram.setLength(b.length); // must reset length field!
+		}
+	}
+
+	void process(byte[] b, int length, InetSocketAddress from) throws IOException, ClassNotFoundException {
+		ByteBuffer in = ByteBuffer.wrap(b, 0, length);
+		int magic = in.getInt();
+
+		if (magic == MessageCodec.MAGIC) {
+			Message msg = decoder.fromDatagram(b, 0, length);
+			receiver.onUdpMessage(msg, URI.create(String.format("udp://%s:%d", from.getAddress().getHostAddress(), from.getPort())));
+			return;
+		}
+		if (magic != MAGIC) {
+			log.warn("unknown datagram from {}", from);
+			return;
+		}
+
+		Peer peer = getPeer(from);
+		peer.data.rxBytes += length;
+		byte type = in.get();
+
+		if (type == ACK) {
+			processAck(peer, in.getInt(), in.getInt());
+			return;
+		}
+
+		int remoteSession = in.getInt();
+		int base = in.getInt();
+		ArrayList<Message> deliver = new ArrayList<Message>();
+		synchronized (peer) {
+			if (!peer.hasSession || peer.remoteSession != remoteSession) {
+				peer.hasSession = true;
+				peer.remoteSession = remoteSession;
+				peer.expected = 1;
+				peer.outOfOrder.clear();
+				peer.latestDelivered.clear();
+			}
+			if (base - peer.expected > 0) {
+				// acked to a previous instance of this side - it will never
+				// be sent again
+				peer.outOfOrder.headMap(base).clear();
+				peer.expected = base;
+				Message next;
+				while ((next = peer.outOfOrder.remove(peer.expected)) != null) {
+					deliver.add(next);
+					++peer.expected;
+				}
+			}
+		}
+
+		int count = in.getShort() & 0xffff;
+		boolean reliable = false;
+		for (int i = 0; i < count; ++i) {
+			byte mode = in.get();
+			int seq = in.getInt();
+			int size = in.getInt();
+			int offset = in.position();
+			in.position(offset + size);
+
+			if (mode == LATEST) {
+				Message msg = decoder.fromBytes(b, offset, size);
+				String key = getKey(msg);
+				synchronized (peer) {
+					Integer last = peer.latestDelivered.get(key);
+					if (last != null && seq - last <= 0) {
+						++peer.data.rxStale;
+						continue;
+					}
+					peer.latestDelivered.put(key, seq);
+				}
+				deliver.add(msg);
+				continue;
+			}
+
+			reliable = true;
+			synchronized (peer) {
+				if (seq - peer.expected < 0 || peer.outOfOrder.containsKey(seq) || seq - peer.expected >= window * 2) {
+					// duplicate or too far ahead - the ack tells the sender
+					continue;
+				}
+			}
+			Message msg = decoder.fromBytes(b, offset, size);
+			synchronized (peer) {
+				if (seq != peer.expected) {
+					peer.outOfOrder.put(seq, msg);
+					continue;
+				}
+				deliver.add(msg);
+				++peer.expected;
+				Message next;
+				while ((next = peer.outOfOrder.remove(peer.expected)) != null) {
+					deliver.add(next);
+					++peer.expected;
+				}
+			}
+		}
+
+		if (reliable) {
+			synchronized (peer) {
+				peer.ackPending = true;
+			}
+			wake();
+		}
+
+		for (int i = 0; i < deliver.size(); ++i) {
+			Message msg = deliver.get(i);
+			++peer.data.rx;
+			peer.data.rxSender = msg.sender;
+			peer.data.rxSendingMethod = msg.sendingMethod;
+			peer.data.rxName = msg.name;
+			peer.data.rxMethod = msg.method;
+			receiver.onUdpMessage(msg, peer.protocolKey);
+		}
+	}
+
+	void processAck(Peer peer, int cumulative, int bits) {
+		long now = System.currentTimeMillis();
+		long sample = -1;
+		boolean waiting;
+		synchronized (peer) {
+			ArrayList<Entry> acked = new ArrayList<Entry>();
+			Map<Integer, Entry> head = peer.unacked.headMap(cumulative, true);
+			acked.addAll(head.values());
+			head.clear();
+			for (int i = 0; i < 32; ++i) {
+				if ((bits & (1 << i)) != 0) {
+					Entry e = peer.unacked.remove(cumulative + 2 + i);
+					if (e != null) {
+						acked.add(e);
+					}
+				}
+			}
+
+			// rtt only from entries sent once - a retransmitted entry's ack is
+			// ambiguous
+			for (int i = 0; i < acked.size(); ++i) {
+				Entry e = acked.get(i);
+				if (e.retries == 0 && (sample < 0 || now - e.sentTs < sample)) {
+					sample = now - e.sentTs;
+				}
+			}
+			if (sample >= 0) {
+				peer.srtt = (peer.srtt == 0) ? sample : peer.srtt + 0.125f * (sample - peer.srtt);
+				peer.rto = Math.max(minRto, Math.min(maxRto, (int) (peer.srtt * 2)));
+				peer.data.rtt = peer.srtt;
+			}
+			peer.data.txQueued = peer.outbound.size() + peer.unacked.size();
+			waiting = !peer.outbound.isEmpty();
+		}
+		if (waiting) {
+			// the window may have opened
+			wake();
+		}
+	}
+}
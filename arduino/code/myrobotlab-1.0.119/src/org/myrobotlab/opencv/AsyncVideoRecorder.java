@@ -0,0 +1,351 @@
+package org.myrobotlab.opencv;
+
+import static org.bytedeco.javacpp.opencv_core.cvCopy;
+import static org.bytedeco.javacpp.opencv_core.cvCreateImage;
+import static org.bytedeco.javacpp.opencv_core.cvGetSize;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import org.bytedeco.javacv.FrameRecorder;
+import org.bytedeco.javacv.OpenCVFrameRecorder;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.slf4j.Logger;
+
+/**
+ * Records one or more VideoProcessor sources to avi files on a background
+ * thread so disk or encoder stalls never stall the capture loop.
+ *
+ * The capture loop only copies a frame into a recycled buffer and queues it.
+ * Each source has its own small pool of buffers (at most queueSize), when none
+ * is free the dropPolicy decides - drop the new frame, drop the oldest queued
+ * frame of that source or block the capture loop until the encoder catches
+ * up.
+ *
+ * Files are segmented when segmentMaxTime (ms) or segmentMaxBytes is reached
+ * - 0 disables either. Each recording is named by its start time -
+ * {source}.{yyyyMMddHHmmss}.avi or {source}.{yyyyMMddHHmmss}.{segment}.avi -
+ * so a new recording never overwrites an earlier one.
+ */
+public class AsyncVideoRecorder implements Runnable {
+
+	public final static Logger log = LoggerFactory.getLogger(AsyncVideoRecorder.class);
+
+	public final static String DROP_NEWEST = "drop newest";
+	public final static String DROP_OLDEST = "drop oldest";
+	public final static String BLOCK = "block";
+
+	public String dropPolicy = DROP_OLDEST;
+	public int queueSize = 30;
+	public double frameRate = 15;
+	public long segmentMaxTime = 0;
+	public long segmentMaxBytes = 0;
+	public String directory = null;
+	public int reportInterval = 1000;
+
+	/**
+	 * a queued copy of a frame - the buffer goes back to its source's pool once
+	 * written
+	 */
+	static class QueuedFrame {
+		Source source;
+		IplImage image;
+		long ts;
+	}
+
+	/**
+	 * per source buffers and output segment
+	 */
+	class Source {
+		String name;
+		// capture thread
+		LinkedBlockingQueue<IplImage> free = new LinkedBlockingQueue<IplImage>();
+		int allocated = 0;
+		// writer thread
+		FrameRecorder recorder;
+		String filename;
+		int segment = 0;
+		long segmentStart;
+		long segmentFrames;
+
+		Source(String name) {
+			this.name = name;
+		}
+	}
+
+	private final VideoProcessor vp;
+	private final HashMap<String, Source> sources = new HashMap<String, Source>();
+	private ArrayBlockingQueue<QueuedFrame> queue;
+	private final QueuedFrame stopMarker = new QueuedFrame();
+	// read by the capture thread
+	private volatile Thread writer = null;
+	private Thread draining = null;
+	private String started;
+
+	// stats - dropped is counted by the capture thread too
+	final AtomicLong dropped = new AtomicLong();
+	int written = 0;
+	int segments = 0;
+	double encoderTime = 0;
+	double maxEncoderTime = 0;
+	long lastReport = System.currentTimeMillis();
+
+	public AsyncVideoRecorder(VideoProcessor vp) {
+		this.vp = vp;
+	}
+
+	public synchronized void start() {
+		if (writer != null) {
+			return;
+		}
+		if (draining != null) {
+			// previous recording is still being written
+			try {
+				draining.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+			draining = null;
+		}
+		queue = new ArrayBlockingQueue<QueuedFrame>(queueSize + 1);
+		started = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+		writer = new Thread(this, String.format("%s_recorder", vp.boundServiceName));
+		writer.start();
+	}
+
+	/**
+	 * writes what is queued, closes all files and ends the writer thread
+	 */
+	public synchronized void stop() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			queue.put(stopMarker);
+		} catch (InterruptedException e) {
+			writer.interrupt();
+		}
+		draining = writer;
+		writer = null;
+	}
+
+	public boolean isRecording() {
+		return writer != null;
+	}
+
+	/**
+	 * called by the capture loop - copies the image into a pooled buffer and
+	 * queues it for the writer
+	 *
+	 * @param sourceName
+	 * @param image
+	 */
+	public void add(String sourceName, IplImage image) {
+		if (writer == null || image == null) {
+			return;
+		}
+
+		Source source;
+		synchronized (sources) {
+			source = sources.get(sourceName);
+			if (source == null) {
+				source = new Source(sourceName);
+				sources.put(sourceName, source);
+			}
+		}
+
+		IplImage buffer = getBuffer(source, image);
+		if (buffer == null) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		cvCopy(image, buffer);
+		QueuedFrame frame = new QueuedFrame();
+		frame.source = source;
+		frame.image = buffer;
+		frame.ts = System.currentTimeMillis();
+		// queued ahead of the stop marker or not at all
+		synchronized (this) {
+			if (writer != null && queue.offer(frame)) {
+				return;
+			}
+		}
+		// stopped meanwhile - the writer may already have released the pool
+		buffer.release();
+		--source.allocated;
+		dropped.incrementAndGet();
+	}
+
+	private IplImage getBuffer(Source source, IplImage image) {
+		IplImage buffer = source.free.poll();
+
+		if (buffer == null && source.allocated < queueSize) {
+			++source.allocated;
+			return cvCreateImage(cvGetSize(image), image.depth(), image.nChannels());
+		}
+
+		if (buffer == null) {
+			if (DROP_OLDEST.equals(dropPolicy)) {
+				// steal the oldest queued frame of this source
+				Iterator<QueuedFrame> it = queue.iterator();
+				while (it.hasNext()) {
+					QueuedFrame old = it.next();
+					if (old.source == source && queue.remove(old)) {
+						dropped.incrementAndGet();
+						buffer = old.image;
+						break;
+					}
+				}
+			} else if (BLOCK.equals(dropPolicy)) {
+				try {
+					buffer = source.free.take();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+		}
+
+		if (buffer != null && (buffer.width() != image.width() || buffer.height() != image.height() || buffer.nChannels() != image.nChannels() || buffer.depth() != image.depth())) {
+			// source changed size - replace the stale buffer
+			buffer.release();
+			buffer = cvCreateImage(cvGetSize(image), image.depth(), image.nChannels());
+		}
+
+		return buffer;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				QueuedFrame frame = queue.take();
+				if (frame == stopMarker) {
+					break;
+				}
+
+				write(frame);
+				frame.source.free.offer(frame.image);
+
+				if (System.currentTimeMillis() - lastReport >= reportInterval) {
+					vp.getOpencv().invoke("publishRecordingStats", report());
+				}
+			}
+		} catch (InterruptedException e) {
+			log.info("recorder interrupted");
+		}
+
+		close();
+	}
+
+	private void write(QueuedFrame frame) {
+		Source source = frame.source;
+		try {
+			if (source.recorder == null || isSegmentFull(source)) {
+				openSegment(source, frame.image);
+			}
+
+			long start = System.nanoTime();
+			source.recorder.record(frame.image);
+			double ms = (System.nanoTime() - start) / 1000000.0;
+			encoderTime += ms;
+			if (ms > maxEncoderTime) {
+				maxEncoderTime = ms;
+			}
+			++source.segmentFrames;
+			++written;
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	private boolean isSegmentFull(Source source) {
+		if (segmentMaxTime > 0 && System.currentTimeMillis() - source.segmentStart > segmentMaxTime) {
+			return true;
+		}
+		// checking the file length every frame is not needed
+		if (segmentMaxBytes > 0 && source.segmentFrames % 30 == 0 && new File(source.filename).length() > segmentMaxBytes) {
+			return true;
+		}
+		return false;
+	}
+
+	private void openSegment(Source source, IplImage image) throws Exception {
+		closeSegment(source);
+
+		boolean segmented = segmentMaxTime > 0 || segmentMaxBytes > 0;
+		String name = (segmented) ? String.format("%s.%s.%d.avi", source.name, started, source.segment) : String.format("%s.%s.avi", source.name, started);
+		source.filename = (directory == null) ? name : new File(directory, name).getPath();
+
+		FrameRecorder recorder = new OpenCVFrameRecorder(source.filename, image.width(), image.height());
+		// recorder.setCodecID(CV_FOURCC('M','J','P','G'));
+		recorder.setFrameRate(frameRate);
+		recorder.setPixelFormat(1);
+		recorder.start();
+
+		source.recorder = recorder;
+		source.segmentStart = System.currentTimeMillis();
+		source.segmentFrames = 0;
+		++source.segment;
+		++segments;
+		log.info("recording {} to {}", source.name, source.filename);
+	}
+
+	private void closeSegment(Source source) {
+		if (source.recorder == null) {
+			return;
+		}
+		try {
+			source.recorder.stop();
+			source.recorder.release();
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+		source.recorder = null;
+	}
+
+	private void close() {
+		synchronized (sources) {
+			for (Source source : sources.values()) {
+				closeSegment(source);
+				IplImage buffer;
+				while ((buffer = source.free.poll()) != null) {
+					buffer.release();
+				}
+			}
+			sources.clear();
+		}
+	}
+
+	public RecordingStats report() {
+		long now = System.currentTimeMillis();
+		float seconds = Math.max(1, now - lastReport) / 1000.0f;
+
+		RecordingStats stats = new RecordingStats();
+		stats.name = vp.boundServiceName;
+		stats.ts = now;
+		stats.writtenFps = written / seconds;
+		stats.dropped = dropped.getAndSet(0);
+		stats.queued = (queue == null) ? 0 : queue.size();
+		stats.encoderLatency = (written == 0) ? 0 : (float) (encoderTime / written);
+		stats.maxEncoderLatency = (float) maxEncoderTime;
+		synchronized (sources) {
+			stats.sources = sources.size();
+		}
+		stats.segments = segments;
+
+		written = 0;
+		encoderTime = 0;
+		maxEncoderTime = 0;
+		lastReport = now;
+		return stats;
+	}
+}
@@ -0,0 +1,342 @@
+/**
+ *
+ * @author greg (at) myrobotlab.org
+ *
+ * This file is part of MyRobotLab (http://myrobotlab.org).
+ *
+ * MyRobotLab is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version (subject to the "Classpath" exception
+ * as provided in the LICENSE.txt file that accompanied this code).
+ *
+ * MyRobotLab is distributed in the hope that it will be useful or fun,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * All libraries in thirdParty bundle are subject to their own license
+ * requirements - please refer to http://myrobotlab.org/libraries for
+ * details.
+ *
+ * Enjoy !
+ *
+ * */
+
+package org.myrobotlab.opencv;
+
+import static org.bytedeco.javacpp.opencv_core.cvCreateImage;
+import static org.bytedeco.javacpp.opencv_core.cvRect;
+import static org.bytedeco.javacpp.opencv_core.cvReleaseImage;
+import static org.bytedeco.javacpp.opencv_core.cvResetImageROI;
+import static org.bytedeco.javacpp.opencv_core.cvSetImageROI;
+import static org.bytedeco.javacpp.opencv_core.cvSize;
+import static org.bytedeco.javacpp.opencv_imgproc.CV_INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
+
+import java.io.Serializable;
+
+import org.bytedeco.javacpp.opencv_core.IplImage;
+
+/**
+ * Adaptive search window shared by the detector filters (FaceDetect, Detector,
+ * MatchTemplate, SimpleBlobDetector).
+ *
+ * When a detector has a hit the next frames are searched at full resolution
+ * only inside a region of interest predicted from the last hits (constant
+ * velocity). A full frame search is done on a downscaled copy of the frame
+ * every fullFrameInterval frames, or as soon as the target has been missed
+ * maxMisses times in a row, so recovery latency is bounded by whichever
+ * comes first.
+ *
+ * Usage from a filter's process method :
+ *
+ * <pre>
+ * IplImage search = window.begin(image);
+ * // detect on search
+ * window.end(image);
+ * // map results back with mapX, mapY &amp; mapLength
+ * window.update(found, x, y, w, h);
+ * </pre>
+ *
+ * When the window is not enabled begin returns the frame untouched and all
+ * mappings are identities - so a filter can use the same code path for both.
+ *
+ */
+public class DetectionWindow implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final static int SEARCH_FULL = 0;
+	public final static int SEARCH_DOWNSCALED = 1;
+	public final static int SEARCH_ROI = 2;
+
+	public boolean enabled = false;
+
+	/**
+	 * maximum number of frames between full frame searches
+	 */
+	public int fullFrameInterval = 15;
+
+	/**
+	 * consecutive roi misses before falling back to a full frame search
+	 */
+	public int maxMisses = 2;
+
+	/**
+	 * full frame searches are done on an image this many times smaller - 1
+	 * disables downscaling
+	 */
+	public int downscale = 2;
+
+	/**
+	 * size of the roi relative to the last bounding box
+	 */
+	public float roiScale = 2.0f;
+
+	/**
+	 * minimum margin in pixels around the predicted bounding box
+	 */
+	public int roiMargin = 16;
+
+	/**
+	 * if the roi would cover more than this fraction of the frame - a full
+	 * frame search is done instead
+	 */
+	public float maxRoiFraction = 0.6f;
+
+	// statistics
+	public long fullSearchCount = 0;
+	public long roiSearchCount = 0;
+
+	// current search
+	int mode = SEARCH_FULL;
+	int offsetX = 0;
+	int offsetY = 0;
+	int scale = 1;
+	int roiX, roiY, roiWidth, roiHeight;
+	int searchWidth, searchHeight;
+
+	// track - full frame pixel coordinates
+	boolean locked = false;
+	int misses = 0;
+	int framesSinceFull = 0;
+	float cx, cy, vx, vy, w, h;
+
+	transient IplImage small = null;
+
+	public DetectionWindow() {
+	}
+
+	/**
+	 * @param downscale
+	 *            - 1 for detectors which can not work on a downscaled frame
+	 *            (e.g. template matching with a full resolution template)
+	 */
+	public DetectionWindow(int downscale) {
+		this.downscale = downscale;
+	}
+
+	/**
+	 * decides the type of search for the next frame and prepares the image to
+	 * search - either the frame with its roi set, a downscaled copy or the
+	 * frame itself
+	 *
+	 * @param image
+	 *            full frame
+	 * @return the image the detector should search
+	 */
+	public IplImage begin(IplImage image) {
+		return begin(image, 1, 1);
+	}
+
+	/**
+	 * @param minWidth
+	 *            - smallest roi the detector can work with (e.g. template
+	 *            width)
+	 * @param minHeight
+	 *            - smallest roi height
+	 */
+	public IplImage begin(IplImage image, int minWidth, int minHeight) {
+		select(image.width(), image.height(), minWidth, minHeight);
+
+		switch (mode) {
+		case SEARCH_ROI:
+			cvSetImageROI(image, cvRect(roiX, roiY, roiWidth, roiHeight));
+			return image;
+		case SEARCH_DOWNSCALED:
+			return downscale(image);
+		default:
+			return image;
+		}
+	}
+
+	/**
+	 * restores the frame after a search
+	 */
+	public void end(IplImage image) {
+		if (mode == SEARCH_ROI) {
+			cvResetImageROI(image);
+		}
+	}
+
+	/**
+	 * downscaled copy of the full frame - the copy buffer is reused between
+	 * frames
+	 */
+	public IplImage downscale(IplImage image) {
+		int sw = image.width() / downscale;
+		int sh = image.height() / downscale;
+		if (small == null || small.width() != sw || small.height() != sh || small.nChannels() != image.nChannels()) {
+			if (small != null) {
+				cvReleaseImage(small);
+			}
+			small = cvCreateImage(cvSize(sw, sh), image.depth(), image.nChannels());
+		}
+		cvResize(image, small, CV_INTER_AREA);
+		return small;
+	}
+
+	/**
+	 * pure decision part of begin - sets mode, scale, offset and roi for a
+	 * frame of the given size
+	 */
+	public int select(int frameWidth, int frameHeight, int minWidth, int minHeight) {
+		++framesSinceFull;
+
+		if (!enabled) {
+			setFull(1, frameWidth, frameHeight);
+			return mode;
+		}
+
+		if (!locked || misses >= maxMisses || framesSinceFull > fullFrameInterval) {
+			setFull(downscale, frameWidth, frameHeight);
+			framesSinceFull = 0;
+			++fullSearchCount;
+			return mode;
+		}
+
+		// predict where the target will be
+		float px = cx + vx;
+		float py = cy + vy;
+		float rw = Math.max(w * roiScale, w + 2 * roiMargin) + Math.abs(vx);
+		float rh = Math.max(h * roiScale, h + 2 * roiMargin) + Math.abs(vy);
+		rw = Math.max(rw, minWidth);
+		rh = Math.max(rh, minHeight);
+
+		int x0 = Math.max(0, (int) (px - rw / 2));
+		int y0 = Math.max(0, (int) (py - rh / 2));
+		int x1 = Math.min(frameWidth, (int) (px + rw / 2));
+		int y1 = Math.min(frameHeight, (int) (py + rh / 2));
+
+		if (x1 - x0 < minWidth || y1 - y0 < minHeight || (float) ((x1 - x0) * (y1 - y0)) / (frameWidth * frameHeight) > maxRoiFraction) {
+			setFull(downscale, frameWidth, frameHeight);
+			framesSinceFull = 0;
+			++fullSearchCount;
+			return mode;
+		}
+
+		mode = SEARCH_ROI;
+		scale = 1;
+		roiX = offsetX = x0;
+		roiY = offsetY = y0;
+		roiWidth = searchWidth = x1 - x0;
+		roiHeight = searchHeight = y1 - y0;
+		++roiSearchCount;
+		return mode;
+	}
+
+	private void setFull(int s, int frameWidth, int frameHeight) {
+		s = Math.max(1, s);
+		mode = (s > 1) ? SEARCH_DOWNSCALED : SEARCH_FULL;
+		scale = s;
+		offsetX = 0;
+		offsetY = 0;
+		searchWidth = frameWidth / s;
+		searchHeight = frameHeight / s;
+	}
+
+	public int mapX(int x) {
+		return x * scale + offsetX;
+	}
+
+	public int mapY(int y) {
+		return y * scale + offsetY;
+	}
+
+	public int mapLength(int l) {
+		return l * scale;
+	}
+
+	public float mapX(float x) {
+		return x * scale + offsetX;
+	}
+
+	public float mapY(float y) {
+		return y * scale + offsetY;
+	}
+
+	/**
+	 * feeds the result of the last search back - coordinates are full frame
+	 * pixels (after mapping)
+	 */
+	public void update(boolean found, int x, int y, int width, int height) {
+		if (!found) {
+			++misses;
+			if (mode != SEARCH_ROI) {
+				// a full frame search found nothing
+				locked = false;
+			}
+			return;
+		}
+
+		float ncx = x + width / 2.0f;
+		float ncy = y + height / 2.0f;
+		if (locked) {
+			vx = (vx + (ncx - cx)) / 2;
+			vy = (vy + (ncy - cy)) / 2;
+		} else {
+			vx = 0;
+			vy = 0;
+		}
+		cx = ncx;
+		cy = ncy;
+		w = width;
+		h = height;
+		misses = 0;
+		locked = true;
+	}
+
+	public void reset() {
+		locked = false;
+		misses = 0;
+		framesSinceFull = 0;
+		vx = vy = 0;
+		mode = SEARCH_FULL;
+		scale = 1;
+		offsetX = offsetY = 0;
+	}
+
+	public boolean isLocked() {
+		return locked;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * width of the image returned by the last begin - roi width in roi mode
+	 */
+	public int getSearchWidth() {
+		return searchWidth;
+	}
+
+	public int getSearchHeight() {
+		return searchHeight;
+	}
+}
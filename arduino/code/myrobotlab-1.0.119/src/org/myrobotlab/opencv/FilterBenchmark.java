@@ -0,0 +1,300 @@
+package org.myrobotlab.opencv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.bytedeco.javacpp.opencv_core.IplImage;
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.service.OpenCV;
+import org.slf4j.Logger;
+
+/**
+ * Benchmark for OpenCV filters and filter chains over a fixed directory of
+ * frames (read through ImageFileFrameGrabber) - so filter changes can be
+ * measured before they go on the robot.
+ *
+ * For every chain it reports throughput, per frame latency percentiles and
+ * java heap allocation per frame (native OpenCV allocations are not visible
+ * to the jvm). Results can be saved as a baseline properties file, later runs
+ * are compared against it and chains which got slower than tolerance are
+ * reported as regressions.
+ *
+ * <pre>
+ * java org.myrobotlab.opencv.FilterBenchmark -frames dir [-iterations 300] [-warmup 50]
+ *      [-baseline file] [-save] [-tolerance 0.15] [-chain Gray,PyramidDown,FaceDetect]*
+ * </pre>
+ *
+ * With no -chain every filter in OpenCV.VALID_FILTERS is run alone followed by
+ * the default chains.
+ *
+ * This is a plain harness rather than JMH - OpenCV filters are dominated by
+ * native work in the tens of ms, where JMH's jit controls add little, and it
+ * keeps the build free of another dependency.
+ */
+public class FilterBenchmark {
+
+	public final static Logger log = LoggerFactory.getLogger(FilterBenchmark.class);
+
+	public static final String[] DEFAULT_CHAINS = { "Gray,PyramidDown", "PyramidDown,Gray,FaceDetect", "Gray,PyramidDown,FaceDetect", "PyramidDown,Gray,Detector,Erode,Dilate,FindContours",
+			"PyramidDown,Gray,Canny" };
+
+	public static class Result {
+		public String chain;
+		public int frames;
+		public double fps;
+		public double p50;
+		public double p90;
+		public double p99;
+		public double max;
+		public double bytesPerFrame;
+		public String error;
+
+		@Override
+		public String toString() {
+			if (error != null) {
+				return String.format("%-50s error %s", chain, error);
+			}
+			return String.format("%-50s %8.1f fps  p50 %7.2f ms  p90 %7.2f ms  p99 %7.2f ms  max %7.2f ms  %10.0f B/frame", chain, fps, p50, p90, p99, max, bytesPerFrame);
+		}
+	}
+
+	String framesDir;
+	int iterations = 300;
+	int warmup = 50;
+	OpenCV opencv;
+
+	public FilterBenchmark(String framesDir) {
+		this.framesDir = framesDir;
+		// filters reach back to the service through the VideoProcessor
+		opencv = new OpenCV("benchmark");
+	}
+
+	/**
+	 * runs a comma separated chain of filter types over the frames
+	 */
+	public Result run(String chain) {
+		Result result = new Result();
+		result.chain = chain;
+
+		ArrayList<OpenCVFilter> filters = new ArrayList<OpenCVFilter>();
+		ImageFileFrameGrabber grabber = new ImageFileFrameGrabber(framesDir);
+		try {
+			String[] types = chain.split(",");
+			for (int i = 0; i < types.length; ++i) {
+				String type = types[i].trim();
+				OpenCVFilter filter = (OpenCVFilter) Service.getNewInstance(String.format("org.myrobotlab.opencv.OpenCVFilter%s", type), type);
+				if (filter == null) {
+					result.error = String.format("could not create %s", type);
+					return result;
+				}
+				filter.setVideoProcessor(opencv.videoProcessor);
+				filters.add(filter);
+			}
+
+			for (int i = 0; i < warmup; ++i) {
+				pass(grabber, filters, i);
+			}
+
+			double[] latencies = new double[iterations];
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; ++i) {
+				long t = System.nanoTime();
+				pass(grabber, filters, warmup + i);
+				latencies[i] = (System.nanoTime() - t) / 1000000.0;
+			}
+			long elapsed = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+
+			Arrays.sort(latencies);
+			result.frames = iterations;
+			result.fps = iterations / (elapsed / 1000000000.0);
+			result.p50 = percentile(latencies, 0.50);
+			result.p90 = percentile(latencies, 0.90);
+			result.p99 = percentile(latencies, 0.99);
+			result.max = latencies[latencies.length - 1];
+			result.bytesPerFrame = (allocated < 0) ? -1 : (double) allocated / iterations;
+
+		} catch (Exception e) {
+			result.error = e.getMessage();
+		} finally {
+			for (OpenCVFilter filter : filters) {
+				filter.release();
+			}
+		}
+		return result;
+	}
+
+	private void pass(ImageFileFrameGrabber grabber, ArrayList<OpenCVFilter> filters, int frameIndex) throws Exception {
+		IplImage image = grabber.grab();
+		if (image == null) {
+			throw new IOException(String.format("no frames in %s", framesDir));
+		}
+		OpenCVData data = new OpenCVData(opencv.getName(), frameIndex);
+		for (int i = 0; i < filters.size(); ++i) {
+			OpenCVFilter filter = filters.get(i);
+			data.setFilter(filter);
+			filter.preProcess(frameIndex, image, data);
+			image = filter.process(image, data);
+		}
+	}
+
+	static double percentile(double[] sorted, double p) {
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	/**
+	 * java heap bytes allocated by this thread - -1 if the jvm can not tell
+	 */
+	static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		} catch (Throwable t) {
+		}
+		return -1;
+	}
+
+	public static void saveBaseline(ArrayList<Result> results, String filename) throws IOException {
+		Properties props = new Properties();
+		for (Result r : results) {
+			if (r.error == null) {
+				props.setProperty(r.chain + ".p50", String.format("%.3f", r.p50));
+				props.setProperty(r.chain + ".p99", String.format("%.3f", r.p99));
+				props.setProperty(r.chain + ".fps", String.format("%.1f", r.fps));
+				props.setProperty(r.chain + ".bytesPerFrame", String.format("%.0f", r.bytesPerFrame));
+			}
+		}
+		FileOutputStream out = new FileOutputStream(filename);
+		try {
+			props.store(out, "FilterBenchmark baseline");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the chains which are slower (p50 or p99) or allocate more than
+	 *         the baseline plus tolerance
+	 */
+	public static ArrayList<String> compare(ArrayList<Result> results, String filename, double tolerance) throws IOException {
+		Properties props = new Properties();
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		ArrayList<String> regressions = new ArrayList<String>();
+		for (Result r : results) {
+			if (r.error != null) {
+				continue;
+			}
+			check(regressions, r.chain, "p50", r.p50, props, tolerance);
+			check(regressions, r.chain, "p99", r.p99, props, tolerance);
+			check(regressions, r.chain, "bytesPerFrame", r.bytesPerFrame, props, tolerance);
+		}
+		return regressions;
+	}
+
+	static void check(ArrayList<String> regressions, String chain, String metric, double value, Properties baseline, double tolerance) {
+		String b = baseline.getProperty(chain + "." + metric);
+		if (b == null) {
+			return;
+		}
+		double base = Double.parseDouble(b);
+		if (base > 0 && value > base * (1 + tolerance)) {
+			regressions.add(String.format("%s %s %.2f baseline %.2f (+%.0f%%)", chain, metric, value, base, (value / base - 1) * 100));
+		}
+	}
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.WARN);
+
+		try {
+			String framesDir = null;
+			String baseline = null;
+			boolean save = false;
+			double tolerance = 0.15;
+			int iterations = 300;
+			int warmup = 50;
+			ArrayList<String> chains = new ArrayList<String>();
+
+			for (int i = 0; i < args.length; ++i) {
+				if ("-frames".equals(args[i])) {
+					framesDir = args[++i];
+				} else if ("-iterations".equals(args[i])) {
+					iterations = Integer.parseInt(args[++i]);
+				} else if ("-warmup".equals(args[i])) {
+					warmup = Integer.parseInt(args[++i]);
+				} else if ("-baseline".equals(args[i])) {
+					baseline = args[++i];
+				} else if ("-save".equals(args[i])) {
+					save = true;
+				} else if ("-tolerance".equals(args[i])) {
+					tolerance = Double.parseDouble(args[++i]);
+				} else if ("-chain".equals(args[i])) {
+					chains.add(args[++i]);
+				}
+			}
+
+			if (framesDir == null || !new File(framesDir).exists()) {
+				System.out.println("usage: FilterBenchmark -frames dir [-iterations n] [-warmup n] [-baseline file] [-save] [-tolerance 0.15] [-chain Gray,PyramidDown]*");
+				System.exit(1);
+			}
+
+			if (chains.size() == 0) {
+				chains.addAll(Arrays.asList(OpenCV.VALID_FILTERS));
+				chains.addAll(Arrays.asList(DEFAULT_CHAINS));
+			}
+
+			FilterBenchmark benchmark = new FilterBenchmark(framesDir);
+			benchmark.iterations = iterations;
+			benchmark.warmup = warmup;
+
+			ArrayList<Result> results = new ArrayList<Result>();
+			for (String chain : chains) {
+				Result r = benchmark.run(chain);
+				results.add(r);
+				System.out.println(r);
+			}
+
+			if (baseline != null) {
+				if (save || !new File(baseline).exists()) {
+					saveBaseline(results, baseline);
+					System.out.println(String.format("baseline saved to %s", baseline));
+				} else {
+					ArrayList<String> regressions = compare(results, baseline, tolerance);
+					for (String regression : regressions) {
+						System.out.println(String.format("REGRESSION %s", regression));
+					}
+					System.out.println(String.format("%d regressions against %s", regressions.size(), baseline));
+					if (regressions.size() > 0) {
+						System.exit(1);
+					}
+				}
+			}
+
+		} catch (Exception e) {
+			// a benchmark which did not run must not pass a build
+			Logging.logError(e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
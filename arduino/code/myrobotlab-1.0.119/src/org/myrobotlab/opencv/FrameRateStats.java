@@ -0,0 +1,50 @@
+package org.myrobotlab.opencv;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * periodic snapshot of the VideoProcessor's frame rates and latency -
+ * published through OpenCV.publishFrameRateStats
+ */
+public class FrameRateStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public String name;
+	public long ts;
+
+	/**
+	 * frames grabbed per second - including skipped frames
+	 */
+	public float grabFps;
+
+	/**
+	 * frames which went through the filter pipeline per second
+	 */
+	public float processedFps;
+
+	/**
+	 * frames dropped at grab time since the last report
+	 */
+	public int skipped;
+
+	/**
+	 * smoothed and maximum grab to publish latency in ms since last report
+	 */
+	public float latency;
+	public long maxLatency;
+	public int targetLatency;
+
+	/**
+	 * effective processing rate of each filter - filters with a
+	 * processEvery &gt; 1 run at a fraction of processedFps
+	 */
+	public HashMap<String, Float> filterFps = new HashMap<String, Float>();
+
+	@Override
+	public String toString() {
+		return String.format("%s grab %.1f fps processed %.1f fps skipped %d latency %.1f ms (max %d target %d) filters %s", name, grabFps, processedFps, skipped, latency, maxLatency,
+				targetLatency, filterFps);
+	}
+}
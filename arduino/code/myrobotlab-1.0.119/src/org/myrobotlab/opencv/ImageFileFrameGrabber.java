@@ -2,6 +2,10 @@ package org.myrobotlab.opencv;
 
 import static org.bytedeco.javacpp.opencv_highgui.cvLoadImage;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import org.myrobotlab.logging.LoggerFactory;
 import org.slf4j.Logger;
 
@@ -18,18 +22,61 @@ public class ImageFileFrameGrabber extends FrameGrabber {
 	private int frameCounter = 0;
 	String path;
 
+	/**
+	 * when path is a directory - its images are grabbed in name order and
+	 * cycled, each is loaded once
+	 */
+	private ArrayList<IplImage> frames = null;
+	private int frameIndex = 0;
+
 	public ImageFileFrameGrabber(String path) {
 		this.path = path;
 		
 		
 	}
 
+	private void loadDirectory(File dir) {
+		frames = new ArrayList<IplImage>();
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; ++i) {
+			String name = files[i].getName().toLowerCase();
+			if (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".bmp")) {
+				IplImage img = cvLoadImage(files[i].getPath());
+				if (img != null) {
+					frames.add(img);
+				}
+			}
+		}
+		log.info("loaded {} frames from {}", frames.size(), dir);
+	}
+
+	public int getFrameCount() {
+		return (frames == null) ? 1 : frames.size();
+	}
+
 	@Override
 	public IplImage grab() {
 
 
-		if (cache == null) {
-			cache = cvLoadImage(path);
+		if (cache == null && frames == null) {
+			File f = new File(path);
+			if (f.isDirectory()) {
+				loadDirectory(f);
+			} else {
+				cache = cvLoadImage(path);
+			}
+		}
+
+		if (frames != null) {
+			if (frames.size() == 0) {
+				return null;
+			}
+			cache = frames.get(frameIndex % frames.size());
+			++frameIndex;
 		}
 
 		image = cache.clone();
@@ -454,6 +454,26 @@ public class OpenCVData implements Serializable {
 		data.putAll(sources);
 	}
 
+	/**
+	 * a copy of all the data a filter has put in this pass - used to reuse a
+	 * filter's results on frames where it is not processed
+	 * 
+	 * @param filterName
+	 * @return
+	 */
+	public HashMap<String, Object> getFilterData(String filterName) {
+		HashMap<String, Object> ret = new HashMap<String, Object>();
+		String filterPrefix = String.format("%s.", filterName);
+		String servicePrefix = String.format("%s.%s.", serviceName, filterName);
+		for (Map.Entry<String, Object> o : data.entrySet()) {
+			String key = o.getKey();
+			if (key.startsWith(filterPrefix) || key.startsWith(servicePrefix)) {
+				ret.put(key, o.getValue());
+			}
+		}
+		return ret;
+	}
+
 	public void set(ArrayList<Point2Df> pointsToPublish) {
 		data.put(String.format("%s.points", selectedFilter), pointsToPublish);
 	}
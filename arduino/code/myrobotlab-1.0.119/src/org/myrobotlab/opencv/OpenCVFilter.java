@@ -53,6 +53,17 @@ public abstract class OpenCVFilter implements Serializable {
 	int height;
 	int channels;
 	int frameIndex;
+
+	/**
+	 * run process only every Nth frame - on the frames in between the last
+	 * output image and data of this filter are reused
+	 */
+	public int processEvery = 1;
+
+	/**
+	 * process returned its input image - set by the VideoProcessor
+	 */
+	transient boolean inPlace = false;
 	
 	transient CvSize imageSize;
 
@@ -92,6 +103,11 @@ public abstract class OpenCVFilter implements Serializable {
 	{
 		return vp;
 	}
+
+	public void setProcessEvery(int n)
+	{
+		processEvery = (n < 1) ? 1 : n;
+	}
 	
 	public OpenCVFilter setState(OpenCVFilter other)
 	{
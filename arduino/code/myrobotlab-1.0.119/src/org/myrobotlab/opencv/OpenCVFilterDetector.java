@@ -26,6 +26,9 @@
 package org.myrobotlab.opencv;
 
 import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import static org.bytedeco.javacpp.opencv_core.cvReleaseImage;
+import static org.bytedeco.javacpp.opencv_imgproc.CV_INTER_NN;
+import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
 
 import org.bytedeco.javacpp.opencv_video.BackgroundSubtractor;
 import org.bytedeco.javacpp.opencv_core.Mat;
@@ -50,6 +53,15 @@ public class OpenCVFilterDetector extends OpenCVFilter {
 	public float threshold = 128f;
 	public boolean shadowDetection = false;
 
+	/**
+	 * The background model has to see the whole scene every frame, so only
+	 * the downscaled part of the adaptive window is used here - the model runs
+	 * on a downscaled copy and the foreground mask is scaled back up.
+	 */
+	public DetectionWindow window = new DetectionWindow();
+	transient IplImage smallForeground;
+	boolean modelDownscaled = false;
+
 	public OpenCVFilterDetector() {
 		super();
 	}
@@ -69,6 +81,16 @@ public class OpenCVFilterDetector extends OpenCVFilter {
 	public void imageChanged(IplImage image) {
 		foreground = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
 
+		createModel();
+	}
+
+	/**
+	 * a new background model - the native one it replaces is released
+	 */
+	void createModel() {
+		if (mog != null) {
+			mog.deallocate();
+		}
 		mog = new BackgroundSubtractorMOG2(history, threshold, shadowDetection);
 	}
 
@@ -78,11 +100,36 @@ public class OpenCVFilterDetector extends OpenCVFilter {
 
 	@Override
 	public IplImage process(IplImage image, OpenCVData data) {
+		boolean downscaled = window.enabled && window.downscale > 1;
+		if (downscaled != modelDownscaled) {
+			// the model is size specific - start a new one
+			createModel();
+			modelDownscaled = downscaled;
+		}
+
+		if (downscaled) {
+			IplImage small = window.downscale(image);
+			if (smallForeground == null || smallForeground.width() != small.width() || smallForeground.height() != small.height()) {
+				if (smallForeground != null) {
+					cvReleaseImage(smallForeground);
+				}
+				smallForeground = IplImage.create(small.width(), small.height(), IPL_DEPTH_8U, 1);
+			}
+			mog.apply(new Mat(small), new Mat(smallForeground), learningRate);
+			cvResize(smallForeground, foreground, CV_INTER_NN);
+			return foreground;
+		}
+
 		// constructor changed to require Mat in javacv 0.10 
 		mog.apply(new Mat(image), new Mat(foreground), learningRate); // 0 trigger || -1 learn and
 		return foreground;
 	}
 
+	public void setAdaptive(boolean b) {
+		window.enabled = b;
+		window.reset();
+	}
+
 	public void search() {
 		learningRate = 0;
 	}
@@ -103,6 +103,11 @@ public class OpenCVFilterFaceDetect extends OpenCVFilter {
 
 	int x0, y0, x1, y1;
 
+	/**
+	 * adaptive roi / downscaled search - see DetectionWindow
+	 */
+	public DetectionWindow window = new DetectionWindow();
+
 	public OpenCVFilterFaceDetect() {
 		super();
 	}
@@ -184,7 +189,9 @@ public class OpenCVFilterFaceDetect extends OpenCVFilter {
 			// 3, CV_HAAR_DO_ROUGH_SEARCH | CV_HAAR_FIND_BIGGEST_OBJECT);
 			// faces = cvHaarDetectObjects(grayImage, classifier_eyes, storage,
 			// 1.1, 3, CV_HAAR_DO_CANNY_PRUNING);
-			CvSeq faces = cvHaarDetectObjects(image, cascade, storage, 1.1, 1, CV_HAAR_DO_CANNY_PRUNING | CV_HAAR_FIND_BIGGEST_OBJECT);
+			IplImage search = window.begin(image);
+			CvSeq faces = cvHaarDetectObjects(search, cascade, storage, 1.1, 1, CV_HAAR_DO_CANNY_PRUNING | CV_HAAR_FIND_BIGGEST_OBJECT);
+			window.end(image);
 
 			if (faces != null) {
 				ArrayList<Rectangle> bb = new ArrayList<Rectangle>();
@@ -194,16 +201,32 @@ public class OpenCVFilterFaceDetect extends OpenCVFilter {
 
 					CvRect r = new CvRect(cvGetSeqElem(faces, i));
 
+					// search coordinates back to full frame
+					int rx = window.mapX(r.x());
+					int ry = window.mapY(r.y());
+					int rw = window.mapLength(r.width());
+					int rh = window.mapLength(r.height());
+
+					if (i == 0) {
+						window.update(true, rx, ry, rw, rh);
+					}
+
 					Rectangle rect;
 					if (useFloatValues) {
-						rect = new Rectangle((float) r.x() / width, (float) r.y() / height, (float) r.width() / width, (float) r.height() / height);
+						rect = new Rectangle((float) rx / width, (float) ry / height, (float) rw / width, (float) rh / height);
 					} else {
-						rect = new Rectangle(r.x(), r.y(), r.width(), r.height());
+						rect = new Rectangle(rx, ry, rw, rh);
 					}
 					bb.add(rect);
 				}
 
 				data.put(bb);
+			} else {
+				faceCnt = 0;
+			}
+
+			if (faceCnt == 0) {
+				window.update(false, 0, 0, 0, 0);
 			}
 		} else {
 			cascade = new CvHaarClassifierCascade(cvLoad(String.format("%s/%s", cascadeDir, cascadeFile)));
@@ -259,4 +282,9 @@ public class OpenCVFilterFaceDetect extends OpenCVFilter {
 		return image;
 	}
 
+	public void setAdaptive(boolean b) {
+		window.enabled = b;
+		window.reset();
+	}
+
 }
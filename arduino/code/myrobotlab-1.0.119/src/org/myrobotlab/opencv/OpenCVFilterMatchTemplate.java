@@ -32,7 +32,9 @@ import static org.bytedeco.javacpp.opencv_core.cvCopy;
 import static org.bytedeco.javacpp.opencv_core.cvCreateImage;
 import static org.bytedeco.javacpp.opencv_core.cvMinMaxLoc;
 import static org.bytedeco.javacpp.opencv_core.cvPutText;
+import static org.bytedeco.javacpp.opencv_core.cvRect;
 import static org.bytedeco.javacpp.opencv_core.cvRectangle;
+import static org.bytedeco.javacpp.opencv_core.cvReleaseImage;
 import static org.bytedeco.javacpp.opencv_core.cvResetImageROI;
 import static org.bytedeco.javacpp.opencv_core.cvScalar;
 import static org.bytedeco.javacpp.opencv_core.cvSetImageROI;
@@ -91,6 +93,12 @@ public class OpenCVFilterMatchTemplate extends OpenCVFilter {
 
 	boolean isTracking = false;
 
+	/**
+	 * roi search around the last match - the template is full resolution so
+	 * full frame searches are not downscaled
+	 */
+	public DetectionWindow window = new DetectionWindow(1);
+
 	public OpenCVFilterMatchTemplate() {
 		super();
 	}
@@ -117,17 +125,32 @@ public class OpenCVFilterMatchTemplate extends OpenCVFilter {
 
 		// CV_TM_CCOEFF_NORMED
 		// cv.cvMatchTemplate(arg0, arg1, arg2, arg3);
+		boolean matched = false;
 		if (template != null && res != null) {
 			// TODO - DISPLAY RES SO THAT RESULTS FORM DIFFERENT FN's CAN BE
 			// EXAMINED
-			cvMatchTemplate(image, template, res, CV_TM_SQDIFF);
+			IplImage search = window.begin(image, template.width(), template.height());
+			int resWidth = window.getSearchWidth() - template.width() + 1;
+			int resHeight = window.getSearchHeight() - template.height() + 1;
+			// res is sized for a full frame search - the tracked window only
+			// uses its top left corner through the roi, so nothing is
+			// allocated per frame
+			if (res.width() < resWidth || res.height() < resHeight) {
+				cvReleaseImage(res);
+				res = cvCreateImage(cvSize(resWidth, resHeight), IPL_DEPTH_32F, 1);
+			}
+			cvSetImageROI(res, cvRect(0, 0, resWidth, resHeight));
+			cvMatchTemplate(search, template, res, CV_TM_SQDIFF);
+			window.end(image);
 			// cvNormalize( ftmp[i], ftmp[i], 1, 0, CV_MINMAX );
 			cvMinMaxLoc(res, new DoublePointer(minVal), new DoublePointer(maxVal), minLoc, maxLoc, null);
+			cvResetImageROI(res);
 
-			tempRect0.x(minLoc.x());
-			tempRect0.y(minLoc.y());
-			tempRect1.x(minLoc.x() + template.width());
-			tempRect1.y(minLoc.y() + template.height());
+			tempRect0.x(window.mapX(minLoc.x()));
+			tempRect0.y(window.mapY(minLoc.y()));
+			tempRect1.x(tempRect0.x() + template.width());
+			tempRect1.y(tempRect0.y() + template.height());
+			matched = true;
 		}
 
 		if (makeTemplate) {
@@ -142,7 +165,11 @@ public class OpenCVFilterMatchTemplate extends OpenCVFilter {
 															// IplImage
 															// is not
 															// serializable
+			if (res != null) {
+				cvReleaseImage(res);
+			}
 			res = cvCreateImage(cvSize(image.width() - template.width() + 1, image.height() - template.height() + 1), IPL_DEPTH_32F, 1);
+			window.reset();
 		}
 
 		if (template != null) {
@@ -154,6 +181,10 @@ public class OpenCVFilterMatchTemplate extends OpenCVFilter {
 			matchRatio = (int) (minVal[0] / ((tempRect1.x() - tempRect0.x()) * (tempRect1.y() - tempRect0.y())));
 			cvPutText(image, "" + matchRatio, textpt, font, CV_RGB(254, 254, 254));
 
+			if (matched) {
+				window.update(matchRatio < 500, tempRect0.x(), tempRect0.y(), template.width(), template.height());
+			}
+
 			if (matchRatio < 500) {
 				// draw rectangle
 				cvRectangle(image, tempRect0, tempRect1, cvScalar(255, 255, 255, 0), 1, 0, 0);
@@ -181,6 +212,11 @@ public class OpenCVFilterMatchTemplate extends OpenCVFilter {
 
 	}
 
+	public void setAdaptive(boolean b) {
+		window.enabled = b;
+		window.reset();
+	}
+
 	public void samplePoint(Float x, Float y) {
 		samplePoint((int) (x * width), (int) (y * height));
 	}
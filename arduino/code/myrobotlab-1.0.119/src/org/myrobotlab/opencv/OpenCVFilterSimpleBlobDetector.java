@@ -52,6 +52,11 @@ public class OpenCVFilterSimpleBlobDetector extends OpenCVFilter {
 
 	public ArrayList<Point2Df> pointsToPublish = new ArrayList<Point2Df>();
 	transient CvFont font = new CvFont();
+
+	/**
+	 * adaptive roi / downscaled search - see DetectionWindow
+	 */
+	public DetectionWindow window = new DetectionWindow();
 	
 	public OpenCVFilterSimpleBlobDetector()  {
 		super();
@@ -78,15 +83,24 @@ public class OpenCVFilterSimpleBlobDetector extends OpenCVFilter {
 		// TODO: i'd like to detect all the points at once..  
 		// can i pass an array or something like that?  hmm.
 		// TODO: this is null?! we blow up! (after javacv upgrade)
-		o.detect(new Mat(image), point);
+		IplImage search = window.begin(image);
+		o.detect(new Mat(search), point);
+		window.end(image);
 		
 		//System.out.println(point.toString());
 		float x = point.pt().x();
 		float y = point.pt().y();
 		if (x == 0 && y == 0) {
 			// ignore the zero / zero point
+			window.update(false, 0, 0, 0, 0);
 			return image;
 		}
+
+		// search coordinates back to full frame
+		x = window.mapX(x);
+		y = window.mapY(y);
+		int size = Math.max(1, window.mapLength((int) point.size()));
+		window.update(true, (int) x - size / 2, (int) y - size / 2, size, size);
 		// pointsToPublish.clear();
 		// min distance to an existing point ?
 		// up to 25 pixels away?
@@ -141,6 +155,11 @@ public class OpenCVFilterSimpleBlobDetector extends OpenCVFilter {
 		pointsToPublish.clear();
 	}
 	
+	public void setAdaptive(boolean b) {
+		window.enabled = b;
+		window.reset();
+	}
+
 	public int getNumberOfBlobs() {
 		return pointsToPublish.size();
 	}
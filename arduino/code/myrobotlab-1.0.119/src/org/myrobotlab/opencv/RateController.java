@@ -0,0 +1,146 @@
+package org.myrobotlab.opencv;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adaptive rate control for the VideoProcessor capture loop.
+ *
+ * The latency of every frame is measured from the moment it was grabbed until
+ * it has been published. When the smoothed latency goes over targetLatency
+ * frames which are already buffered in the camera driver are grabbed and
+ * dropped before processing - a grab which returns faster than staleGrabTime
+ * did not have to wait for the sensor, so the frame was sitting in a buffer
+ * and is old. For a tracking robot a recent frame is worth more than every
+ * frame.
+ *
+ * It also counts grabbed, processed and per filter frames to report effective
+ * frame rates.
+ */
+public class RateController implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * drop stale frames when latency is over target
+	 */
+	public boolean enabled = false;
+
+	/**
+	 * grab to publish latency target in ms
+	 */
+	public int targetLatency = 100;
+
+	/**
+	 * maximum number of frames dropped before each processed frame
+	 */
+	public int maxSkip = 4;
+
+	/**
+	 * a grab returning faster than this (ms) is considered a buffered frame
+	 */
+	public int staleGrabTime = 5;
+
+	/**
+	 * smoothing factor of the latency average
+	 */
+	public float alpha = 0.2f;
+
+	/**
+	 * time between stats reports in ms
+	 */
+	public int reportInterval = 1000;
+
+	float latency = 0;
+	long maxLatency = 0;
+
+	long grabbed = 0;
+	long processed = 0;
+	int skipped = 0;
+	transient HashMap<String, long[]> filterCounts = new HashMap<String, long[]>();
+	long lastReport = System.currentTimeMillis();
+
+	/**
+	 * @param grabTime
+	 *            - ms the last grab call took
+	 * @param skippedSoFar
+	 *            - frames already dropped for this pass
+	 * @return true if the frame just grabbed should be dropped and another
+	 *         grabbed
+	 */
+	public boolean shouldSkip(long grabTime, int skippedSoFar) {
+		++grabbed;
+		if (!enabled || latency <= targetLatency || skippedSoFar >= maxSkip || grabTime >= staleGrabTime) {
+			return false;
+		}
+		++skipped;
+		return true;
+	}
+
+	/**
+	 * a frame made it through the pipeline
+	 *
+	 * @param grabTs
+	 *            - when it was grabbed
+	 */
+	public void frameDone(long grabTs) {
+		long l = System.currentTimeMillis() - grabTs;
+		latency = (latency == 0) ? l : latency + alpha * (l - latency);
+		if (l > maxLatency) {
+			maxLatency = l;
+		}
+		++processed;
+	}
+
+	public void filterProcessed(String name) {
+		if (filterCounts == null) {
+			filterCounts = new HashMap<String, long[]>();
+		}
+		long[] count = filterCounts.get(name);
+		if (count == null) {
+			count = new long[1];
+			filterCounts.put(name, count);
+		}
+		++count[0];
+	}
+
+	public boolean isReportDue() {
+		return System.currentTimeMillis() - lastReport >= reportInterval;
+	}
+
+	/**
+	 * snapshot of the rates since the last report - resets the counters
+	 */
+	public FrameRateStats report(String name) {
+		long now = System.currentTimeMillis();
+		float seconds = Math.max(1, now - lastReport) / 1000.0f;
+
+		FrameRateStats stats = new FrameRateStats();
+		stats.name = name;
+		stats.ts = now;
+		stats.grabFps = grabbed / seconds;
+		stats.processedFps = processed / seconds;
+		stats.skipped = skipped;
+		stats.latency = latency;
+		stats.maxLatency = maxLatency;
+		stats.targetLatency = targetLatency;
+		if (filterCounts != null) {
+			for (Map.Entry<String, long[]> e : filterCounts.entrySet()) {
+				stats.filterFps.put(e.getKey(), e.getValue()[0] / seconds);
+				e.getValue()[0] = 0;
+			}
+		}
+
+		grabbed = 0;
+		processed = 0;
+		skipped = 0;
+		maxLatency = 0;
+		lastReport = now;
+		return stats;
+	}
+
+	public float getLatency() {
+		return latency;
+	}
+}
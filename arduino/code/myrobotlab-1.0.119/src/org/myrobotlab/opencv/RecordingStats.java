@@ -0,0 +1,45 @@
+package org.myrobotlab.opencv;
+
+import java.io.Serializable;
+
+/**
+ * periodic snapshot of the background video recorder - published through
+ * OpenCV.publishRecordingStats
+ */
+public class RecordingStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public String name;
+	public long ts;
+
+	/**
+	 * frames written per second over all recorded sources
+	 */
+	public float writtenFps;
+
+	/**
+	 * frames dropped by the drop policy since the last report
+	 */
+	public long dropped;
+
+	/**
+	 * frames waiting for the encoder
+	 */
+	public int queued;
+
+	/**
+	 * average and maximum time of a single encoder write in ms
+	 */
+	public float encoderLatency;
+	public float maxEncoderLatency;
+
+	public int sources;
+	public int segments;
+
+	@Override
+	public String toString() {
+		return String.format("%s written %.1f fps dropped %d queued %d encoder %.2f ms (max %.2f) sources %d segments %d", name, writtenFps, dropped, queued, encoderLatency,
+				maxEncoderLatency, sources, segments);
+	}
+}
@@ -9,8 +9,6 @@ import static org.bytedeco.javacpp.opencv_core.cvPutText;
 import static org.bytedeco.javacpp.opencv_core.cvScalar;
 import static org.bytedeco.javacpp.opencv_core.cvInitFont;
 import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.FrameRecorder;
-import org.bytedeco.javacv.OpenCVFrameRecorder;
 import org.bytedeco.javacv.OpenKinectFrameGrabber;
 import org.bytedeco.javacpp.opencv_core.CvFont;
 import org.bytedeco.javacpp.opencv_core.CvPoint;
@@ -22,6 +20,7 @@ import java.lang.reflect.Constructor;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.SimpleTimeZone;
 import java.util.concurrent.BlockingQueue;
@@ -97,7 +96,10 @@ public class VideoProcessor implements Runnable, Serializable {
 
 	transient SimpleDateFormat sdf = new SimpleDateFormat();
 
-	transient HashMap<String, FrameRecorder> outputFileStreams = new HashMap<String, FrameRecorder>();
+	/**
+	 * background writer for recordOutput
+	 */
+	transient public AsyncVideoRecorder recorder = new AsyncVideoRecorder(this);
 
 	public static final String INPUT_KEY = "input";
 
@@ -112,15 +114,30 @@ public class VideoProcessor implements Runnable, Serializable {
 
 	private int minDelay = 0;
 
+	/**
+	 * latency based frame skipping &amp; frame rate statistics
+	 */
+	public RateController rateControl = new RateController();
+
+	/**
+	 * last results of filters which are not processed every frame
+	 */
+	transient HashMap<String, HashMap<String, Object>> reusedData = new HashMap<String, HashMap<String, Object>>();
+
 	/**
 	 * creates a copy of the frame data leaving the original data unmarked
 	 */
 	public boolean forkDisplay = false;
 
 	private boolean recordOutput = false;
-	private boolean closeOutputs = false;
 	public String recordingSource = INPUT_KEY;
 
+	/**
+	 * additional sources to record at the same time as recordingSource - e.g.
+	 * input and FaceDetect.display
+	 */
+	public HashSet<String> recordingSources = new HashSet<String>();
+
 	private boolean showFrameNumbers = true;
 
 	private boolean showTimestamp = true;
@@ -211,7 +228,8 @@ public class VideoProcessor implements Runnable, Serializable {
 	}
 
 	/**
-	 * thread safe recording of avi
+	 * thread safe recording of avi - frames are copied and queued, the
+	 * encoding is done on the recorder's thread
 	 * 
 	 * @param key
 	 *            - input, filter, or display
@@ -220,30 +238,11 @@ public class VideoProcessor implements Runnable, Serializable {
 	public void record(OpenCVData data) {
 		try {
 
-			if (!outputFileStreams.containsKey(recordingSource)) {
-				// FFmpegFrameRecorder recorder = new FFmpegFrameRecorder
-				// (String.format("%s.avi",filename), frame.width(),
-				// frame.height());
-
-				FrameRecorder recorder = new OpenCVFrameRecorder(String.format("%s.avi", recordingSource), frame.width(), frame.height());
-				// recorder.setCodecID(CV_FOURCC('M','J','P','G'));
-				// TODO - set frame rate to framerate
-				recorder.setFrameRate(15);
-				recorder.setPixelFormat(1);
-				recorder.start();
-				outputFileStreams.put(recordingSource, recorder);
-			}
-
-			// TODO - add input, filter & display
-			outputFileStreams.get(recordingSource).record(data.getImage(recordingSource));
-
-			if (closeOutputs) {
-				OpenCVFrameRecorder output = (OpenCVFrameRecorder) outputFileStreams.get(recordingSource);
-				outputFileStreams.remove(output);
-				output.stop();
-				output.release();
-				recordOutput = false;
-				closeOutputs = false;
+			recorder.add(recordingSource, data.getImage(recordingSource));
+			for (String source : recordingSources) {
+				if (!source.equals(recordingSource)) {
+					recorder.add(source, data.getImage(source));
+				}
 			}
 
 		} catch (Exception e) {
@@ -254,12 +253,22 @@ public class VideoProcessor implements Runnable, Serializable {
 	public void recordOutput(Boolean b) {
 
 		if (b) {
+			recorder.start();
 			recordOutput = b;
 		} else {
-			closeOutputs = true;
+			recordOutput = false;
+			recorder.stop();
 		}
 	}
 
+	public void addRecordingSource(String source) {
+		recordingSources.add(source);
+	}
+
+	public void removeRecordingSource(String source) {
+		recordingSources.remove(source);
+	}
+
 	public void removeFilter(OpenCVFilter inFilter) {
 		synchronized (filters) {
 			Iterator<OpenCVFilter> itr = filters.iterator();
@@ -268,6 +277,7 @@ public class VideoProcessor implements Runnable, Serializable {
 				if (filter == inFilter) {
 					filter.release();
 					itr.remove();
+					reusedData.remove(filter.name);
 					if (filters.size() - 1 > 0) {
 						displayFilterName = filters.get(filters.size() - 1).name;
 						log.info("remove and switch displayFilter to {}", displayFilterName);
@@ -286,6 +296,7 @@ public class VideoProcessor implements Runnable, Serializable {
 				filter.release();
 			}
 			filters.clear();
+			reusedData.clear();
 		}
 	}
 
@@ -393,10 +404,22 @@ public class VideoProcessor implements Runnable, Serializable {
 				if (Logging.performanceTiming)
 					Logging.logTime("start");
 
+				long grabTs = System.currentTimeMillis();
 				frame = grabber.grab();
+				long grabTime = System.currentTimeMillis() - grabTs;
+
+				// over the latency target - drop the frames which have been
+				// waiting in the driver's buffers and process a fresh one
+				int skipped = 0;
+				while (frame != null && rateControl.shouldSkip(grabTime, skipped)) {
+					++skipped;
+					grabTs = System.currentTimeMillis();
+					frame = grabber.grab();
+					grabTime = System.currentTimeMillis() - grabTs;
+				}
 
 				if (Logging.performanceTiming)
-					Logging.logTime(String.format("post-grab %d", frameIndex));
+					Logging.logTime(String.format("post-grab %d skipped %d", frameIndex, skipped));
 
 				// log.info(String.format("frame %d", frameIndex));
 
@@ -416,6 +439,7 @@ public class VideoProcessor implements Runnable, Serializable {
 
 				// TODO - option to accumulate? - e.g. don't new
 				data = new OpenCVData(boundServiceName, frameIndex);
+				data.setTimestamp(grabTs);
 
 				if (Logging.performanceTiming)
 					Logging.logTime("pre-synchronized-filter");
@@ -450,22 +474,42 @@ public class VideoProcessor implements Runnable, Serializable {
 							continue;
 						}
 
-						// pre process for image size & channel changes
-						filter.preProcess(frameIndex, image, data);
-						if (Logging.performanceTiming)
-							Logging.logTime(String.format("preProcess-filter %s", filter.name));
-						image = filter.process(image, data); // <- image =
-																// filter.process(image,
-																// data) <--
-																// this means if
-																// the
-																// filter.process
-																// copies and
-																// returns a new
-																// buffer - it's
-																// FORKED
-						if (Logging.performanceTiming)
-							Logging.logTime(String.format("process-filter %s", filter.name));
+						if (filter.processEvery > 1 && frameIndex % filter.processEvery != 0 && reusedData.containsKey(filter.name)) {
+							// not this filter's frame - reuse its last results
+							// in place filters pass the current image through
+							if (!filter.inPlace) {
+								IplImage last = sources.get(boundServiceName, filter.name);
+								if (last != null) {
+									image = last;
+								}
+							}
+							data.putAll(reusedData.get(filter.name));
+						} else {
+
+							// pre process for image size & channel changes
+							filter.preProcess(frameIndex, image, data);
+							if (Logging.performanceTiming)
+								Logging.logTime(String.format("preProcess-filter %s", filter.name));
+							IplImage input = image;
+							image = filter.process(image, data); // <- image =
+																	// filter.process(image,
+																	// data) <--
+																	// this means if
+																	// the
+																	// filter.process
+																	// copies and
+																	// returns a new
+																	// buffer - it's
+																	// FORKED
+							if (Logging.performanceTiming)
+								Logging.logTime(String.format("process-filter %s", filter.name));
+
+							rateControl.filterProcessed(filter.name);
+							if (filter.processEvery > 1) {
+								filter.inPlace = (image == input);
+								reusedData.put(filter.name, data.getFilterData(filter.name));
+							}
+						}
 
 						// process the image - push into source as new output
 						// other pipelines will pull it off the from the sources
@@ -569,6 +613,11 @@ public class VideoProcessor implements Runnable, Serializable {
 					record(data);
 				}
 
+				rateControl.frameDone(grabTs);
+				if (rateControl.isReportDue()) {
+					opencv.invoke("publishFrameRateStats", rateControl.report(boundServiceName));
+				}
+
 			} catch (Exception e) {
 				Logging.logError(e);
 				log.error("stopping capture");
@@ -579,6 +628,11 @@ public class VideoProcessor implements Runnable, Serializable {
 				Logging.logTime("finished pass");
 		} // while capturing
 
+		// finish the files - the recorder drains what is queued
+		if (recordOutput) {
+			recordOutput(false);
+		}
+
 		try {
 			grabber.release();
 			grabber = null;
@@ -591,6 +645,21 @@ public class VideoProcessor implements Runnable, Serializable {
 		this.minDelay = minDelay;
 	}
 
+	/**
+	 * enables frame skipping to keep the grab to publish latency under
+	 * target - 0 or less disables it
+	 * 
+	 * @param ms
+	 */
+	public void setTargetLatency(int ms) {
+		if (ms > 0) {
+			rateControl.targetLatency = ms;
+			rateControl.enabled = true;
+		} else {
+			rateControl.enabled = false;
+		}
+	}
+
 	// FIXME - cheesy initialization - put it all in the constructor or before
 	// I assume this was done because the load() is difficult to manage !!
 	public void setOpencv(OpenCV opencv) {
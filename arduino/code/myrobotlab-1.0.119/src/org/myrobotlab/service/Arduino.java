@@ -40,6 +40,8 @@ import static org.myrobotlab.codec.ArduinoMsgCodec.SET_SERVO_SPEED;
 import static org.myrobotlab.codec.ArduinoMsgCodec.SET_TRIGGER;
 import static org.myrobotlab.codec.ArduinoMsgCodec.STEPPER_ATTACH;
 import static org.myrobotlab.codec.ArduinoMsgCodec.STEPPER_MOVE_TO;
+import static org.myrobotlab.codec.ArduinoMsgCodec.STEPPER_QUEUE;
+import static org.myrobotlab.codec.ArduinoMsgCodec.STEPPER_QUEUE_CLEAR;
 import static org.myrobotlab.codec.ArduinoMsgCodec.STEPPER_RESET;
 import static org.myrobotlab.codec.ArduinoMsgCodec.STEPPER_STOP;
 
@@ -67,9 +69,10 @@ import org.myrobotlab.service.interfaces.MotorControl;
 import org.myrobotlab.service.interfaces.MotorController;
 import org.myrobotlab.service.interfaces.SensorDataPublisher;
 import org.myrobotlab.service.interfaces.SerialDataListener;
+import org.myrobotlab.service.interfaces.ServoBatchController;
 import org.myrobotlab.service.interfaces.ServoControl;
 import org.myrobotlab.service.interfaces.ServoController;
-import org.myrobotlab.service.interfaces.StepperController;
+import org.myrobotlab.service.interfaces.StepperBatchController;
 import org.slf4j.Logger;
 
 /**
@@ -110,7 +113,7 @@ import org.slf4j.Logger;
  * 
  */
 
-public class Arduino extends Service implements SensorDataPublisher, SerialDataListener, ServoController, MotorController, StepperController {
+public class Arduino extends Service implements SensorDataPublisher, SerialDataListener, ServoBatchController, MotorController, StepperBatchController {
 
 	/**
 	 * MotorData is the combination of a Motor and any controller data needed to
@@ -218,6 +221,16 @@ public class Arduino extends Service implements SensorDataPublisher, SerialDataL
 	// index for data mapping going from Arduino ---to---> MRL
 	HashMap<Integer, Stepper> stepperIndex = new HashMap<Integer, Stepper>();
 
+	// stepper slice queue of MRLComm - STEPPER_QUEUE_SIZE slices of
+	// STEPPER_SLICE_MICROS each, at most STEPPER_SLICE_MAX_STEPS steps per
+	// stepper and slice
+	public static final int STEPPER_QUEUE_SIZE = 32;
+	public static final int STEPPER_SLICE_MICROS = 10000;
+	public static final int STEPPER_SLICE_MAX_STEPS = 127;
+	// slices sent and slices reported run - guarded by this
+	transient long stepperSlicesSent = 0;
+	transient long stepperSlicesRun = 0;
+
 	// data and mapping for data going from MRL ---to---> Arduino
 	HashMap<String, SensorData> sensors = new HashMap<String, SensorData>();
 	// index for data mapping going from Arduino ---to---> MRL
@@ -712,12 +725,15 @@ public class Arduino extends Service implements SensorDataPublisher, SerialDataL
 					int currentPos = msg[3];
 					int targetPos = msg[4];
 
-					log.info(String.format(" index %d type %d cur %d target %d", index, eventType, currentPos & 0xff, targetPos & 0xff));
+					if (log.isDebugEnabled()) {
+						log.debug(String.format(" index %d type %d cur %d target %d", index, eventType, currentPos & 0xff, targetPos & 0xff));
+					}
 					// uber good -
 					// TODO - deprecate ServoControl interface - not
 					// needed Servo is abstraction enough
 					Servo servo = (Servo) servoIndex.get(index).servo;
-					servo.invoke("publishServoEvent", currentPos & 0xff);
+					// feeds the servo's position model, then publishes
+					servo.controllerEvent(eventType, currentPos & 0xff, targetPos & 0xff);
 					break;
 				}
 
@@ -739,11 +755,25 @@ public class Arduino extends Service implements SensorDataPublisher, SerialDataL
 					int eventType = msg[2];
 					int currentPos = (msg[3] << 8) + (msg[4] & 0xff);
 
-					log.info(String.format(" index %d type %d cur pos %d", index, eventType, currentPos));
+					if (log.isDebugEnabled()) {
+						log.debug(String.format(" index %d type %d cur pos %d", index, eventType, currentPos));
+					}
 					// uber good -
 					// TODO - stepper ServoControl interface - not
 					// needed Servo is abstraction enough
 					Stepper stepper = (Stepper) stepperIndex.get(index);
+					if (stepper == null) {
+						break;
+					}
+					// 16 bits on the wire - unwrapped against the last
+					// position so slice queue moves may go farther
+					currentPos = stepper.getPos() + (short) (currentPos - stepper.getPos());
+					if (msgSize > 5) {
+						// low byte of the slices run
+						synchronized (this) {
+							stepperSlicesRun += (msg[5] - stepperSlicesRun) & 0xff;
+						}
+					}
 					//stepper.invoke("publishStepperEvent", currentPos);
 					// LOCAL !!! - Remote from Arduino or Stepper ?!?!?
 					// ?? stepper.publishStepperEvent(currentPos);
@@ -839,6 +869,11 @@ public class Arduino extends Service implements SensorDataPublisher, SerialDataL
 	@Override
 	public String onConnect(String portName) {
 		info("%s connected to %s", getName(), portName);
+		// opening the port resets the board and its slice queue
+		synchronized (this) {
+			stepperSlicesSent = 0;
+			stepperSlicesRun = 0;
+		}
 		getVersion();
 		return portName;
 	}
@@ -1238,10 +1273,27 @@ public class Arduino extends Service implements SensorDataPublisher, SerialDataL
 		}
 
 		int index = servos.get(servoName).servoIndex;
-		log.info(String.format("servoWrite %s %d index %d", servoName, newPos, index));
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("servoWrite %s %d index %d", servoName, newPos, index));
+		}
 		sendMsg(SERVO_WRITE, index, newPos);
 	}
 
+	/**
+	 * all writes of a motion scheduler tick back to back on the serial line
+	 */
+	@Override
+	public synchronized void servoWrite(String[] servoNames, int[] positions, int count) {
+		for (int i = 0; i < count; ++i) {
+			ServoData sd = servos.get(servoNames[i]);
+			if (sd == null) {
+				warn("Servo %s not attached to %s", servoNames[i], getName());
+				continue;
+			}
+			sendMsg(SERVO_WRITE, sd.servoIndex, positions[i]);
+		}
+	}
+
 	// FIXME - not "servo" .. just writeMicroseconds
 	// FIXME FIXME FIXME - start fixing up & creating interface of PIN WRITING
 	// READING GETTING AND CONTROLL CUZ
@@ -1558,6 +1610,92 @@ public class Arduino extends Service implements SensorDataPublisher, SerialDataL
 		sendMsg(STEPPER_STOP, stepper.getIndex());
 	}
 
+	@Override
+	public int getStepperQueueSize() {
+		return STEPPER_QUEUE_SIZE;
+	}
+
+	@Override
+	public synchronized int getStepperQueueFree() {
+		return STEPPER_QUEUE_SIZE - (int) (stepperSlicesSent - stepperSlicesRun);
+	}
+
+	@Override
+	public float getStepperSlicePeriod() {
+		return STEPPER_SLICE_MICROS / 1000000.0f;
+	}
+
+	@Override
+	public int getStepperSliceMaxSteps() {
+		return STEPPER_SLICE_MAX_STEPS;
+	}
+
+	/**
+	 * STEPPER_QUEUE|mask|slices|steps.. - the mask has a bit per stepper
+	 * index and each slice a signed byte per stepper in the mask, lowest
+	 * index first. Slices which do not fit one msg go in the next. A batch
+	 * larger than the free slices is refused - MRLComm would drop the slices
+	 * which do not fit and never report them as run.
+	 */
+	@Override
+	public synchronized int stepperQueue(String[] stepperNames, int[] steps, int slices) {
+		int axes = stepperNames.length;
+		int[] column = new int[axes];
+		int mask = 0;
+		for (int i = 0; i < axes; ++i) {
+			Stepper stepper = steppers.get(stepperNames[i]);
+			if (stepper == null) {
+				error("%s stepper not found", stepperNames[i]);
+				return 0;
+			}
+			mask |= 1 << stepper.getIndex();
+		}
+		// wire order is by index
+		for (int i = 0; i < axes; ++i) {
+			int index = steppers.get(stepperNames[i]).getIndex();
+			for (int j = 0; j < axes; ++j) {
+				if (steppers.get(stepperNames[j]).getIndex() < index) {
+					++column[i];
+				}
+			}
+		}
+		for (int k = 0; k < slices * axes; ++k) {
+			if (Math.abs(steps[k]) > STEPPER_SLICE_MAX_STEPS) {
+				error("%d steps in one slice - max is %d", steps[k], STEPPER_SLICE_MAX_STEPS);
+				return 0;
+			}
+		}
+		if (slices > getStepperQueueFree()) {
+			warn("stepper queue overflow - %d slices %d free", slices, getStepperQueueFree());
+			return 0;
+		}
+
+		// function + mask + count + data
+		int perMsg = (MAX_MSG_SIZE - 3) / axes;
+		for (int k = 0; k < slices; k += perMsg) {
+			int n = Math.min(perMsg, slices - k);
+			int[] params = new int[2 + n * axes];
+			params[0] = mask;
+			params[1] = n;
+			for (int s = 0; s < n; ++s) {
+				for (int i = 0; i < axes; ++i) {
+					params[2 + s * axes + column[i]] = steps[(k + s) * axes + i] & 0xff;
+				}
+			}
+			sendMsg(STEPPER_QUEUE, params);
+		}
+		stepperSlicesSent += slices;
+		return slices;
+	}
+
+	/**
+	 * MRLComm counts the dropped slices as run and reports them
+	 */
+	@Override
+	public void stepperQueueClear() {
+		sendMsg(STEPPER_QUEUE_CLEAR);
+	}
+
 	@Override
 	public void stopService() {
 		super.stopService();
@@ -1,5 +1,6 @@
 package org.myrobotlab.service;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import javax.swing.JButton;
@@ -14,11 +15,14 @@ import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
 
 import org.myrobotlab.framework.Service;
+import org.myrobotlab.kinematics.Gesture;
+import org.myrobotlab.kinematics.GestureLibrary;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
 import org.myrobotlab.service.Python.Script;
+import org.myrobotlab.service.interfaces.ServiceInterface;
 import org.slf4j.Logger;
 
 /**
@@ -69,6 +73,13 @@ public class InMoovGestureCreator extends Service {
 
 	public final static Logger log = LoggerFactory.getLogger(InMoovGestureCreator.class);
 
+	// InMoov peer servos in the order of the tabs
+	final static String[][] GESTURE_SERVOS = { { "head.neck", "head.rothead", "head.eyeX", "head.eyeY", "head.jaw" },
+			{ "leftArm.bicep", "leftArm.rotate", "leftArm.shoulder", "leftArm.omoplate" }, { "rightArm.bicep", "rightArm.rotate", "rightArm.shoulder", "rightArm.omoplate" },
+			{ "leftHand.thumb", "leftHand.index", "leftHand.majeure", "leftHand.ringFinger", "leftHand.pinky", "leftHand.wrist" },
+			{ "rightHand.thumb", "rightHand.index", "rightHand.majeure", "rightHand.ringFinger", "rightHand.pinky", "rightHand.wrist" },
+			{ "torso.topStom", "torso.midStom", "torso.lowStom" } };
+
 	ServoItemHolder[][] servoitemholder;
 
 	ArrayList<FrameItemHolder> frameitemholder;
@@ -86,6 +97,10 @@ public class InMoovGestureCreator extends Service {
 
 	String referencename;
 
+	public String gestureFile = "gestures.mrlg";
+	// degrees per second of a servo at speed 1.0
+	public float maxVelocity = 300;
+
 	public static void main(String[] args) throws InterruptedException {
 
 		LoggingFactory.getInstance().configure();
@@ -197,6 +212,124 @@ public class InMoovGestureCreator extends Service {
 		parsescript(control_list);
 	}
 
+	/**
+	 * compiles the frames into a gesture named after the function and adds
+	 * it to gestureFile - MotionScheduler.playGesture(name) plays it without
+	 * going through python.
+	 *
+	 * A move runs from where the servo is at that time to its target at the
+	 * last speed setting (a share of maxVelocity), sleeps are seconds like in
+	 * the exported script and speech becomes a gesture event which does not
+	 * hold up the timeline.
+	 */
+	public Gesture control_compilegest(JTextField control_funcname) {
+		String name = control_funcname.getText();
+		String prefix = (referencename == null) ? "i01" : referencename;
+		Gesture.Builder builder = new Gesture.Builder(name);
+
+		// per servo - speed and the segment it is moving on
+		float[][] speed = new float[GESTURE_SERVOS.length][];
+		float[][][] segment = new float[GESTURE_SERVOS.length][][];
+		for (int i = 0; i < GESTURE_SERVOS.length; ++i) {
+			speed[i] = new float[GESTURE_SERVOS[i].length];
+			segment[i] = new float[GESTURE_SERVOS[i].length][];
+			for (int j = 0; j < speed[i].length; ++j) {
+				speed[i][j] = 1.0f;
+			}
+		}
+
+		int time = 0;
+		for (FrameItemHolder fih : frameitemholder) {
+			if (fih.sleep != -1) {
+				time += fih.sleep * 1000;
+			} else if (fih.speech != null) {
+				builder.event(time, fih.speech);
+			} else if (fih.name != null) {
+				int[][] positions = getPositions(fih);
+				for (int i = 0; i < GESTURE_SERVOS.length; ++i) {
+					if (!tabs_main_checkbox_states[i]) {
+						continue;
+					}
+					for (int j = 0; j < GESTURE_SERVOS[i].length; ++j) {
+						String servo = String.format("%s.%s", prefix, GESTURE_SERVOS[i][j]);
+						segment[i][j] = compileMove(builder, servo, segment[i][j], time, positions[i][j], speed[i][j]);
+					}
+				}
+			} else {
+				float[][] speeds = getSpeeds(fih);
+				for (int i = 0; i < GESTURE_SERVOS.length; ++i) {
+					if (tabs_main_checkbox_states[i]) {
+						speed[i] = speeds[i];
+					}
+				}
+			}
+		}
+
+		Gesture gesture = builder.build();
+		try {
+			GestureLibrary.save(new File(gestureFile), gesture);
+			info("compiled %s into %s - %d ms", name, gestureFile, gesture.getDuration());
+			// schedulers playing from the file switch to the new version
+			for (ServiceInterface si : Runtime.getServices()) {
+				if (si instanceof MotionScheduler && ((MotionScheduler) si).hasGestures(gestureFile)) {
+					((MotionScheduler) si).loadGestures(gestureFile);
+				}
+			}
+		} catch (Exception e) {
+			error("could not save %s - %s", gestureFile, e.getMessage());
+			Logging.logError(e);
+		}
+		return gesture;
+	}
+
+	/**
+	 * adds the keyframes of one move
+	 *
+	 * @param last
+	 *            - the servo's previous move {fromTime, from, toTime, to} -
+	 *            null if it has not moved yet
+	 * @return this move
+	 */
+	float[] compileMove(Gesture.Builder builder, String servo, float[] last, int time, float target, float speed) {
+		float from;
+		if (last == null) {
+			// only a guess for the move's duration - the player starts from
+			// the real position
+			ServiceInterface si = Runtime.getService(servo);
+			Float pos = (si instanceof Servo) ? ((Servo) si).getPosFloat() : null;
+			from = (pos == null) ? 90 : pos;
+			if (time > 0) {
+				// held where it is at the start until the script moves it
+				builder.keyframe(servo, time, Float.NaN, Gesture.STEP);
+			}
+		} else if (time >= last[2]) {
+			from = last[3];
+			builder.keyframe(servo, time, from, Gesture.LINEAR);
+		} else {
+			// still on its way - this move starts where it is now
+			from = last[1] + (last[3] - last[1]) * (time - last[0]) / (last[2] - last[0]);
+			builder.keyframe(servo, time, from, Gesture.LINEAR);
+		}
+		float velocity = (speed <= 0 || speed > 1) ? maxVelocity : speed * maxVelocity;
+		int arrival = time + Math.round(Math.abs(target - from) * 1000 / velocity);
+		builder.keyframe(servo, arrival, target, Gesture.LINEAR);
+		return new float[] { time, from, arrival, target };
+	}
+
+	static int[][] getPositions(FrameItemHolder fih) {
+		return new int[][] { { fih.neck, fih.rothead, fih.eyeX, fih.eyeY, fih.jaw }, { fih.lbicep, fih.lrotate, fih.lshoulder, fih.lomoplate },
+				{ fih.rbicep, fih.rrotate, fih.rshoulder, fih.romoplate }, { fih.lthumb, fih.lindex, fih.lmajeure, fih.lringfinger, fih.lpinky, fih.lwrist },
+				{ fih.rthumb, fih.rindex, fih.rmajeure, fih.rringfinger, fih.rpinky, fih.rwrist }, { fih.topStom, fih.midStom, fih.lowStom } };
+	}
+
+	static float[][] getSpeeds(FrameItemHolder fih) {
+		return new float[][] { { fih.neckspeed, fih.rotheadspeed, fih.eyeXspeed, fih.eyeYspeed, fih.jawspeed },
+				{ fih.lbicepspeed, fih.lrotatespeed, fih.lshoulderspeed, fih.lomoplatespeed }, { fih.rbicepspeed, fih.rrotatespeed, fih.rshoulderspeed, fih.romoplatespeed },
+				{ fih.lthumbspeed, fih.lindexspeed, fih.lmajeurespeed, fih.lringfingerspeed, fih.lpinkyspeed, fih.lwristspeed },
+				{ fih.rthumbspeed, fih.rindexspeed, fih.rmajeurespeed, fih.rringfingerspeed, fih.rpinkyspeed, fih.rwristspeed },
+				{ fih.topStomspeed, fih.midStomspeed, fih.lowStomspeed } };
+	}
+
 	public void control_connect(JButton control_connect) {
 		// Connect / Disconnect to / from the InMoov service (button
 		// bottom-left)
@@ -0,0 +1,402 @@
+package org.myrobotlab.service;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.myrobotlab.fileLib.FileIO;
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.framework.Status;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.math.Histogram;
+import org.myrobotlab.net.Connection;
+import org.slf4j.Logger;
+
+/**
+ * load and soak test of messaging - TestThrowers pitch onLoad messages at
+ * local TestCatchers and at TestCatchers reached through a loopback pair of
+ * RemoteAdapters (tcp, encoding and all). Throughput, latency percentiles,
+ * queue depths and gc activity are written to a plain key value report
+ * {name}/load.{version}.{time}.txt which can be diffed against the report of
+ * another release.
+ *
+ * The same config and seed give the same message mix.
+ */
+public class LoadTest extends Service {
+
+	private static final long serialVersionUID = 1L;
+
+	public final static Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+	// remote services are seen through the client adapter with this prefix
+	public final static String LOOPBACK_PREFIX = "loop.";
+
+	public int localCatchers = 2;
+	public int remoteCatchers = 2;
+	public int pitchers = 2;
+	public int[] payloadSizes = new int[] { 16, 1024, 16384 };
+	public int fanOut = 1;
+	public float blockingRatio = 0.05f;
+	/**
+	 * messages per second per pitcher - 0 as fast as possible
+	 */
+	public int rate = 1000;
+	public int warmup = 2000;
+	public int duration = 10000;
+	public int sampleInterval = 250;
+	public int port = 6969;
+	public long seed = 1;
+
+	public String lastReport;
+
+	transient ArrayList<TestThrower> throwers = new ArrayList<TestThrower>();
+	transient ArrayList<TestCatcher> locals = new ArrayList<TestCatcher>();
+	transient ArrayList<TestCatcher> remotes = new ArrayList<TestCatcher>();
+	transient RemoteAdapter server;
+	transient RemoteAdapter client;
+	transient URI loopback;
+
+	/**
+	 * max, sum and count of sampled values
+	 */
+	static class Gauge {
+		long max = 0;
+		long sum = 0;
+		long count = 0;
+
+		void add(long value) {
+			if (value > max) {
+				max = value;
+			}
+			sum += value;
+			++count;
+		}
+
+		double mean() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+	}
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.WARN);
+
+		try {
+			LoadTest load = (LoadTest) Runtime.start("load", "LoadTest");
+			log.warn(load.runLoad());
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	public LoadTest(String n) {
+		super(n);
+	}
+
+	@Override
+	public String[] getCategories() {
+		return new String[] { "framework", "testing" };
+	}
+
+	@Override
+	public String getDescription() {
+		return "load and soak test of local and remote messaging";
+	}
+
+	/**
+	 * starts the catchers, throwers and loopback adapters - runLoad calls this
+	 * if needed
+	 */
+	public void setup() throws Exception {
+		if (throwers.size() > 0) {
+			return;
+		}
+
+		for (int i = 0; i < localCatchers; ++i) {
+			locals.add((TestCatcher) Runtime.start(String.format("%s.local%d", getName(), i), "TestCatcher"));
+		}
+		for (int i = 0; i < remoteCatchers; ++i) {
+			remotes.add((TestCatcher) Runtime.start(String.format("%s.remote%d", getName(), i), "TestCatcher"));
+		}
+		for (int i = 0; i < pitchers; ++i) {
+			throwers.add((TestThrower) Runtime.start(String.format("%s.pitcher%d", getName(), i), "TestThrower"));
+		}
+
+		if (remoteCatchers > 0) {
+			server = (RemoteAdapter) Runtime.start(String.format("%s.server", getName()), "RemoteAdapter");
+			server.startTCP(port);
+			client = (RemoteAdapter) Runtime.start(String.format("%s.client", getName()), "RemoteAdapter");
+			client.setDefaultPrefix(LOOPBACK_PREFIX);
+			loopback = new URI(String.format("tcp://127.0.0.1:%d", port));
+			client.connect(loopback.toString());
+
+			// wait for the directory then fetch only the catchers
+			long timeout = System.currentTimeMillis() + 5000;
+			while (client.getDirectory(loopback) == null) {
+				if (System.currentTimeMillis() > timeout) {
+					throw new Exception(String.format("no directory from %s", loopback));
+				}
+				Thread.sleep(20);
+			}
+			String[] names = new String[remotes.size()];
+			for (int i = 0; i < names.length; ++i) {
+				names[i] = remotes.get(i).getName();
+			}
+			client.fetchState(loopback, names);
+			for (int i = 0; i < names.length; ++i) {
+				while (Runtime.getService(LOOPBACK_PREFIX + names[i]) == null) {
+					if (System.currentTimeMillis() > timeout) {
+						throw new Exception(String.format("%s not registered through %s", names[i], loopback));
+					}
+					Thread.sleep(20);
+				}
+			}
+		}
+	}
+
+	/**
+	 * warms up, measures for duration ms and writes the report
+	 *
+	 * @return the report
+	 */
+	public String runLoad() throws Exception {
+		setup();
+
+		ArrayList<String> targets = new ArrayList<String>();
+		for (int i = 0; i < Math.max(locals.size(), remotes.size()); ++i) {
+			// alternate so fan out mixes local and remote
+			if (i < locals.size()) {
+				targets.add(locals.get(i).getName());
+			}
+			if (i < remotes.size()) {
+				targets.add(LOOPBACK_PREFIX + remotes.get(i).getName());
+			}
+		}
+		String[] t = targets.toArray(new String[targets.size()]);
+		for (int i = 0; i < throwers.size(); ++i) {
+			throwers.get(i).startLoad(t, payloadSizes, fanOut, blockingRatio, rate, seed + i);
+		}
+
+		info("warming up for %d ms", warmup);
+		Thread.sleep(warmup);
+		clear();
+
+		Gauge inbox = new Gauge();
+		Gauge outbox = new Gauge();
+		Gauge tcp = new Gauge();
+		Gauge heap = new Gauge();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long[] gcStart = gc();
+
+		info("measuring for %d ms", duration);
+		long start = System.nanoTime();
+		long end = start + duration * 1000000L;
+		while (System.nanoTime() < end) {
+			Thread.sleep(sampleInterval);
+			sample(inbox, outbox, tcp);
+			heap.add(memory.getHeapMemoryUsage().getUsed());
+		}
+		long elapsed = System.nanoTime() - start;
+		long[] gcEnd = gc();
+
+		for (int i = 0; i < throwers.size(); ++i) {
+			throwers.get(i).stopLoad();
+		}
+		// what is in flight is counted as received if it arrives in time
+		Thread.sleep(Math.min(2000, duration));
+
+		String report = report(elapsed, inbox, outbox, tcp, heap, gcEnd[0] - gcStart[0], gcEnd[1] - gcStart[1]);
+		String filename = String.format("%s%sload.%s.%s.txt", getName(), File.separator, Runtime.getVersion(), TSFormatter.format(new Date()));
+		new File(getName()).mkdirs();
+		FileIO.stringToFile(filename, report);
+		info("wrote %s", filename);
+		lastReport = report;
+		broadcastState();
+		return report;
+	}
+
+	void clear() {
+		for (int i = 0; i < throwers.size(); ++i) {
+			throwers.get(i).clearLoad();
+		}
+		for (int i = 0; i < locals.size(); ++i) {
+			locals.get(i).clearLoad();
+		}
+		for (int i = 0; i < remotes.size(); ++i) {
+			remotes.get(i).clearLoad();
+		}
+	}
+
+	void sample(Gauge inbox, Gauge outbox, Gauge tcp) {
+		for (int i = 0; i < locals.size(); ++i) {
+			inbox.add(locals.get(i).getInboxSize());
+		}
+		for (int i = 0; i < remotes.size(); ++i) {
+			inbox.add(remotes.get(i).getInboxSize());
+		}
+		for (int i = 0; i < throwers.size(); ++i) {
+			outbox.add(throwers.get(i).getOutboxSize());
+		}
+		if (client != null) {
+			Connection c = client.getClients().get(loopback);
+			if (c != null) {
+				tcp.add(c.txQueuedBytes);
+			}
+		}
+	}
+
+	/**
+	 * @return collections and ms spent collecting since the jvm started
+	 */
+	static long[] gc() {
+		long[] ret = new long[2];
+		List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+		for (int i = 0; i < beans.size(); ++i) {
+			ret[0] += Math.max(0, beans.get(i).getCollectionCount());
+			ret[1] += Math.max(0, beans.get(i).getCollectionTime());
+		}
+		return ret;
+	}
+
+	String report(long elapsed, Gauge inbox, Gauge outbox, Gauge tcp, Gauge heap, long gcCount, long gcMs) {
+		double seconds = elapsed / 1000000000.0;
+		StringBuilder sb = new StringBuilder();
+		line(sb, "version", Runtime.getVersion());
+		line(sb, "config.localCatchers", localCatchers);
+		line(sb, "config.remoteCatchers", remoteCatchers);
+		line(sb, "config.pitchers", pitchers);
+		line(sb, "config.payloadSizes", Arrays.toString(payloadSizes));
+		line(sb, "config.fanOut", fanOut);
+		line(sb, "config.blockingRatio", blockingRatio);
+		line(sb, "config.rate", rate);
+		line(sb, "config.duration", duration);
+		line(sb, "config.seed", seed);
+		line(sb, "jvm", String.format("%s %s", System.getProperty("java.vm.name"), System.getProperty("java.version")));
+		line(sb, "cpus", java.lang.Runtime.getRuntime().availableProcessors());
+
+		long sent = 0;
+		long blocking = 0;
+		long timeouts = 0;
+		Histogram roundTrip = new Histogram();
+		for (int i = 0; i < throwers.size(); ++i) {
+			long[] counts = throwers.get(i).getLoadCounts();
+			sent += counts[0];
+			blocking += counts[1];
+			timeouts += counts[2];
+			roundTrip.add(throwers.get(i).getLoadRoundTrip());
+		}
+		line(sb, "sent.msgs", sent + blocking);
+		line(sb, "sent.msgsPerSec", (sent + blocking) / seconds);
+		line(sb, "sent.blocking", blocking);
+		line(sb, "sent.blockingTimeouts", timeouts);
+
+		received(sb, "local", locals, seconds);
+		received(sb, "remote", remotes, seconds);
+		latency(sb, "latency.roundTrip", roundTrip);
+
+		line(sb, "queue.catcherInbox.max", inbox.max);
+		line(sb, "queue.catcherInbox.mean", inbox.mean());
+		line(sb, "queue.pitcherOutbox.max", outbox.max);
+		line(sb, "queue.pitcherOutbox.mean", outbox.mean());
+		line(sb, "queue.tcpBytes.max", tcp.max);
+		line(sb, "queue.tcpBytes.mean", tcp.mean());
+
+		line(sb, "gc.count", gcCount);
+		line(sb, "gc.ms", gcMs);
+		line(sb, "gc.percent", gcMs / (seconds * 10));
+		line(sb, "heap.maxUsedMB", heap.max / (1024.0 * 1024.0));
+		line(sb, "heap.meanUsedMB", heap.mean() / (1024.0 * 1024.0));
+		return sb.toString();
+	}
+
+	void received(StringBuilder sb, String type, ArrayList<TestCatcher> catchers, double seconds) {
+		long count = 0;
+		long bytes = 0;
+		Histogram latency = new Histogram();
+		for (int i = 0; i < catchers.size(); ++i) {
+			count += catchers.get(i).getLoadCount();
+			bytes += catchers.get(i).getLoadBytes();
+			latency.add(catchers.get(i).getLoadLatency());
+		}
+		line(sb, String.format("received.%s.msgs", type), count);
+		line(sb, String.format("received.%s.msgsPerSec", type), count / seconds);
+		line(sb, String.format("received.%s.MBPerSec", type), bytes / seconds / (1024 * 1024));
+		latency(sb, String.format("latency.%s", type), latency);
+	}
+
+	/**
+	 * percentiles in us
+	 */
+	void latency(StringBuilder sb, String key, Histogram h) {
+		line(sb, key + ".count", h.getCount());
+		line(sb, key + ".mean", h.getMean() / 1000);
+		line(sb, key + ".p50", h.getValueAtPercentile(50) / 1000.0);
+		line(sb, key + ".p90", h.getValueAtPercentile(90) / 1000.0);
+		line(sb, key + ".p99", h.getValueAtPercentile(99) / 1000.0);
+		line(sb, key + ".p999", h.getValueAtPercentile(99.9) / 1000.0);
+		line(sb, key + ".max", h.getMax() / 1000.0);
+	}
+
+	static void line(StringBuilder sb, String key, Object value) {
+		if (value instanceof Double || value instanceof Float) {
+			value = String.format("%.3f", ((Number) value).doubleValue());
+		}
+		sb.append(key).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * stops and releases everything setup started
+	 */
+	public void teardown() {
+		for (int i = 0; i < throwers.size(); ++i) {
+			throwers.get(i).stopLoad();
+			throwers.get(i).releaseService();
+		}
+		for (int i = 0; i < locals.size(); ++i) {
+			locals.get(i).releaseService();
+		}
+		for (int i = 0; i < remotes.size(); ++i) {
+			remotes.get(i).releaseService();
+		}
+		if (client != null) {
+			client.releaseService();
+			client = null;
+		}
+		if (server != null) {
+			server.releaseService();
+			server = null;
+		}
+		throwers.clear();
+		locals.clear();
+		remotes.clear();
+	}
+
+	@Override
+	public void stopService() {
+		teardown();
+		super.stopService();
+	}
+
+	@Override
+	public Status test() {
+		Status status = super.test();
+		try {
+			duration = 2000;
+			warmup = 500;
+			runLoad();
+			teardown();
+		} catch (Exception e) {
+			status.addError(e);
+		}
+		return status;
+	}
+}
@@ -4,8 +4,13 @@ package org.myrobotlab.service;
 //http://git.eclipse.org/c/paho/org.eclipse.paho.mqtt.java.git/tree/org.eclipse.paho.sample.mqttv3app/src/main/java/org/eclipse/paho/sample/mqttv3app/SampleAsyncCallBack.java
 
 //import org.eclipse.paho.client.mqttv3.MqttClient;
+import java.lang.reflect.Method;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
@@ -17,12 +22,17 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 //import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.myrobotlab.framework.Encoder;
+import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.framework.Status;
+import org.myrobotlab.framework.TypeConverter;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.net.Cbor;
+import org.myrobotlab.service.interfaces.ServiceInterface;
 import org.slf4j.Logger;
 
 /**
@@ -264,6 +274,61 @@ public class MQTT extends Service implements MqttCallback {
 
 	public final static Logger log = LoggerFactory.getLogger(MQTT.class);
 
+	// ================ bridge ===========================
+	// publish methods of other services routed to broker topics
+	// {topicPrefix}/{service}/{method} - values are aggregated on the inbox
+	// thread and flushed every publishInterval ms
+
+	// only the last value of an interval is sent
+	public final static String AGGREGATE_LATEST = "latest";
+	// every value of an interval is sent in one payload
+	public final static String AGGREGATE_BATCH = "batch";
+	// every value is sent as it arrives
+	public final static String AGGREGATE_NONE = "none";
+
+	public final static String PAYLOAD_JSON = "json";
+	public final static String PAYLOAD_CBOR = "cbor";
+
+	/**
+	 * publish methods bridged by bridge(service) - publishState and the
+	 * status methods are never bridged
+	 */
+	final static HashSet<String> NOT_BRIDGED = new HashSet<String>(Arrays.asList("publishState", "publishStatus", "publishError", "publishMQTTMessage"));
+
+	public String topicPrefix = "mrl";
+	public int publishInterval = 100;
+	public int bridgeQos = 1;
+	// qos 1 publishes not acknowledged yet - flushing waits while full
+	public int maxInflight = 32;
+	public int maxBatch = 100;
+	public String payloadEncoding = PAYLOAD_JSON;
+	public String defaultAggregate = AGGREGATE_LATEST;
+
+	public long bridgePublished = 0;
+	public long bridgeCoalesced = 0;
+	public long bridgeDropped = 0;
+	public long bridgeFailed = 0;
+
+	static class Route {
+		String name;
+		String method;
+		String topic;
+		String aggregate;
+
+		boolean hasLatest = false;
+		Object latest;
+		ArrayList<Long> ts = new ArrayList<Long>();
+		ArrayList<Object> values = new ArrayList<Object>();
+	}
+
+	// service.method -> route - only touched on the inbox thread
+	transient HashMap<String, Route> routes = new HashMap<String, Route>();
+	// broker topic -> {service, method}
+	transient HashMap<String, String[]> inRoutes = new HashMap<String, String[]>();
+	transient AtomicInteger inflight = new AtomicInteger();
+	transient boolean connecting = false;
+	transient boolean flushing = false;
+
 	public static void main(String[] args) {
 		try {
 			LoggingFactory.getInstance().configure();
@@ -285,6 +350,223 @@ public class MQTT extends Service implements MqttCallback {
 		super(n);
 	}
 
+	/**
+	 * bridges every publish method of a service to the broker
+	 */
+	public void bridge(String serviceName) {
+		ServiceInterface si = Runtime.getService(serviceName);
+		if (si == null) {
+			error("could not find %s to bridge", serviceName);
+			return;
+		}
+		Method[] methods = si.getClass().getMethods();
+		HashSet<String> bridged = new HashSet<String>();
+		for (int i = 0; i < methods.length; ++i) {
+			String method = methods[i].getName();
+			if (method.startsWith("publish") && methods[i].getReturnType() != void.class && !NOT_BRIDGED.contains(method) && !bridged.contains(method)) {
+				bridged.add(method);
+				bridge(serviceName, method, defaultAggregate);
+			}
+		}
+	}
+
+	public void bridge(String serviceName, String method) {
+		bridge(serviceName, method, defaultAggregate);
+	}
+
+	/**
+	 * routes serviceName.method to {topicPrefix}/{serviceName}/{method}
+	 * 
+	 * @param aggregate
+	 *            - latest, batch or none
+	 */
+	public void bridge(String serviceName, String method, String aggregate) {
+		Route route = new Route();
+		route.name = serviceName;
+		route.method = method;
+		route.topic = String.format("%s/%s/%s", topicPrefix, serviceName, method);
+		route.aggregate = aggregate;
+		routes.put(String.format("%s.%s", serviceName, method), route);
+		subscribe(serviceName, method);
+		log.info("bridging {}.{} to {} ({})", serviceName, method, route.topic, aggregate);
+
+		connectBridge();
+		if (!flushing) {
+			flushing = true;
+			addLocalTask(publishInterval, "flushBridge");
+		}
+	}
+
+	public void unbridge(String serviceName, String method) {
+		Route route = routes.remove(String.format("%s.%s", serviceName, method));
+		if (route != null) {
+			unsubscribe(serviceName, method, method);
+		}
+	}
+
+	/**
+	 * messages arriving on topic are sent to serviceName.method - the payload
+	 * is a json array of parameters or a single string parameter
+	 */
+	public void route(String topic, String serviceName, String method) throws MqttException {
+		inRoutes.put(topic, new String[] { serviceName, method });
+		connectBridge();
+		if (client != null && client.isConnected()) {
+			client.subscribe(topic, bridgeQos);
+		}
+	}
+
+	/**
+	 * connects without blocking the inbox - routes are subscribed once
+	 * connected, telemetry is aggregated until then
+	 */
+	public void connectBridge() {
+		try {
+			if (client == null) {
+				startClient();
+			}
+			if (client == null || client.isConnected() || connecting) {
+				return;
+			}
+			if (userName != null) {
+				conOpt.setUserName(userName);
+			}
+			if (password != null) {
+				conOpt.setPassword(password.toCharArray());
+			}
+			connecting = true;
+			client.connect(conOpt, null, new IMqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					connecting = false;
+					info("bridge connected to %s", brokerURL);
+					try {
+						for (String topic : inRoutes.keySet()) {
+							client.subscribe(topic, bridgeQos);
+						}
+					} catch (MqttException e) {
+						Logging.logError(e);
+					}
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+					connecting = false;
+					log.warn("bridge could not connect to {} {}", brokerURL, exception.getMessage());
+				}
+			});
+		} catch (MqttException e) {
+			connecting = false;
+			Logging.logError(e);
+		}
+	}
+
+	/**
+	 * published data of bridged methods is aggregated instead of invoked
+	 */
+	@Override
+	public boolean preProcessHook(Message m) {
+		Route route = routes.get(String.format("%s.%s", m.sender, m.sendingMethod));
+		if (route == null) {
+			return true;
+		}
+
+		Object value = null;
+		if (m.data != null && m.data.length == 1) {
+			value = m.data[0];
+		} else if (m.data != null) {
+			value = m.data;
+		}
+
+		if (AGGREGATE_LATEST.equals(route.aggregate)) {
+			if (route.hasLatest) {
+				++bridgeCoalesced;
+			}
+			route.latest = value;
+			route.hasLatest = true;
+		} else if (AGGREGATE_BATCH.equals(route.aggregate)) {
+			if (route.values.size() >= maxBatch) {
+				route.values.remove(0);
+				route.ts.remove(0);
+				++bridgeDropped;
+			}
+			route.values.add(value);
+			route.ts.add(m.timeStamp);
+		} else {
+			publishBridge(route, value);
+		}
+		return false;
+	}
+
+	/**
+	 * sends what each route aggregated since the last flush - called every
+	 * publishInterval ms on the inbox thread
+	 */
+	public void flushBridge() {
+		if (client == null || !client.isConnected()) {
+			connectBridge();
+			return;
+		}
+		for (Route route : routes.values()) {
+			if (inflight.get() >= maxInflight) {
+				// values stay aggregated until acks come back
+				return;
+			}
+			if (route.hasLatest) {
+				route.hasLatest = false;
+				publishBridge(route, route.latest);
+				route.latest = null;
+			} else if (route.values.size() > 0) {
+				HashMap<String, Object> batch = new HashMap<String, Object>();
+				batch.put("ts", route.ts);
+				batch.put("data", route.values);
+				publishBridge(route, batch);
+				route.ts = new ArrayList<Long>();
+				route.values = new ArrayList<Object>();
+			}
+		}
+	}
+
+	void publishBridge(Route route, Object value) {
+		if (client == null || !client.isConnected() || inflight.get() >= maxInflight) {
+			++bridgeDropped;
+			return;
+		}
+		boolean counted = false;
+		try {
+			byte[] payload;
+			if (PAYLOAD_CBOR.equals(payloadEncoding)) {
+				payload = Cbor.encode(value);
+			} else {
+				payload = Encoder.toJson(value).getBytes("UTF-8");
+			}
+			MqttMessage message = new MqttMessage(payload);
+			message.setQos(bridgeQos);
+			inflight.incrementAndGet();
+			counted = true;
+			client.publish(route.topic, message, null, new IMqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					inflight.decrementAndGet();
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+					inflight.decrementAndGet();
+					++bridgeFailed;
+				}
+			});
+			++bridgePublished;
+		} catch (Exception e) {
+			// an encoding failure never got counted
+			if (counted) {
+				inflight.decrementAndGet();
+			}
+			++bridgeFailed;
+			log.warn("bridge publish to {} failed {}", route.topic, e.getMessage());
+		}
+	}
+
 	/**
 	 * @see MqttCallback#connectionLost(Throwable)
 	 */
@@ -338,6 +620,23 @@ public class MQTT extends Service implements MqttCallback {
 		// subscription made by the client
 		String time = new Timestamp(System.currentTimeMillis()).toString();
 
+		String[] route = inRoutes.get(topic);
+		if (route != null) {
+			try {
+				String payload = new String(message.getPayload(), "UTF-8").trim();
+				String[] params = (payload.startsWith("[")) ? TypeConverter.getStringParams(payload) : new String[] { payload };
+				ServiceInterface si = Runtime.getService(route[0]);
+				if (si == null) {
+					log.warn("{} routed to unknown service {}", topic, route[0]);
+					return;
+				}
+				send(route[0], route[1], TypeConverter.getTypedParamsFromJson(si.getClass(), route[1], params));
+			} catch (Exception e) {
+				log.warn("could not route {} to {}.{} {}", topic, route[0], route[1], e.getMessage());
+			}
+			return;
+		}
+
 		String messageStr = "Time: " + time + "\tTopic: " + topic + "\tMessage: " + new String(message.getPayload()) + "\tQoS: " + message.getQos();
 
 		log.info(messageStr);
@@ -0,0 +1,811 @@
+package org.myrobotlab.service;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.myrobotlab.framework.FixedRateTicker;
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.kinematics.Gesture;
+import org.myrobotlab.kinematics.GestureLibrary;
+import org.myrobotlab.kinematics.Trajectory;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.math.Histogram;
+import org.myrobotlab.service.interfaces.ServiceInterface;
+import org.myrobotlab.service.interfaces.ServoBatchController;
+import org.myrobotlab.service.interfaces.ServoController;
+import org.slf4j.Logger;
+
+/**
+ * one fixed rate control tick for all servos instead of a sweeper thread per
+ * servo and sleeps between moves.
+ *
+ * A registered servo hands its moveTo and sweep to the scheduler. Every tick
+ * each moving servo steps toward its target at its velocity and the new
+ * positions are written - one batch per controller. Servos which have to
+ * move together play a precomputed Trajectory, one sample per tick, and
+ * compiled gestures from a GestureLibrary are sampled on the same clock -
+ * playGesture(name) only starts the playback, the next tick does the rest.
+ *
+ * The tick thread is a FixedRateTicker - it parks until spinMicros before a
+ * tick and spins the rest, and counts a tick which starts too late for the
+ * next one as an overrun. Jitter, work time and overruns are published every
+ * statsInterval ms with publishTickStats, with the time from capture to servo
+ * write of moves stamped with a capture time.
+ */
+public class MotionScheduler extends Service {
+
+	private static final long serialVersionUID = 1L;
+
+	public final static Logger log = LoggerFactory.getLogger(MotionScheduler.class);
+
+	public static class TickStats implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public String name;
+		public int rate;
+		public long ticks;
+		public long overruns;
+		public long writes;
+		public int moving;
+		// us - over the last statsInterval
+		public float jitterMean;
+		public float jitterP99;
+		public float jitterMax;
+		public float workMean;
+		public float workMax;
+		// ms from the capture of a stamped move's source to its servo write
+		public long latencyCount;
+		public float latencyMean;
+		public float latencyP99;
+		public float latencyMax;
+
+		@Override
+		public String toString() {
+			String ret = String.format("%s %d Hz ticks %d overruns %d jitter mean %.1f p99 %.1f max %.1f us work mean %.1f max %.1f us", name, rate, ticks, overruns, jitterMean,
+					jitterP99, jitterMax, workMean, workMax);
+			if (latencyCount > 0) {
+				ret += String.format(" latency mean %.1f p99 %.1f max %.1f ms", latencyMean, latencyP99, latencyMax);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * motion of one servo in its input units - guarded by itself
+	 */
+	static class Motion {
+		final Servo servo;
+		float pos;
+		float target;
+		// units per second - 0 is as fast as the servo goes
+		float velocity = 0;
+		boolean moving = false;
+		boolean sweeping = false;
+		boolean oneWay = false;
+		float min;
+		float max;
+		int lastOutput = Integer.MIN_VALUE;
+		// set while playing a trajectory or gesture - axis is this servo's column
+		Playback playback;
+		int axis;
+		// capture time in ms of what the last move was computed from - 0 once
+		// written
+		long stamp;
+
+		Motion(Servo servo) {
+			this.servo = servo;
+			Float current = servo.getPosFloat();
+			pos = (current == null) ? servo.getRest() : current;
+			target = pos;
+		}
+	}
+
+	/**
+	 * something being played - sample is the one written on the next tick,
+	 * motions[axis] is null for servos which are not there
+	 */
+	static abstract class Playback {
+		final Motion[] motions;
+		int sample = 1;
+
+		Playback(Motion[] motions) {
+			this.motions = motions;
+		}
+
+		abstract float get(int sample, int axis);
+
+		abstract int getSamples();
+	}
+
+	static class TrajectoryPlayback extends Playback {
+		final Trajectory trajectory;
+
+		TrajectoryPlayback(Trajectory trajectory, Motion[] motions) {
+			super(motions);
+			this.trajectory = trajectory;
+		}
+
+		@Override
+		float get(int sample, int axis) {
+			return trajectory.get(sample, axis);
+		}
+
+		@Override
+		int getSamples() {
+			return trajectory.getSamples();
+		}
+	}
+
+	static class GesturePlayback extends Playback {
+		final Gesture gesture;
+		// ms per sample
+		final float period;
+		final int samples;
+		final float[] start;
+		int nextEvent = 0;
+
+		GesturePlayback(Gesture gesture, Motion[] motions, float[] start, float period) {
+			super(motions);
+			this.gesture = gesture;
+			this.start = start;
+			this.period = period;
+			samples = (int) Math.ceil(gesture.getDuration() / period) + 1;
+		}
+
+		@Override
+		float get(int sample, int axis) {
+			float pos = gesture.sample(axis, sample * period, start[axis]);
+			return (Float.isNaN(pos)) ? start[axis] : pos;
+		}
+
+		@Override
+		int getSamples() {
+			return samples;
+		}
+	}
+
+	/**
+	 * writes of one tick for a controller
+	 */
+	static class Batch {
+		String[] names = new String[8];
+		int[] positions = new int[8];
+		int count = 0;
+
+		void add(String name, int position) {
+			if (count == names.length) {
+				String[] n = new String[count * 2];
+				int[] p = new int[count * 2];
+				System.arraycopy(names, 0, n, 0, count);
+				System.arraycopy(positions, 0, p, 0, count);
+				names = n;
+				positions = p;
+			}
+			names[count] = name;
+			positions[count] = position;
+			++count;
+		}
+	}
+
+	/**
+	 * ticks per second
+	 */
+	public int rate = 100;
+	public int spinMicros = 200;
+	public int statsInterval = 1000;
+	/**
+	 * seconds an interrupted trajectory takes to fade into the next one
+	 */
+	public float blendTime = 0.1f;
+	public Trajectory.Profile profile = Trajectory.Profile.S_CURVE;
+
+	transient ConcurrentHashMap<String, Motion> motions = new ConcurrentHashMap<String, Motion>();
+	transient CopyOnWriteArrayList<Playback> playbacks = new CopyOnWriteArrayList<Playback>();
+	transient CopyOnWriteArrayList<GestureLibrary> libraries = new CopyOnWriteArrayList<GestureLibrary>();
+	transient FixedRateTicker ticker;
+
+	// tick thread only
+	transient HashMap<ServoController, Batch> batches = new HashMap<ServoController, Batch>();
+
+	// guarded by stats
+	transient TickStats stats = new TickStats();
+	transient Histogram latency = new Histogram();
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.INFO);
+
+		try {
+			MotionScheduler scheduler = (MotionScheduler) Runtime.start("scheduler", "MotionScheduler");
+			scheduler.registerAll();
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	public MotionScheduler(String n) {
+		super(n);
+	}
+
+	@Override
+	public String[] getCategories() {
+		return new String[] { "motor", "control" };
+	}
+
+	@Override
+	public String getDescription() {
+		return "fixed rate motion control of servos";
+	}
+
+	@Override
+	public void startService() {
+		super.startService();
+		startTicker();
+	}
+
+	@Override
+	public void stopService() {
+		stopTicker();
+		super.stopService();
+	}
+
+	public synchronized void startTicker() {
+		stopTicker();
+		ticker = new FixedRateTicker(String.format("%s.ticker", getName()), rate, spinMicros, statsInterval) {
+			@Override
+			public void tick(double dt) {
+				MotionScheduler.this.tick((float) dt);
+			}
+
+			@Override
+			public void publishStats() {
+				invoke("publishTickStats", getTickStats(true));
+			}
+		};
+		ticker.start();
+	}
+
+	public synchronized void stopTicker() {
+		if (ticker != null) {
+			ticker.shutdown();
+			ticker = null;
+		}
+	}
+
+	/**
+	 * changes the tick rate - from the next tick if running
+	 */
+	public void setRate(int rate) {
+		if (rate <= 0) {
+			error("rate %d must be > 0", rate);
+			return;
+		}
+		this.rate = rate;
+		FixedRateTicker t = ticker;
+		if (t != null) {
+			t.rate = rate;
+		}
+		broadcastState();
+	}
+
+	public void register(Servo servo) {
+		if (!motions.containsKey(servo.getName())) {
+			motions.put(servo.getName(), new Motion(servo));
+		}
+		servo.scheduler = this;
+	}
+
+	public void register(String name) {
+		ServiceInterface si = Runtime.getService(name);
+		if (si instanceof Servo) {
+			register((Servo) si);
+		} else {
+			error("%s is not a servo", name);
+		}
+	}
+
+	/**
+	 * registers every local servo
+	 */
+	public int registerAll() {
+		int count = 0;
+		List<ServiceInterface> services = Runtime.getServices();
+		for (int i = 0; i < services.size(); ++i) {
+			ServiceInterface si = services.get(i);
+			if (si instanceof Servo && si.isLocal()) {
+				register((Servo) si);
+				++count;
+			}
+		}
+		info("%d servos registered", count);
+		return count;
+	}
+
+	public void unregister(String name) {
+		Motion m = motions.remove(name);
+		if (m != null && m.servo.scheduler == this) {
+			m.servo.scheduler = null;
+		}
+	}
+
+	public void moveTo(Servo servo, float target) {
+		moveTo(servo, target, 0);
+	}
+
+	/**
+	 * a move computed from something captured at stamp (System ms), e.g. a
+	 * video frame - the time from stamp to the servo write goes in the
+	 * latency figures of the tick stats
+	 */
+	public void moveTo(Servo servo, float target, long stamp) {
+		Motion m = getMotion(servo);
+		synchronized (m) {
+			m.stamp = stamp;
+			m.playback = null;
+			m.target = target;
+			m.velocity = servo.getVelocity();
+			m.sweeping = false;
+			m.moving = true;
+		}
+	}
+
+	/**
+	 * sweeps between min and max at velocity units per second - starting
+	 * toward max or toward min if up is false
+	 */
+	public void sweep(Servo servo, float min, float max, float velocity, boolean up, boolean oneWay) {
+		Motion m = getMotion(servo);
+		synchronized (m) {
+			m.playback = null;
+			m.min = min;
+			m.max = max;
+			m.target = (up) ? max : min;
+			m.velocity = velocity;
+			m.oneWay = oneWay;
+			m.sweeping = true;
+			m.moving = true;
+		}
+	}
+
+	public void stop(String name) {
+		Motion m = motions.get(name);
+		if (m != null) {
+			synchronized (m) {
+				m.playback = null;
+				m.moving = false;
+				m.sweeping = false;
+				m.target = m.pos;
+			}
+		}
+	}
+
+	/**
+	 * moves servos so they all arrive at the same time - duration is
+	 * stretched if a servo's velocity or acceleration limit needs longer
+	 */
+	public Trajectory moveTo(Servo[] servos, float[] targets, float duration, Trajectory.Profile profile) {
+		float[] start = new float[servos.length];
+		float[] velocity = new float[servos.length];
+		float[] acceleration = new float[servos.length];
+		for (int i = 0; i < servos.length; ++i) {
+			Motion m = getMotion(servos[i]);
+			synchronized (m) {
+				start[i] = m.pos;
+			}
+			velocity[i] = servos[i].getVelocity();
+			acceleration[i] = servos[i].getAcceleration();
+		}
+		Trajectory trajectory = Trajectory.plan(start, targets, duration, velocity, acceleration, profile, getPeriod());
+		play(trajectory, blendTime, servos);
+		return trajectory;
+	}
+
+	public Trajectory moveTo(String[] names, float[] targets, float duration) {
+		Servo[] servos = new Servo[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			servos[i] = (Servo) Runtime.getService(names[i]);
+			if (servos[i] == null) {
+				error("servo %s not found", names[i]);
+				return null;
+			}
+		}
+		return moveTo(servos, targets, duration, profile);
+	}
+
+	/**
+	 * plays a trajectory from the next tick - axis i drives servos[i].
+	 * Servos still playing another trajectory fade into this one over
+	 * blendTime seconds. Trajectories are played one sample per tick, so they
+	 * should be planned with getPeriod().
+	 */
+	public void play(Trajectory trajectory, float blendTime, Servo... servos) {
+		if (trajectory.getAxes() != servos.length) {
+			error("trajectory has %d axes but %d servos given", trajectory.getAxes(), servos.length);
+			return;
+		}
+		if (Math.abs(trajectory.getPeriod() - getPeriod()) > 1e-6) {
+			warn("trajectory period %f s is not the tick period %f s", trajectory.getPeriod(), getPeriod());
+		}
+
+		Motion[] list = new Motion[servos.length];
+		Trajectory t = trajectory;
+		int blendSamples = Math.min(Math.round(blendTime / trajectory.getPeriod()), trajectory.getSamples());
+		for (int i = 0; i < servos.length; ++i) {
+			list[i] = getMotion(servos[i]);
+			synchronized (list[i]) {
+				Playback old = list[i].playback;
+				if (old != null && blendSamples > 0) {
+					if (t == trajectory) {
+						t = trajectory.copy();
+					}
+					float[] from = new float[blendSamples];
+					for (int k = 0; k < blendSamples; ++k) {
+						from[k] = old.get(old.sample + k, list[i].axis);
+					}
+					t.blend(i, from);
+				}
+			}
+		}
+
+		start(new TrajectoryPlayback(t, list));
+	}
+
+	/**
+	 * hands the servos of a playback over to it
+	 */
+	void start(Playback playback) {
+		for (int i = 0; i < playback.motions.length; ++i) {
+			Motion m = playback.motions[i];
+			if (m == null) {
+				continue;
+			}
+			synchronized (m) {
+				m.playback = playback;
+				m.axis = i;
+				m.sweeping = false;
+				m.moving = true;
+			}
+		}
+		playbacks.add(playback);
+	}
+
+	/**
+	 * opens a compiled gesture library - a library of the same file is
+	 * replaced, gestures of later libraries hide those of earlier ones
+	 */
+	public GestureLibrary loadGestures(String filename) {
+		try {
+			File file = new File(filename);
+			GestureLibrary library = GestureLibrary.open(file);
+			for (GestureLibrary old : libraries) {
+				if (old.getFile().getAbsoluteFile().equals(file.getAbsoluteFile())) {
+					libraries.remove(old);
+				}
+			}
+			libraries.add(library);
+			info("%d gestures loaded from %s", library.getNames().size(), filename);
+			return library;
+		} catch (Exception e) {
+			error("could not load gestures %s - %s", filename, e.getMessage());
+			Logging.logError(e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the library of filename is loaded - call loadGestures
+	 *         again to switch to a newer version of it
+	 */
+	public boolean hasGestures(String filename) {
+		File file = new File(filename).getAbsoluteFile();
+		for (GestureLibrary library : libraries) {
+			if (library.getFile().getAbsoluteFile().equals(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Gesture getGesture(String name) {
+		for (int i = libraries.size() - 1; i >= 0; --i) {
+			Gesture g = libraries.get(i).get(name);
+			if (g != null) {
+				return g;
+			}
+		}
+		return null;
+	}
+
+	public List<String> getGestureNames() {
+		ArrayList<String> names = new ArrayList<String>();
+		for (GestureLibrary library : libraries) {
+			for (String name : library.getNames()) {
+				if (!names.contains(name)) {
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * starts a gesture by name on the next tick
+	 *
+	 * @return false if no library has it
+	 */
+	public boolean playGesture(String name) {
+		Gesture g = getGesture(name);
+		if (g == null) {
+			error("gesture %s not found", name);
+			return false;
+		}
+		play(g);
+		return true;
+	}
+
+	/**
+	 * plays a gesture - servos start from wherever they are, those of its
+	 * channels which are not running are skipped
+	 */
+	public void play(Gesture gesture) {
+		int channels = gesture.getChannels();
+		Motion[] list = new Motion[channels];
+		float[] start = new float[channels];
+		for (int i = 0; i < channels; ++i) {
+			String name = gesture.getServo(i);
+			Motion m = motions.get(name);
+			if (m == null) {
+				ServiceInterface si = Runtime.getService(name);
+				if (si instanceof Servo) {
+					m = getMotion((Servo) si);
+				} else {
+					log.warn("gesture {} - no servo {}", gesture.getName(), name);
+					continue;
+				}
+			}
+			synchronized (m) {
+				start[i] = m.pos;
+			}
+			list[i] = m;
+		}
+		start(new GesturePlayback(gesture, list, start, 1000.0f / rate));
+	}
+
+	public String publishGestureEvent(String event) {
+		return event;
+	}
+
+	public float getPeriod() {
+		return 1.0f / rate;
+	}
+
+	public boolean isMoving(String name) {
+		Motion m = motions.get(name);
+		if (m == null) {
+			return false;
+		}
+		synchronized (m) {
+			return m.moving;
+		}
+	}
+
+	public boolean isSweeping(String name) {
+		Motion m = motions.get(name);
+		if (m == null) {
+			return false;
+		}
+		synchronized (m) {
+			return m.sweeping;
+		}
+	}
+
+	Motion getMotion(Servo servo) {
+		Motion m = motions.get(servo.getName());
+		if (m == null) {
+			register(servo);
+			m = motions.get(servo.getName());
+		}
+		return m;
+	}
+
+	/**
+	 * steps every moving servo and writes the changed positions
+	 *
+	 * @param dt
+	 *            - seconds since the last tick
+	 */
+	void tick(float dt) {
+		for (Batch batch : batches.values()) {
+			batch.count = 0;
+		}
+
+		for (Motion m : motions.values()) {
+			float pos;
+			int output;
+			long stamp;
+			synchronized (m) {
+				if (!m.moving) {
+					continue;
+				}
+				if (m.playback != null) {
+					m.pos = m.playback.get(m.playback.sample, m.axis);
+				} else {
+					step(m, dt);
+				}
+				pos = m.pos;
+				output = Math.min(Math.max(m.servo.calc(pos), m.servo.getMin()), m.servo.getMax());
+				if (output == m.lastOutput) {
+					m.servo.scheduled(pos);
+					continue;
+				}
+				m.lastOutput = output;
+				stamp = m.stamp;
+				m.stamp = 0;
+			}
+
+			m.servo.scheduled(pos);
+			ServoController controller = m.servo.controller;
+			if (controller == null || !m.servo.isAttached()) {
+				continue;
+			}
+			if (stamp != 0) {
+				synchronized (stats) {
+					latency.record(Math.max(System.currentTimeMillis() - stamp, 0));
+				}
+			}
+			Batch batch = batches.get(controller);
+			if (batch == null) {
+				batch = new Batch();
+				batches.put(controller, batch);
+			}
+			batch.add(m.servo.getName(), output);
+		}
+
+		for (Playback playback : playbacks) {
+			advance(playback);
+		}
+
+		int moving = 0;
+		for (Motion m : motions.values()) {
+			if (m.moving) {
+				++moving;
+			}
+		}
+
+		long written = 0;
+		for (Map.Entry<ServoController, Batch> e : batches.entrySet()) {
+			Batch batch = e.getValue();
+			if (batch.count == 0) {
+				continue;
+			}
+			ServoController controller = e.getKey();
+			if (controller instanceof ServoBatchController) {
+				((ServoBatchController) controller).servoWrite(batch.names, batch.positions, batch.count);
+			} else {
+				for (int i = 0; i < batch.count; ++i) {
+					controller.servoWrite(batch.names[i], batch.positions[i]);
+				}
+			}
+			written += batch.count;
+		}
+
+		synchronized (stats) {
+			stats.writes += written;
+			stats.moving = moving;
+		}
+	}
+
+	/**
+	 * moves toward the target at the motion's velocity
+	 */
+	void step(Motion m, float dt) {
+		float step = (m.velocity <= 0) ? Float.MAX_VALUE : m.velocity * dt;
+		float remaining = m.target - m.pos;
+		if (Math.abs(remaining) <= step) {
+			m.pos = m.target;
+			if (m.sweeping && !(m.oneWay && m.target == m.max)) {
+				// bounce - a one way sweep ends at max
+				m.target = (m.target == m.max) ? m.min : m.max;
+			} else {
+				m.moving = false;
+				m.sweeping = false;
+			}
+		} else {
+			m.pos += (remaining > 0) ? step : -step;
+		}
+	}
+
+	/**
+	 * next sample of a playback - drops it once played out or when every
+	 * servo has been taken over by something else
+	 */
+	void advance(Playback playback) {
+		if (playback instanceof GesturePlayback) {
+			GesturePlayback gp = (GesturePlayback) playback;
+			float time = gp.sample * gp.period;
+			while (gp.nextEvent < gp.gesture.getEvents() && gp.gesture.getEventTime(gp.nextEvent) <= time) {
+				invoke("publishGestureEvent", gp.gesture.getEvent(gp.nextEvent));
+				++gp.nextEvent;
+			}
+		}
+
+		++playback.sample;
+		boolean done = playback.sample >= playback.getSamples();
+		boolean live = false;
+		for (int i = 0; i < playback.motions.length; ++i) {
+			Motion m = playback.motions[i];
+			if (m == null) {
+				continue;
+			}
+			synchronized (m) {
+				if (m.playback != playback) {
+					continue;
+				}
+				live = true;
+				if (done) {
+					m.playback = null;
+					m.moving = false;
+					m.target = m.pos;
+				}
+			}
+		}
+		// a gesture keeps its events going when its servos are taken over
+		if (done || (!live && !(playback instanceof GesturePlayback))) {
+			playbacks.remove(playback);
+		}
+	}
+
+	/**
+	 * @param reset
+	 *            - start a new window for the jitter and work figures
+	 */
+	public TickStats getTickStats(boolean reset) {
+		TickStats ret = new TickStats();
+		FixedRateTicker t = ticker;
+		if (t != null) {
+			synchronized (t) {
+				Histogram jitter = t.getJitter();
+				Histogram work = t.getWork();
+				ret.ticks = t.getTicks();
+				ret.overruns = t.getOverruns();
+				ret.jitterMean = (float) jitter.getMean() / 1000;
+				ret.jitterP99 = jitter.getValueAtPercentile(99) / 1000.0f;
+				ret.jitterMax = jitter.getMax() / 1000.0f;
+				ret.workMean = (float) work.getMean() / 1000;
+				ret.workMax = work.getMax() / 1000.0f;
+				if (reset) {
+					t.resetStats();
+				}
+			}
+		}
+		synchronized (stats) {
+			ret.name = getName();
+			ret.rate = rate;
+			ret.writes = stats.writes;
+			ret.moving = stats.moving;
+			ret.latencyCount = latency.getCount();
+			ret.latencyMean = (float) latency.getMean();
+			ret.latencyP99 = latency.getValueAtPercentile(99);
+			ret.latencyMax = latency.getMax();
+			if (reset) {
+				latency.reset();
+			}
+		}
+		return ret;
+	}
+
+	public TickStats publishTickStats(TickStats stats) {
+		if (stats.overruns > 0 && stats.jitterMax > 1000000.0f / rate) {
+			log.warn("{}", stats);
+		}
+		return stats;
+	}
+}
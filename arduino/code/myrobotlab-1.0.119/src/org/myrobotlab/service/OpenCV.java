@@ -62,6 +62,7 @@ import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.LoggingFactory;
 import org.myrobotlab.opencv.BlockingQueueGrabber;
 import org.myrobotlab.opencv.FilterWrapper;
+import org.myrobotlab.opencv.FrameRateStats;
 import org.myrobotlab.opencv.OpenCVData;
 import org.myrobotlab.opencv.OpenCVFilter;
 import org.myrobotlab.opencv.OpenCVFilterAffine;
@@ -69,6 +70,7 @@ import org.myrobotlab.opencv.OpenCVFilterAnd;
 import org.myrobotlab.opencv.OpenCVFilterFFMEG;
 import org.myrobotlab.opencv.OpenCVFilterFaceDetect;
 import org.myrobotlab.opencv.OpenCVFilterFaceRecognition;
+import org.myrobotlab.opencv.RecordingStats;
 import org.myrobotlab.opencv.VideoProcessor;
 import org.myrobotlab.reflection.Reflector;
 import org.myrobotlab.service.data.Point2Df;
@@ -630,11 +632,82 @@ public class OpenCV extends VideoSource {
 		videoProcessor.setMinDelay(time);
 	}
 
+	/**
+	 * drop buffered frames to keep the grab to publish latency under ms - 0
+	 * disables frame skipping
+	 * 
+	 * @param ms
+	 */
+	public void setTargetLatency(int ms) {
+		videoProcessor.setTargetLatency(ms);
+	}
+
+	/**
+	 * run an expensive filter only every nth frame - its last results are
+	 * reused on the frames in between
+	 * 
+	 * @param filterName
+	 * @param n
+	 */
+	public void setFilterProcessEvery(String filterName, int n) {
+		OpenCVFilter filter = getFilter(filterName);
+		if (filter != null) {
+			filter.setProcessEvery(n);
+		}
+	}
+
+	/**
+	 * periodic grab, processing and per filter frame rates
+	 * 
+	 * @param stats
+	 * @return
+	 */
+	public FrameRateStats publishFrameRateStats(FrameRateStats stats) {
+		return stats;
+	}
+
 	public String setRecordingSource(String source) {
 		videoProcessor.recordingSource = source;
 		return source;
 	}
 
+	/**
+	 * record another source at the same time - e.g. input and a filter's
+	 * display
+	 * 
+	 * @param source
+	 */
+	public void addRecordingSource(String source) {
+		videoProcessor.addRecordingSource(source);
+	}
+
+	public void removeRecordingSource(String source) {
+		videoProcessor.removeRecordingSource(source);
+	}
+
+	/**
+	 * what the recorder does when the encoder can not keep up
+	 * 
+	 * @param policy
+	 *            AsyncVideoRecorder.DROP_NEWEST, DROP_OLDEST or BLOCK
+	 */
+	public void setRecordingDropPolicy(String policy) {
+		videoProcessor.recorder.dropPolicy = policy;
+	}
+
+	/**
+	 * start a new file when a segment is older than maxTime ms or bigger than
+	 * maxBytes - 0 disables either
+	 */
+	public void setRecordingSegments(long maxTime, long maxBytes) {
+		videoProcessor.recorder.segmentMaxTime = maxTime;
+		videoProcessor.recorder.segmentMaxBytes = maxBytes;
+	}
+
+	public RecordingStats publishRecordingStats(RecordingStats stats) {
+		return stats;
+	}
+
 	public void showFrameNumbers(boolean b) {
 		videoProcessor.showFrameNumbers(b);
 	}
@@ -0,0 +1,387 @@
+package org.myrobotlab.service;
+
+import java.io.Serializable;
+
+import org.myrobotlab.framework.FixedRateTicker;
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.math.PIDLoops;
+import org.slf4j.Logger;
+
+/**
+ * many pid loops computed together on one fixed rate tick - for a base with
+ * several motors and a head, instead of a PID service per loop each deciding
+ * on its own clock whether it is time to compute.
+ *
+ * Loops live in the arrays of a PIDLoops and get the measured dt of the tick,
+ * with anti-windup, a filtered derivative on the input and feed-forward (see
+ * PIDLoops). A loop's input is either set with setInput or read from an
+ * Input on every tick, and its output either polled with getOutput or
+ * written to an Output - inputs and outputs run on the tick thread and must
+ * not block.
+ *
+ * The tick thread is a FixedRateTicker like MotionScheduler's. Per loop mean and
+ * max error and the share of saturated ticks, with the tick jitter, are
+ * published every statsInterval ms with publishPIDStats.
+ */
+public class PIDBank extends Service {
+
+	private static final long serialVersionUID = 1L;
+
+	public final static Logger log = LoggerFactory.getLogger(PIDBank.class);
+
+	static final public int MODE_AUTOMATIC = PID.MODE_AUTOMATIC;
+	static final public int MODE_MANUAL = PID.MODE_MANUAL;
+	static final public int DIRECTION_DIRECT = PID.DIRECTION_DIRECT;
+	static final public int DIRECTION_REVERSE = PID.DIRECTION_REVERSE;
+
+	public interface Input {
+		double read();
+	}
+
+	public interface Output {
+		void write(double output);
+	}
+
+	public static class PIDStats implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public String name;
+		public int rate;
+		public long ticks;
+		public long overruns;
+		// us - over the last statsInterval
+		public float jitterMean;
+		public float jitterMax;
+		public String[] loops;
+		public double[] meanError;
+		public double[] maxError;
+		// share of the ticks the output was clipped
+		public float[] saturation;
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%s %d Hz ticks %d overruns %d jitter mean %.1f max %.1f us", name, rate, ticks, overruns, jitterMean, jitterMax));
+			for (int i = 0; i < loops.length; ++i) {
+				sb.append(String.format("\n %s error mean %.4f max %.4f saturated %.0f%%", loops[i], meanError[i], maxError[i], saturation[i] * 100));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * ticks per second
+	 */
+	public int rate = 200;
+	public int spinMicros = 200;
+	public int statsInterval = 1000;
+
+	// guards itself and everything below
+	transient PIDLoops loops = new PIDLoops();
+	transient Input[] inputs = new Input[8];
+	transient Output[] outputs = new Output[8];
+	transient FixedRateTicker ticker;
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.INFO);
+
+		try {
+			final PIDBank bank = (PIDBank) Runtime.start("pids", "PIDBank");
+			// a first order plant - the output drives the input's rate
+			final double[] plant = new double[1];
+			bank.setPID("x", 2.0, 1.0, 0.05);
+			bank.setOutputRange("x", -10, 10);
+			bank.setSetpoint("x", 5);
+			bank.setInput("x", new Input() {
+				@Override
+				public double read() {
+					return plant[0];
+				}
+			});
+			bank.setOutput("x", new Output() {
+				@Override
+				public void write(double output) {
+					plant[0] += output / bank.rate;
+				}
+			});
+			bank.setMode("x", MODE_AUTOMATIC);
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	public PIDBank(String n) {
+		super(n);
+	}
+
+	@Override
+	public String[] getCategories() {
+		return new String[] { "control" };
+	}
+
+	@Override
+	public String getDescription() {
+		return "many pid loops on one fixed rate tick";
+	}
+
+	@Override
+	public void startService() {
+		super.startService();
+		startTicker();
+	}
+
+	@Override
+	public void stopService() {
+		stopTicker();
+		super.stopService();
+	}
+
+	public synchronized void startTicker() {
+		stopTicker();
+		ticker = new FixedRateTicker(String.format("%s.ticker", getName()), rate, spinMicros, statsInterval) {
+			@Override
+			public void tick(double dt) {
+				PIDBank.this.tick(dt);
+			}
+
+			@Override
+			public void publishStats() {
+				invoke("publishPIDStats", getPIDStats(true));
+			}
+		};
+		ticker.start();
+	}
+
+	public synchronized void stopTicker() {
+		if (ticker != null) {
+			ticker.shutdown();
+			ticker = null;
+		}
+	}
+
+	/**
+	 * changes the tick rate - from the next tick if running
+	 */
+	public void setRate(int rate) {
+		if (rate <= 0) {
+			error("rate %d must be > 0", rate);
+			return;
+		}
+		this.rate = rate;
+		FixedRateTicker t = ticker;
+		if (t != null) {
+			t.rate = rate;
+		}
+		broadcastState();
+	}
+
+	/**
+	 * reads the inputs, computes every loop and writes the outputs
+	 *
+	 * @param dt
+	 *            - seconds since the last tick
+	 */
+	void tick(double dt) {
+		synchronized (loops) {
+			int size = loops.size();
+			for (int i = 0; i < size; ++i) {
+				if (inputs[i] != null && loops.enabled[i]) {
+					loops.input[i] = inputs[i].read();
+				}
+			}
+			loops.compute(dt);
+			for (int i = 0; i < size; ++i) {
+				if (outputs[i] != null && loops.enabled[i]) {
+					outputs[i].write(loops.output[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * the index of a loop - adding it if it is new
+	 */
+	int loop(String key) {
+		int i = loops.add(key);
+		if (i >= inputs.length) {
+			Input[] in = new Input[inputs.length * 2];
+			System.arraycopy(inputs, 0, in, 0, inputs.length);
+			inputs = in;
+			Output[] out = new Output[outputs.length * 2];
+			System.arraycopy(outputs, 0, out, 0, outputs.length);
+			outputs = out;
+		}
+		return i;
+	}
+
+	public void setPID(String key, double kp, double ki, double kd) {
+		synchronized (loops) {
+			int i = loop(key);
+			loops.kp[i] = kp;
+			loops.ki[i] = ki;
+			loops.kd[i] = kd;
+		}
+	}
+
+	/**
+	 * output added per unit of setpoint - and a bias added as is, e.g. to hold
+	 * against gravity
+	 */
+	public void setFeedForward(String key, double kf, double bias) {
+		synchronized (loops) {
+			int i = loop(key);
+			loops.kf[i] = kf;
+			loops.feedForward[i] = bias;
+		}
+	}
+
+	/**
+	 * time constant in seconds of the low pass on the derivative - 0 is none
+	 */
+	public void setDerivativeFilter(String key, double seconds) {
+		synchronized (loops) {
+			loops.derivativeFilter[loop(key)] = seconds;
+		}
+	}
+
+	public void setOutputRange(String key, double min, double max) {
+		synchronized (loops) {
+			loops.setOutputRange(loop(key), min, max);
+		}
+	}
+
+	public void setControllerDirection(String key, int direction) {
+		synchronized (loops) {
+			loops.reverse[loop(key)] = direction == DIRECTION_REVERSE;
+		}
+	}
+
+	/**
+	 * MODE_AUTOMATIC computes the loop on every tick, picking up from the
+	 * current output - MODE_MANUAL leaves the output alone
+	 */
+	public void setMode(String key, int mode) {
+		synchronized (loops) {
+			loops.setEnabled(loop(key), mode == MODE_AUTOMATIC);
+		}
+	}
+
+	public void setSetpoint(String key, double setpoint) {
+		synchronized (loops) {
+			loops.setpoint[loop(key)] = setpoint;
+		}
+	}
+
+	public void setInput(String key, double input) {
+		synchronized (loops) {
+			loops.input[loop(key)] = input;
+		}
+	}
+
+	/**
+	 * read on every tick - null goes back to setInput
+	 */
+	public void setInput(String key, Input input) {
+		synchronized (loops) {
+			inputs[loop(key)] = input;
+		}
+	}
+
+	/**
+	 * the output in manual mode
+	 */
+	public void setOutput(String key, double output) {
+		synchronized (loops) {
+			loops.output[loop(key)] = output;
+		}
+	}
+
+	/**
+	 * written on every tick - null goes back to getOutput
+	 */
+	public void setOutput(String key, Output output) {
+		synchronized (loops) {
+			outputs[loop(key)] = output;
+		}
+	}
+
+	public double getOutput(String key) {
+		synchronized (loops) {
+			int i = loops.indexOf(key);
+			return (i < 0) ? 0 : loops.output[i];
+		}
+	}
+
+	public double getSetpoint(String key) {
+		synchronized (loops) {
+			int i = loops.indexOf(key);
+			return (i < 0) ? 0 : loops.setpoint[i];
+		}
+	}
+
+	public void removeLoop(String key) {
+		synchronized (loops) {
+			int i = loops.indexOf(key);
+			if (i < 0) {
+				return;
+			}
+			int moved = loops.remove(key);
+			if (moved >= 0) {
+				inputs[i] = inputs[moved];
+				outputs[i] = outputs[moved];
+				i = moved;
+			}
+			inputs[i] = null;
+			outputs[i] = null;
+		}
+	}
+
+	/**
+	 * @param reset
+	 *            - start a new window for the error, saturation and jitter
+	 *            figures
+	 */
+	public PIDStats getPIDStats(boolean reset) {
+		PIDStats ret = new PIDStats();
+		FixedRateTicker t = ticker;
+		if (t != null) {
+			synchronized (t) {
+				ret.ticks = t.getTicks();
+				ret.overruns = t.getOverruns();
+				ret.jitterMean = (float) t.getJitter().getMean() / 1000;
+				ret.jitterMax = t.getJitter().getMax() / 1000.0f;
+				if (reset) {
+					t.resetStats();
+				}
+			}
+		}
+		synchronized (loops) {
+			int size = loops.size();
+			ret.name = getName();
+			ret.rate = rate;
+			ret.loops = new String[size];
+			ret.meanError = new double[size];
+			ret.maxError = new double[size];
+			ret.saturation = new float[size];
+			for (int i = 0; i < size; ++i) {
+				long samples = loops.samples[i];
+				ret.loops[i] = loops.names[i];
+				ret.meanError[i] = (samples == 0) ? 0 : loops.errorSum[i] / samples;
+				ret.maxError[i] = loops.errorMax[i];
+				ret.saturation[i] = (samples == 0) ? 0 : loops.saturated[i] / (float) samples;
+			}
+			if (reset) {
+				loops.resetStats();
+			}
+		}
+		return ret;
+	}
+
+	public PIDStats publishPIDStats(PIDStats stats) {
+		return stats;
+	}
+}
@@ -25,19 +25,15 @@
 
 package org.myrobotlab.service;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
@@ -46,7 +42,6 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -54,20 +49,24 @@ import org.myrobotlab.framework.Encoder;
 import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Platform;
 import org.myrobotlab.framework.Service;
+import org.myrobotlab.framework.ServiceDirectory;
 import org.myrobotlab.framework.ServiceEnvironment;
+import org.myrobotlab.framework.StateTracker;
 import org.myrobotlab.framework.Status;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
 import org.myrobotlab.net.Connection;
-import org.myrobotlab.net.TCPThread2;
+import org.myrobotlab.net.MessageCodec;
+import org.myrobotlab.net.NioTransport;
+import org.myrobotlab.net.UdpTransport;
 import org.myrobotlab.service.interfaces.CommunicationInterface;
 import org.myrobotlab.service.interfaces.Gateway;
 import org.myrobotlab.service.interfaces.ServiceInterface;
 import org.slf4j.Logger;
 
-public class RemoteAdapter extends Service implements Gateway {
+public class RemoteAdapter extends Service implements Gateway, UdpTransport.Receiver {
 
 	// TODO - global address book of discovered connection
 
@@ -104,7 +103,8 @@ public class RemoteAdapter extends Service implements Gateway {
 					// "DISCOVER_FUIFSERVER_REQUEST".getBytes();
 					//
 					Message msg = myService.createMessage("", "getConnections", null);
-					byte[] msgBuf = Encoder.getBytes(msg);
+					MessageCodec codec = new MessageCodec(false);
+					byte[] msgBuf = codec.toDatagram(msg);
 
 					DatagramPacket sendPacket;
 					// Try the 255.255.255.255 first
@@ -192,9 +192,7 @@ public class RemoteAdapter extends Service implements Gateway {
 							// We have a response
 							myService.info(String.format("response from : %s", receivePacket.getAddress().getHostAddress()));
 
-							// Check if the message is correct - JSON ?
-							ObjectInputStream inBytes = new ObjectInputStream(new ByteArrayInputStream(receivePacket.getData()));
-							Message retMsg = (Message) inBytes.readObject();
+							Message retMsg = codec.fromDatagram(receivePacket.getData(), 0, receivePacket.getLength());
 							myService.info("response from instance %s", retMsg);
 							if (!retMsg.method.equals("publishNewConnection")) {
 								myService.error("not an publishNewConnection message");
@@ -232,233 +230,14 @@ public class RemoteAdapter extends Service implements Gateway {
 		}
 	}
 
-	class TCPListener extends Thread {
-		int rxCount = 0;
-		int txCount = 0;
-		RemoteAdapter myService = null;
-		transient ServerSocket serverSocket = null;
-		ObjectOutputStream out;
-		ObjectInputStream in;
-		int remotePort;
-
-		public TCPListener(int remotePort, RemoteAdapter s) {
-			super(String.format("%s.tcp.%d", s.getName(), remotePort));
-			this.remotePort = remotePort;
-			myService = s;
-		}
-
-		public void addTCPClient(Socket clientSocket, RemoteAdapter myService) {
-			try {
-				String clientKey = String.format("tcp://%s:%d", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
-				URI uri = new URI(clientKey);
-				// HELP PROTOKEY VS MRL KEY ??
-				TCPThread2 tcp = new TCPThread2(myService, uri, clientSocket);
-				tcpClientList.put(uri, tcp);
-				connections.put(uri, tcp.data);
-			} catch (Exception e) {
-				Logging.logError(e);
-			}
-		}
-
-		@Override
-		public void run() {
-			try {
-
-				serverSocket = new ServerSocket(remotePort, 10);
-
-				log.info(getName() + " TCPListener listening on " + serverSocket.getLocalSocketAddress());
-				myService.info(String.format("listening on %s tcp", serverSocket.getLocalSocketAddress()));
-
-				while (isRunning()) {
-					// FIXME - on contact register the "environment" regardless
-					// if a service registers !!!
-					Socket clientSocket = serverSocket.accept();
-					// inbound connection FIXME - all keys constructed in
-					// Encoder
-					addTCPClient(clientSocket, myService);
-					broadcastState();
-				}
-
-				serverSocket.close();
-			} catch (Exception e) {
-				logException(e);
-			}
-		}
-
-		public void shutdown() {
-			if ((serverSocket != null) && (!serverSocket.isClosed())) {
-				try {
-					serverSocket.close();
-				} catch (IOException e) {
-					logException(e);
-				}
-			}
-			serverSocket = null;
-		}
-
-	}
-
-	class UDPListener extends Thread {
-
-		DatagramSocket socket = null;
-		RemoteAdapter myService = null;
-		int listeningPort;
-		boolean isRunning = false;
-
-		public UDPListener(Integer listeningPort, RemoteAdapter s) {
-			super(String.format("%s.udp.%d", s.getName(), listeningPort));
-			this.listeningPort = listeningPort;
-			myService = s;
-		}
-
-		// FIXME FIXME FIXME - large amount of changes to tcp - application
-		// logic which handles the "Messaging" should be common to both
-		// tcp & udp & xmpp
-		@Override
-		public void run() {
-			isRunning = true;
-			try {
-				socket = new DatagramSocket(listeningPort);
-				log.info(String.format("%s listening on udp %s:%d", getName(), socket.getLocalAddress(), socket.getLocalPort()));
-
-				byte[] b = new byte[65507]; // max udp size 65507 + 8 byte
-											// header = 65535
-				ByteArrayInputStream b_in = new ByteArrayInputStream(b);
-				DatagramPacket dgram = new DatagramPacket(b, b.length);
-
-				while (isRunning) {
-					socket.receive(dgram); // receives all datagrams
-					// FIXME - do we need o re-create???
-					ObjectInputStream o_in = new ObjectInputStream(b_in);
-					try {
-						Message msg = (Message) o_in.readObject();
-						dgram.setLength(b.length); // must reset length field!
-						b_in.reset();
-
-						// FIXME - sloppy use full method signature
-						// FIXME Encoder.makeMethodKey(Msg msg)
-						if ("getConnections".equals(msg.method)) {
-
-							// get connections
-							List<Connection> conn = getConnections(new URI(String.format("tcp:/%s:%d", dgram.getAddress(), dgram.getPort())));
-							// send them back
-							for (int i = 0; i < conn.size(); ++i) {
-								Message newConnMsg = createMessage("", "publishNewConnection", conn);
-								byte[] msgBuf = Encoder.getBytes(newConnMsg);
-								DatagramPacket dgp = new DatagramPacket(msgBuf, msgBuf.length, dgram.getAddress(), dgram.getPort());
-								socket.send(dgp);
-							}
-
-							// we will have to search for them again
-						} else if ("publishNewConnection".equals(msg.method)) {
-							myService.invoke("onCommOptions", msg.data[0]);
-						} else if ("register".equals(msg.method)) {
-							// FIXME name should be "Runtime" representing the
-							// static
-							// BEGIN ENCAPSULATION --- ENCODER BEGIN
-							// -------------
-							// IMPORTANT - (should be in Encoder) - create the
-							// key
-							// for foreign service environment
-							// Runtime.addServiceEnvironment(name, protocolKey)
-							URI protocolKey = new URI(String.format("udp://%s:%d", socket.getInetAddress().getHostAddress(), socket.getPort()));
-							String mrl = String.format("mrl://%s/%s", myService.getName(), protocolKey.toString());
-							URI mrlURI = new URI(mrl);
-
-							// IMPORTANT - this is an optimization and probably
-							// should be in the Comm interface defintion
-							CommunicationInterface cm = myService.getComm();
-							cm.addRemote(mrlURI, protocolKey);
-
-							// check if the URI is already defined - if not - we
-							// will
-							// send back the services which we want to export -
-							// Security will filter appropriately
-							ServiceEnvironment foreignProcess = Runtime.getServiceEnvironment(mrlURI);
-
-							ServiceInterface si = (ServiceInterface) msg.data[0];
-							// HMMM a vote for String vs URI here - since we
-							// need to
-							// catch syntax !!!
-							si.setInstanceId(mrlURI);
-
-							// if security ... msg within msg
-							// getOutbox().add(createMessage(Runtime.getInstance().getName(),
-							// "register", inboundMsg));
-							Runtime.register(si, mrlURI);// <-- not an INVOKE
-															// !!!
-															// // -
-							// no security ! :P
-
-							if (foreignProcess == null) {
-
-								// not defined we will send export
-								// TODO - Security filters - default export
-								// (include
-								// exclude) - mapset of name
-								ServiceEnvironment localProcess = Runtime.getLocalServicesForExport();
-
-								Iterator<String> it = localProcess.serviceDirectory.keySet().iterator();
-								String name;
-								ServiceInterface toRegister;
-								while (it.hasNext()) {
-									name = it.next();
-									toRegister = localProcess.serviceDirectory.get(name);
-
-									// the following will wrap a message within
-									// a message and send it remotely
-									// This Thread CANNOT Write on The
-									// ObjectOutputStream directly -
-									// IT SHOULD NEVER DO ANY METHOD WHICH CAN
-									// BLOCK !!!! - 3 days of bug chasing when
-									// it wrote to ObjectOutputStream and oos
-									// blocked when the buffer was full -
-									// causing deadlock
-									// putting it on the inbox will move it to a
-									// different thread
-									Message sendService = myService.createMessage("", "register", toRegister);
-									Message outbound = myService.createMessage(myService.getName(), "sendRemote", new Object[] { protocolKey, sendService });
-									myService.getInbox().add(outbound);
-
-								}
-
-							}
-
-							// BEGIN ENCAPSULATION --- ENCODER END -------------
-						} else {
-							// ++udpRx;
-							myService.getOutbox().add(msg);
-						}
-
-					} catch (Exception e) {
-						error(e);
-					}
-					dgram.setLength(b.length); // must reset length field!
-					b_in.reset(); // reset so next read is from start of byte[]
-									// again
-				} // while isRunning
-
-			} catch (SocketException se) {
-				error("UDPListener could not listen %s", se.getMessage());
-				Logging.logError(se);
-			} catch (Exception e) {
-				error("wtf error");
-				logException(e);
-			}
-		}
-
-		public void shutdown() {
-			isRunning = false;
-			if ((socket != null) && (!socket.isClosed())) {
-				socket.close();
-			}
-		}
-	}
-
 	private static final long serialVersionUID = 1L;
 
 	public final static Logger log = LoggerFactory.getLogger(RemoteAdapter.class);
 
+	// registration handshake - see onRegistration
+	public final static String DIRECTORY = "registerDirectory";
+	public final static String GET_STATE = "registerGetState";
+
 	public String lastProtocolKey;
 	private String defaultPrefix = null;
 
@@ -467,8 +246,12 @@ public class RemoteAdapter extends Service implements Gateway {
 
 	// types of listening threads - multiple could be managed
 	// when correct interfaces and base classes are done
-	transient TCPListener tcpListener = null;
-	transient UDPListener udpListener = null;
+	transient UdpTransport udp = null;
+
+	/**
+	 * all tcp connections - inbound and outbound - on one selector thread
+	 */
+	transient NioTransport transport = null;
 
 	private Integer udpPort;
 
@@ -480,14 +263,33 @@ public class RemoteAdapter extends Service implements Gateway {
 	// TODO - multiple scanners for parallel port/broadcast scanning
 	transient Scanner scanner;
 
-	transient private HashMap<URI, TCPThread2> tcpClientList = new HashMap<URI, TCPThread2>();
-
 	/**
 	 * used as a data interface to all the non-serializable network objects - it
 	 * will report stats and states
 	 */
 	private HashMap<URI, Connection> connections = new HashMap<URI, Connection>();
 
+	/**
+	 * answer a register with a ServiceDirectory and send services only when
+	 * asked for - false for peers which expect every service on register
+	 */
+	public boolean lazyRegistration = true;
+
+	/**
+	 * ms a directory of the local services is reused before it is rebuilt
+	 */
+	public int directoryMaxAge = 1000;
+
+	// last directory of each peer - kept over reconnects
+	transient HashMap<URI, ServiceDirectory> directories = new HashMap<URI, ServiceDirectory>();
+	// services whose state was asked for - per peer
+	transient HashMap<URI, HashSet<String>> requested = new HashMap<URI, HashSet<String>>();
+	// the peer's services as last received - re-registered on a reconnect if
+	// unchanged
+	transient HashMap<URI, HashMap<String, ServiceInterface>> fetched = new HashMap<URI, HashMap<String, ServiceInterface>>();
+	transient ServiceDirectory localDirectory;
+	transient long localDirectoryTs = 0;
+
 	static public ArrayList<InetAddress> getLocalAddresses() {
 		ArrayList<InetAddress> ret = new ArrayList<InetAddress>();
 		try {
@@ -529,8 +331,7 @@ public class RemoteAdapter extends Service implements Gateway {
 			// get an asynch response
 
 			if (uri.getScheme().equals("tcp")) {
-				TCPThread2 tcp = tcpClientList.get(uri);
-				log.info("" + tcp);
+				log.info("" + value);
 				// check socket connectivity
 				// attempt to re-connect if disconnected
 				broadcastState();
@@ -639,6 +440,33 @@ public class RemoteAdapter extends Service implements Gateway {
 		}
 	}
 
+	synchronized NioTransport getTransport() throws IOException {
+		if (transport == null) {
+			transport = new NioTransport(this);
+			transport.start();
+		}
+		return transport;
+	}
+
+	/**
+	 * the listening udp transport - or one on a free port if only sending
+	 */
+	synchronized UdpTransport getUdpTransport() throws SocketException {
+		if (udp == null) {
+			udp = new UdpTransport(getName(), 0, this);
+			udp.start();
+		}
+		return udp;
+	}
+
+	/**
+	 * udp messages to this method are sent on a latest wins stream - older
+	 * ones are dropped instead of retransmitted
+	 */
+	public void setUdpLatestWins(String method, boolean b) throws SocketException {
+		getUdpTransport().setLatestWins(method, b);
+	}
+
 	public Integer getTcpPort() {
 		return tcpPort;
 	}
@@ -653,16 +481,280 @@ public class RemoteAdapter extends Service implements Gateway {
 
 	@Override
 	public boolean isReady() {
-		if (tcpListener.serverSocket != null) {
-			return tcpListener.serverSocket.isBound();
-		}
-		return false;
+		return transport != null && transport.isListening();
 	}
 
 	public boolean isScanning() {
 		return isScanning;
 	}
 
+	/**
+	 * inbound udp - sequenced messages in stream order and plain discovery
+	 * datagrams - called on the udp receive thread
+	 */
+	// FIXME FIXME FIXME - large amount of changes to tcp - application
+	// logic which handles the "Messaging" should be common to both
+	// tcp & udp & xmpp
+	@Override
+	public void onUdpMessage(Message msg, URI protocolKey) {
+		try {
+			// FIXME - sloppy use full method signature
+			// FIXME Encoder.makeMethodKey(Msg msg)
+			if ("getConnections".equals(msg.method)) {
+
+				// get connections
+				List<Connection> conn = getConnections(new URI(String.format("tcp://%s:%d", protocolKey.getHost(), protocolKey.getPort())));
+				// send them back
+				for (int i = 0; i < conn.size(); ++i) {
+					Message newConnMsg = createMessage("", "publishNewConnection", conn);
+					udp.sendPlain(new InetSocketAddress(protocolKey.getHost(), protocolKey.getPort()), newConnMsg);
+				}
+
+				// we will have to search for them again
+			} else if ("publishNewConnection".equals(msg.method)) {
+				invoke("onCommOptions", msg.data[0]);
+			} else if (!onRegistration(protocolKey, new URI(String.format("mrl://%s/%s", getName(), protocolKey.toString())), null, msg)) {
+				getOutbox().add(msg);
+			}
+
+		} catch (Exception e) {
+			error(e);
+		}
+	}
+
+	@Override
+	public void onUdpConnection(Connection data) {
+		connections.put(data.protocolKey, data);
+		broadcastState();
+	}
+
+	/**
+	 * register, directory and state requests of a peer for both transports.
+	 *
+	 * A peer connects with a register which has no service. With
+	 * lazyRegistration the reply is a ServiceDirectory asking for the peer's
+	 * directory in return. Services are then sent one register each when a
+	 * peer asks for them with GET_STATE - when it subscribes to one
+	 * (sendRemote) or calls fetchState. On a reconnect only services which
+	 * were fetched before and whose version changed are asked for again.
+	 *
+	 * Runs on the receive thread - anything which encodes or hashes services is
+	 * queued on the inbox.
+	 *
+	 * @return false if msg is not part of registration
+	 */
+	public boolean onRegistration(URI protocolKey, URI mrlURI, String prefix, Message msg) {
+		if (DIRECTORY.equals(msg.method)) {
+			getInbox().add(createMessage(getName(), "onDirectory", new Object[] { protocolKey, mrlURI, msg.data[0] }));
+			return true;
+		}
+
+		if (GET_STATE.equals(msg.method)) {
+			getInbox().add(createMessage(getName(), "sendState", new Object[] { protocolKey, msg.data[0] }));
+			return true;
+		}
+
+		if (!"register".equals(msg.method)) {
+			return false;
+		}
+
+		// IMPORTANT - this is an optimization and probably
+		// should be in the Comm interface defintion
+		CommunicationInterface cm = getComm();
+		cm.addRemote(mrlURI, protocolKey);
+
+		// check if the URI is already defined - if not - we will send
+		// back the services which we want to export - Security will
+		// filter appropriately
+		ServiceEnvironment foreignProcess = Runtime.getServiceEnvironment(mrlURI);
+
+		// ALLOWED TO BE NULL - establishes initial contact & a
+		// ServiceEnvironment
+		ServiceInterface si = null;
+		if (msg.data != null) {
+			si = (ServiceInterface) msg.data[0];
+			// the peer's name for it - as in its directory
+			String name = si.getName();
+			si.setInstanceId(mrlURI);
+			if (prefix != null) {
+				si.setPrefix(prefix);
+			}
+			synchronized (fetched) {
+				HashMap<String, ServiceInterface> copies = fetched.get(protocolKey);
+				if (copies == null) {
+					copies = new HashMap<String, ServiceInterface>();
+					fetched.put(protocolKey, copies);
+				}
+				copies.put(name, si);
+			}
+		}
+
+		if (si != null && foreignProcess != null && foreignProcess.serviceDirectory.containsKey(si.getName())) {
+			// fetched again after a reconnect - refresh the copy in place
+			Service.copyShallowFrom(foreignProcess.serviceDirectory.get(si.getName()), si);
+		} else {
+			Runtime.register(si, mrlURI);// <-- not an INVOKE !!!
+		}
+
+		if (lazyRegistration) {
+			if (si == null) {
+				getInbox().add(createMessage(getName(), "sendDirectory", new Object[] { protocolKey, true }));
+			}
+		} else if (foreignProcess == null) {
+			ServiceEnvironment localProcess = Runtime.getLocalServicesForExport();
+			ArrayList<String> names = new ArrayList<String>(localProcess.serviceDirectory.keySet());
+			for (String name : names) {
+				ServiceInterface toRegister = localProcess.serviceDirectory.get(name);
+				// putting it on the inbox will move it to a
+				// different thread - never block the receive thread
+				Message sendService = createMessage("", "register", toRegister);
+				Message outbound = createMessage(getName(), "sendRemote", new Object[] { protocolKey, sendService });
+				getInbox().add(outbound);
+			}
+		}
+		return true;
+	}
+
+	public void onDirectory(URI protocolKey, URI mrlURI, ServiceDirectory dir) {
+		getComm().addRemote(mrlURI, protocolKey);
+		Runtime.register(null, mrlURI);
+		ServiceEnvironment foreignProcess = Runtime.getServiceEnvironment(mrlURI);
+
+		synchronized (directories) {
+			directories.put(protocolKey, dir);
+		}
+		HashMap<String, ServiceInterface> copies;
+		synchronized (fetched) {
+			copies = fetched.get(protocolKey);
+			copies = (copies == null) ? new HashMap<String, ServiceInterface>() : new HashMap<String, ServiceInterface>(copies);
+		}
+
+		// resume - services fetched before are registered again from their
+		// copy if unchanged, only changed ones are fetched
+		HashSet<String> unchanged = new HashSet<String>();
+		ArrayList<String> stale = new ArrayList<String>();
+		for (int i = 0; i < dir.entries.size(); ++i) {
+			ServiceDirectory.Entry e = dir.entries.get(i);
+			ServiceInterface copy = copies.get(e.name);
+			if (copy == null) {
+				continue;
+			}
+			if (StateTracker.hash(copy) == e.version) {
+				unchanged.add(e.name);
+				if (!foreignProcess.serviceDirectory.containsKey(copy.getName())) {
+					Runtime.register(copy, mrlURI);
+				}
+			} else {
+				stale.add(e.name);
+			}
+		}
+		synchronized (requested) {
+			requested.put(protocolKey, unchanged);
+		}
+		log.info("{} directory {} services {} unchanged {} to refresh", protocolKey, dir.entries.size(), unchanged.size(), stale.size());
+
+		if (stale.size() > 0) {
+			fetchState(protocolKey, stale.toArray(new String[stale.size()]));
+		}
+		if (dir.request) {
+			sendDirectory(protocolKey, false);
+		}
+		invoke("publishDirectory", dir);
+	}
+
+	/**
+	 * a peer's directory arrived - a gui can list the services and fetch the
+	 * ones it shows
+	 */
+	public ServiceDirectory publishDirectory(ServiceDirectory dir) {
+		return dir;
+	}
+
+	public ServiceDirectory getDirectory(URI protocolKey) {
+		synchronized (directories) {
+			return directories.get(protocolKey);
+		}
+	}
+
+	public void fetchState(String protocolKey, String... names) throws URISyntaxException {
+		fetchState(new URI(protocolKey), names);
+	}
+
+	/**
+	 * asks the peer for the services - each arrives as a register
+	 */
+	public void fetchState(URI protocolKey, String... names) {
+		synchronized (requested) {
+			HashSet<String> set = requested.get(protocolKey);
+			if (set == null) {
+				set = new HashSet<String>();
+				requested.put(protocolKey, set);
+			}
+			for (int i = 0; i < names.length; ++i) {
+				set.add(names[i]);
+			}
+		}
+		sendRemote(protocolKey, createMessage("", GET_STATE, new Object[] { names }));
+	}
+
+	/**
+	 * fetches a service of the peer's directory which has not been asked for
+	 * yet
+	 */
+	void fetchIfNeeded(URI protocolKey, String name) {
+		ServiceDirectory dir = getDirectory(protocolKey);
+		if (dir == null || dir.get(name) == null) {
+			return;
+		}
+		synchronized (requested) {
+			HashSet<String> set = requested.get(protocolKey);
+			if (set != null && set.contains(name)) {
+				return;
+			}
+		}
+		fetchState(protocolKey, name);
+	}
+
+	/**
+	 * directory of the exported services - shared by peers connecting within
+	 * directoryMaxAge of each other
+	 */
+	public synchronized ServiceDirectory getLocalDirectory() {
+		long now = System.currentTimeMillis();
+		if (localDirectory == null || now - localDirectoryTs > directoryMaxAge) {
+			ServiceDirectory dir = new ServiceDirectory();
+			ServiceEnvironment local = Runtime.getLocalServicesForExport();
+			ArrayList<String> names = new ArrayList<String>(local.serviceDirectory.keySet());
+			for (int i = 0; i < names.size(); ++i) {
+				ServiceInterface si = local.serviceDirectory.get(names.get(i));
+				dir.add(names.get(i), si.getSimpleName(), StateTracker.hash(si));
+			}
+			localDirectory = dir;
+			localDirectoryTs = now;
+		}
+		return localDirectory;
+	}
+
+	public void sendDirectory(URI protocolKey, boolean request) {
+		ServiceDirectory dir = new ServiceDirectory(getLocalDirectory(), request);
+		sendRemote(protocolKey, createMessage("", DIRECTORY, new Object[] { dir }));
+	}
+
+	/**
+	 * sends the requested services the peer is allowed to see
+	 */
+	public void sendState(URI protocolKey, String[] names) {
+		ServiceEnvironment local = Runtime.getLocalServicesForExport();
+		for (int i = 0; i < names.length; ++i) {
+			ServiceInterface si = local.serviceDirectory.get(names[i]);
+			if (si == null) {
+				log.info("{} asked for {} which is not exported", protocolKey, names[i]);
+				continue;
+			}
+			sendRemote(protocolKey, createMessage("", "register", si));
+		}
+	}
+
 	public Connection onHeartbeat(Connection data) {
 		return data;
 	}
@@ -705,8 +797,17 @@ public class RemoteAdapter extends Service implements Gateway {
 		sendRemote(new URI(uri), msg);
 	}
 
+	// not synchronized - tcp peers queue independently and udp locks its own
+	// socket
 	@Override
-	synchronized public void sendRemote(URI uri, Message msg) {
+	public void sendRemote(URI uri, Message msg) {
+		if (lazyRegistration && "addListener".equals(msg.method) && msg.name != null) {
+			// subscribing to a service of the peer - it needs its state too
+			String prefix = getPrefix(uri);
+			if (msg.name.startsWith(prefix)) {
+				fetchIfNeeded(uri, msg.name.substring(prefix.length()));
+			}
+		}
 		String scheme = uri.getScheme();
 		lastProtocolKey = uri.toString();
 		if ("tcp".equals(scheme)) {
@@ -721,23 +822,11 @@ public class RemoteAdapter extends Service implements Gateway {
 	}
 
 	public void sendRemoteTCP(URI uri, Message msg) {
-		TCPThread2 tcp = null;
 		try {
-			if (tcpClientList.containsKey(uri)) {
-				tcp = tcpClientList.get(uri);
-			} else {
-
-				// constructor will throw if can not connect -> new Socket(host,
-				// port)
-				tcp = new TCPThread2(this, uri, null);
-				tcpClientList.put(uri, tcp);
-				connections.put(uri, tcp.data);
-				broadcastState();
+			// connects if needed - throws if it can not
+			if (!getTransport().send(uri, msg)) {
+				log.warn("{} dropped {}.{} - outbound queue full", uri, msg.name, msg.method);
 			}
-
-			tcp.send(msg);
-			connections.get(uri).tx++;
-
 		} catch (Exception e) {
 			Logging.logError(e);
 		}
@@ -745,20 +834,9 @@ public class RemoteAdapter extends Service implements Gateway {
 
 	public void sendRemoteUDP(URI uri, Message msg) {
 		try {
-
-			// FIXME - could use some optimization e.g. .reset()
-			DatagramSocket s = new DatagramSocket();
-			ByteArrayOutputStream b_out = new ByteArrayOutputStream();
-			ObjectOutputStream o_out = new ObjectOutputStream(b_out);
-			o_out.writeObject(msg);
-			o_out.flush();
-			b_out.flush();
-			byte[] b = b_out.toByteArray();
-			InetAddress hostAddress = InetAddress.getByName(uri.getHost());
-			DatagramPacket dgram = new DatagramPacket(b, b.length, hostAddress, uri.getPort());
-			s.send(dgram);
-			// dgram.se
-			// TODO - send the damn packet???
+			if (!getUdpTransport().send(uri, msg)) {
+				log.warn("{} dropped {}.{} - reliable queue full", uri, msg.name, msg.method);
+			}
 		} catch (Exception e) {
 			Logging.logError(e);
 		}
@@ -809,8 +887,12 @@ public class RemoteAdapter extends Service implements Gateway {
 			port = 6767;
 		}
 		tcpPort = port;
-		tcpListener = new TCPListener(tcpPort, this);
-		tcpListener.start();
+		try {
+			getTransport().listen(tcpPort);
+		} catch (Exception e) {
+			error("could not listen on tcp %d %s", tcpPort, e.getMessage());
+			Logging.logError(e);
+		}
 
 	}
 
@@ -820,8 +902,14 @@ public class RemoteAdapter extends Service implements Gateway {
 			port = 6767;
 		}
 		udpPort = port;
-		udpListener = new UDPListener(udpPort, this);
-		udpListener.start();
+		try {
+			udp = new UdpTransport(getName(), udpPort, this);
+			udp.start();
+			info("listening on %d udp", udpPort);
+		} catch (Exception e) {
+			error("could not listen on udp %d %s", udpPort, e.getMessage());
+			Logging.logError(e);
+		}
 	}
 
 	public void stopListening() {
@@ -840,22 +928,23 @@ public class RemoteAdapter extends Service implements Gateway {
 	@Override
 	public void stopService() {
 		stopListening();
+		if (transport != null) {
+			transport.shutdown();
+			transport = null;
+		}
 		super.stopService();
 	}
 
 	public void stopTCP() {
-		if (tcpListener != null) {
-			tcpListener.interrupt();
-			tcpListener.shutdown();
-			tcpListener = null;
+		if (transport != null) {
+			transport.stopListening();
 		}
 	}
 
 	public void stopUDP() {
-		if (udpListener != null) {
-			udpListener.interrupt();
-			udpListener.shutdown();
-			udpListener = null;
+		if (udp != null) {
+			udp.shutdown();
+			udp = null;
 		}
 	}
 
@@ -26,6 +26,12 @@
 package org.myrobotlab.service;
 
 import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.myrobotlab.fileLib.FileIO;
 import org.myrobotlab.framework.Service;
@@ -34,6 +40,7 @@ import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.math.ServoModel;
 import org.myrobotlab.service.interfaces.ServoControl;
 import org.myrobotlab.service.interfaces.ServoController;
 import org.slf4j.Logger;
@@ -60,6 +67,72 @@ import org.slf4j.Logger;
 
 public class Servo extends Service implements ServoControl {
 
+	/**
+	 * a move in progress - done when the servo holds still at the target,
+	 * with true, or when another move or a stop took over or the controller's
+	 * stop event did not come in time, with false
+	 */
+	public static class Arrival implements Future<Boolean> {
+		final CountDownLatch done = new CountDownLatch(1);
+		final float target;
+		final int outputTarget;
+		// System ms after which the controller's stop event is not waited for
+		// - 0 until the first wait for it
+		long deadline = 0;
+		private Boolean arrived = null;
+
+		Arrival(float target, int outputTarget) {
+			this.target = target;
+			this.outputTarget = outputTarget;
+		}
+
+		void complete(boolean arrived) {
+			synchronized (this) {
+				if (this.arrived != null) {
+					return;
+				}
+				this.arrived = arrived;
+			}
+			done.countDown();
+		}
+
+		/**
+		 * a move can not be taken back - stop the servo instead
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public Boolean get() throws InterruptedException {
+			done.await();
+			return arrived;
+		}
+
+		@Override
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return arrived;
+		}
+
+		public float getTarget() {
+			return target;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+	}
+
 	/**
 	 * Sweeper - TODO - should be implemented in the arduino code for smoother
 	 * function
@@ -189,6 +262,34 @@ public class Servo extends Service implements ServoControl {
 	// TODO - computer implemented speed control (non-sweep)
 	boolean speedControlOnUC = false;
 	transient Thread sweeper = null;
+
+	// moves and sweeps are interpolated by a scheduler when set
+	transient MotionScheduler scheduler = null;
+
+	// input units per second of scheduled moves - 0 is as fast as possible
+	private float velocity = 0;
+
+	// input units per second^2 of scheduled multi-servo moves - 0 is unlimited
+	private float acceleration = 0;
+
+	// estimated output position from the writes and the controller's events
+	transient ServoModel model = new ServoModel(300, 20);
+
+	// the move futures wait for - guarded by model
+	transient Arrival arrival = null;
+	// the controller reported the current move done
+	transient boolean controllerStopped = false;
+
+	// arrival checks of all servos
+	transient static Timer arrivals = new Timer("servo.arrivals", true);
+	// ms past the expected end of a speed controlled move to wait for the
+	// controller's stop event
+	final static long ARRIVAL_MARGIN = 1000;
+
+	private boolean eventsEnabled = false;
+
+	// uC speed control - 1.0 is none
+	private float speed = 1.0f;
 	
 	/**
 	 * isAttached represents if the 
@@ -345,6 +446,26 @@ public class Servo extends Service implements ServoControl {
 		return minX;
 	}
 
+	/**
+	 * the smallest input moveTo accepts - the mapped input range clipped by
+	 * the output min / max
+	 */
+	public float getMinInputLimit() {
+		return Math.max(Math.min(minX, maxX), Math.min(inputOf(outputYMin), inputOf(outputYMax)));
+	}
+
+	/**
+	 * the largest input moveTo accepts
+	 */
+	public float getMaxInputLimit() {
+		return Math.min(Math.max(minX, maxX), Math.max(inputOf(outputYMin), inputOf(outputYMax)));
+	}
+
+	// the inverse of calc
+	private float inputOf(float outputY) {
+		return minX + ((outputY - minY) * (maxX - minX)) / (maxY - minY);
+	}
+
 	// FIXME - really this could be normalized...
 	// attach / detach - the detach would not remove the ServoData from
 	// the controller only another attach with a different pin would
@@ -385,6 +506,9 @@ public class Servo extends Service implements ServoControl {
 
 	// only if the sweep control is controled by computer and not arduino
 	public boolean isSweeping() {
+		if (scheduler != null) {
+			return scheduler.isSweeping(getName());
+		}
 		return isSweeping;
 	}
 
@@ -410,35 +534,211 @@ public class Servo extends Service implements ServoControl {
 	}
 
 	public void moveTo(Float pos) {
+		move(pos, null);
+	}
+
+	/**
+	 * @return false if the move was not made
+	 */
+	boolean move(Float pos, Arrival next) {
 		if (controller == null) {
 			error(String.format("%s's controller is not set", getName()));
-			return;
+			return false;
 		}
 
-		inputX = pos;
-
 		// the magic mapping
-		int outputY = calc(inputX);
+		int outputY = calc(pos);
 
 		if (outputY > outputYMax || outputY < outputYMin) {
 			warn(String.format("%s.moveTo(%d) out of range", getName(), outputY));
-			return;
+			return false;
 		}
 
+		// whoever waits on the last move has lost it
+		setArrival(next);
+
+		if (scheduler != null) {
+			// interpolated and written on the scheduler's ticks
+			scheduler.moveTo(this, pos);
+			return true;
+		}
+
+		inputX = pos;
+
 		// FIXME - currently their is no timerPosition
 		// this could be gotten with 100 * outputY for some valid range
-		log.info("servoWrite({})", outputY);
+		if (log.isDebugEnabled()) {
+			log.debug("servoWrite({})", outputY);
+		}
 		controller.servoWrite(getName(), outputY);
 		lastActivityTime = System.currentTimeMillis();
+		synchronized (model) {
+			model.command(outputY, lastActivityTime);
+		}
+		return true;
+	}
+
+	/**
+	 * moves and returns at once - the future is done when the servo holds
+	 * still at pos, as far as the model of its slew rate and the controller's
+	 * events can tell. With speed control on the uC (setSpeed below 1)
+	 * arrival also waits for the controller's servo event, so events
+	 * should be enabled.
+	 */
+	public Arrival moveToFuture(Float pos) {
+		Arrival next = new Arrival(pos, calc(pos));
+		if (!move(pos, next)) {
+			next.complete(false);
+			return next;
+		}
+		checkArrival(next);
+		return next;
+	}
+
+	public Arrival moveToFuture(Integer pos) {
+		return moveToFuture((float) pos);
+	}
+
+	/**
+	 * moves and waits up to 10 s for the servo to get there
+	 *
+	 * @return true if it got there
+	 */
+	public boolean moveToBlocking(Float pos) {
+		return moveToBlocking(pos, 10000);
+	}
+
+	public boolean moveToBlocking(Integer pos) {
+		return moveToBlocking((float) pos);
+	}
+
+	/**
+	 * @param timeout
+	 *            - ms
+	 */
+	public boolean moveToBlocking(Float pos, long timeout) {
+		try {
+			return moveToFuture(pos).get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			warn("%s did not get to %.1f in %d ms", getName(), pos, timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	void setArrival(Arrival next) {
+		Arrival last;
+		synchronized (model) {
+			last = arrival;
+			arrival = next;
+			controllerStopped = false;
+		}
+		if (last != null && last != next) {
+			last.complete(false);
+		}
+	}
+
+	/**
+	 * completes the move if the servo has arrived - or looks again when the
+	 * model says it will. A stop event which does not come by the time the
+	 * move should have taken at speed, plus ARRIVAL_MARGIN, completes it with
+	 * false.
+	 */
+	void checkArrival(final Arrival a) {
+		long now = System.currentTimeMillis();
+		long next;
+		boolean timedOut = false;
+		synchronized (model) {
+			if (a != arrival) {
+				return;
+			}
+			boolean scheduled = scheduler != null && scheduler.isMoving(getName());
+			boolean waitForController = speed < 1.0f && eventsEnabled && !controllerStopped;
+			if (waitForController) {
+				if (a.deadline == 0) {
+					// the uC slows the move down by speed
+					long travel = Math.max(model.getArrival() - now, 0);
+					a.deadline = now + (long) (travel / Math.max(speed, 0.01f)) + ARRIVAL_MARGIN;
+				} else if (now >= a.deadline) {
+					arrival = null;
+					timedOut = true;
+				}
+			}
+			if (!scheduled && !waitForController && model.getTarget() == a.outputTarget && !model.isMoving(now)) {
+				arrival = null;
+				a.complete(true);
+				return;
+			}
+			next = Math.max(model.getArrival() - now, 10);
+		}
+		if (timedOut) {
+			warn("%s - no stop event at %d from the controller - move timed out", getName(), a.outputTarget);
+			a.complete(false);
+			return;
+		}
+		arrivals.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				checkArrival(a);
+			}
+		}, next);
+	}
+
+	/**
+	 * an event from the controller - a position update of a speed controlled
+	 * move replaces the model's position, and a stop at the target of a move
+	 * waiting for it lets the move arrive. At full speed the controller echoes
+	 * the target as soon as it is written, while the horn is still on its
+	 * way, so the slew estimate is kept.
+	 */
+	public void controllerEvent(int eventType, int currentPos, int targetPos) {
+		long now = System.currentTimeMillis();
+		synchronized (model) {
+			if (eventType == Arduino.SERVO_EVENT_POSITION_UPDATE && speed < 1.0f) {
+				model.observe(currentPos, now);
+			}
+			if (eventType == Arduino.SERVO_EVENT_STOPPED && arrival != null && currentPos == arrival.outputTarget) {
+				controllerStopped = true;
+			}
+		}
+		invoke("publishServoEvent", currentPos);
+	}
+
+	/**
+	 * estimated output position now
+	 */
+	public float getEstimatedPos() {
+		synchronized (model) {
+			return model.estimate(System.currentTimeMillis());
+		}
+	}
 
+	public ServoModel getModel() {
+		return model;
+	}
+
+	/**
+	 * output units per second the servo itself can turn
+	 */
+	public void setSlewRate(float slewRate) {
+		synchronized (model) {
+			model.slewRate = slewRate;
+		}
+	}
+
+	/**
+	 * ms the servo takes to hold still after reaching a target
+	 */
+	public void setSettleTime(long settleTime) {
+		synchronized (model) {
+			model.settleTime = settleTime;
+		}
 	}
 
 	/**
 	 * basic move command of the servo - usually is 0 - 180 valid range but can
 	 * be adjusted and / or re-mapped with min / max and map commands
-	 * 
-	 * TODO - moveToBlocking - blocks until servo sends "ARRIVED_TO_POSITION"
-	 * response
 	 */
 
 	@Override
@@ -498,6 +798,7 @@ public class Servo extends Service implements ServoControl {
 
 	public boolean setEventsEnabled(boolean b) {
 		controller.setServoEventsEnabled(getName(), b);
+		eventsEnabled = b;
 		return b;
 	}
 
@@ -551,6 +852,7 @@ public class Servo extends Service implements ServoControl {
 			return;
 		}
 		controller.setServoSpeed(getName(), speed);
+		this.speed = speed;
 	}
 
 	// choose to handle sweep on arduino or in MRL on host computer thread.
@@ -558,6 +860,56 @@ public class Servo extends Service implements ServoControl {
 		speedControlOnUC = b;
 	}
 
+	/**
+	 * hands moves and sweeps to a MotionScheduler - null goes back to direct
+	 * writes
+	 */
+	public void setScheduler(String name) {
+		if (scheduler != null) {
+			scheduler.unregister(getName());
+		}
+		if (name == null) {
+			return;
+		}
+		MotionScheduler ms = (MotionScheduler) Runtime.getService(name);
+		if (ms == null) {
+			error("scheduler %s not found", name);
+			return;
+		}
+		ms.register(this);
+	}
+
+	public String getScheduler() {
+		return (scheduler == null) ? null : scheduler.getName();
+	}
+
+	public void setVelocity(float velocity) {
+		this.velocity = velocity;
+	}
+
+	public float getVelocity() {
+		return velocity;
+	}
+
+	public void setAcceleration(float acceleration) {
+		this.acceleration = acceleration;
+	}
+
+	public float getAcceleration() {
+		return acceleration;
+	}
+
+	/**
+	 * position stepped to by the scheduler
+	 */
+	void scheduled(float pos) {
+		inputX = pos;
+		lastActivityTime = System.currentTimeMillis();
+		synchronized (model) {
+			model.command(calc(pos), lastActivityTime);
+		}
+	}
+
 	public void setSweeperDelay(int delay) {
 		((Sweeper) sweeper).setDelay(delay);
 	}
@@ -569,6 +921,10 @@ public class Servo extends Service implements ServoControl {
 	 */
 	@Override
 	public void stop() {
+		setArrival(null);
+		if (scheduler != null) {
+			scheduler.stop(getName());
+		}
 		isSweeping = false;
 		sweeper = null;
 		controller.servoSweepStop(getName());
@@ -594,6 +950,9 @@ public class Servo extends Service implements ServoControl {
 			controller.servoSweepStart(getName(), min, max, step); // delay &
 																	// step
 																	// implemented
+		} else if (scheduler != null) {
+			// same average speed as the sweeper thread - step every delay ms
+			scheduler.sweep(this, min, max, Math.abs(step) * 1000.0f / Math.max(delay, 1), step >= 0, oneWay);
 		} else {
 			if (isSweeping) {
 				stop();
@@ -785,7 +1144,9 @@ public class Servo extends Service implements ServoControl {
 
 		// FIXME - currently their is no timerPosition
 		// this could be gotten with 100 * outputY for some valid range
-		log.info("servoWrite({})", outputY);
+		if (log.isDebugEnabled()) {
+			log.debug("servoWriteMicroseconds({})", outputY);
+		}
 		controller.servoWriteMicroseconds(getName(), outputY);
 		lastActivityTime = System.currentTimeMillis();
 
@@ -1,8 +1,6 @@
 package org.myrobotlab.service;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -15,6 +13,7 @@ import java.util.TimeZone;
 import org.jivesoftware.smack.Roster;
 import org.myrobotlab.fileLib.FileIO;
 import org.myrobotlab.fileLib.FindFile;
+import org.myrobotlab.fileLib.SegmentLog;
 import org.myrobotlab.framework.Encoder;
 import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Peers;
@@ -252,7 +251,16 @@ public class Shoutbox extends Service {
 	Integer port = 6565;
 	int maxShoutsInMemory = 200;
 
-	ArrayList<Shout> shouts = new ArrayList<Shout>();
+	// last maxShoutsInMemory shouts - already json encoded
+	transient String[] recent;
+	transient int recentHead = 0;
+	transient int recentCount = 0;
+	// archive sequence of the oldest shout in recent
+	transient long recentSeq = 0;
+	// bulk catch up reply - rebuilt after each new shout
+	transient String catchup;
+
+	transient SegmentLog archive;
 
 	// FIXME - the amount of methods you DONT want exposed will be dwarfed by
 	// the number you do - So, Security
@@ -291,12 +299,6 @@ public class Shoutbox extends Service {
 
 	int msgCount;
 
-	transient FileWriter fw = null;
-
-	transient BufferedWriter bw = null;
-
-	int maxArchiveRecordCount = 50;
-
 	// if new socket & recently closed socket of user - then
 	// "dwilli is on the move !"
 
@@ -348,40 +350,84 @@ public class Shoutbox extends Service {
 		return user;
 	}
 
+	/**
+	 * encodes the shout once - the same json goes to the archive and the catch
+	 * up buffer. It is compact whatever the pretty printing, the archive holds
+	 * one shout per line.
+	 */
 	public void archive(Shout shout) {
+		String json = Encoder.toCompactJson(shout);
+		long seq = -1;
+		if (archive != null) {
+			seq = archive.append(json);
+		}
+		addRecent(seq, json);
+	}
 
-		try {
-			File dir = new File(getName());
-			// archive chats
-			if (!dir.exists()) {
-				dir.mkdir();
-			}
-
-			if (fw == null) {
-				String filename = String.format("%s/shouts.%s.js", getName(), TSFormatter.format(new Date()));
-				File archive = new File(filename);
-
-				fw = new FileWriter(archive.getAbsoluteFile());
-				bw = new BufferedWriter(fw);
+	synchronized void addRecent(long seq, String json) {
+		if (recent == null || recent.length != maxShoutsInMemory) {
+			recent = new String[maxShoutsInMemory];
+			recentHead = 0;
+			recentCount = 0;
+		}
+		if (recentCount == 0) {
+			recentSeq = seq;
+		}
+		recent[(recentHead + recentCount) % recent.length] = json;
+		if (recentCount < recent.length) {
+			++recentCount;
+		} else {
+			recentHead = (recentHead + 1) % recent.length;
+			++recentSeq;
+		}
+		catchup = null;
+	}
 
-				String d = String.format("%s", Encoder.toJson(shout));
-				bw.write(d);
-				return;
+	/**
+	 * the recent shouts for a new connection in one reply
+	 * {"seq":first,"shouts":[...]} - older shouts can be paged in with
+	 * getHistory(seq, count)
+	 */
+	public synchronized String getCatchup() {
+		if (catchup == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"seq\":").append(recentSeq).append(",\"shouts\":[");
+			for (int i = 0; i < recentCount; ++i) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(recent[(recentHead + i) % recent.length]);
 			}
+			sb.append("]}");
+			catchup = sb.toString();
+		}
+		return catchup;
+	}
 
-			String d = String.format(",%s", Encoder.toJson(shout));
-			bw.write(d);
-			bw.flush();
-
-			if (msgCount % maxArchiveRecordCount == 0) {
-				close(bw);
-				fw = null;
-				bw = null;
+	/**
+	 * up to count archived shouts before beforeSeq - read from the archive
+	 * segments, nothing is kept in memory
+	 */
+	public String getHistory(long beforeSeq, int count) {
+		if (archive == null || beforeSeq <= 0 || count <= 0) {
+			return "{\"seq\":0,\"shouts\":[]}";
+		}
+		long from = Math.max(0, beforeSeq - count);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"seq\":").append(from).append(",\"shouts\":[");
+		try {
+			List<String> records = archive.read(from, (int) (beforeSeq - from));
+			for (int i = 0; i < records.size(); ++i) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(records.get(i));
 			}
-
 		} catch (Exception e) {
 			Logging.logError(e);
 		}
+		sb.append("]}");
+		return sb.toString();
 	}
 
 	private void chatWithChatbot(String foundName, Shout shout) {
@@ -472,16 +518,9 @@ public class Shoutbox extends Service {
 			// all these activities?
 			systemBroadcast(String.format("[%s]@[%s] is in the haus !", conn.user, conn.ip));
 
-			// FIXME onShout which takes ARRAY of shouts !!! - send the whole
-			// thing
-			// in one shot
-			// UPDATE NEW CONNECTION'S DISPLAY
-			for (int i = 0; i < shouts.size(); ++i) {
-				Shout s = shouts.get(i);
-				String ss = Encoder.toJson(s);
-				Message catchup = createMessage("shoutclient", "onShout", ss);
-				ws.send(Encoder.toJson(catchup));
-			}
+			// UPDATE NEW CONNECTION'S DISPLAY - all recent shouts in one shot
+			Message catchup = createMessage("shoutclient", "onCatchup", getCatchup());
+			ws.send(Encoder.toJson(catchup));
 		} catch (Exception e) {
 			Logging.logError(e);
 		}
@@ -646,7 +685,6 @@ public class Shoutbox extends Service {
 			chatWithChatbot(foundName, shout);
 		}
 
-		shouts.add(shout);
 		Message out = createMessage("shoutclient", "onShout", Encoder.toJson(shout));
 		//webgui.sendToAll(out);
 
@@ -756,10 +794,21 @@ public class Shoutbox extends Service {
 	}
 
 	/**
-	 * archiving restores last json file back into newly started shoutbox
+	 * archiving restores the last maxShoutsInMemory shouts back into a newly
+	 * started shoutbox - from the archive segments, or the latest of the older
+	 * shouts.*.js files if there are none yet
 	 */
 	public void restore() {
 		try {
+			if (archive != null && archive.getNextSeq() > 0) {
+				long from = Math.max(0, archive.getNextSeq() - maxShoutsInMemory);
+				List<String> records = archive.read(from, maxShoutsInMemory);
+				for (int i = 0; i < records.size(); ++i) {
+					addRecent(from + i, records.get(i));
+				}
+				return;
+			}
+
 			File latest = null;
 			// restore the last file back into memory
 			List<File> files = FindFile.find(getName(), "shouts.*.js", false, false);
@@ -785,8 +834,9 @@ public class Shoutbox extends Service {
 
 			Shout[] saved = Encoder.fromJson(json, Shout[].class);
 
+			// carried into the new archive so history continues
 			for (int i = 0; i < saved.length; ++i) {
-				shouts.add(saved[i]);
+				archive(saved[i]);
 			}
 
 		} catch (Exception e) {
@@ -888,6 +938,14 @@ public class Shoutbox extends Service {
 		// FIXME - netty websocket server
 		// publishMsg --> onMsg
 		// webgui.addMsgListener(this);
+		if (archive == null) {
+			try {
+				archive = new SegmentLog(new File(getName()), "shouts");
+				archive.start();
+			} catch (Exception e) {
+				error(e);
+			}
+		}
 		restore();
 	}
 
@@ -914,6 +972,10 @@ public class Shoutbox extends Service {
 		if (webgui != null) {
 			webgui.stopService();
 		}
+		if (archive != null) {
+			archive.close();
+			archive = null;
+		}
 	}
 
 	public boolean stopXMPP() {
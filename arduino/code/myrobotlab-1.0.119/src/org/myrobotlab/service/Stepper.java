@@ -112,6 +112,15 @@ public class Stepper extends Service {
 
 	private boolean isBlockingOnStop = false;
 
+	// moves are planned and queued by a scheduler when set
+	transient StepperScheduler scheduler = null;
+
+	// steps per second of scheduled moves
+	private float velocity = 400;
+
+	// steps per second^2 of scheduled moves
+	private float acceleration = 1600;
+
 	public Stepper(String n) {
 		super(n);
 	}
@@ -192,6 +201,14 @@ public class Stepper extends Service {
 	}
 
 	public void moveTo(int newPos) {
+		if (scheduler != null) {
+			// ramped and sent in slices
+			scheduler.moveTo(this, newPos);
+			if (isBlockingOnStop) {
+				scheduler.waitForIdle(getName(), 0);
+			}
+			return;
+		}
 		if (!isBlockingOnStop) {
 			controller.stepperMoveTo(getName(), newPos, style);
 		} else {
@@ -241,6 +258,9 @@ public class Stepper extends Service {
 
 	public void reset() {
 		stop();
+		if (scheduler != null) {
+			scheduler.forget(getName());
+		}
 		currentPos = 0;
 		controller.stepperReset(getName());
 	}
@@ -263,9 +283,54 @@ public class Stepper extends Service {
 	}
 
 	public void stop() {
+		if (scheduler != null) {
+			scheduler.stop(getName());
+		}
 		controller.stepperStop(getName());
 	}
 
+	/**
+	 * hands moves to a StepperScheduler - null goes back to direct moves
+	 */
+	public void setScheduler(String name) {
+		if (scheduler != null) {
+			scheduler.unregister(getName());
+		}
+		if (name == null) {
+			return;
+		}
+		StepperScheduler ss = (StepperScheduler) Runtime.getService(name);
+		if (ss == null) {
+			error("scheduler %s not found", name);
+			return;
+		}
+		ss.register(this);
+	}
+
+	public String getScheduler() {
+		return (scheduler == null) ? null : scheduler.getName();
+	}
+
+	public void setVelocity(float velocity) {
+		this.velocity = velocity;
+	}
+
+	public float getVelocity() {
+		return velocity;
+	}
+
+	public void setAcceleration(float acceleration) {
+		this.acceleration = acceleration;
+	}
+
+	public float getAcceleration() {
+		return acceleration;
+	}
+
+	public StepperController getController() {
+		return controller;
+	}
+
 	public void stopAndLock() {
 		log.info("stopAndLock");
 		stop();
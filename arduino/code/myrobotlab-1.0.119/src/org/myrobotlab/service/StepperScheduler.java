@@ -0,0 +1,443 @@
+package org.myrobotlab.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.kinematics.Trajectory;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.Logging;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.service.interfaces.ServiceInterface;
+import org.myrobotlab.service.interfaces.StepperBatchController;
+import org.myrobotlab.service.interfaces.StepperController;
+import org.slf4j.Logger;
+
+/**
+ * ramped and synchronized stepper moves, planned on the host and queued on
+ * the controller in time slices - instead of one target and a step style per
+ * stepper.
+ *
+ * A move of one or more steppers is a Trajectory - a trapezoid by default,
+ * limited by each stepper's velocity and acceleration, all steppers starting
+ * and arriving together - sampled at the controller's slice period. The step
+ * count of a slice is the difference of two rounded samples, so rounding
+ * never adds up. A feeder thread sends slices in batches whenever the
+ * controller's queue has room - the controller reports the slices it has run
+ * along with the positions in its stepper events.
+ *
+ * Moves queue up per controller, each starting where the one before ends.
+ * The steppers of a controller share its queue, so steppers which have to
+ * move at the same time, e.g. a camera slider and a turntable, go in one
+ * move. A queue found empty while a move still has slices to send counts as
+ * an underrun.
+ */
+public class StepperScheduler extends Service {
+
+	private static final long serialVersionUID = 1L;
+
+	public final static Logger log = LoggerFactory.getLogger(StepperScheduler.class);
+
+	static class Move {
+		final StepperBatchController controller;
+		final String[] names;
+		final Trajectory trajectory;
+		final int[] start;
+		// rounded positions sent so far
+		final int[] sent;
+		// next sample to send
+		int sample = 1;
+
+		Move(StepperBatchController controller, String[] names, Trajectory trajectory, int[] start) {
+			this.controller = controller;
+			this.names = names;
+			this.trajectory = trajectory;
+			this.start = start;
+			this.sent = start.clone();
+		}
+
+		boolean contains(String name) {
+			for (int i = 0; i < names.length; ++i) {
+				if (names[i].equals(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	class Feeder extends Thread {
+		volatile boolean isRunning = false;
+
+		Feeder() {
+			super(String.format("%s.feeder", StepperScheduler.this.getName()));
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			isRunning = true;
+			while (isRunning) {
+				try {
+					feed();
+					Thread.sleep(pollMillis);
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					Logging.logError(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * ms between checks of the controller queues - well under the time a
+	 * full queue lasts
+	 */
+	public int pollMillis = 20;
+	public Trajectory.Profile profile = Trajectory.Profile.TRAPEZOID;
+
+	// guards itself and everything below
+	transient HashMap<StepperBatchController, LinkedList<Move>> queues = new HashMap<StepperBatchController, LinkedList<Move>>();
+	// where each stepper is after the moves queued so far
+	transient HashMap<String, Integer> planned = new HashMap<String, Integer>();
+	transient HashMap<String, Stepper> registered = new HashMap<String, Stepper>();
+	transient long slicesSent;
+	transient long underruns;
+	transient Feeder feeder;
+
+	public static void main(String[] args) {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.INFO);
+
+		try {
+			StepperScheduler scheduler = (StepperScheduler) Runtime.start("stepperScheduler", "StepperScheduler");
+			Arduino arduino = (Arduino) Runtime.start("arduino", "Arduino");
+			arduino.connect("COM15");
+			Stepper slider = (Stepper) Runtime.start("slider", "Stepper");
+			Stepper turntable = (Stepper) Runtime.start("turntable", "Stepper");
+			slider.attach(arduino, 34, 38);
+			turntable.attach(arduino, 40, 42);
+			slider.setVelocity(2000);
+			slider.setAcceleration(4000);
+			turntable.setVelocity(800);
+			turntable.setAcceleration(1600);
+			scheduler.moveTo(new Stepper[] { slider, turntable }, new int[] { 20000, 3200 }, 0);
+		} catch (Exception e) {
+			Logging.logError(e);
+		}
+	}
+
+	public StepperScheduler(String n) {
+		super(n);
+	}
+
+	@Override
+	public String[] getCategories() {
+		return new String[] { "motor", "control" };
+	}
+
+	@Override
+	public String getDescription() {
+		return "ramped and synchronized stepper moves queued on the controller";
+	}
+
+	@Override
+	public void startService() {
+		super.startService();
+		startFeeder();
+	}
+
+	@Override
+	public void stopService() {
+		stopFeeder();
+		super.stopService();
+	}
+
+	public synchronized void startFeeder() {
+		stopFeeder();
+		feeder = new Feeder();
+		feeder.start();
+	}
+
+	public synchronized void stopFeeder() {
+		if (feeder != null) {
+			feeder.isRunning = false;
+			feeder.interrupt();
+			feeder = null;
+		}
+	}
+
+	public void register(Stepper stepper) {
+		synchronized (queues) {
+			registered.put(stepper.getName(), stepper);
+		}
+		stepper.scheduler = this;
+	}
+
+	public void register(String name) {
+		ServiceInterface si = Runtime.getService(name);
+		if (si instanceof Stepper) {
+			register((Stepper) si);
+		} else {
+			error("%s is not a stepper", name);
+		}
+	}
+
+	public void unregister(String name) {
+		Stepper stepper;
+		synchronized (queues) {
+			stepper = registered.remove(name);
+		}
+		if (stepper != null && stepper.scheduler == this) {
+			stepper.scheduler = null;
+		}
+	}
+
+	public Trajectory moveTo(Stepper stepper, int target) {
+		return moveTo(new Stepper[] { stepper }, new int[] { target }, 0);
+	}
+
+	public Trajectory moveTo(String[] names, int[] targets, float duration) {
+		Stepper[] steppers = new Stepper[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			steppers[i] = (Stepper) Runtime.getService(names[i]);
+			if (steppers[i] == null) {
+				error("stepper %s not found", names[i]);
+				return null;
+			}
+		}
+		return moveTo(steppers, targets, duration);
+	}
+
+	/**
+	 * moves steppers of one controller so they all arrive at the same time,
+	 * after the moves already queued on it - duration is stretched if a
+	 * stepper's velocity or acceleration limit needs longer
+	 */
+	public Trajectory moveTo(Stepper[] steppers, int[] targets, float duration) {
+		if (steppers.length == 0 || steppers.length != targets.length) {
+			error("%d steppers but %d targets", steppers.length, targets.length);
+			return null;
+		}
+		StepperController sc = steppers[0].getController();
+		if (!(sc instanceof StepperBatchController)) {
+			error("%s's controller can not queue slices", steppers[0].getName());
+			return null;
+		}
+		StepperBatchController controller = (StepperBatchController) sc;
+		for (int i = 1; i < steppers.length; ++i) {
+			if (steppers[i].getController() != controller) {
+				error("%s and %s are on different controllers", steppers[0].getName(), steppers[i].getName());
+				return null;
+			}
+		}
+
+		// a slice can only hold so many steps
+		float period = controller.getStepperSlicePeriod();
+		float maxRate = 0.95f * controller.getStepperSliceMaxSteps() / period;
+
+		int axes = steppers.length;
+		String[] names = new String[axes];
+		float[] zero = new float[axes];
+		float[] distance = new float[axes];
+		float[] velocity = new float[axes];
+		float[] acceleration = new float[axes];
+		int[] start = new int[axes];
+		synchronized (queues) {
+			for (int i = 0; i < axes; ++i) {
+				names[i] = steppers[i].getName();
+				Integer p = planned.get(names[i]);
+				start[i] = (p == null) ? steppers[i].getPos() : p;
+				// planned relative to the start so float keeps every step
+				distance[i] = targets[i] - start[i];
+				float v = steppers[i].getVelocity();
+				velocity[i] = (v <= 0 || v > maxRate) ? maxRate : v;
+				acceleration[i] = steppers[i].getAcceleration();
+			}
+			Trajectory trajectory = Trajectory.plan(zero, distance, duration, velocity, acceleration, profile, period);
+			LinkedList<Move> moves = queues.get(controller);
+			if (moves == null) {
+				moves = new LinkedList<Move>();
+				queues.put(controller, moves);
+			}
+			moves.add(new Move(controller, names, trajectory, start));
+			for (int i = 0; i < axes; ++i) {
+				planned.put(names[i], targets[i]);
+			}
+			return trajectory;
+		}
+	}
+
+	/**
+	 * sends as many slices as the controller queues have room for
+	 */
+	void feed() {
+		synchronized (queues) {
+			for (Map.Entry<StepperBatchController, LinkedList<Move>> entry : queues.entrySet()) {
+				StepperBatchController controller = entry.getKey();
+				LinkedList<Move> moves = entry.getValue();
+				int free = controller.getStepperQueueFree();
+				while (free > 0 && !moves.isEmpty()) {
+					Move move = moves.getFirst();
+					if (move.sample > 1 && free == controller.getStepperQueueSize()) {
+						// ran dry in the middle of a move
+						++underruns;
+						warn("stepper queue of %s ran dry - %d underruns", controller.getName(), underruns);
+					}
+					int sent = send(move, free);
+					free -= sent;
+					if (move.sample >= move.trajectory.getSamples()) {
+						moves.removeFirst();
+					} else if (sent == 0) {
+						// refused - the moves after it would start from
+						// where this one never got to
+						error("%s refused the slices of a move - %d queued moves dropped", controller.getName(), moves.size());
+						for (Move m : moves) {
+							for (int i = 0; i < m.names.length; ++i) {
+								planned.remove(m.names[i]);
+							}
+						}
+						moves.clear();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * sends up to max slices of a move
+	 *
+	 * @return the slices the controller queued
+	 */
+	int send(Move move, int max) {
+		int axes = move.names.length;
+		int slices = Math.min(max, move.trajectory.getSamples() - move.sample);
+		if (slices <= 0) {
+			return 0;
+		}
+		int[] steps = new int[slices * axes];
+		int[] sent = move.sent.clone();
+		for (int k = 0; k < slices; ++k) {
+			for (int i = 0; i < axes; ++i) {
+				int pos = move.start[i] + Math.round(move.trajectory.get(move.sample + k, i));
+				steps[k * axes + i] = pos - sent[i];
+				sent[i] = pos;
+			}
+		}
+		int queued = move.controller.stepperQueue(move.names, steps, slices);
+		if (queued <= 0) {
+			return 0;
+		}
+		for (int i = 0; i < axes; ++i) {
+			move.sent[i] = move.start[i] + Math.round(move.trajectory.get(move.sample + queued - 1, i));
+		}
+		move.sample += queued;
+		slicesSent += queued;
+		return queued;
+	}
+
+	/**
+	 * drops the moves queued on the stepper's controller and clears its
+	 * queue - every stepper of that controller stops, and their positions
+	 * come back with the stop events
+	 */
+	public void stop(String name) {
+		Stepper stepper = (Stepper) Runtime.getService(name);
+		if (stepper == null || !(stepper.getController() instanceof StepperBatchController)) {
+			return;
+		}
+		StepperBatchController controller = (StepperBatchController) stepper.getController();
+		synchronized (queues) {
+			LinkedList<Move> moves = queues.remove(controller);
+			if (moves != null) {
+				for (Move move : moves) {
+					for (int i = 0; i < move.names.length; ++i) {
+						planned.remove(move.names[i]);
+					}
+				}
+			}
+			// moves already sent in full
+			Iterator<String> it = planned.keySet().iterator();
+			while (it.hasNext()) {
+				Stepper s = (Stepper) Runtime.getService(it.next());
+				if (s == null || s.getController() == controller) {
+					it.remove();
+				}
+			}
+		}
+		controller.stepperQueueClear();
+	}
+
+	/**
+	 * starts the next move of a stepper from its reported position
+	 */
+	public void forget(String name) {
+		synchronized (queues) {
+			planned.remove(name);
+		}
+	}
+
+	/**
+	 * true while a move of the stepper is queued here or its controller
+	 * still has slices to run
+	 */
+	public boolean isMoving(String name) {
+		Stepper stepper = (Stepper) Runtime.getService(name);
+		if (stepper == null) {
+			return false;
+		}
+		synchronized (queues) {
+			for (LinkedList<Move> moves : queues.values()) {
+				for (Move move : moves) {
+					if (move.contains(name)) {
+						return true;
+					}
+				}
+			}
+		}
+		StepperController sc = stepper.getController();
+		if (sc instanceof StepperBatchController) {
+			StepperBatchController controller = (StepperBatchController) sc;
+			return controller.getStepperQueueFree() < controller.getStepperQueueSize();
+		}
+		return false;
+	}
+
+	/**
+	 * blocks until the stepper stops moving
+	 *
+	 * @param timeout
+	 *            - ms - 0 waits for ever
+	 * @return false on timeout
+	 */
+	public boolean waitForIdle(String name, long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		while (isMoving(name)) {
+			if (timeout > 0 && System.currentTimeMillis() > end) {
+				return false;
+			}
+			try {
+				Thread.sleep(pollMillis);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long getSlicesSent() {
+		synchronized (queues) {
+			return slicesSent;
+		}
+	}
+
+	public long getUnderruns() {
+		synchronized (queues) {
+			return underruns;
+		}
+	}
+}
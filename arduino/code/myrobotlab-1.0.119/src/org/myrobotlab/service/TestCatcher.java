@@ -38,6 +38,7 @@ import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.math.Histogram;
 import org.myrobotlab.service.interfaces.SerialDataListener;
 import org.slf4j.Logger;
 
@@ -62,6 +63,13 @@ public class TestCatcher extends Service implements SerialDataListener {
 	
 	ArrayList<Status> errorList = new ArrayList<Status>();
 
+	/**
+	 * load test - one way latency of onLoad in ns, guarded by itself
+	 */
+	transient Histogram latency = new Histogram();
+	transient long loadCount = 0;
+	transient long loadBytes = 0;
+
 	boolean isLocal = true;
 
 	/**
@@ -135,6 +143,11 @@ public class TestCatcher extends Service implements SerialDataListener {
 	 */
 	@Override
 	public boolean preProcessHook(Message msg) {
+		if ("onLoad".equals(msg.method)) {
+			// invoked - queueing every load message would only measure the
+			// queue
+			return true;
+		}
 		try {
 			msgs.put(msg);
 			log.info(String.format("%d msg %s ", msgs.size(), msg));
@@ -149,6 +162,56 @@ public class TestCatcher extends Service implements SerialDataListener {
 		msgs.clear();
 	}
 
+	/**
+	 * load test target - sent is System.nanoTime() of the sender so the
+	 * latency is only meaningful when the sender is in this process, which
+	 * includes a loopback RemoteAdapter
+	 */
+	public Long onLoad(Long sent, byte[] payload) {
+		long now = System.nanoTime();
+		synchronized (latency) {
+			latency.record(now - sent);
+			++loadCount;
+			loadBytes += payload.length;
+		}
+		return sent;
+	}
+
+	public void clearLoad() {
+		synchronized (latency) {
+			latency.reset();
+			loadCount = 0;
+			loadBytes = 0;
+		}
+	}
+
+	/**
+	 * copy of the onLoad latencies so far
+	 */
+	public Histogram getLoadLatency() {
+		Histogram h = new Histogram();
+		synchronized (latency) {
+			h.add(latency);
+		}
+		return h;
+	}
+
+	public long getLoadCount() {
+		synchronized (latency) {
+			return loadCount;
+		}
+	}
+
+	public long getLoadBytes() {
+		synchronized (latency) {
+			return loadBytes;
+		}
+	}
+
+	public int getInboxSize() {
+		return getInbox().size();
+	}
+
 	public BlockingQueue<Message> getMsgs() {
 		return msgs;
 	}
@@ -26,9 +26,11 @@
 package org.myrobotlab.service;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.math.Histogram;
 import org.slf4j.Logger;
 
 public class TestThrower extends Service {
@@ -60,6 +62,83 @@ public class TestThrower extends Service {
 		}
 	}
 
+	/**
+	 * load test pitcher - sends onLoad(System.nanoTime(), payload) to TestCatchers
+	 * round robin. Fire and forget messages go to fanOut targets each,
+	 * blockingRatio of the messages are sent with sendBlocking to one target
+	 * and their round trip recorded. All choices come from a Random with the
+	 * given seed so a run can be repeated.
+	 */
+	public class LoadPitcher implements Runnable {
+		final String[] targets;
+		final byte[][] payloads;
+		final int fanOut;
+		final float blockingRatio;
+		final int rate;
+		final Random random;
+		public volatile boolean running = false;
+
+		LoadPitcher(String[] targets, int[] sizes, int fanOut, float blockingRatio, int rate, long seed) {
+			this.targets = targets;
+			this.fanOut = Math.min(fanOut, targets.length);
+			this.blockingRatio = blockingRatio;
+			this.rate = rate;
+			random = new Random(seed);
+			payloads = new byte[sizes.length][];
+			for (int i = 0; i < sizes.length; ++i) {
+				payloads[i] = new byte[sizes[i]];
+				random.nextBytes(payloads[i]);
+			}
+		}
+
+		@Override
+		public void run() {
+			running = true;
+			int next = 0;
+			long count = 0;
+			long start = System.nanoTime();
+			while (running) {
+				try {
+					byte[] payload = payloads[random.nextInt(payloads.length)];
+					if (blockingRatio > 0 && random.nextFloat() < blockingRatio) {
+						String target = targets[next];
+						next = (next + 1) % targets.length;
+						long sent = System.nanoTime();
+						Object ret = sendBlocking(target, blockingTimeout, "onLoad", sent, payload);
+						long roundTrip = System.nanoTime() - sent;
+						synchronized (loadRoundTrip) {
+							++loadBlocking;
+							if (ret == null) {
+								++loadTimeouts;
+							} else {
+								loadRoundTrip.record(roundTrip);
+							}
+						}
+					} else {
+						Long sent = System.nanoTime();
+						for (int i = 0; i < fanOut; ++i) {
+							send(targets[next], "onLoad", sent, payload);
+							next = (next + 1) % targets.length;
+						}
+						synchronized (loadRoundTrip) {
+							loadSent += fanOut;
+						}
+					}
+
+					++count;
+					if (rate > 0) {
+						long wait = start + count * 1000000000L / rate - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						}
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+			}
+		}
+	}
+
 	private static final long serialVersionUID = 1L;
 	public final static Logger log = LoggerFactory.getLogger(TestThrower.class.getCanonicalName());
 	public int cnt = 0;
@@ -73,6 +152,17 @@ public class TestThrower extends Service {
 
 	public ArrayList<RapidThrower> pitchers = new ArrayList<RapidThrower>();
 
+	public int blockingTimeout = 1000;
+
+	/**
+	 * load test - round trip of blocking sends in ns, guards the counts too
+	 */
+	transient Histogram loadRoundTrip = new Histogram();
+	transient long loadSent = 0;
+	transient long loadBlocking = 0;
+	transient long loadTimeouts = 0;
+	transient LoadPitcher loadPitcher;
+
 	// TODO bury this in Service??
 	public TestThrower(String n) {
 		super(n);
@@ -137,6 +227,57 @@ public class TestThrower extends Service {
 		}
 	}
 
+	/**
+	 * starts pitching load on its own thread
+	 *
+	 * @param rate
+	 *            - messages per second, 0 as fast as possible
+	 */
+	public void startLoad(String[] targets, int[] payloadSizes, int fanOut, float blockingRatio, int rate, long seed) {
+		stopLoad();
+		loadPitcher = new LoadPitcher(targets, payloadSizes, fanOut, blockingRatio, rate, seed);
+		Thread t = new Thread(loadPitcher, String.format("%s.load", getName()));
+		t.start();
+	}
+
+	public void stopLoad() {
+		if (loadPitcher != null) {
+			loadPitcher.running = false;
+			loadPitcher = null;
+		}
+	}
+
+	public void clearLoad() {
+		synchronized (loadRoundTrip) {
+			loadRoundTrip.reset();
+			loadSent = 0;
+			loadBlocking = 0;
+			loadTimeouts = 0;
+		}
+	}
+
+	public Histogram getLoadRoundTrip() {
+		Histogram h = new Histogram();
+		synchronized (loadRoundTrip) {
+			h.add(loadRoundTrip);
+		}
+		return h;
+	}
+
+	/**
+	 * @return fire and forget messages sent, blocking sends, blocking sends
+	 *         which timed out
+	 */
+	public long[] getLoadCounts() {
+		synchronized (loadRoundTrip) {
+			return new long[] { loadSent, loadBlocking, loadTimeouts };
+		}
+	}
+
+	public int getOutboxSize() {
+		return getOutbox().size();
+	}
+
 	public Integer throwInteger(Integer count) {
 		log.info("throwInteger " + count);
 		return count;
@@ -47,9 +47,11 @@ import org.myrobotlab.image.SerializableImage;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.math.ConstantVelocityFilter;
 import org.myrobotlab.opencv.OpenCVData;
 import org.myrobotlab.opencv.OpenCVFilter;
 import org.myrobotlab.opencv.OpenCVFilterDetector;
+import org.myrobotlab.opencv.OpenCVFilterFaceDetect;
 import org.myrobotlab.opencv.OpenCVFilterGray;
 import org.myrobotlab.opencv.OpenCVFilterPyramidDown;
 import org.myrobotlab.service.data.Point2Df;
@@ -64,6 +66,42 @@ public class Tracking extends Service {
 
 	public final static Logger log = LoggerFactory.getLogger(Tracking.class.getCanonicalName());
 
+	/**
+	 * the last servo commands and when they were sent
+	 */
+	static class CommandHistory {
+		final long[] times = new long[64];
+		final float[] positions = new float[64];
+		int count = 0;
+		int next = 0;
+
+		void add(long time, float position) {
+			times[next] = time;
+			positions[next] = position;
+			next = (next + 1) % times.length;
+			if (count < times.length) {
+				++count;
+			}
+		}
+
+		/**
+		 * the last command sent at or before time - fallback if there is none
+		 */
+		float at(long time, float fallback) {
+			for (int i = 1; i <= count; ++i) {
+				int j = (next - i + times.length) % times.length;
+				if (times[j] <= time) {
+					return positions[j];
+				}
+			}
+			return fallback;
+		}
+
+		void clear() {
+			count = 0;
+		}
+	}
+
 	public ArrayList<OpenCVFilter> preFilters = new ArrayList<OpenCVFilter>();
 
 	long lastTimestamp = 0;
@@ -113,6 +151,31 @@ public class Tracking extends Service {
 
 	// ----- INITIALIZATION DATA END -----
 
+	// ----- latency compensated tracking -----
+	// set by setScheduler - the servos then aim at where the target will be
+	// once they get there instead of going through the pids
+	transient MotionScheduler scheduler;
+	// servo input units across the whole frame
+	public float fovX = 60;
+	public float fovY = 45;
+	// +1 if a target right of (below) center is at a larger servo input
+	public float xDirection = -1;
+	public float yDirection = -1;
+	// ms from a servo command until the servo is there
+	public int servoLag = 100;
+	// share of the way to the predicted target moved per frame
+	public float gain = 1.0f;
+	// a target not seen for this long starts a new track
+	public int lostTrackTime = 500;
+	// variances - see ConstantVelocityFilter
+	public double processNoise = 500;
+	public double measurementNoise = 0.25;
+	transient ConstantVelocityFilter xFilter = new ConstantVelocityFilter(processNoise, measurementNoise);
+	transient ConstantVelocityFilter yFilter = new ConstantVelocityFilter(processNoise, measurementNoise);
+	transient CommandHistory xHistory = new CommandHistory();
+	transient CommandHistory yHistory = new CommandHistory();
+	long lastCapture = 0;
+
 	int scanYStep = 2;
 	int scanXStep = 2;
 
@@ -147,6 +210,12 @@ public class Tracking extends Service {
 
 	boolean scan = false;
 
+	/**
+	 * search only around the last face once locked - with a periodic
+	 * downscaled full frame search
+	 */
+	public boolean adaptiveDetection = true;
+
 	// ------------------- tracking & detecting methods begin
 	// ---------------------
 
@@ -245,7 +314,8 @@ public class Tracking extends Service {
 		}
 
 		// TODO single string static
-		opencv.addFilter(FILTER_FACE_DETECT);
+		OpenCVFilterFaceDetect faceDetect = (OpenCVFilterFaceDetect) opencv.addFilter(FILTER_FACE_DETECT);
+		faceDetect.setAdaptive(adaptiveDetection);
 		opencv.setDisplayFilter(FILTER_FACE_DETECT);
 
 		opencv.capture();
@@ -424,7 +494,7 @@ public class Tracking extends Service {
 				// find centroid of first bounding box
 				lastPoint.x = bb.get(0).x + bb.get(0).width / 2;
 				lastPoint.y = bb.get(0).y + bb.get(0).height / 2;
-				updateTrackingPoint(lastPoint);
+				updateTrackingPoint(lastPoint, data.getTimestamp());
 
 				++faceFoundFrameCount;
 
@@ -487,7 +557,7 @@ public class Tracking extends Service {
 			// data.setSelectedFilterName(LKOpticalTrackFilterName);
 			Point2Df targetPoint = data.getFirstPoint();
 			if (targetPoint != null) {
-				updateTrackingPoint(targetPoint);
+				updateTrackingPoint(targetPoint, data.getTimestamp());
 			}
 			break;
 
@@ -614,11 +684,29 @@ public class Tracking extends Service {
 	// OpenCV should have a publishTrackingPoint method !
 	// This should be updateTrackingPoint(Point2Df) & perhaps Point3Df :)
 	final public void updateTrackingPoint(Point2Df targetPoint) {
+		updateTrackingPoint(targetPoint, targetPoint.timestamp);
+	}
+
+	/**
+	 * @param captureTime
+	 *            - when the frame the point was found in was grabbed
+	 */
+	final public void updateTrackingPoint(Point2Df targetPoint, long captureTime) {
 
 		++cnt;
 
 		// describe this time delta
-		latency = System.currentTimeMillis() - targetPoint.timestamp;
+		latency = System.currentTimeMillis() - captureTime;
+
+		if (scheduler != null) {
+			aim(targetPoint, captureTime);
+			lastPoint = targetPoint;
+			if (cnt % updateModulus == 0) {
+				broadcastState();
+			}
+			return;
+		}
+
 		log.info(String.format("pt %s", targetPoint));
 
 		xpid.setInput(targetPoint.x);
@@ -679,6 +767,91 @@ public class Tracking extends Service {
 		}
 	}
 
+	/**
+	 * moves the servos to where the target will be once they get there.
+	 *
+	 * The target's angle is where the head pointed when the frame was
+	 * captured - the command sent servoLag before - plus its offset in the
+	 * frame. A filter per axis tracks that angle over capture times, and the
+	 * servos are sent to its prediction for now + servoLag + a tick, which
+	 * makes up for the camera, the processing and the servo. As the angle
+	 * does not depend on where the head is now, moving the head does not
+	 * feed back into the next frame's error.
+	 */
+	void aim(Point2Df targetPoint, long captureTime) {
+		if (captureTime - lastCapture > lostTrackTime) {
+			xFilter.reset();
+			yFilter.reset();
+		}
+		lastCapture = captureTime;
+		xFilter.processNoise = yFilter.processNoise = processNoise;
+		xFilter.measurementNoise = yFilter.measurementNoise = measurementNoise;
+
+		long now = System.currentTimeMillis();
+		double until = (now + servoLag + 1000.0 / scheduler.rate) / 1000;
+		aim(x, xFilter, xHistory, targetPoint.x, fovX, xDirection, captureTime, now, until);
+		aim(y, yFilter, yHistory, targetPoint.y, fovY, yDirection, captureTime, now, until);
+	}
+
+	void aim(Servo servo, ConstantVelocityFilter filter, CommandHistory history, float offset, float fov, float direction, long captureTime, long now, double until) {
+		Float current = servo.getPosFloat();
+		float fallback = (current == null) ? servo.getRest() : current;
+		float head = history.at(captureTime - servoLag, fallback);
+		filter.update(captureTime / 1000.0, head + direction * (offset - 0.5f) * fov);
+
+		float last = history.at(now, fallback);
+		float command = (float) (last + gain * (filter.predict(until) - last));
+		command = Math.max(servo.getMinInputLimit(), Math.min(servo.getMaxInputLimit(), command));
+		scheduler.moveTo(servo, command, captureTime);
+		history.add(now, command);
+	}
+
+	/**
+	 * latency compensated tracking - the servos are moved through this
+	 * scheduler, null goes back to the pids
+	 */
+	public void setScheduler(String name) {
+		xFilter.reset();
+		yFilter.reset();
+		xHistory.clear();
+		yHistory.clear();
+		MotionScheduler ms = null;
+		if (name != null) {
+			ms = (MotionScheduler) Runtime.getService(name);
+			if (ms == null) {
+				error("scheduler %s not found", name);
+				return;
+			}
+		}
+		// the stats listener goes with the scheduler it was added to
+		if (scheduler != null) {
+			scheduler.removeListener("publishTickStats", getName(), "onTickStats");
+			scheduler = null;
+		}
+		if (ms == null) {
+			x.setScheduler(null);
+			y.setScheduler(null);
+			return;
+		}
+		x.setScheduler(name);
+		y.setScheduler(name);
+		ms.addListener("publishTickStats", getName(), "onTickStats");
+		scheduler = ms;
+	}
+
+	public String getScheduler() {
+		return (scheduler == null) ? null : scheduler.getName();
+	}
+
+	/**
+	 * logs the capture to servo write latency of the tracking moves
+	 */
+	public void onTickStats(MotionScheduler.TickStats stats) {
+		if (stats.latencyCount > 0) {
+			log.info("{} moves capture to servo write mean {} p99 {} max {} ms - pipeline {} ms", stats.latencyCount, stats.latencyMean, stats.latencyP99, stats.latencyMax, latency);
+		}
+	}
+
 	public void waitForObjects(OpenCVData data) {
 		data.setSelectedFilterName(FILTER_FIND_CONTOURS);
 		ArrayList<Rectangle> objects = data.getBoundingBoxArray();
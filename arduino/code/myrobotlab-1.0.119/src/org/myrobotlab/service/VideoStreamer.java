@@ -1,8 +1,6 @@
 package org.myrobotlab.service;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.myrobotlab.image.SerializableImage;
 import org.myrobotlab.logging.Level;
@@ -36,6 +34,8 @@ public class VideoStreamer extends VideoSink {
 	public int listeningPort = 9090;
 	transient private MjpegServer server;
 	public boolean mergeSteams = true;
+	public int maxFps = 0;
+	public int maxKbps = 0;
 
 	public static void main(String[] args) {
 		LoggingFactory.getInstance().configure();
@@ -84,14 +84,23 @@ public class VideoStreamer extends VideoSink {
 		 * if (mergeSteams) { si.setSource("output"); }
 		 */
 
-		if (!server.videoFeeds.containsKey(si.getSource())) {
-			server.videoFeeds.put(si.getSource(), new LinkedBlockingQueue<SerializableImage>());
+		// encoded once and shared by all viewers of the feed
+		// slow viewers skip frames instead of holding back the others
+		if (server != null) {
+			server.publish(si.getSource(), si);
 		}
+	}
 
-		BlockingQueue<SerializableImage> buffer = server.videoFeeds.get(si.getSource());
-		// if its backed up over 10 frames we are dumping it
-		if (buffer.size() < 1) {
-			buffer.add(si);
+	/**
+	 * default caps for viewers which do not ask for any with ?fps= or ?kbps= -
+	 * 0 is no limit
+	 */
+	public void setMaxRate(int fps, int kbps) {
+		maxFps = fps;
+		maxKbps = kbps;
+		if (server != null) {
+			server.defaultMaxFps = fps;
+			server.defaultMaxKbps = kbps;
 		}
 	}
 
@@ -124,6 +133,8 @@ public class VideoStreamer extends VideoSink {
 		listeningPort = port;
 		try {
 			server = new MjpegServer(listeningPort);
+			server.defaultMaxFps = maxFps;
+			server.defaultMaxKbps = maxKbps;
 			server.start();
 		} catch (IOException e) {
 			Logging.logError(e);
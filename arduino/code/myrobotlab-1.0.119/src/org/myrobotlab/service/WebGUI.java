@@ -5,14 +5,23 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.atmosphere.cpr.ApplicationConfig;
+import org.atmosphere.cpr.AsyncIOWriter;
 import org.atmosphere.cpr.AtmosphereRequest;
 import org.atmosphere.cpr.AtmosphereRequest.Body;
 import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.AtmosphereResource.TRANSPORT;
 import org.atmosphere.cpr.AtmosphereResourceEvent;
+import org.atmosphere.cpr.AtmosphereResourceEventListenerAdapter;
 import org.atmosphere.cpr.AtmosphereResponse;
 import org.atmosphere.cpr.Broadcaster;
 import org.atmosphere.cpr.BroadcasterFactory;
@@ -20,6 +29,7 @@ import org.atmosphere.cpr.Serializer;
 import org.atmosphere.nettosphere.Config;
 import org.atmosphere.nettosphere.Handler;
 import org.atmosphere.nettosphere.Nettosphere;
+import org.atmosphere.websocket.WebSocket;
 import org.myrobotlab.fileLib.Zip;
 import org.myrobotlab.framework.Encoder;
 import org.myrobotlab.framework.Message;
@@ -31,12 +41,17 @@ import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
 import org.myrobotlab.net.BareBonesBrowserLaunch;
+import org.myrobotlab.net.BinaryFrame;
 import org.myrobotlab.net.Connection;
 import org.myrobotlab.service.interfaces.AuthorizationProvider;
 import org.myrobotlab.service.interfaces.Gateway;
 import org.myrobotlab.service.interfaces.ServiceInterface;
 import org.slf4j.Logger;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 //@ManagedService(path = "/api")
 //@ManagedService(path = "/snake")
 
@@ -58,6 +73,209 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 	
 	public String startURL = "http://127.0.0.1:%d/index.html";
 
+	// what a client queue does when it is full
+	public final static String OVERFLOW_DROP_OLDEST = "dropOldest";
+	public final static String OVERFLOW_DROP_NEWEST = "dropNewest";
+	// replace the queued message of the same topic - older ones are dropped
+	public final static String OVERFLOW_LATEST = "latest";
+	public final static String OVERFLOW_DISCONNECT = "disconnect";
+
+	public final static String ENCODING_JSON = "json";
+	public final static String ENCODING_BINARY = "binary";
+
+	/**
+	 * per client send queue limits - a slow client loses messages according
+	 * to its overflow policy, it never holds up the publishers
+	 */
+	public int maxQueued = 256;
+	public int maxQueuedBytes = 4 * 1024 * 1024;
+	public String defaultOverflow = OVERFLOW_LATEST;
+	public int writerThreads = 4;
+
+	/**
+	 * a (service, method) stream and the clients subscribed to it
+	 */
+	static class Topic {
+		final String key;
+		final String name;
+		final String method;
+		final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+
+		Topic(String key, String name, String method) {
+			this.key = key;
+			this.name = name;
+			this.method = method;
+		}
+	}
+
+	static class Outbound {
+		String topic;
+		// String for json clients - byte[] for binary clients
+		Object payload;
+		int size;
+	}
+
+	/**
+	 * a /api/messages client - keyed by atmosphere uuid so a long polling
+	 * client keeps its queue and subscriptions between requests
+	 */
+	class Client implements Runnable {
+		final String uuid;
+		AtmosphereResource resource;
+		boolean binary = false;
+		String overflow = defaultOverflow;
+		final HashSet<String> topics = new HashSet<String>();
+		final Connection data;
+
+		final ArrayDeque<Outbound> queue = new ArrayDeque<Outbound>();
+		// topic -> queued message for the latest policy
+		final HashMap<String, Outbound> queuedTopics = new HashMap<String, Outbound>();
+		int queuedBytes = 0;
+		boolean writing = false;
+		boolean closed = false;
+
+		Client(String uuid, AtmosphereResource resource) throws URISyntaxException {
+			this.uuid = uuid;
+			this.resource = resource;
+			data = new Connection(getName(), new URI("atmosphere", uuid, null));
+			data.state = Connection.CONNECTED;
+		}
+
+		synchronized void attach(AtmosphereResource r) {
+			resource = r;
+			schedule();
+		}
+
+		synchronized void offer(String topic, Object payload, int size) {
+			if (closed) {
+				return;
+			}
+
+			if (OVERFLOW_LATEST.equals(overflow)) {
+				Outbound queued = queuedTopics.get(topic);
+				if (queued != null) {
+					queuedBytes += size - queued.size;
+					queued.payload = payload;
+					queued.size = size;
+					++data.txDropped;
+					return;
+				}
+			}
+
+			while (!queue.isEmpty() && (queue.size() >= maxQueued || queuedBytes + size > maxQueuedBytes)) {
+				if (OVERFLOW_DROP_NEWEST.equals(overflow)) {
+					++data.txDropped;
+					return;
+				} else if (OVERFLOW_DISCONNECT.equals(overflow)) {
+					log.warn("client {} queue full - disconnecting", uuid);
+					removeClient(uuid);
+					return;
+				}
+				Outbound dropped = queue.poll();
+				dequeued(dropped);
+				++data.txDropped;
+			}
+
+			Outbound o = new Outbound();
+			o.topic = topic;
+			o.payload = payload;
+			o.size = size;
+			queue.add(o);
+			queuedBytes += size;
+			if (OVERFLOW_LATEST.equals(overflow)) {
+				queuedTopics.put(topic, o);
+			}
+			schedule();
+		}
+
+		void dequeued(Outbound o) {
+			queuedBytes -= o.size;
+			if (queuedTopics.get(o.topic) == o) {
+				queuedTopics.remove(o.topic);
+			}
+		}
+
+		void schedule() {
+			data.txQueued = queue.size();
+			data.txQueuedBytes = queuedBytes;
+			if (!writing && !closed && resource != null && !queue.isEmpty() && writers != null) {
+				writing = true;
+				writers.execute(this);
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			queue.clear();
+			queuedTopics.clear();
+			queuedBytes = 0;
+			data.state = Connection.DISCONNECTED;
+		}
+
+		/**
+		 * drains the queue on a writer thread - only one writer per client at
+		 * a time so messages stay in order
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				Outbound o;
+				AtmosphereResource r;
+				synchronized (this) {
+					o = queue.poll();
+					if (o == null || closed || resource == null) {
+						writing = false;
+						return;
+					}
+					dequeued(o);
+					data.txQueued = queue.size();
+					data.txQueuedBytes = queuedBytes;
+					r = resource;
+				}
+
+				try {
+					if (o.payload instanceof String) {
+						r.getResponse().write((String) o.payload);
+					} else {
+						byte[] b = (byte[]) o.payload;
+						AsyncIOWriter writer = r.getResponse().getAsyncIOWriter();
+						if (writer instanceof WebSocket) {
+							// a binary frame - the response sends bytes as text
+							// unless WEBSOCKET_BINARY_WRITE is on, which would
+							// turn the json of every other client into binary
+							// frames too
+							((WebSocket) writer).write(b, 0, b.length);
+						} else {
+							r.getResponse().write(b);
+						}
+					}
+					++data.tx;
+					data.txBytes += o.size;
+
+					if (r.transport() == TRANSPORT.LONG_POLLING) {
+						// one message per poll - the rest wait for the next
+						// request
+						synchronized (this) {
+							resource = null;
+						}
+						r.resume();
+					}
+				} catch (Exception e) {
+					log.warn("client {} write failed {}", uuid, e.getMessage());
+					removeClient(uuid);
+					synchronized (this) {
+						writing = false;
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	transient ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	transient HashMap<String, Topic> topics = new HashMap<String, Topic>();
+	transient ExecutorService writers;
+
 	
 	// FIXME - shim for Shoutbox
 	// deprecate ???
@@ -77,6 +295,22 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 		super(n);
 	}
 
+	static boolean isOverflowPolicy(String policy) {
+		return OVERFLOW_DROP_OLDEST.equals(policy) || OVERFLOW_DROP_NEWEST.equals(policy) || OVERFLOW_LATEST.equals(policy) || OVERFLOW_DISCONNECT.equals(policy);
+	}
+
+	/**
+	 * overflow policy of clients which connect from now on
+	 */
+	public boolean setDefaultOverflow(String policy) {
+		if (!isOverflowPolicy(policy)) {
+			error("unknown overflow policy %s - keeping %s", policy, defaultOverflow);
+			return false;
+		}
+		defaultOverflow = policy;
+		return true;
+	}
+
 	// ================ Gateway begin ===========================
 
 	@Override
@@ -93,8 +327,11 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 
 	@Override
 	public HashMap<URI, Connection> getClients() {
-		// TODO Auto-generated method stub
-		return null;
+		HashMap<URI, Connection> ret = new HashMap<URI, Connection>();
+		for (Client client : clients.values()) {
+			ret.put(client.data.protocolKey, client.data);
+		}
+		return ret;
 	}
 
 	@Override
@@ -152,13 +389,169 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 	// ================ AuthorizationProvider end ===========================
 
 	// ================ Broadcaster begin ===========================
+	/**
+	 * sends msg to the clients subscribed to its topic - it is encoded once
+	 * per encoding however many clients there are
+	 */
 	public void broadcast(Message msg) {
-		broadcaster.broadcast(msg); // wtf
+		Topic topic;
+		synchronized (topics) {
+			topic = topics.get(String.format("%s.%s", msg.sender, msg.sendingMethod));
+		}
+		if (topic == null) {
+			return;
+		}
+
+		String json = null;
+		byte[] binary = null;
+		for (Client client : topic.clients) {
+			if (client.binary) {
+				if (binary == null) {
+					binary = BinaryFrame.encode(msg);
+				}
+				client.offer(topic.key, binary, binary.length);
+			} else {
+				if (json == null) {
+					json = Encoder.toJson(msg, Message.class);
+				}
+				client.offer(topic.key, json, json.length());
+			}
+		}
+	}
+
+	/**
+	 * published data of subscribed topics goes to the clients instead of being
+	 * invoked on this service
+	 */
+	@Override
+	public boolean preProcessHook(Message m) {
+		boolean subscribed;
+		synchronized (topics) {
+			subscribed = topics.containsKey(String.format("%s.%s", m.sender, m.sendingMethod));
+		}
+		if (subscribed) {
+			broadcast(m);
+			return false;
+		}
+		return true;
 	}
 
 	// ================ Broadcaster end ===========================
 
+	public void addSubscription(Client client, String name, String method) {
+		String key = String.format("%s.%s", name, method);
+		synchronized (topics) {
+			Topic topic = topics.get(key);
+			if (topic == null) {
+				topic = new Topic(key, name, method);
+				topics.put(key, topic);
+				// one route from the publisher however many clients
+				subscribe(name, method);
+			}
+			topic.clients.addIfAbsent(client);
+			client.topics.add(key);
+		}
+	}
+
+	public void removeSubscription(Client client, String name, String method) {
+		removeSubscription(client, String.format("%s.%s", name, method));
+	}
+
+	void removeSubscription(Client client, String key) {
+		synchronized (topics) {
+			client.topics.remove(key);
+			Topic topic = topics.get(key);
+			if (topic == null) {
+				return;
+			}
+			topic.clients.remove(client);
+			if (topic.clients.size() == 0) {
+				topics.remove(key);
+				unsubscribe(topic.name, topic.method, topic.method);
+			}
+		}
+	}
+
+	void removeClient(String uuid) {
+		Client client = clients.remove(uuid);
+		if (client == null) {
+			return;
+		}
+		client.close();
+		synchronized (topics) {
+			String[] keys = client.topics.toArray(new String[client.topics.size()]);
+			for (int i = 0; i < keys.length; ++i) {
+				removeSubscription(client, keys[i]);
+			}
+		}
+		log.info("client {} removed", uuid);
+	}
+
+	/**
+	 * a message from a client - subscribe, unsubscribe, setOverflow and
+	 * setEncoding are handled here, anything else is sent to the named service
+	 * with its json parameters converted to the method's types
+	 */
+	void onClientMessage(Client client, String json) throws IOException {
+		JsonObject o = new JsonParser().parse(json).getAsJsonObject();
+		String name = (o.has("name")) ? o.get("name").getAsString() : "";
+		String method = o.get("method").getAsString();
+		JsonArray data = (o.has("data") && o.get("data").isJsonArray()) ? o.getAsJsonArray("data") : new JsonArray();
+
+		String[] params = TypeConverter.getStringParams(data);
+
+		if (name.length() == 0 || getName().equals(name)) {
+			if ("subscribe".equals(method) && params.length == 2) {
+				addSubscription(client, params[0], params[1]);
+				return;
+			} else if ("unsubscribe".equals(method) && params.length == 2) {
+				removeSubscription(client, params[0], params[1]);
+				return;
+			} else if ("setOverflow".equals(method) && params.length == 1) {
+				if (!isOverflowPolicy(params[0])) {
+					warn("client %s asked for unknown overflow policy %s - keeping %s", client.uuid, params[0], client.overflow);
+					return;
+				}
+				synchronized (client) {
+					client.overflow = params[0];
+					client.queuedTopics.clear();
+				}
+				return;
+			} else if ("setEncoding".equals(method) && params.length == 1) {
+				client.binary = ENCODING_BINARY.equals(params[0]);
+				return;
+			}
+			name = getName();
+		}
+
+		ServiceInterface si = Runtime.getService(name);
+		if (si == null) {
+			throw new IOException(String.format("could not find service %s", name));
+		}
+		Object[] typedParameters = (params.length == 0) ? null : TypeConverter.getTypedParamsFromJson(si.getClass(), method, params);
+		++client.data.rx;
+		send(name, method, typedParameters);
+	}
+
+	@Override
+	public void stopService() {
+		super.stopService();
+		for (String uuid : clients.keySet()) {
+			removeClient(uuid);
+		}
+		if (writers != null) {
+			writers.shutdownNow();
+			writers = null;
+		}
+		if (nettosphere != null) {
+			nettosphere.stop();
+			nettosphere = null;
+		}
+	}
+
 	public void startService() {
+		super.startService();
+		writers = Executors.newFixedThreadPool(writerThreads);
 
 		//Broadcaster b = broadcasterFactory.get();
 		
@@ -188,6 +581,7 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 		Nettosphere s = new Nettosphere.Builder().config(configBuilder.build()).build();
 		
 		s.start();
+		nettosphere = s;
 		
 		broadcastFactory = s.framework().getBroadcasterFactory();
 		// get default boadcaster
@@ -285,23 +679,48 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 		
 			if ("messages".equals(apiType)){
 				
+				// /api/messages?encoding=binary - frames are BinaryFrame
+				// instead of json text
+				Client client = clients.get(uuid);
+				if (client == null) {
+					client = new Client(uuid, r);
+					client.binary = ENCODING_BINARY.equals(request.getParameter("encoding"));
+					clients.put(uuid, client);
+					log.info("new messages client {} binary {}", uuid, client.binary);
+				} else {
+					// long polling - same client new request
+					client.attach(r);
+				}
+
 				// suspend the connection
 				if (!r.isSuspended()){
+					final String clientId = uuid;
+					r.addEventListener(new AtmosphereResourceEventListenerAdapter() {
+						@Override
+						public void onDisconnect(AtmosphereResourceEvent event) {
+							removeClient(clientId);
+						}
+					});
 					r.suspend();
 				}
-								
-				// de-serialize message
-				// broadcaster.broadcast(json);
-				// out.write(json.getBytes());
-				// out.flush();
+
+				// websocket frames arrive here on the suspended resource
+				if (data != null && data.length() > 0) {
+					onClientMessage(client, data);
+				}
 				
 				// FIXME - single Encoder.invoke() !!!
 				// FIXME - needs to be pushed to CLI !!! - returns Objects - Encode can encode
+				return;
 			} else if ("services".equals(apiType)){	
 				
+				// ?fields=name,serviceClass - only these fields of the
+				// service(s) are returned
+				String fieldList = request.getParameter("fields");
+				String[] fields = (fieldList == null || fieldList.length() == 0) ? null : fieldList.split(",");
+
 				if ("/api/services".equals(pathInfo)){
-					String services = Encoder.toJson(Runtime.getServices());
-					out.write(services.getBytes());
+					Encoder.write(out, Runtime.getServices(), fields);
 					out.flush();
 					// close ?
 					return;
@@ -321,7 +740,7 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 						throw new IOException(String.format("could not return service", sname));
 					}
 					
-					out.write(Encoder.toJson(si).getBytes());
+					Encoder.write(out, si, fields);
 					out.flush();
 					
 					return;
@@ -336,12 +755,12 @@ public class WebGUI extends Service implements AuthorizationProvider, Gateway, H
 					if(si == null){
 						//FIXME  return error !
 						// this is synchronous
-						out.write(Encoder.toJson(error("could not return service", sname)).getBytes());
+						Encoder.write(out, error("could not return service", sname));
 						out.flush();
 						return;
 					}
 				
-					out.write(Encoder.toJson(si.getDeclaredMethodNames()).getBytes());
+					Encoder.write(out, si.getDeclaredMethodNames());
 					out.flush();
 					
 					return;
@@ -0,0 +1,14 @@
+package org.myrobotlab.service.interfaces;
+
+/**
+ * a ServoController which can take all the writes of one control tick in a
+ * single call - e.g. without other traffic interleaving them
+ */
+public interface ServoBatchController extends ServoController {
+
+	/**
+	 * writes the first count positions
+	 */
+	public void servoWrite(String[] servoNames, int[] positions, int count);
+
+}
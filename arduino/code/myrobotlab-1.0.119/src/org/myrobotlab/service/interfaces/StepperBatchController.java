@@ -0,0 +1,45 @@
+package org.myrobotlab.service.interfaces;
+
+/**
+ * a StepperController with a queue of fixed length time slices - each slice
+ * holds a signed step count for every stepper, spread evenly over the slice,
+ * and all steppers of a slice step together
+ */
+public interface StepperBatchController extends StepperController {
+
+	/**
+	 * slices the controller can hold
+	 */
+	public int getStepperQueueSize();
+
+	/**
+	 * free slices - counting everything sent which the controller has not
+	 * reported as run, so it may be less but never more than really free
+	 */
+	public int getStepperQueueFree();
+
+	/**
+	 * seconds per slice
+	 */
+	public float getStepperSlicePeriod();
+
+	/**
+	 * most steps of one stepper in one slice
+	 */
+	public int getStepperSliceMaxSteps();
+
+	/**
+	 * queues slices - steps of stepper i in slice k are at
+	 * steps[k * stepperNames.length + i]
+	 *
+	 * @return the slices queued - 0 if the batch was refused, e.g. it does not
+	 *         fit the free slices
+	 */
+	public int stepperQueue(String[] stepperNames, int[] steps, int slices);
+
+	/**
+	 * drops every queued slice - the steppers stop where they are
+	 */
+	public void stepperQueueClear();
+
+}
@@ -16,7 +16,7 @@
 */
 
 #include <Servo.h>
-#define MRLCOMM_VERSION				21
+#define MRLCOMM_VERSION				22
 
 // serial protocol functions
 #define MAGIC_NUMBER  					170 // 10101010
@@ -183,6 +183,15 @@
 #define STEPPER_EVENT_STOP				1
 #define STEPPER_EVENT_STEP				2
 
+// ------ stepper slice queue ------
+// fixed codes past the generated ones and the vendor shields' 50 - 60
+#define STEPPER_QUEUE					61
+#define STEPPER_QUEUE_CLEAR				62
+#define STEPPER_QUEUE_SIZE				32
+#define STEPPER_SLICE_US				10000
+// position events every this many slices while the queue runs
+#define STEPPER_REPORT_SLICES			5
+
 // servo event types
 #define  SERVO_EVENT_STOPPED			1
 #define  SERVO_EVENT_POSITION_UPDATE 	2
@@ -192,6 +201,7 @@
 #define ERROR_UNKOWN_CMD				2
 #define ERROR_ALREADY_EXISTS			3
 #define ERROR_DOES_NOT_EXIST			4
+#define ERROR_STEPPER_QUEUE_FULL		5
 
 // ------ error types ------
 #define SENSOR_ULTRASONIC				1
@@ -284,6 +294,11 @@ typedef struct
       int dirPin;
       int stepPin;
 
+      // steps of the current queue slice and how many are done
+      int sliceSteps;
+      int sliceDone;
+      int sliceDir;
+
 	  // support up to 5 wire steppers
       int pin0;
       int pin1;
@@ -295,6 +310,18 @@ typedef struct
 
 stepper_type steppers[STEPPERS_MAX];
 
+// ring of time slices - a signed step count per stepper and slice
+signed char stepperQueue[STEPPER_QUEUE_SIZE][STEPPERS_MAX];
+byte stepperQueueHead = 0;
+byte stepperQueueCount = 0;
+// steppers which got slices since the queue last ran dry
+byte stepperQueueMask = 0;
+bool stepperQueueRunning = false;
+unsigned long stepperSliceStart = 0;
+// slices run or dropped - the low byte goes out with stepper events
+// so MRL knows how much of the queue is free
+byte stepperSlicesRun = 0;
+
 // Servos
 typedef struct
 {
@@ -398,6 +425,8 @@ pingdar_type pingdars[PINGDARS_MAX];
 
 void sendServoEvent(servo_type& s, int eventType);
 void sendStepperEvent(stepper_type& s, int eventType);
+void stepperQueueClear();
+void stepperSliceFinish(stepper_type& s);
 unsigned long getUltrasonicRange(sensor_type& sensor);
 // void sendMsg ( int num, ... );
 
@@ -464,6 +493,8 @@ void softReset()
 	analogReadPollingPinCount = 0;
 	loopCount = 0;
 
+	stepperQueueClear();
+
 }
 
 void setPWMFrequency (int address, int prescalar)
@@ -675,7 +706,7 @@ void loop () {
 			break;
 		}
 
-		case PUBLISH_SERVO_EVENT:{
+		case SET_SERVO_EVENTS_ENABLED:{
 			servo_type& s = servos[ioCmd[1]];
 			s.eventsEnabled = ioCmd[2];
 			break;
@@ -891,6 +922,32 @@ void loop () {
 			break;
 		}
 
+		/* MAGIC|SZ|STEPPER_QUEUE|mask|slices|steps.. - a signed byte per stepper in the mask and slice, lowest index first */
+		case STEPPER_QUEUE:{
+			byte mask = ioCmd[1];
+			int slices = ioCmd[2];
+			int data = 3;
+			for (int k = 0; k < slices; ++k) {
+				if (stepperQueueCount == STEPPER_QUEUE_SIZE) {
+					// MRL sent more than was free - the rest is lost
+					sendError(ERROR_STEPPER_QUEUE_FULL);
+					break;
+				}
+				signed char* slice = stepperQueue[(stepperQueueHead + stepperQueueCount) % STEPPER_QUEUE_SIZE];
+				for (int i = 0; i < STEPPERS_MAX; ++i) {
+					slice[i] = (mask & (1 << i)) ? (signed char) ioCmd[data++] : 0;
+				}
+				++stepperQueueCount;
+			}
+			stepperQueueMask |= mask;
+			break;
+		}
+
+		case STEPPER_QUEUE_CLEAR:{
+			stepperQueueClear();
+			break;
+		}
+
 			// --VENDOR CODE BEGIN--
 			// --VENDOR CODE END--
 // not sure if its worth implementing - same info can be retrieved from publish servo event & publish pin
@@ -1148,6 +1205,78 @@ void loop () {
 
 	} // end for each sensor
 
+	// stepper slice queue - every slice lasts STEPPER_SLICE_US and its steps
+	// are spread evenly over it, all steppers starting the slice together
+	if (stepperQueueRunning || stepperQueueCount > 0) {
+		unsigned long now = micros();
+		if (!stepperQueueRunning) {
+			stepperQueueRunning = true;
+			stepperSliceStart = now - STEPPER_SLICE_US;
+		}
+		unsigned long elapsed = now - stepperSliceStart;
+		if (elapsed >= STEPPER_SLICE_US) {
+			for (int i = 0; i < STEPPERS_MAX; ++i) {
+				stepperSliceFinish(steppers[i]);
+			}
+			if (stepperQueueCount == 0) {
+				// ran dry - the move is over or MRL fell behind
+				stepperQueueRunning = false;
+				for (int i = 0; i < STEPPERS_MAX; ++i) {
+					if (stepperQueueMask & (1 << i)) {
+						sendStepperEvent(steppers[i], STEPPER_EVENT_STOP);
+					}
+				}
+				stepperQueueMask = 0;
+			} else {
+				signed char* slice = stepperQueue[stepperQueueHead];
+				for (int i = 0; i < STEPPERS_MAX; ++i) {
+					stepper_type& stepper = steppers[i];
+					int steps = slice[i];
+					stepper.sliceDone = 0;
+					stepper.sliceSteps = abs(steps);
+					if (steps != 0) {
+						stepper.sliceDir = (steps > 0) ? 1 : -1;
+						digitalWrite(stepper.dirPin, (steps > 0) ? 0 : 1);
+					}
+				}
+				stepperQueueHead = (stepperQueueHead + 1) % STEPPER_QUEUE_SIZE;
+				--stepperQueueCount;
+				++stepperSlicesRun;
+				// a late loop shortens the next slice instead of slipping
+				stepperSliceStart += STEPPER_SLICE_US;
+				if (now - stepperSliceStart >= STEPPER_SLICE_US) {
+					stepperSliceStart = now;
+				}
+				if (stepperSlicesRun % STEPPER_REPORT_SLICES == 0) {
+					for (int i = 0; i < STEPPERS_MAX; ++i) {
+						if (stepperQueueMask & (1 << i)) {
+							sendStepperEvent(steppers[i], STEPPER_EVENT_STEP);
+						}
+					}
+				}
+			}
+			elapsed = now - stepperSliceStart;
+		}
+
+		if (stepperQueueRunning) {
+			for (int i = 0; i < STEPPERS_MAX; ++i) {
+				stepper_type& stepper = steppers[i];
+				if (stepper.sliceDone < stepper.sliceSteps) {
+					// steps due by now - the first half a step in
+					int due = (int)(((unsigned long) stepper.sliceSteps * elapsed + STEPPER_SLICE_US / 2) / STEPPER_SLICE_US);
+					while (stepper.sliceDone < due && stepper.sliceDone < stepper.sliceSteps) {
+						digitalWrite(stepper.stepPin, 1);
+						delayMicroseconds(1);
+						digitalWrite(stepper.stepPin, 0);
+						stepper.currentPos += stepper.sliceDir;
+						++stepper.sliceDone;
+					}
+					stepper.targetPos = stepper.currentPos;
+				}
+			}
+		}
+	}
+
 	// TODO - brake - speed - fractional stepping - other stepper types
 	for (int i = 0; i < STEPPERS_MAX; ++i) {
 		stepper_type& stepper = steppers[i];
@@ -1237,13 +1366,44 @@ void sendStepperEvent(stepper_type& s, int eventType){
   	// check type of event - STOP vs CURRENT POS
 
 	Serial.write(MAGIC_NUMBER);
-	Serial.write(5); // size = 1 FN + 1 INDEX + 1 eventType + 1 curPos
+	Serial.write(6); // size = 1 FN + 1 INDEX + 1 eventType + 2 curPos + 1 slices run
 	Serial.write(PUBLISH_STEPPER_EVENT);
 	Serial.write(s.index); // send my index
 	// write the long value out
 	Serial.write(eventType);
 	Serial.write(s.currentPos >> 8); // msb
 	Serial.write(s.currentPos & 0xff); // lsb
+	Serial.write(stepperSlicesRun);
+}
+
+// steps left of the current slice go out at once
+void stepperSliceFinish(stepper_type& s){
+	if (s.sliceSteps == 0) {
+		return;
+	}
+	while (s.sliceDone < s.sliceSteps) {
+		digitalWrite(s.stepPin, 1);
+		delayMicroseconds(1);
+		digitalWrite(s.stepPin, 0);
+		s.currentPos += s.sliceDir;
+		++s.sliceDone;
+	}
+	s.targetPos = s.currentPos;
+}
+
+// drops the queued slices - counted as run so MRL sees the queue free
+void stepperQueueClear(){
+	stepperSlicesRun += stepperQueueCount;
+	stepperQueueCount = 0;
+	for (int i = 0; i < STEPPERS_MAX; ++i) {
+		steppers[i].sliceSteps = 0;
+		steppers[i].sliceDone = 0;
+		if (stepperQueueMask & (1 << i)) {
+			sendStepperEvent(steppers[i], STEPPER_EVENT_STOP);
+		}
+	}
+	stepperQueueMask = 0;
+	stepperQueueRunning = false;
 }
 
 
@@ -0,0 +1,130 @@
+package org.myrobotlab.fileLib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentLogTest {
+
+	File dir;
+	SegmentLog log;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), String.format("SegmentLogTest.%d", System.nanoTime()));
+		log = open();
+	}
+
+	@After
+	public void tearDown() {
+		log.close();
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * flushed by the test - the writer thread is not started
+	 */
+	SegmentLog open() throws Exception {
+		SegmentLog log = new SegmentLog(dir, "shouts");
+		log.maxSegmentRecords = 3;
+		return log;
+	}
+
+	int segmentFiles() {
+		return dir.listFiles().length;
+	}
+
+	@Test
+	public void testAppendAndRead() throws Exception {
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(i, log.append(String.format("{\"n\":%d}", i)));
+		}
+		assertEquals(5, log.getNextSeq());
+		// queued records are not read back before they are written
+		assertEquals(0, log.read(0, 10).size());
+
+		log.flush();
+		List<String> records = log.read(0, 10);
+		assertEquals(5, records.size());
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(String.format("{\"n\":%d}", i), records.get(i));
+		}
+		records = log.read(2, 2);
+		assertEquals(2, records.size());
+		assertEquals("{\"n\":2}", records.get(0));
+		assertEquals("{\"n\":3}", records.get(1));
+		assertEquals(0, log.read(5, 10).size());
+	}
+
+	@Test
+	public void testRoll() throws Exception {
+		for (int i = 0; i < 7; ++i) {
+			log.append(Integer.toString(i));
+		}
+		log.flush();
+		// 0-2, 3-5 and 6
+		assertEquals(3, segmentFiles());
+		assertEquals(3, log.segments.size());
+		assertEquals(3, (long) log.segments.higherKey(0L));
+		assertTrue(new File(dir, "shouts.000000000006.log").exists());
+
+		// across the segment boundaries
+		List<String> records = log.read(1, 5);
+		assertEquals(5, records.size());
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(Integer.toString(i + 1), records.get(i));
+		}
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws Exception {
+		for (int i = 0; i < 4; ++i) {
+			log.append(Integer.toString(i));
+		}
+		log.close();
+
+		log = open();
+		assertEquals(4, log.getNextSeq());
+		assertEquals(4, log.read(0, 10).size());
+
+		// the last segment is continued until it is full
+		assertEquals(4, log.append("4"));
+		assertEquals(5, log.append("5"));
+		assertEquals(6, log.append("6"));
+		log.flush();
+		assertEquals(3, segmentFiles());
+		List<String> records = log.read(0, 10);
+		assertEquals(7, records.size());
+		for (int i = 0; i < 7; ++i) {
+			assertEquals(Integer.toString(i), records.get(i));
+		}
+	}
+
+	@Test
+	public void testLineBreakRejected() throws Exception {
+		String[] bad = { "{\n\"n\": 1\n}", "a\r\nb", "a\r" };
+		for (int i = 0; i < bad.length; ++i) {
+			try {
+				log.append(bad[i]);
+				fail("record with a line break appended");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		// nothing was queued - the sequence is unchanged
+		assertEquals(0, log.append("ok"));
+		log.flush();
+		assertEquals(1, log.read(0, 10).size());
+	}
+}
@@ -0,0 +1,135 @@
+package org.myrobotlab.fileLib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VersionedFileTest {
+
+	File dir;
+	File file;
+
+	@Before
+	public void setUp() {
+		dir = new File(System.getProperty("java.io.tmpdir"), String.format("VersionedFileTest.%d", System.nanoTime()));
+		dir.mkdirs();
+		file = new File(dir, "gestures.mrlg");
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	File create(String name, String content) throws IOException {
+		File f = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(content.getBytes());
+		out.close();
+		return f;
+	}
+
+	File commit(String content) throws IOException {
+		return VersionedFile.commit(file, create("gestures.mrlg.tmp", content));
+	}
+
+	@Test
+	public void testMissing() {
+		assertEquals(file, VersionedFile.current(file));
+		assertFalse(VersionedFile.exists(file));
+
+		// nor is there a directory
+		File nowhere = new File(new File(dir, "nowhere"), "gestures.mrlg");
+		assertEquals(nowhere, VersionedFile.current(nowhere));
+		assertFalse(VersionedFile.exists(nowhere));
+	}
+
+	@Test
+	public void testVersionBump() throws Exception {
+		File first = commit("1");
+		assertEquals(new File(dir, "gestures.mrlg.1"), first);
+		assertEquals(first, VersionedFile.current(file));
+		assertTrue(VersionedFile.exists(file));
+		assertFalse(new File(dir, "gestures.mrlg.tmp").exists());
+
+		File second = commit("2");
+		assertEquals(new File(dir, "gestures.mrlg.2"), second);
+		assertEquals(second, VersionedFile.current(file));
+		// nothing maps it here - the old version is gone
+		assertFalse(first.exists());
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	@Test
+	public void testPlainFileIsVersionZero() throws Exception {
+		create("gestures.mrlg", "0");
+		assertEquals(file, VersionedFile.current(file));
+		assertTrue(VersionedFile.exists(file));
+
+		assertEquals(new File(dir, "gestures.mrlg.1"), commit("1"));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testHighestVersionByNumber() throws Exception {
+		create("gestures.mrlg.9", "9");
+		File ten = create("gestures.mrlg.10", "10");
+		assertEquals(ten, VersionedFile.current(file));
+		assertEquals(new File(dir, "gestures.mrlg.11"), commit("11"));
+	}
+
+	@Test
+	public void testRollback() throws Exception {
+		File first = commit("1");
+		// a commit which fails leaves the current version alone
+		try {
+			VersionedFile.commit(file, new File(dir, "gestures.mrlg.tmp"));
+			fail("commit of a missing tmp");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(first, VersionedFile.current(file));
+		assertTrue(first.exists());
+
+		create("gestures.mrlg.2", "2");
+		File third = commit("3");
+		assertEquals(new File(dir, "gestures.mrlg.3"), third);
+		// an older version still left - e.g. one which was mapped during the
+		// last commit - is current again once the newer one is removed
+		File kept = create("gestures.mrlg.2", "2");
+		assertTrue(third.delete());
+		assertEquals(kept, VersionedFile.current(file));
+		// and the next commit follows it
+		assertEquals(third, commit("3"));
+	}
+
+	@Test
+	public void testOtherFilesIgnored() throws Exception {
+		File first = commit("1");
+		create("gestures.mrlg.tmp", "partly written");
+		create("gestures.mrlg.bak", "bak");
+		create("gestures.mrlg.", "empty");
+		create("gestures.mrlg.2x", "2x");
+		create("gestures.mrlg.-5", "negative");
+		create("gestures.mrlgx.7", "another file");
+		assertEquals(first, VersionedFile.current(file));
+
+		// and left alone by a commit
+		commit("2");
+		assertEquals(6, dir.listFiles().length);
+		assertEquals(new File(dir, "gestures.mrlg.2"), VersionedFile.current(file));
+	}
+}
@@ -2,15 +2,35 @@ package org.myrobotlab.framework;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.service.data.Pin;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 
 public class EncoderTest {
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	// the Gson of Encoder before JsonAdapters - reflective adapters only
+	final static Gson reflective = new GsonBuilder().setDateFormat("yyyy-MM-dd HH:mm:ss.SSS").disableHtmlEscaping().create();
+
+	// a surrogate pair - two chars, four utf-8 bytes
+	final static String PAIR = "\uD83D\uDE00";
 	
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
@@ -36,4 +56,171 @@ public class EncoderTest {
 
 	}
 
+	/**
+	 * s through a StreamWriter - chunk chars per write, 1 is write(int)
+	 */
+	static byte[] stream(String s, int chunk) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoder.StreamWriter sw = new Encoder.StreamWriter();
+		sw.open(out);
+		if (chunk == 1) {
+			for (int i = 0; i < s.length(); ++i) {
+				sw.write(s.charAt(i));
+			}
+		} else {
+			char[] chars = s.toCharArray();
+			for (int i = 0; i < chars.length; i += chunk) {
+				int n = Math.min(chunk, chars.length - i);
+				if ((i / chunk) % 2 == 0) {
+					sw.write(chars, i, n);
+				} else {
+					sw.write(s, i, n);
+				}
+			}
+		}
+		sw.close();
+		return out.toByteArray();
+	}
+
+	static String repeat(char c, int n) {
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	/**
+	 * the same bytes as String.getBytes - which replaces an unpaired
+	 * surrogate with '?' too
+	 */
+	static void assertStreamed(String s) throws IOException {
+		byte[] expected = s.getBytes(UTF8);
+		int[] chunks = { 1, 7, 4096, 8191, 8192, 100000 };
+		for (int i = 0; i < chunks.length; ++i) {
+			assertTrue(String.format("chunk %d", chunks[i]), Arrays.equals(expected, stream(s, chunks[i])));
+		}
+	}
+
+	@Test
+	public void testStreamWriterSplitSurrogatePair() throws Exception {
+		int size = new Encoder.StreamWriter().chars.length;
+		// the high surrogate is the last char of the buffer
+		assertStreamed(repeat('a', size - 1) + PAIR + "b");
+		// and of the second buffer - after one carried over
+		assertStreamed(repeat('a', size - 1) + PAIR + repeat('c', size - 3) + PAIR + "\u00e9");
+		// pairs on every position
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; ++i) {
+			sb.append(PAIR).append((i % 3 == 0) ? "x" : "");
+		}
+		assertStreamed(sb.toString());
+
+		// flushed between the two halves
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoder.StreamWriter sw = new Encoder.StreamWriter();
+		sw.open(out);
+		sw.write(PAIR.charAt(0));
+		sw.flush();
+		sw.write(PAIR.charAt(1));
+		sw.close();
+		assertTrue(Arrays.equals(PAIR.getBytes(UTF8), out.toByteArray()));
+	}
+
+	@Test
+	public void testStreamWriterUnpairedSurrogates() throws Exception {
+		int size = new Encoder.StreamWriter().chars.length;
+		// a high surrogate carried over to a buffer which does not pair it
+		assertStreamed(repeat('a', size - 1) + "\uD83Db");
+		// a low surrogate at the start of a buffer
+		assertStreamed(repeat('a', size) + "\uDE00b");
+		// high surrogate followed by another high surrogate's pair
+		assertStreamed("a\uD83D" + PAIR + "b");
+		// a high surrogate which ends the input
+		assertStreamed("ab\uD83D");
+		assertStreamed(repeat('a', size - 1) + "\uD83D");
+
+		// nothing is left over for the next use of the writer
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoder.StreamWriter sw = new Encoder.StreamWriter();
+		sw.open(new ByteArrayOutputStream());
+		sw.write("a\uD83D");
+		sw.close();
+		sw.open(out);
+		sw.write(PAIR.charAt(1));
+		sw.write("b");
+		sw.close();
+		assertTrue(Arrays.equals("\uDE00b".getBytes(UTF8), out.toByteArray()));
+	}
+
+	static Message createMessage() {
+		Message msg = new Message();
+		msg.msgID = 1234567890123L;
+		msg.timeStamp = 1234567890124L;
+		msg.name = "arduino";
+		msg.sender = "webgui";
+		msg.sendingMethod = "publishPin";
+		msg.method = "onPin";
+		msg.status = Message.BLOCKING;
+		msg.msgType = "B";
+		msg.historyList = new HashSet<String>(Arrays.asList("a", "b", "c"));
+		msg.security = new HashMap<String, String>();
+		msg.security.put("user", "grog");
+		msg.security.put("token", null);
+		ArrayList<Object> list = new ArrayList<Object>();
+		list.add(1);
+		list.add("two");
+		msg.data = new Object[] { "<a href=\"x\">=" + PAIR + "</a>", 3, 4L, (short) 5, (byte) 6, true, 1.5f, 0.1, null, new Pin(13, 1, 255, "ard"), new Pin(),
+				new int[] { 1, 2 }, list, msg.historyList };
+		return msg;
+	}
+
+	static byte[] writeBytes(Object o) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoder.write(out, o);
+		return out.toByteArray();
+	}
+
+	static String write(Object o) throws IOException {
+		return new String(writeBytes(o), UTF8);
+	}
+
+	@Test
+	public void testAdaptersMatchReflectiveOutput() throws Exception {
+		Encoder.setJSONPrettyPrinting(false);
+		Gson gson = Encoder.createGson(false);
+		assertTrue(gson.getAdapter(Message.class) instanceof JsonAdapters.MessageAdapter);
+		assertTrue(gson.getAdapter(Pin.class) instanceof JsonAdapters.PinAdapter);
+
+		Message msg = createMessage();
+		String expected = reflective.toJson(msg, Message.class);
+		assertEquals(expected, Encoder.toJson(msg, Message.class));
+		assertEquals(expected, write(msg));
+
+		// nothing but the primitives set
+		Message empty = new Message();
+		empty.historyList = null;
+		empty.data = null;
+		assertEquals(reflective.toJson(empty, Message.class), Encoder.toJson(empty, Message.class));
+		assertEquals(reflective.toJson(empty, Message.class), write(empty));
+
+		// a message in a message
+		Message outer = new Message();
+		outer.data = new Object[] { msg };
+		assertEquals(reflective.toJson(outer, Message.class), Encoder.toJson(outer, Message.class));
+
+		ArrayList<Pin> pins = new ArrayList<Pin>();
+		pins.add(new Pin(1, 2, 3, null));
+		pins.add(new Pin(4, 5, 6, "analog"));
+		assertEquals(reflective.toJson(pins), write(pins));
+	}
+
+	@Test
+	public void testStreamedJsonMatchesString() throws Exception {
+		Encoder.setJSONPrettyPrinting(false);
+		Message msg = createMessage();
+		// long enough to cross buffers, with pairs split on the way
+		int size = new Encoder.StreamWriter().chars.length;
+		msg.data = new Object[] { repeat('a', size - 10) + PAIR + repeat('b', size) + "\uD83D", repeat('c', size - 1) + PAIR };
+		// the unpaired one is '?' in both
+		assertTrue(Arrays.equals(reflective.toJson(msg, Message.class).getBytes(UTF8), writeBytes(msg)));
+	}
 }
@@ -2,6 +2,8 @@ package org.myrobotlab.kinematics;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+
 import org.junit.Test;
 
 public class DHRobotArmTest {
@@ -69,6 +71,124 @@ public class DHRobotArmTest {
 
 
 
+	@Test
+	public void testForward() {
+		DHRobotArm testArm = createInMoovLeftArm();
+		Matrix m = new Matrix(4, 4);
+		m.elements[0][0] = m.elements[1][1] = m.elements[2][2] = m.elements[3][3] = 1;
+		for (DHLink link : testArm.getLinks()) {
+			m = m.multiply(link.resolveMatrix());
+		}
+		Vector3 palm = testArm.getPalmPosition(new Vector3());
+		assertEquals(m.elements[0][3], palm.x, 1e-9);
+		assertEquals(m.elements[1][3], palm.y, 1e-9);
+		assertEquals(m.elements[2][3], palm.z, 1e-9);
+
+		// the analytic jacobian against finite differences
+		testArm.forward();
+		testArm.computeJacobian();
+		double[] jacobian = testArm.getJacobian();
+		int n = testArm.getNumLinks();
+		double h = 1e-6;
+		for (int j = 0; j < n; ++j) {
+			DHLink link = testArm.getLink(j);
+			link.incrRotate(h);
+			Vector3 moved = testArm.getPalmPosition(new Vector3());
+			link.incrRotate(-h);
+			assertEquals((moved.x - palm.x) / h, jacobian[j], 1e-3);
+			assertEquals((moved.y - palm.y) / h, jacobian[n + j], 1e-3);
+			assertEquals((moved.z - palm.z) / h, jacobian[2 * n + j], 1e-3);
+		}
+	}
+
+	@Test
+	public void testSolver() {
+		DHRobotArm testArm = createInMoovLeftArm();
+		Vector3 start = testArm.getPalmPosition(new Vector3());
+
+		// a reachable goal - where the arm was with other joints
+		double[] thetas = { 0.3, -1.0, 0.6, -2.4, 0.5 };
+		for (int j = 0; j < thetas.length; ++j) {
+			testArm.getLink(j).setTheta(thetas[j]);
+		}
+		Vector3 goal = testArm.getPalmPosition(new Vector3());
+		testArm = createInMoovLeftArm();
+		assertTrue(testArm.moveToGoal(goal.x, goal.y, goal.z));
+		assertTrue(testArm.getPalmPosition(new Vector3()).distance(goal) < testArm.getSolver().tolerance);
+
+		// out of reach - stops near it instead of looping
+		DLSSolver solver = testArm.getSolver();
+		assertFalse(testArm.moveToGoal(start.x + 5000, start.y, start.z));
+		assertTrue(solver.getStatus() != DLSSolver.Status.CONVERGED);
+		assertTrue(solver.getIterations() <= solver.maxIterations);
+
+		// joint limits hold
+		testArm = createInMoovLeftArm();
+		solver = testArm.getSolver();
+		solver.setLimits(0, -0.1, 0.1);
+		testArm.moveToGoal(goal.x, goal.y, goal.z);
+		assertTrue(Math.abs(testArm.getLink(0).getTheta()) <= 0.1 + 1e-12);
+
+		// batch - on one thread and on several
+		testArm = createInMoovLeftArm();
+		solver = testArm.getSolver();
+		int count = 40;
+		double[] goals = new double[3 * count];
+		for (int i = 0; i < count; ++i) {
+			goals[3 * i] = goal.x + i;
+			goals[3 * i + 1] = goal.y;
+			goals[3 * i + 2] = goal.z;
+		}
+		int n = solver.getNumJoints();
+		double[] one = new double[n * count];
+		double[] four = new double[n * count];
+		DLSSolver.Status[] status = new DLSSolver.Status[count];
+		int converged = solver.solveAll(goals, count, one, status, 1);
+		assertEquals(count, converged);
+		solver.solveAll(goals, count, four, null, 4);
+		Vector3 palm = new Vector3();
+		for (int i = 0; i < count; i += 10) {
+			for (int j = 0; j < n; ++j) {
+				testArm.getLink(j).setTheta(four[i * n + j]);
+			}
+			testArm.getPalmPosition(palm);
+			assertEquals(goals[3 * i], palm.x, 1);
+		}
+	}
+
+	@Test
+	public void testTable() throws Exception {
+		DHRobotArm testArm = createInMoovLeftArm();
+		IKTable table = IKTable.build(testArm, 20000, 20, 1);
+		assertEquals(20000, table.getCount());
+
+		// an entry finds itself
+		Vector3 p = table.getPosition(1234, new Vector3());
+		int entry = table.nearest(p.x, p.y, p.z);
+		assertEquals(0, table.getDistance(entry, p.x, p.y, p.z), 1e-9);
+
+		// seeded solves converge
+		DLSSolver solver = testArm.getSolver();
+		assertEquals(DLSSolver.Status.CONVERGED, table.solve(solver, p.x + 3, p.y - 2, p.z + 1));
+
+		// far outside the workspace
+		assertEquals(-1, table.nearest(p.x + 1e5, p.y, p.z));
+
+		File file = File.createTempFile("iktable", ".mrlk");
+		file.deleteOnExit();
+		table.save(file);
+		IKTable opened = IKTable.open(file, testArm);
+		assertEquals(entry, opened.nearest(p.x, p.y, p.z));
+
+		// changing a link invalidates it
+		testArm.getLink(2).setA(5);
+		assertFalse(opened.isValid());
+		assertEquals(-1, opened.nearest(p.x, p.y, p.z));
+		IKTable rebuilt = IKTable.load(file, testArm, 1000, 20);
+		assertTrue(rebuilt.isValid());
+		assertEquals(1000, rebuilt.getCount());
+	}
+
 	public DHRobotArm createArm() {
 		DHRobotArm arm = new DHRobotArm();
 		// d , r, theta , alpha
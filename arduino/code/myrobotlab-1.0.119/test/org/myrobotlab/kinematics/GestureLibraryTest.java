@@ -0,0 +1,129 @@
+package org.myrobotlab.kinematics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.myrobotlab.fileLib.VersionedFile;
+
+public class GestureLibraryTest {
+
+	File dir;
+	File file;
+
+	@Before
+	public void setUp() {
+		dir = new File(System.getProperty("java.io.tmpdir"), String.format("GestureLibraryTest.%d", System.nanoTime()));
+		file = new File(dir, "gestures.mrlg");
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	static Gesture create(String name, float position) {
+		return new Gesture.Builder(name).keyframe("head", 0, 90, Gesture.STEP).keyframe("head", 500, position, Gesture.SMOOTH).event(250, name).build();
+	}
+
+	@Test
+	public void testWriteOpen() throws Exception {
+		ArrayList<Gesture> gestures = new ArrayList<Gesture>();
+		gestures.add(GestureTest.createWave());
+		gestures.add(create("nod", 60));
+		gestures.add(create("shake", 120));
+		GestureLibrary.write(file, gestures);
+
+		GestureLibrary library = GestureLibrary.open(file);
+		// in the order written
+		Iterator<String> names = library.getNames().iterator();
+		assertEquals("wave", names.next());
+		assertEquals("nod", names.next());
+		assertEquals("shake", names.next());
+		assertFalse(names.hasNext());
+
+		for (int i = 0; i < gestures.size(); ++i) {
+			Gesture g = library.get(gestures.get(i).getName());
+			GestureTest.assertSameSamples(gestures.get(i), g);
+			// decoded once
+			assertTrue(g == library.get(gestures.get(i).getName()));
+		}
+		assertFalse(library.contains("bow"));
+		assertNull(library.get("bow"));
+	}
+
+	@Test
+	public void testSaveAddsAndReplaces() throws Exception {
+		GestureLibrary.save(file, create("nod", 60));
+		GestureLibrary.save(file, create("shake", 120));
+		GestureLibrary.save(file, create("nod", 30));
+
+		GestureLibrary library = GestureLibrary.open(file);
+		Iterator<String> names = library.getNames().iterator();
+		// replaced where it was
+		assertEquals("nod", names.next());
+		assertEquals("shake", names.next());
+		assertFalse(names.hasNext());
+		assertEquals(30, library.get("nod").sample(0, 500), 0);
+		assertEquals(120, library.get("shake").sample(0, 500), 0);
+	}
+
+	@Test
+	public void testOpenLibraryKeepsItsVersion() throws Exception {
+		GestureLibrary.save(file, create("nod", 60));
+		GestureLibrary old = GestureLibrary.open(file);
+		GestureLibrary.save(file, create("nod", 30));
+
+		// still mapped to what it was opened on - the new version is seen
+		// once opened again
+		assertEquals(60, old.get("nod").sample(0, 500), 0);
+		assertEquals(30, GestureLibrary.open(file).get("nod").sample(0, 500), 0);
+		assertEquals(new File(dir, "gestures.mrlg.2"), VersionedFile.current(file));
+	}
+
+	@Test
+	public void testMissingOrCorrupt() throws Exception {
+		try {
+			GestureLibrary.open(file);
+			fail("missing library opened");
+		} catch (IOException e) {
+			// expected
+		}
+
+		dir.mkdirs();
+		FileOutputStream out = new FileOutputStream(new File(dir, "gestures.mrlg.1"));
+		out.write("not a gesture library".getBytes());
+		out.close();
+		try {
+			GestureLibrary.open(file);
+			fail("corrupt library opened");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// a save over a corrupt library can not keep what was in it
+		try {
+			GestureLibrary.save(file, create("nod", 60));
+			fail("saved over a corrupt library");
+		} catch (IOException e) {
+			// expected
+		}
+		GestureLibrary.write(file, new ArrayList<Gesture>());
+		assertEquals(0, GestureLibrary.open(file).getNames().size());
+	}
+}
@@ -0,0 +1,107 @@
+package org.myrobotlab.kinematics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class GestureTest {
+
+	static Gesture createWave() {
+		// added out of order on purpose
+		return new Gesture.Builder("wave").keyframe("shoulder", 1000, 150, Gesture.LINEAR).keyframe("shoulder", 0, 90, Gesture.STEP).keyframe("elbow", 2000, 30, Gesture.SMOOTH)
+				.keyframe("shoulder", 2000, 90, Gesture.STEP).keyframe("elbow", 1000, Float.NaN, Gesture.STEP).event(1500, "bye").event(0, "hello").event(1500, "now").build();
+	}
+
+	static void assertSameSamples(Gesture expected, Gesture actual) {
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getDuration(), actual.getDuration());
+		assertEquals(expected.getChannels(), actual.getChannels());
+		for (int i = 0; i < expected.getChannels(); ++i) {
+			assertEquals(expected.getServo(i), actual.getServo(i));
+			for (int time = 0; time <= expected.getDuration(); time += 50) {
+				assertEquals(expected.sample(i, time, 45), actual.sample(i, time, 45), 0);
+			}
+		}
+		assertEquals(expected.getEvents(), actual.getEvents());
+		for (int i = 0; i < expected.getEvents(); ++i) {
+			assertEquals(expected.getEventTime(i), actual.getEventTime(i));
+			assertEquals(expected.getEvent(i), actual.getEvent(i));
+		}
+	}
+
+	@Test
+	public void testKeyframesPlayInTimeOrder() {
+		Gesture g = createWave();
+		int shoulder = g.getChannel("shoulder");
+		assertEquals(0, shoulder);
+		assertEquals(1, g.getChannel("elbow"));
+		assertEquals(-1, g.getChannel("wrist"));
+		assertEquals(2000, g.getDuration());
+
+		// linear up from 90 to 150, then held until the step at 2000
+		assertEquals(90, g.sample(shoulder, 0), 0);
+		assertEquals(120, g.sample(shoulder, 500), 1e-4);
+		assertEquals(150, g.sample(shoulder, 1000), 0);
+		assertEquals(150, g.sample(shoulder, 1999), 0);
+		assertEquals(90, g.sample(shoulder, 2000), 0);
+		assertEquals(90, g.sample(shoulder, 5000), 0);
+	}
+
+	@Test
+	public void testSameTimeReplaces() {
+		Gesture g = new Gesture.Builder("nod").keyframe("head", 500, 10, Gesture.LINEAR).keyframe("head", 500, 20, Gesture.LINEAR).build();
+		assertEquals(20, g.sample(0, 500), 0);
+		assertEquals(20, g.sample(0, 1000), 0);
+	}
+
+	@Test
+	public void testStartPosition() {
+		Gesture g = createWave();
+		int elbow = g.getChannel("elbow");
+		// NaN is wherever the servo was - it holds there until it moves
+		assertEquals(45, g.sample(elbow, 0, 45), 0);
+		assertEquals(45, g.sample(elbow, 1000, 45), 0);
+		// and eases from there to 30
+		assertEquals(37.5f, g.sample(elbow, 1500, 45), 1e-4);
+		assertEquals(30, g.sample(elbow, 2000, 45), 0);
+		assertTrue(Float.isNaN(g.sample(elbow, 500)));
+
+		// a first keyframe after 0 is reached from the start position
+		Gesture late = new Gesture.Builder("late").keyframe("head", 1000, 100, Gesture.LINEAR).build();
+		assertEquals(50, late.sample(0, 500, 0), 1e-4);
+		assertEquals(100, late.sample(0, 500), 0);
+	}
+
+	@Test
+	public void testEventsInTimeOrder() {
+		Gesture g = createWave();
+		assertEquals(3, g.getEvents());
+		assertEquals("hello", g.getEvent(0));
+		assertEquals(0, g.getEventTime(0));
+		// the same time keeps the order they were added in
+		assertEquals("bye", g.getEvent(1));
+		assertEquals("now", g.getEvent(2));
+		assertEquals(1500, g.getEventTime(2));
+
+		// an event past the last keyframe makes the gesture longer
+		Gesture g2 = new Gesture.Builder("talk").keyframe("jaw", 100, 10, Gesture.LINEAR).event(3000, "done").build();
+		assertEquals(3000, g2.getDuration());
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		Gesture g = createWave();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		g.write(out);
+		out.flush();
+		ByteBuffer in = ByteBuffer.wrap(bos.toByteArray());
+		assertSameSamples(g, Gesture.read(in));
+		assertEquals(0, in.remaining());
+	}
+}
@@ -0,0 +1,120 @@
+package org.myrobotlab.kinematics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TrajectoryTest {
+
+	final static float PERIOD = 0.01f;
+
+	static float velocity(Trajectory t, int k, int axis) {
+		return (t.get(k + 1, axis) - t.get(k, axis)) / t.getPeriod();
+	}
+
+	@Test
+	public void testEndpoints() {
+		float[] start = new float[] { 90, 10, 45 };
+		float[] end = new float[] { 30, 170, 45 };
+		Trajectory.Profile[] profiles = Trajectory.Profile.values();
+		for (int p = 0; p < profiles.length; ++p) {
+			Trajectory t = Trajectory.plan(start, end, 0.5f, null, null, profiles[p], PERIOD);
+			assertEquals(3, t.getAxes());
+			assertEquals(51, t.getSamples());
+			for (int i = 0; i < start.length; ++i) {
+				assertEquals(start[i], t.get(0, i), 0);
+				assertEquals(end[i], t.getEnd(i), 0);
+				// past the end it holds the last sample
+				assertEquals(end[i], t.get(t.getSamples() + 10, i), 0);
+			}
+			// an axis which does not move stays put all the way
+			for (int k = 0; k < t.getSamples(); ++k) {
+				assertEquals(45, t.get(k, 2), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testAxesArriveTogether() {
+		Trajectory t = Trajectory.plan(new float[] { 0, 0 }, new float[] { 100, -10 }, 1, null, null, Trajectory.Profile.S_CURVE, PERIOD);
+		// the short axis is the long one scaled - same share of the way at
+		// every sample
+		for (int k = 0; k < t.getSamples(); ++k) {
+			assertEquals(t.get(k, 0) / 100, -t.get(k, 1) / 10, 1e-5);
+		}
+	}
+
+	@Test
+	public void testSCurveVelocityContinuous() {
+		Trajectory t = Trajectory.plan(new float[] { 0 }, new float[] { 90 }, 1, null, null, Trajectory.Profile.S_CURVE, PERIOD);
+		int last = t.getSamples() - 1;
+		// starts and ends at rest
+		assertTrue(Math.abs(velocity(t, 0, 0)) < 0.1);
+		assertTrue(Math.abs(velocity(t, last - 1, 0)) < 0.1);
+		// no step in velocity from one sample to the next - the quintic's
+		// peak acceleration is 5.77 units per second^2 for unit distance and
+		// time
+		float maxChange = (float) (Trajectory.S_CURVE_ACCELERATION * 90 * PERIOD) * 1.01f;
+		for (int k = 1; k < last; ++k) {
+			assertTrue(velocity(t, k, 0) >= 0);
+			assertTrue(Math.abs(velocity(t, k, 0) - velocity(t, k - 1, 0)) <= maxChange);
+		}
+	}
+
+	@Test
+	public void testTrapezoidWithinLimits() {
+		float[] v = new float[] { 100 };
+		float[] a = new float[] { 200 };
+		Trajectory t = Trajectory.plan(new float[] { 0 }, new float[] { 100 }, 0, v, a, Trajectory.Profile.TRAPEZOID, PERIOD);
+		int last = t.getSamples() - 1;
+		float peak = 0;
+		for (int k = 0; k < last; ++k) {
+			float velocity = velocity(t, k, 0);
+			peak = Math.max(peak, velocity);
+			assertTrue(velocity <= v[0] * 1.001f);
+			if (k > 0) {
+				assertTrue(Math.abs(velocity - velocity(t, k - 1, 0)) <= a[0] * PERIOD * 1.01f);
+			}
+		}
+		// it does cruise at the limit
+		assertEquals(v[0], peak, 1);
+	}
+
+	@Test
+	public void testDurationStretchedByLimits() {
+		float[] v = new float[] { 100 };
+		float[] a = new float[] { 200 };
+		// 0.5 s up to 100 per second, 0.5 s cruising and 0.5 s down
+		Trajectory t = Trajectory.plan(new float[] { 0 }, new float[] { 100 }, 0.2f, v, a, Trajectory.Profile.TRAPEZOID, PERIOD);
+		assertEquals(1.5f, t.getDuration(), 1e-4);
+		assertEquals(151, t.getSamples());
+
+		// longer than the limits need is kept
+		t = Trajectory.plan(new float[] { 0 }, new float[] { 100 }, 3, v, a, Trajectory.Profile.TRAPEZOID, PERIOD);
+		assertEquals(3, t.getDuration(), 0);
+
+		// the quintic peaks at 1.875 times the mean velocity
+		t = Trajectory.plan(new float[] { 0 }, new float[] { 90 }, 0.1f, new float[] { 90 }, null, Trajectory.Profile.S_CURVE, PERIOD);
+		assertEquals(1.875f, t.getDuration(), 1e-4);
+
+		// the slowest axis decides for all of them
+		t = Trajectory.plan(new float[] { 0, 0 }, new float[] { 90, 90 }, 0.1f, new float[] { 0, 45 }, null, Trajectory.Profile.S_CURVE, PERIOD);
+		assertEquals(3.75f, t.getDuration(), 1e-4);
+		assertEquals(90, t.getEnd(0), 0);
+	}
+
+	@Test
+	public void testNothingToDo() {
+		// negative is no time at all - one sample at the end
+		Trajectory t = Trajectory.plan(new float[] { 10 }, new float[] { 10 }, -1, null, null, Trajectory.Profile.TRAPEZOID, PERIOD);
+		assertEquals(0, t.getDuration(), 0);
+		assertEquals(1, t.getSamples());
+		assertEquals(10, t.getEnd(0), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAxesMismatch() {
+		Trajectory.plan(new float[] { 0, 0 }, new float[] { 1 }, 1, null, null, Trajectory.Profile.S_CURVE, PERIOD);
+	}
+}
@@ -0,0 +1,67 @@
+package org.myrobotlab.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testExactBelow128() {
+		Histogram h = new Histogram();
+		for (int i = 1; i <= 100; ++i) {
+			h.record(i);
+		}
+		assertEquals(100, h.getCount());
+		assertEquals(1, h.getMin());
+		assertEquals(100, h.getMax());
+		assertEquals(50, h.getValueAtPercentile(50));
+		assertEquals(99, h.getValueAtPercentile(99));
+		assertEquals(100, h.getValueAtPercentile(100));
+		assertEquals(50.5, h.getMean(), 0.0001);
+	}
+
+	@Test
+	public void testRelativeError() {
+		long[] values = { 128, 1000, 123456, 987654321, 1L << 40, Long.MAX_VALUE };
+		for (int i = 0; i < values.length; ++i) {
+			int index = Histogram.index(values[i]);
+			assertTrue(index < Histogram.SIZE);
+			long high = Histogram.highestEquivalent(index);
+			assertTrue(high >= values[i]);
+			assertTrue((high - values[i]) / (double) values[i] < 1.0 / 64);
+		}
+	}
+
+	@Test
+	public void testBucketsAreContiguous() {
+		for (int i = 0; i < Histogram.SIZE - 1; ++i) {
+			long high = Histogram.highestEquivalent(i);
+			assertEquals(i, Histogram.index(high));
+			assertEquals(i + 1, Histogram.index(high + 1));
+		}
+	}
+
+	@Test
+	public void testPercentilesAndMerge() {
+		Histogram a = new Histogram();
+		Histogram b = new Histogram();
+		for (int i = 0; i < 9900; ++i) {
+			a.record(1000000);
+		}
+		for (int i = 0; i < 100; ++i) {
+			b.record(50000000);
+		}
+		a.add(b);
+		assertEquals(10000, a.getCount());
+		long p50 = a.getValueAtPercentile(50);
+		assertTrue(p50 >= 1000000 && p50 < 1016000);
+		assertEquals(50000000, a.getValueAtPercentile(99.9));
+		assertEquals(50000000, a.getMax());
+
+		a.reset();
+		assertEquals(0, a.getCount());
+		assertEquals(0, a.getValueAtPercentile(99));
+	}
+}
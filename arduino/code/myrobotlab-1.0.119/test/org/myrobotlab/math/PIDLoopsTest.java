@@ -0,0 +1,75 @@
+package org.myrobotlab.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PIDLoopsTest {
+
+	// integrator plant - input += output * dt
+	static void run(PIDLoops loops, int i, int steps, double dt) {
+		for (int s = 0; s < steps; ++s) {
+			loops.compute(dt);
+			loops.input[i] += loops.output[i] * dt;
+		}
+	}
+
+	@Test
+	public void testSettles() {
+		PIDLoops loops = new PIDLoops();
+		int i = loops.add("x");
+		loops.kp[i] = 4;
+		loops.ki[i] = 4;
+		loops.setOutputRange(i, -10, 10);
+		loops.setpoint[i] = 3;
+		loops.setEnabled(i, true);
+		run(loops, i, 2000, 0.005);
+		assertEquals(3, loops.input[i], 0.01);
+	}
+
+	@Test
+	public void testNoWindup() {
+		PIDLoops loops = new PIDLoops();
+		int i = loops.add("x");
+		loops.kp[i] = 1;
+		loops.ki[i] = 5;
+		loops.setOutputRange(i, -1, 1);
+		loops.setpoint[i] = 100;
+		loops.setEnabled(i, true);
+		// a stuck actuator - the error stays large and the output saturated
+		for (int s = 0; s < 1000; ++s) {
+			loops.compute(0.01);
+		}
+		assertEquals(1, loops.output[i], 0);
+		assertTrue(loops.integral[i] <= 1);
+		assertEquals(1000, loops.saturated[i]);
+
+		// once the setpoint is passed the output turns around at once
+		loops.setpoint[i] = -1;
+		loops.compute(0.01);
+		assertTrue(loops.output[i] < 0);
+	}
+
+	@Test
+	public void testBumplessAndRemove() {
+		PIDLoops loops = new PIDLoops();
+		for (int n = 0; n < 20; ++n) {
+			loops.add("loop" + n);
+		}
+		int i = loops.indexOf("loop3");
+		loops.kp[i] = 2;
+		loops.ki[i] = 1;
+		loops.setOutputRange(i, -10, 10);
+		loops.setpoint[i] = 1;
+		loops.output[i] = 0.5;
+		loops.setEnabled(i, true);
+		loops.compute(0.001);
+		assertEquals(0.5, loops.output[i], 0.01);
+
+		assertEquals(19, loops.remove("loop3"));
+		assertEquals(3, loops.indexOf("loop19"));
+		assertEquals(-1, loops.indexOf("loop3"));
+		assertEquals(19, loops.size());
+	}
+}
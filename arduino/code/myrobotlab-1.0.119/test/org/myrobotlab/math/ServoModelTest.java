@@ -0,0 +1,97 @@
+package org.myrobotlab.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ServoModelTest {
+
+	// 300 units per second - 0.3 per ms
+	static ServoModel create() {
+		return new ServoModel(300, 20);
+	}
+
+	@Test
+	public void testFirstCommandIsWorstCase() {
+		ServoModel model = create();
+		assertFalse(model.isKnown());
+		assertEquals(0, model.getArrival());
+
+		model.command(90, 1000);
+		assertTrue(model.isKnown());
+		// nothing known of where it was - a full range of travel
+		assertEquals(1000 + 600 + 20, model.getArrival());
+		assertEquals(90, model.estimate(1000), 0.001);
+		assertTrue(model.isMoving(1619));
+		assertFalse(model.isMoving(1620));
+
+		// a new target while still on the unknown way is worst case again
+		model.command(100, 1100);
+		assertEquals(1100 + 600 + 20, model.getArrival());
+	}
+
+	@Test
+	public void testEstimateWhileSlewing() {
+		ServoModel model = create();
+		model.command(90, 1000);
+		model.command(150, 2000);
+		assertEquals(90, model.estimate(2000), 0.001);
+		assertEquals(120, model.estimate(2100), 0.001);
+		assertEquals(150, model.estimate(2200), 0.001);
+		assertEquals(150, model.estimate(3000), 0.001);
+
+		// turned back half way - starts from where it is estimated to be
+		model.command(60, 3000);
+		model.command(90, 3200);
+		assertEquals(90, model.estimate(3200), 0.001);
+		assertEquals(90, model.estimate(3300), 0.001);
+		model.command(30, 3300);
+		assertEquals(60, model.estimate(3400), 0.001);
+	}
+
+	@Test
+	public void testArrivalIncludesSettleTime() {
+		ServoModel model = create();
+		model.command(90, 1000);
+		model.command(150, 2000);
+		assertEquals(2000 + 200 + 20, model.getArrival());
+		// at the target but not holding still yet
+		assertEquals(150, model.estimate(2210), 0.001);
+		assertTrue(model.isMoving(2210));
+		assertFalse(model.isMoving(2220));
+
+		model.settleTime = 0;
+		assertEquals(2200, model.getArrival());
+	}
+
+	@Test
+	public void testObserveOverridesEstimate() {
+		ServoModel model = create();
+		model.command(90, 1000);
+		model.command(150, 2000);
+		// slower than modeled - reported at 100 instead of 120
+		model.observe(100, 2100);
+		assertEquals(100, model.estimate(2100), 0.001);
+		assertEquals(115, model.estimate(2150), 0.001);
+		assertEquals(150, model.getTarget(), 0.001);
+		// 50 to go at 0.3 per ms
+		assertEquals(2100 + 167 + 20, model.getArrival());
+
+		// a report ends the worst case of a first command
+		ServoModel first = create();
+		first.command(90, 1000);
+		first.observe(30, 1000);
+		assertEquals(30, first.estimate(1000), 0.001);
+		assertEquals(60, first.estimate(1100), 0.001);
+		assertEquals(1000 + 200 + 20, first.getArrival());
+
+		// and tells where a servo never commanded is
+		ServoModel idle = create();
+		idle.observe(45, 1000);
+		assertTrue(idle.isKnown());
+		assertEquals(45, idle.estimate(5000), 0.001);
+		assertEquals(45, idle.getTarget(), 0.001);
+	}
+}
@@ -0,0 +1,120 @@
+package org.myrobotlab.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.myrobotlab.framework.Message;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class BinaryFrameTest {
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	static Message createMessage(Object... data) {
+		Message msg = new Message();
+		msg.name = "webgui";
+		msg.sender = "camera";
+		msg.sendingMethod = "publishDisplay";
+		msg.method = "onDisplay";
+		msg.data = data;
+		return msg;
+	}
+
+	static JsonArray getData(ByteBuffer frame) {
+		int length = frame.getInt(0);
+		String json = new String(frame.array(), 4, length, UTF8);
+		return new JsonParser().parse(json).getAsJsonObject().getAsJsonArray("data");
+	}
+
+	static int getAttachments(ByteBuffer frame) {
+		return BinaryFrame.pad(4 + frame.getInt(0));
+	}
+
+	@Test
+	public void testNoBinary() {
+		Message msg = createMessage("left", 3);
+		assertFalse(BinaryFrame.hasBinary(msg));
+		ByteBuffer frame = ByteBuffer.wrap(BinaryFrame.encode(msg));
+
+		// big endian json length and nothing but padding after the json
+		assertEquals(getAttachments(frame), frame.capacity());
+		JsonArray data = getData(frame);
+		assertEquals("left", data.get(0).getAsString());
+		assertEquals(3, data.get(1).getAsInt());
+	}
+
+	@Test
+	public void testAttachments() {
+		byte[] jpg = new byte[] { 1, 2, 3, 4, 5 };
+		float[] xyz = new float[] { 1.5f, -2f, 1000f };
+		double[] d = new double[] { Math.PI };
+		Message msg = createMessage("left", jpg, xyz, d);
+		assertTrue(BinaryFrame.hasBinary(msg));
+		ByteBuffer frame = ByteBuffer.wrap(BinaryFrame.encode(msg));
+
+		JsonArray data = getData(frame);
+		assertEquals("left", data.get(0).getAsString());
+
+		JsonObject ref = data.get(1).getAsJsonObject();
+		assertEquals(0, ref.get("binary").getAsInt());
+		assertEquals(BinaryFrame.UINT8, ref.get("type").getAsString());
+		assertEquals(0, ref.get("offset").getAsInt());
+		assertEquals(5, ref.get("length").getAsInt());
+
+		// each attachment starts on an 8 byte boundary
+		ref = data.get(2).getAsJsonObject();
+		assertEquals(1, ref.get("binary").getAsInt());
+		assertEquals(BinaryFrame.FLOAT32, ref.get("type").getAsString());
+		assertEquals(8, ref.get("offset").getAsInt());
+		assertEquals(3, ref.get("length").getAsInt());
+
+		ref = data.get(3).getAsJsonObject();
+		assertEquals(BinaryFrame.FLOAT64, ref.get("type").getAsString());
+		assertEquals(24, ref.get("offset").getAsInt());
+		assertEquals(1, ref.get("length").getAsInt());
+
+		int start = getAttachments(frame);
+		assertEquals(0, start % 8);
+		assertEquals(start + 32, frame.capacity());
+		for (int i = 0; i < jpg.length; ++i) {
+			assertEquals(jpg[i], frame.get(start + i));
+		}
+		// typed arrays are little endian
+		frame.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < xyz.length; ++i) {
+			assertEquals(xyz[i], frame.getFloat(start + 8 + i * 4), 0);
+		}
+		assertEquals(Math.PI, frame.getDouble(start + 24), 0);
+
+		// the message other listeners share is left alone
+		assertTrue(msg.data[1] == jpg);
+		assertTrue(msg.data[2] == xyz);
+	}
+
+	@Test
+	public void testIntegerArrays() {
+		short[] s = new short[] { -1, 2, 3 };
+		int[] n = new int[] { 0x01020304 };
+		ByteBuffer frame = ByteBuffer.wrap(BinaryFrame.encode(createMessage(s, n)));
+		JsonArray data = getData(frame);
+		assertEquals(BinaryFrame.INT16, data.get(0).getAsJsonObject().get("type").getAsString());
+		assertEquals(BinaryFrame.INT32, data.get(1).getAsJsonObject().get("type").getAsString());
+		assertEquals(8, data.get(1).getAsJsonObject().get("offset").getAsInt());
+
+		int start = getAttachments(frame);
+		frame.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(-1, frame.getShort(start));
+		assertEquals(3, frame.getShort(start + 4));
+		assertEquals(0x01020304, frame.getInt(start + 8));
+		assertEquals(0x04, frame.get(start + 8));
+	}
+}
@@ -0,0 +1,62 @@
+package org.myrobotlab.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+import org.myrobotlab.service.data.Pin;
+
+public class CborTest {
+
+	static String hex(Object o) throws Exception {
+		byte[] b = Cbor.encode(o);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < b.length; ++i) {
+			sb.append(String.format("%02x", b[i] & 0xff));
+		}
+		return sb.toString();
+	}
+
+	// examples from RFC 7049 appendix A
+	@Test
+	public void testRfcExamples() throws Exception {
+		assertEquals("00", hex(0));
+		assertEquals("17", hex(23));
+		assertEquals("1818", hex(24));
+		assertEquals("1903e8", hex(1000));
+		assertEquals("1a000f4240", hex(1000000));
+		assertEquals("1b000000e8d4a51000", hex(1000000000000L));
+		assertEquals("20", hex(-1));
+		assertEquals("3903e7", hex(-1000));
+		assertEquals("fa47c35000", hex(100000.0f));
+		assertEquals("fb3ff199999999999a", hex(1.1));
+		assertEquals("f4", hex(false));
+		assertEquals("f6", hex(null));
+		assertEquals("4401020304", hex(new byte[] { 1, 2, 3, 4 }));
+		assertEquals("62c3bc", hex("\u00fc"));
+
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		list.add(1);
+		list.add(2);
+		list.add(3);
+		assertEquals("83010203", hex(list));
+		assertEquals("83010203", hex(new int[] { 1, 2, 3 }));
+
+		LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("a", 1);
+		map.put("b", list);
+		assertEquals("a2616101616283010203", hex(map));
+	}
+
+	@Test
+	public void testObjectAsMap() throws Exception {
+		// double which fits a float is shortened
+		assertEquals("fa3fc00000", hex(1.5));
+		// pin, type, value, pinType, source
+		String pin = hex(new Pin(13, 1, 255, "ard"));
+		assertEquals("a5", pin.substring(0, 2));
+		assertEquals(true, pin.contains("6576616c756518ff"));
+	}
+}
@@ -0,0 +1,92 @@
+package org.myrobotlab.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.service.data.Pin;
+import org.myrobotlab.service.data.Point2Df;
+
+public class MessageCodecTest {
+
+	static Message createMessage(Object... data) {
+		Message msg = new Message();
+		msg.name = "arduino";
+		msg.sender = "python";
+		msg.sendingMethod = "publishPin";
+		msg.method = "onPin";
+		msg.data = data;
+		return msg;
+	}
+
+	@Test
+	public void testStreamRoundTrip() throws Exception {
+		MessageCodec encoder = new MessageCodec();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		MessageCodec.writeHeader(out);
+
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("fallback");
+		encoder.write(createMessage(7, 1.5f, new Pin(13, 1, 255, "arduino"), new Point2Df(0.25f, 0.75f), new byte[] { 1, 2, 3 }, null, "hello", list), out);
+		int first = bos.size();
+		encoder.write(createMessage(8), out);
+		int second = bos.size() - first;
+		out.flush();
+
+		// names and methods go out once - the second frame only references
+		// them
+		assertTrue(second < 50);
+		assertEquals(1, encoder.fallbacks);
+
+		MessageCodec decoder = new MessageCodec();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		MessageCodec.readHeader(in);
+
+		Message msg = decoder.read(in);
+		assertEquals("arduino", msg.name);
+		assertEquals("python", msg.sender);
+		assertEquals("publishPin", msg.sendingMethod);
+		assertEquals("onPin", msg.method);
+		assertEquals(7, msg.data[0]);
+		assertEquals(1.5f, msg.data[1]);
+		Pin pin = (Pin) msg.data[2];
+		assertEquals(13, pin.pin);
+		assertEquals(255, pin.value);
+		assertEquals("arduino", pin.source);
+		Point2Df p = (Point2Df) msg.data[3];
+		assertEquals(0.75f, p.y, 0);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) msg.data[4]);
+		assertNull(msg.data[5]);
+		assertEquals("hello", msg.data[6]);
+		assertEquals(list, msg.data[7]);
+
+		msg = decoder.read(in);
+		assertEquals("arduino", msg.name);
+		assertEquals("onPin", msg.method);
+		assertEquals(8, msg.data[0]);
+	}
+
+	@Test
+	public void testDatagramWithoutInterning() throws Exception {
+		MessageCodec encoder = new MessageCodec(false);
+		byte[] first = encoder.toDatagram(createMessage(1));
+		byte[] second = encoder.toDatagram(createMessage(1));
+		// every datagram is self contained
+		assertEquals(first.length, second.length);
+
+		Message msg = new MessageCodec(false).fromDatagram(second, 0, second.length);
+		assertEquals("python", msg.sender);
+		assertEquals(1, msg.data[0]);
+	}
+
+}
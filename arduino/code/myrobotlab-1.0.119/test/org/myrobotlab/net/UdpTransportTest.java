@@ -0,0 +1,211 @@
+package org.myrobotlab.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.myrobotlab.framework.Message;
+
+public class UdpTransportTest {
+
+	static class Collector implements UdpTransport.Receiver {
+		final ArrayList<Message> reliable = new ArrayList<Message>();
+		final ArrayList<Message> latest = new ArrayList<Message>();
+
+		@Override
+		public synchronized void onUdpMessage(Message msg, URI protocolKey) {
+			if ("moveTo".equals(msg.method)) {
+				latest.add(msg);
+			} else {
+				reliable.add(msg);
+			}
+		}
+
+		@Override
+		public void onUdpConnection(Connection data) {
+		}
+
+		synchronized int reliableCount() {
+			return reliable.size();
+		}
+	}
+
+	Collector received;
+	UdpTransport sender;
+	UdpTransport receiver;
+	URI receiverKey;
+
+	/**
+	 * moveTo is a latest wins setpoint - anything else goes on the reliable
+	 * stream
+	 */
+	static Message createMessage(String method, int value) {
+		Message msg = new Message();
+		msg.name = "servo";
+		msg.sender = "joystick";
+		msg.sendingMethod = ("moveTo".equals(method)) ? "publishY" : "publishPin";
+		msg.method = method;
+		msg.data = new Object[] { value };
+		return msg;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		received = new Collector();
+		sender = new UdpTransport("sender", 0, new Collector());
+		receiver = new UdpTransport("receiver", 0, received);
+		// acks are lost too
+		sender.lossRate = 0.3f;
+		receiver.lossRate = 0.3f;
+		sender.start();
+		receiver.start();
+		receiverKey = URI.create(String.format("udp://127.0.0.1:%d", receiver.getLocalPort()));
+	}
+
+	@After
+	public void tearDown() {
+		sender.shutdown();
+		receiver.shutdown();
+	}
+
+	@Test
+	public void testReliableInOrderOverLoss() throws Exception {
+		int count = 500;
+		for (int i = 0; i < count; ++i) {
+			assertTrue(sender.send(receiverKey, createMessage("onPin", i)));
+		}
+
+		long deadline = System.currentTimeMillis() + 20000;
+		while (received.reliableCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+
+		synchronized (received) {
+			assertEquals(count, received.reliable.size());
+			for (int i = 0; i < count; ++i) {
+				assertEquals(i, received.reliable.get(i).data[0]);
+			}
+		}
+		assertTrue(sender.getConnection(receiverKey).retransmits > 0);
+	}
+
+	@Test
+	public void testReliableResumesAfterReceiverRestart() throws Exception {
+		// fewer than two windows - too few to tell a restart from a gap
+		int count = 100;
+		for (int i = 0; i < count; ++i) {
+			sender.send(receiverKey, createMessage("onPin", i));
+		}
+		Connection c = sender.getConnection(receiverKey);
+		long deadline = System.currentTimeMillis() + 10000;
+		// delivered and acked - nothing left to resend
+		while ((received.reliableCount() < count || c.txQueued > 0) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(count, received.reliableCount());
+		assertEquals(0, c.txQueued);
+
+		// restarted on the same port - it expects sequence 1 again
+		int port = receiver.getLocalPort();
+		receiver.shutdown();
+		received = new Collector();
+		receiver = new UdpTransport("receiver", port, received);
+		receiver.lossRate = 0.3f;
+		receiver.start();
+
+		for (int i = count; i < count * 2; ++i) {
+			assertTrue(sender.send(receiverKey, createMessage("onPin", i)));
+		}
+		deadline = System.currentTimeMillis() + 10000;
+		while (received.reliableCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+
+		synchronized (received) {
+			assertEquals(count, received.reliable.size());
+			for (int i = 0; i < count; ++i) {
+				assertEquals(count + i, received.reliable.get(i).data[0]);
+			}
+		}
+	}
+
+	@Test
+	public void testLatestWinsNeverGoesBack() throws Exception {
+		for (int i = 0; i < 300; ++i) {
+			sender.send(receiverKey, createMessage("moveTo", i));
+			if (i % 10 == 0) {
+				Thread.sleep(5);
+			}
+		}
+		Thread.sleep(500);
+
+		synchronized (received) {
+			assertTrue(received.latest.size() > 0);
+			// replaced in the queue or lost - but never older than what was
+			// already delivered
+			int last = -1;
+			for (int i = 0; i < received.latest.size(); ++i) {
+				int value = (Integer) received.latest.get(i).data[0];
+				assertTrue(value > last);
+				last = value;
+			}
+		}
+	}
+
+	@Test
+	public void testLatestWinsDropsStale() throws Exception {
+		// a newer setpoint overtaken by an older one on the wire
+		byte[] newer = createDatagram(UdpTransport.LATEST, 2, createMessage("moveTo", 20));
+		byte[] older = createDatagram(UdpTransport.LATEST, 1, createMessage("moveTo", 10));
+		InetSocketAddress from = new InetSocketAddress("127.0.0.1", sender.getLocalPort());
+
+		receiver.process(newer, newer.length, from);
+		receiver.process(older, older.length, from);
+
+		synchronized (received) {
+			assertEquals(1, received.latest.size());
+			assertEquals(20, received.latest.get(0).data[0]);
+		}
+		assertEquals(1, receiver.getPeer(from).data.rxStale);
+	}
+
+	@Test
+	public void testOversizedPayloadRejected() throws Exception {
+		Message msg = createMessage("onBytes", 0);
+		msg.data = new Object[] { new byte[UdpTransport.MAX_PAYLOAD + 1] };
+		try {
+			sender.send(receiverKey, msg);
+			fail("oversized message queued");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// the reliable stream is not stalled behind it
+		assertTrue(sender.send(receiverKey, createMessage("onPin", 1)));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.reliableCount() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, received.reliableCount());
+	}
+
+	byte[] createDatagram(byte mode, int seq, Message msg) throws IOException {
+		UdpTransport.Entry e = new UdpTransport.Entry();
+		e.mode = mode;
+		e.seq = seq;
+		e.payload = sender.encoder.toBytes(msg);
+		ArrayList<byte[]> datagrams = new ArrayList<byte[]>();
+		UdpTransport.Batch batch = sender.new Batch();
+		batch.add(e, datagrams);
+		batch.finish(datagrams);
+		return datagrams.get(0);
+	}
+}
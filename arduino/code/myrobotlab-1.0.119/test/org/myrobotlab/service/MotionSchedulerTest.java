@@ -0,0 +1,313 @@
+package org.myrobotlab.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.myrobotlab.kinematics.Trajectory;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.service.data.Pin;
+import org.myrobotlab.service.interfaces.ServoBatchController;
+import org.myrobotlab.service.interfaces.ServoController;
+
+public class MotionSchedulerTest {
+
+	/**
+	 * keeps every single write
+	 */
+	static class FakeController implements ServoController {
+		final String name;
+		final ArrayList<String> names = new ArrayList<String>();
+		final ArrayList<Integer> positions = new ArrayList<Integer>();
+
+		FakeController(String name) {
+			this.name = name;
+		}
+
+		ArrayList<Integer> getWrites(String servoName) {
+			ArrayList<Integer> ret = new ArrayList<Integer>();
+			for (int i = 0; i < names.size(); ++i) {
+				if (names.get(i).equals(servoName)) {
+					ret.add(positions.get(i));
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public ArrayList<Pin> getPinList() {
+			return null;
+		}
+
+		@Override
+		public boolean servoAttach(String servoName, Integer pin) {
+			return true;
+		}
+
+		@Override
+		public boolean servoDetach(String servoName) {
+			return true;
+		}
+
+		@Override
+		public void servoSweepStart(String servoName, int min, int max, int step) {
+		}
+
+		@Override
+		public void servoSweepStop(String servoName) {
+		}
+
+		@Override
+		public void servoWrite(String servoName, Integer newPos) {
+			names.add(servoName);
+			positions.add(newPos);
+		}
+
+		@Override
+		public void servoWriteMicroseconds(String name, Integer ms) {
+		}
+
+		@Override
+		public boolean setServoEventsEnabled(String servoName, boolean b) {
+			return b;
+		}
+
+		@Override
+		public void setServoSpeed(String servoName, Float speed) {
+		}
+	}
+
+	/**
+	 * keeps every batch it is sent - one per tick
+	 */
+	static class FakeBatchController extends FakeController implements ServoBatchController {
+		final ArrayList<HashMap<String, Integer>> batches = new ArrayList<HashMap<String, Integer>>();
+
+		FakeBatchController(String name) {
+			super(name);
+		}
+
+		@Override
+		public void servoWrite(String[] servoNames, int[] positions, int count) {
+			HashMap<String, Integer> batch = new HashMap<String, Integer>();
+			for (int i = 0; i < count; ++i) {
+				batch.put(servoNames[i], positions[i]);
+			}
+			batches.add(batch);
+		}
+
+		ArrayList<Integer> getBatchWrites(String servoName) {
+			ArrayList<Integer> ret = new ArrayList<Integer>();
+			for (int i = 0; i < batches.size(); ++i) {
+				Integer pos = batches.get(i).get(servoName);
+				if (pos != null) {
+					ret.add(pos);
+				}
+			}
+			return ret;
+		}
+	}
+
+	static int instance = 0;
+
+	FakeBatchController batchController;
+	FakeController plainController;
+	MotionScheduler scheduler;
+	Servo shoulder;
+	Servo elbow;
+	Servo wrist;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.WARN);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		++instance;
+		batchController = new FakeBatchController("batch" + instance);
+		plainController = new FakeController("plain" + instance);
+		scheduler = (MotionScheduler) Runtime.start("motionScheduler" + instance, "MotionScheduler");
+		// ticked by the test instead
+		scheduler.stopTicker();
+		shoulder = (Servo) Runtime.start("shoulder" + instance, "Servo");
+		elbow = (Servo) Runtime.start("elbow" + instance, "Servo");
+		wrist = (Servo) Runtime.start("wrist" + instance, "Servo");
+		shoulder.attach(batchController, 1);
+		elbow.attach(batchController, 2);
+		wrist.attach(plainController, 3);
+		scheduler.register(shoulder);
+		scheduler.register(elbow);
+		scheduler.register(wrist);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.releaseService();
+		shoulder.releaseService();
+		elbow.releaseService();
+		wrist.releaseService();
+	}
+
+	void tick() {
+		scheduler.tick(scheduler.getPeriod());
+	}
+
+	/**
+	 * ticks until nothing moves
+	 *
+	 * @return the number of ticks
+	 */
+	int tickAll() {
+		int ticks = 0;
+		while (ticks < 10000 && (scheduler.isMoving(shoulder.getName()) || scheduler.isMoving(elbow.getName()) || scheduler.isMoving(wrist.getName()))) {
+			tick();
+			++ticks;
+		}
+		return ticks;
+	}
+
+	/**
+	 * outputs a trajectory axis is expected to write - a sample which rounds
+	 * to the last output is not written again
+	 */
+	static ArrayList<Integer> expectedWrites(Trajectory t, int axis, int from, int to) {
+		ArrayList<Integer> ret = new ArrayList<Integer>();
+		for (int k = from; k < to; ++k) {
+			int output = Math.round(t.get(k, axis));
+			if (ret.size() == 0 || ret.get(ret.size() - 1) != output) {
+				ret.add(output);
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void testOneBatchPerController() {
+		scheduler.moveTo(shoulder, 30);
+		scheduler.moveTo(elbow, 150);
+		scheduler.moveTo(wrist, 60);
+		tick();
+
+		// both servos of the batch controller in a single batch
+		assertEquals(1, batchController.batches.size());
+		HashMap<String, Integer> batch = batchController.batches.get(0);
+		assertEquals(2, batch.size());
+		assertEquals(30, (int) batch.get(shoulder.getName()));
+		assertEquals(150, (int) batch.get(elbow.getName()));
+		assertEquals(0, batchController.names.size());
+
+		// one write at a time for the other
+		assertEquals(1, plainController.names.size());
+		assertEquals(wrist.getName(), plainController.names.get(0));
+		assertEquals(60, (int) plainController.positions.get(0));
+
+		// arrived - nothing more is written
+		assertFalse(scheduler.isMoving(shoulder.getName()));
+		tick();
+		assertEquals(1, batchController.batches.size());
+		assertEquals(1, plainController.names.size());
+
+		// only the servo which moves is in the next batch
+		scheduler.moveTo(elbow, 100);
+		tick();
+		assertEquals(2, batchController.batches.size());
+		batch = batchController.batches.get(1);
+		assertEquals(1, batch.size());
+		assertEquals(100, (int) batch.get(elbow.getName()));
+	}
+
+	@Test
+	public void testVelocityStepsOncePerTick() {
+		// one unit per tick at the default 100 Hz
+		wrist.setVelocity(100);
+		scheduler.moveTo(wrist, 100);
+		assertTrue(scheduler.isMoving(wrist.getName()));
+		assertEquals(10, tickAll());
+
+		ArrayList<Integer> writes = plainController.getWrites(wrist.getName());
+		assertEquals(10, writes.size());
+		for (int i = 0; i < writes.size(); ++i) {
+			assertEquals(91 + i, (int) writes.get(i));
+		}
+		assertEquals(100, wrist.getPos());
+	}
+
+	@Test
+	public void testTrajectoryPlaysOneSamplePerTick() {
+		Trajectory t = scheduler.moveTo(new Servo[] { shoulder, elbow }, new float[] { 30, 150 }, 0.5f, Trajectory.Profile.S_CURVE);
+		assertEquals(scheduler.getPeriod(), t.getPeriod(), 0);
+		assertEquals(1, scheduler.playbacks.size());
+
+		// sample 0 is where the servos are - playback starts at sample 1
+		assertEquals(t.getSamples() - 1, tickAll());
+		assertEquals(0, scheduler.playbacks.size());
+
+		// the first tick moves both together
+		assertEquals(2, batchController.batches.get(0).size());
+		assertEquals(expectedWrites(t, 0, 1, t.getSamples()), batchController.getBatchWrites(shoulder.getName()));
+		assertEquals(expectedWrites(t, 1, 1, t.getSamples()), batchController.getBatchWrites(elbow.getName()));
+		assertEquals(30, shoulder.getPos());
+		assertEquals(150, elbow.getPos());
+	}
+
+	@Test
+	public void testStopCancelsOneServoOfABatch() {
+		Trajectory t = scheduler.moveTo(new Servo[] { shoulder, elbow }, new float[] { 30, 150 }, 0.5f, Trajectory.Profile.S_CURVE);
+		for (int i = 0; i < 10; ++i) {
+			tick();
+		}
+		scheduler.stop(shoulder.getName());
+		assertFalse(scheduler.isMoving(shoulder.getName()));
+		int stoppedAt = shoulder.getPos();
+		int written = batchController.getBatchWrites(shoulder.getName()).size();
+
+		// the other servo plays on to the end without it
+		tickAll();
+		ArrayList<Integer> writes = batchController.getBatchWrites(shoulder.getName());
+		assertEquals(written, writes.size());
+		assertEquals(stoppedAt, (int) writes.get(writes.size() - 1));
+		assertEquals(stoppedAt, shoulder.getPos());
+		assertEquals(expectedWrites(t, 1, 1, t.getSamples()), batchController.getBatchWrites(elbow.getName()));
+		assertEquals(150, elbow.getPos());
+		assertEquals(0, scheduler.playbacks.size());
+	}
+
+	@Test
+	public void testPlaybackDroppedOnceEveryServoIsTakenOver() {
+		scheduler.moveTo(new Servo[] { shoulder, elbow }, new float[] { 30, 150 }, 0.5f, Trajectory.Profile.S_CURVE);
+		for (int i = 0; i < 10; ++i) {
+			tick();
+		}
+
+		// a new move takes the elbow over - the shoulder keeps playing
+		scheduler.moveTo(elbow, 100);
+		tick();
+		assertEquals(100, (int) batchController.batches.get(batchController.batches.size() - 1).get(elbow.getName()));
+		assertEquals(1, scheduler.playbacks.size());
+		assertTrue(scheduler.isMoving(shoulder.getName()));
+
+		// and with the shoulder stopped nothing is left of it
+		scheduler.stop(shoulder.getName());
+		tick();
+		assertEquals(0, scheduler.playbacks.size());
+		int batches = batchController.batches.size();
+		tick();
+		assertEquals(batches, batchController.batches.size());
+		assertEquals(100, elbow.getPos());
+	}
+}
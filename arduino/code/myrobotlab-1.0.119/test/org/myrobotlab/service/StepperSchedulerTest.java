@@ -0,0 +1,260 @@
+package org.myrobotlab.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.myrobotlab.kinematics.Trajectory;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.service.data.Pin;
+import org.myrobotlab.service.interfaces.StepperBatchController;
+
+public class StepperSchedulerTest {
+
+	/**
+	 * keeps every slice it is sent - the queue runs only when run() is called
+	 */
+	static class FakeController implements StepperBatchController {
+		int queueSize = 32;
+		int maxSteps = 20;
+		float period = 0.01f;
+		int queued = 0;
+		int maxBatch = 0;
+		boolean refuse = false;
+		final HashMap<String, ArrayList<Integer>> steps = new HashMap<String, ArrayList<Integer>>();
+
+		void run() {
+			queued = 0;
+		}
+
+		ArrayList<Integer> getSteps(String name) {
+			ArrayList<Integer> list = steps.get(name);
+			if (list == null) {
+				list = new ArrayList<Integer>();
+				steps.put(name, list);
+			}
+			return list;
+		}
+
+		@Override
+		public int getStepperQueueSize() {
+			return queueSize;
+		}
+
+		@Override
+		public int getStepperQueueFree() {
+			return queueSize - queued;
+		}
+
+		@Override
+		public float getStepperSlicePeriod() {
+			return period;
+		}
+
+		@Override
+		public int getStepperSliceMaxSteps() {
+			return maxSteps;
+		}
+
+		@Override
+		public int stepperQueue(String[] stepperNames, int[] batch, int slices) {
+			if (refuse || slices > getStepperQueueFree()) {
+				return 0;
+			}
+			for (int k = 0; k < slices; ++k) {
+				for (int i = 0; i < stepperNames.length; ++i) {
+					getSteps(stepperNames[i]).add(batch[k * stepperNames.length + i]);
+				}
+			}
+			queued += slices;
+			maxBatch = Math.max(maxBatch, slices);
+			return slices;
+		}
+
+		@Override
+		public void stepperQueueClear() {
+			queued = 0;
+		}
+
+		@Override
+		public String getName() {
+			return "fake";
+		}
+
+		@Override
+		public ArrayList<Pin> getPinList() {
+			return null;
+		}
+
+		@Override
+		public void setStepperSpeed(Integer speed) {
+		}
+
+		@Override
+		public boolean stepperAttach(Stepper stepper) {
+			return true;
+		}
+
+		@Override
+		public boolean stepperAttach(String stepperName) {
+			return true;
+		}
+
+		@Override
+		public boolean stepperDetach(String name) {
+			return true;
+		}
+
+		@Override
+		public void stepperReset(String stepper) {
+		}
+
+		@Override
+		public void stepperMoveTo(String name, int pos, int style) {
+		}
+
+		@Override
+		public void stepperStop(String name) {
+		}
+	}
+
+	static int instance = 0;
+
+	FakeController controller;
+	StepperScheduler scheduler;
+	Stepper slider;
+	Stepper turntable;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.WARN);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		++instance;
+		controller = new FakeController();
+		scheduler = (StepperScheduler) Runtime.start("stepperScheduler" + instance, "StepperScheduler");
+		// fed by the test instead
+		scheduler.stopFeeder();
+		slider = (Stepper) Runtime.start("slider" + instance, "Stepper");
+		turntable = (Stepper) Runtime.start("turntable" + instance, "Stepper");
+		slider.setController(controller);
+		turntable.setController(controller);
+		slider.setVelocity(1500);
+		slider.setAcceleration(3000);
+		turntable.setVelocity(600);
+		turntable.setAcceleration(1200);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.releaseService();
+		slider.releaseService();
+		turntable.releaseService();
+	}
+
+	/**
+	 * feeds and runs the queue until everything is sent
+	 */
+	void drain() {
+		for (int i = 0; i < 10000 && !scheduler.queues.get(controller).isEmpty(); ++i) {
+			scheduler.feed();
+			controller.run();
+		}
+		assertTrue(scheduler.queues.get(controller).isEmpty());
+	}
+
+	static int sum(ArrayList<Integer> list, int from, int to) {
+		int sum = 0;
+		for (int k = from; k < to; ++k) {
+			sum += list.get(k);
+		}
+		return sum;
+	}
+
+	@Test
+	public void testStepsAreDifferencesOfRoundedSamples() {
+		Trajectory t = scheduler.moveTo(new Stepper[] { slider, turntable }, new int[] { 1234, -357 }, 0);
+		drain();
+
+		ArrayList<Integer> x = controller.getSteps(slider.getName());
+		ArrayList<Integer> y = controller.getSteps(turntable.getName());
+		// one slice per sample after the start
+		assertEquals(t.getSamples() - 1, x.size());
+		assertEquals(t.getSamples() - 1, y.size());
+		for (int k = 1; k < t.getSamples(); ++k) {
+			assertEquals(Math.round(t.get(k, 0)) - Math.round(t.get(k - 1, 0)), (int) x.get(k - 1));
+			assertEquals(Math.round(t.get(k, 1)) - Math.round(t.get(k - 1, 1)), (int) y.get(k - 1));
+		}
+		// nothing lost to rounding
+		assertEquals(1234, sum(x, 0, x.size()));
+		assertEquals(-357, sum(y, 0, y.size()));
+	}
+
+	@Test
+	public void testSlicesWithinLimits() {
+		// faster than a slice can step - the velocity is capped
+		slider.setVelocity(100000);
+		slider.setAcceleration(100000);
+		scheduler.moveTo(new Stepper[] { slider }, new int[] { 20000 }, 0);
+
+		// only what the queue has room for goes out
+		scheduler.feed();
+		assertEquals(controller.queueSize, controller.queued);
+		scheduler.feed();
+		assertEquals(controller.queueSize, controller.getSteps(slider.getName()).size());
+		drain();
+
+		ArrayList<Integer> x = controller.getSteps(slider.getName());
+		for (int k = 0; k < x.size(); ++k) {
+			assertTrue(Math.abs(x.get(k)) <= controller.maxSteps);
+		}
+		assertTrue(controller.maxBatch <= controller.queueSize);
+		assertEquals(20000, sum(x, 0, x.size()));
+	}
+
+	@Test
+	public void testQueuedMovesStartWhereThePreviousEnds() {
+		Trajectory first = scheduler.moveTo(new Stepper[] { slider }, new int[] { 800 }, 0);
+		Trajectory second = scheduler.moveTo(new Stepper[] { slider }, new int[] { 300 }, 0);
+		Trajectory third = scheduler.moveTo(new Stepper[] { slider, turntable }, new int[] { 1000, 50 }, 0);
+		drain();
+
+		ArrayList<Integer> x = controller.getSteps(slider.getName());
+		int a = first.getSamples() - 1;
+		int b = a + second.getSamples() - 1;
+		assertEquals(b + third.getSamples() - 1, x.size());
+		assertEquals(800, sum(x, 0, a));
+		// planned from 800, not from the stepper's position of 0
+		assertEquals(-500, sum(x, a, b));
+		assertEquals(700, sum(x, b, x.size()));
+		assertEquals(50, sum(controller.getSteps(turntable.getName()), 0, third.getSamples() - 1));
+	}
+
+	@Test
+	public void testRefusedBatchDropsQueuedMoves() {
+		scheduler.moveTo(new Stepper[] { slider }, new int[] { 800 }, 0);
+		scheduler.moveTo(new Stepper[] { slider }, new int[] { 300 }, 0);
+		controller.refuse = true;
+		scheduler.feed();
+		assertTrue(scheduler.queues.get(controller).isEmpty());
+		assertFalse(scheduler.isMoving(slider.getName()));
+
+		// the next move starts from the stepper's position again
+		controller.refuse = false;
+		scheduler.moveTo(new Stepper[] { slider }, new int[] { 100 }, 0);
+		drain();
+		ArrayList<Integer> x = controller.getSteps(slider.getName());
+		assertEquals(100, sum(x, 0, x.size()));
+	}
+}
@@ -0,0 +1,163 @@
+package org.myrobotlab.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggingFactory;
+
+public class WebGUITest {
+
+	static int instance = 0;
+
+	WebGUI webgui;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LoggingFactory.getInstance().configure();
+		LoggingFactory.getInstance().setLevel(Level.WARN);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		++instance;
+		// created but not started - no server and no writer threads, so
+		// whatever is offered stays queued
+		webgui = (WebGUI) Runtime.create("webgui" + instance, "WebGUI");
+		webgui.maxQueued = 3;
+		webgui.maxQueuedBytes = 1000;
+	}
+
+	@After
+	public void tearDown() {
+		webgui.releaseService();
+	}
+
+	WebGUI.Client createClient(String overflow) throws Exception {
+		WebGUI.Client client = webgui.new Client("client" + instance, null);
+		client.overflow = overflow;
+		webgui.clients.put(client.uuid, client);
+		return client;
+	}
+
+	static ArrayList<Object> queued(WebGUI.Client client) {
+		ArrayList<Object> payloads = new ArrayList<Object>();
+		synchronized (client) {
+			for (WebGUI.Outbound o : client.queue) {
+				payloads.add(o.payload);
+			}
+		}
+		return payloads;
+	}
+
+	static void offer(WebGUI.Client client, String topic, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			client.offer(topic + i, String.format("%s%d", topic, i), 10);
+		}
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		WebGUI.Client client = createClient(WebGUI.OVERFLOW_DROP_OLDEST);
+		offer(client, "t", 0, 5);
+		ArrayList<Object> q = queued(client);
+		assertEquals(3, q.size());
+		assertEquals("t2", q.get(0));
+		assertEquals("t4", q.get(2));
+		assertEquals(2, client.data.txDropped);
+		assertEquals(30, client.queuedBytes);
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		WebGUI.Client client = createClient(WebGUI.OVERFLOW_DROP_NEWEST);
+		offer(client, "t", 0, 5);
+		ArrayList<Object> q = queued(client);
+		assertEquals(3, q.size());
+		assertEquals("t0", q.get(0));
+		assertEquals("t2", q.get(2));
+		assertEquals(2, client.data.txDropped);
+	}
+
+	@Test
+	public void testLatestReplacesQueuedTopic() throws Exception {
+		WebGUI.Client client = createClient(WebGUI.OVERFLOW_LATEST);
+		client.offer("servo.publishServoEvent", "a0", 10);
+		client.offer("arduino.publishPin", "b0", 10);
+		client.offer("servo.publishServoEvent", "a1", 20);
+		client.offer("servo.publishServoEvent", "a2", 30);
+
+		// replaced where it was queued - not moved behind b0
+		ArrayList<Object> q = queued(client);
+		assertEquals(2, q.size());
+		assertEquals("a2", q.get(0));
+		assertEquals("b0", q.get(1));
+		assertEquals(40, client.queuedBytes);
+		assertEquals(2, client.data.txDropped);
+
+		// more topics than fit - the oldest go as with dropOldest
+		offer(client, "t", 0, 3);
+		q = queued(client);
+		assertEquals(3, q.size());
+		assertEquals("t0", q.get(0));
+		// a dropped topic is queued anew instead of replaced
+		client.offer("servo.publishServoEvent", "a3", 10);
+		q = queued(client);
+		assertEquals("a3", q.get(2));
+	}
+
+	@Test
+	public void testBytesLimit() throws Exception {
+		WebGUI.Client client = createClient(WebGUI.OVERFLOW_DROP_OLDEST);
+		webgui.maxQueued = 100;
+		client.offer("a", "a", 600);
+		client.offer("b", "b", 300);
+		client.offer("c", "c", 300);
+		ArrayList<Object> q = queued(client);
+		assertEquals(2, q.size());
+		assertEquals("b", q.get(0));
+		assertEquals(600, client.queuedBytes);
+
+		// a single message over the limit still goes - alone
+		client.offer("d", "d", 2000);
+		q = queued(client);
+		assertEquals(1, q.size());
+		assertEquals("d", q.get(0));
+	}
+
+	@Test
+	public void testDisconnect() throws Exception {
+		WebGUI.Client client = createClient(WebGUI.OVERFLOW_DISCONNECT);
+		offer(client, "t", 0, 3);
+		assertTrue(webgui.clients.containsKey(client.uuid));
+		offer(client, "t", 3, 4);
+		assertFalse(webgui.clients.containsKey(client.uuid));
+		assertTrue(client.closed);
+		assertEquals(0, queued(client).size());
+
+		// a closed client takes nothing
+		offer(client, "t", 4, 5);
+		assertEquals(0, queued(client).size());
+	}
+
+	@Test
+	public void testUnknownPolicyRejected() throws Exception {
+		WebGUI.Client client = createClient(WebGUI.OVERFLOW_DROP_NEWEST);
+		webgui.onClientMessage(client, "{\"method\":\"setOverflow\",\"data\":[\"dropEverything\"]}");
+		assertEquals(WebGUI.OVERFLOW_DROP_NEWEST, client.overflow);
+		webgui.onClientMessage(client, "{\"method\":\"setOverflow\",\"data\":[\"disconnect\"]}");
+		assertEquals(WebGUI.OVERFLOW_DISCONNECT, client.overflow);
+
+		assertFalse(webgui.setDefaultOverflow("dropEverything"));
+		assertEquals(WebGUI.OVERFLOW_LATEST, webgui.defaultOverflow);
+		assertTrue(webgui.setDefaultOverflow(WebGUI.OVERFLOW_DROP_OLDEST));
+		assertEquals(WebGUI.OVERFLOW_DROP_OLDEST, webgui.new Client("next", null).overflow);
+	}
+}